@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.collection;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable {@link java.util.List} with amortized constant-time append.
+ * <p>
+ * Each sequence is a view on a prefix of a shared array. Appending to the
+ * longest sequence built on a given array claims the next free slots in place,
+ * so building a sequence incrementally does not copy it at each step. Appending
+ * to any other sequence (one that is already a prefix of a longer one) copies
+ * it into a new array, leaving every existing sequence untouched.
+ * <p>
+ * Elements may not be {@code null}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PersistentSequence<T> extends AbstractList<T> implements RandomAccess
+{
+    private static final int MINIMUM_CAPACITY = 8;
+
+    private static final PersistentSequence<Object> EMPTY = new PersistentSequence<Object>(new Buffer(0, 0), 0);
+
+    private final Buffer buffer;
+    private final int size;
+
+    private static final class Buffer
+    {
+        private final Object[] elements;
+        private final AtomicInteger claimed;
+
+        public Buffer(final int capacity, final int claimed)
+        {
+            elements = new Object[capacity];
+            this.claimed = new AtomicInteger(claimed);
+        }
+
+        public boolean claim(final int from, final int count)
+        {
+            return from + count <= elements.length && claimed.compareAndSet(from, from + count);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentSequence<T> empty()
+    {
+        return (PersistentSequence<T>) EMPTY;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <T> PersistentSequence<T> copyOf(final Iterable<? extends T> elements)
+    {
+        if (elements instanceof PersistentSequence)
+        {
+            return (PersistentSequence<T>) elements;
+        }
+
+        return PersistentSequence.<T> empty().appendAll(elements);
+    }
+
+    private PersistentSequence(final Buffer buffer, final int size)
+    {
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    public PersistentSequence<T> append(final T element)
+    {
+        Preconditions.checkNotNull(element);
+        if (buffer.claim(size, 1))
+        {
+            buffer.elements[size] = element;
+            return new PersistentSequence<T>(buffer, size + 1);
+        }
+
+        final Buffer newBuffer = copyBuffer(1);
+        newBuffer.elements[size] = element;
+        return new PersistentSequence<T>(newBuffer, size + 1);
+    }
+
+    public PersistentSequence<T> appendAll(final Iterable<? extends T> elements)
+    {
+        final Object[] newElements;
+        if (elements instanceof Collection)
+        {
+            newElements = ((Collection<?>) elements).toArray();
+        }
+        else
+        {
+            newElements = ImmutableList.copyOf(elements).toArray();
+        }
+
+        if (newElements.length == 0)
+        {
+            return this;
+        }
+        for (final Object element : newElements)
+        {
+            Preconditions.checkNotNull(element);
+        }
+
+        final Buffer targetBuffer;
+        if (buffer.claim(size, newElements.length))
+        {
+            targetBuffer = buffer;
+        }
+        else
+        {
+            targetBuffer = copyBuffer(newElements.length);
+        }
+        System.arraycopy(newElements, 0, targetBuffer.elements, size, newElements.length);
+
+        return new PersistentSequence<T>(targetBuffer, size + newElements.length);
+    }
+
+    /**
+     * Copies this sequence into a new buffer with at least {@code count} slots
+     * claimed after its last element.
+     */
+    private Buffer copyBuffer(final int count)
+    {
+        final int capacity = Math.max(MINIMUM_CAPACITY, Math.max(size * 2, size + count));
+        final Buffer newBuffer = new Buffer(capacity, size + count);
+        System.arraycopy(buffer.elements, 0, newBuffer.elements, 0, size);
+        return newBuffer;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T get(final int index)
+    {
+        Preconditions.checkElementIndex(index, size);
+        return (T) buffer.elements[index];
+    }
+
+    @Override
+    public int size()
+    {
+        return size;
+    }
+}
@@ -41,7 +41,7 @@ public abstract class AbstractEventObservable<T extends Event> implements EventD
     private final TaskExecutor executor;
     private final NotificationFailurePolicy notificationFailurePolicy;
 
-    private Iterable<EventObserver<T>> observers = ImmutableSet.of();
+    private volatile ImmutableSet<EventObserver<T>> observers = ImmutableSet.of();
 
     public static interface NotificationFailurePolicy
     {
@@ -85,20 +85,50 @@ public abstract class AbstractEventObservable<T extends Event> implements EventD
     }
 
     @Override
-    public void addObserver(final EventObserver<T> observer)
+    public synchronized void addObserver(final EventObserver<T> observer)
     {
         observers = TcSets.immutableSet(observers, observer);
     }
 
     @Override
-    public void removeObserver(final EventObserver<T> observer)
+    public synchronized void removeObserver(final EventObserver<T> observer)
     {
         observers = TcSets.immutableSetWithout(observers, observer);
     }
 
+    @Override
+    public boolean hasObservers()
+    {
+        return !observers.isEmpty();
+    }
+
     @Override
     public void notify(final T event)
     {
+        final ImmutableSet<EventObserver<T>> observers = this.observers;
+        if (observers.isEmpty())
+        {
+            return;
+        }
+
+        if (blockingNotification && executor == TaskExecutors.directExecutor())
+        {
+            // Same semantics as submitting the tasks to the direct executor,
+            // without allocating a task and a future per observer
+            for (final EventObserver<T> observer : observers)
+            {
+                try
+                {
+                    observer.notify(event);
+                }
+                catch (final Throwable error)
+                {
+                    notificationFailurePolicy.notificationFailure(observer, event, error);
+                }
+            }
+            return;
+        }
+
         final Iterable<Callable<Object>> notificationTasks = Iterables.transform(observers,
           observer -> () -> {
               try
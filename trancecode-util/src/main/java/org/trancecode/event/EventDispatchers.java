@@ -64,6 +64,26 @@ public final class EventDispatchers
         return new InternalEventDispatcher<>(blockingNotification, executor, notificationFailurePolicy);
     }
 
+    /**
+     * Returns an {@link EventDispatcher} that notifies observers asynchronously
+     * from a dedicated thread, in the order events were published.
+     */
+    public static <T extends Event> RingBufferEventDispatcher<T> newAsynchronousEventDispatcher()
+    {
+        return newAsynchronousEventDispatcher(RingBufferEventDispatcher.DEFAULT_CAPACITY,
+                AbstractEventObservable.ignoreErrors());
+    }
+
+    /**
+     * Returns an {@link EventDispatcher} that notifies observers asynchronously
+     * from a dedicated thread, buffering up to {@code capacity} events.
+     */
+    public static <T extends Event> RingBufferEventDispatcher<T> newAsynchronousEventDispatcher(final int capacity,
+            final NotificationFailurePolicy notificationFailurePolicy)
+    {
+        return new RingBufferEventDispatcher<>(capacity, notificationFailurePolicy);
+    }
+
     private EventDispatchers()
     {
         // No instantiation
@@ -25,4 +25,10 @@ public interface EventObservable<T extends Event>
     void addObserver(EventObserver<T> observer);
 
     void removeObserver(EventObserver<T> observer);
+
+    /**
+     * Returns {@code true} if at least one observer is registered. Callers may
+     * use this to avoid building events that nobody will receive.
+     */
+    boolean hasObservers();
 }
@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.event;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.Closeable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.trancecode.collection.TcSets;
+import org.trancecode.event.AbstractEventObservable.NotificationFailurePolicy;
+import org.trancecode.logging.Logger;
+
+/**
+ * An {@link EventDispatcher} that hands events over to a single background
+ * thread through a bounded lock-free ring buffer.
+ * <p>
+ * Publishing an event only claims a slot in the buffer, so slow observers do
+ * not hold up the thread that emits events. Observers are notified in the
+ * order events were published. When the buffer is full, publishers wait for
+ * the dispatcher thread to catch up rather than dropping events. When no
+ * observer is registered, events are discarded without being enqueued.
+ * <p>
+ * Once idle, the dispatcher thread parks until a publisher wakes it up, so
+ * that it does not consume CPU time while no event is published.
+ * <p>
+ * Closing the dispatcher and claiming a slot both update the same counter, so
+ * every event is either rejected with an {@link IllegalStateException} or
+ * dispatched before {@link #close()} returns, including for publishers that
+ * were waiting on a full buffer.
+ * 
+ * @author Herve Quiroz
+ */
+public final class RingBufferEventDispatcher<T extends Event> implements EventDispatcher<T>, Closeable
+{
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private static final Logger LOG = Logger.getLogger(RingBufferEventDispatcher.class);
+    private static final int SPIN_TRIES = 100;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final long MAXIMUM_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    // Set on tail once the dispatcher is closed, so that no slot can be claimed
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final NotificationFailurePolicy notificationFailurePolicy;
+    private final int mask;
+    private final AtomicReferenceArray<T> events;
+    // sequences[i] == n : slot i is free for the publisher that claims n
+    // sequences[i] == n + 1 : slot i holds the event published as n
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private final Thread dispatcherThread;
+
+    private volatile ImmutableSet<EventObserver<T>> observers = ImmutableSet.of();
+    private volatile long head;
+    // Set by the dispatcher thread before it parks, so that publishers know
+    // they have to unpark it
+    private volatile boolean dispatcherParked;
+
+    RingBufferEventDispatcher(final int capacity, final NotificationFailurePolicy notificationFailurePolicy)
+    {
+        Preconditions.checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1,
+                "capacity must be a power of two: %s", capacity);
+        this.notificationFailurePolicy = Preconditions.checkNotNull(notificationFailurePolicy);
+        mask = capacity - 1;
+        events = new AtomicReferenceArray<>(capacity);
+        sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+        {
+            sequences.set(i, i);
+        }
+
+        dispatcherThread = new Thread(this::dispatch, getClass().getSimpleName());
+        dispatcherThread.setDaemon(true);
+        dispatcherThread.start();
+    }
+
+    @Override
+    public synchronized void addObserver(final EventObserver<T> observer)
+    {
+        observers = TcSets.immutableSet(observers, observer);
+    }
+
+    @Override
+    public synchronized void removeObserver(final EventObserver<T> observer)
+    {
+        observers = TcSets.immutableSetWithout(observers, observer);
+    }
+
+    @Override
+    public boolean hasObservers()
+    {
+        return !observers.isEmpty();
+    }
+
+    @Override
+    public void notify(final T event)
+    {
+        Preconditions.checkNotNull(event);
+        if (observers.isEmpty())
+        {
+            return;
+        }
+
+        int idle = 0;
+        long parkNanos = PARK_NANOS;
+        while (true)
+        {
+            final long position = tail.get();
+            Preconditions.checkState(position >= 0, "dispatcher is closed");
+            final int index = (int) position & mask;
+            final long available = sequences.get(index) - position;
+            if (available == 0)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    events.lazySet(index, event);
+                    // Not a lazy set: the dispatcher thread must not be seen
+                    // running before it can see the event
+                    sequences.set(index, position + 1);
+                    if (dispatcherParked)
+                    {
+                        LockSupport.unpark(dispatcherThread);
+                    }
+                    return;
+                }
+            }
+            else if (available < 0)
+            {
+                // Buffer is full: wait for the dispatcher thread
+                if (idle++ < SPIN_TRIES)
+                {
+                    Thread.yield();
+                }
+                else
+                {
+                    LockSupport.unpark(dispatcherThread);
+                    LockSupport.parkNanos(this, parkNanos);
+                    parkNanos = Math.min(parkNanos * 2, MAXIMUM_PARK_NANOS);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the number of events that have been published but not yet
+     * dispatched to observers.
+     */
+    public int pendingEvents()
+    {
+        return (int) Math.max(0, (tail.get() & ~CLOSED) - head);
+    }
+
+    boolean isDispatcherParked()
+    {
+        return dispatcherParked;
+    }
+
+    /**
+     * Stops the dispatcher thread once all the events already published have
+     * been dispatched. Events published afterwards are rejected.
+     */
+    @Override
+    public void close()
+    {
+        long position = tail.get();
+        while (position >= 0 && !tail.compareAndSet(position, position | CLOSED))
+        {
+            position = tail.get();
+        }
+        LockSupport.unpark(dispatcherThread);
+        try
+        {
+            dispatcherThread.join();
+        }
+        catch (final InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dispatch()
+    {
+        int idle = 0;
+        while (true)
+        {
+            final int index = (int) head & mask;
+            if (sequences.get(index) == head + 1)
+            {
+                final T event = events.get(index);
+                events.lazySet(index, null);
+                sequences.lazySet(index, head + mask + 1);
+                head++;
+                idle = 0;
+                dispatch(event);
+            }
+            else if (tail.get() == (head | CLOSED))
+            {
+                LOG.trace("{@method} dispatcher stopped");
+                return;
+            }
+            else if (idle++ < SPIN_TRIES)
+            {
+                Thread.yield();
+            }
+            else
+            {
+                dispatcherParked = true;
+                // An event published before the flag was set would not unpark
+                // this thread
+                if (sequences.get(index) != head + 1 && tail.get() != (head | CLOSED))
+                {
+                    LockSupport.park(this);
+                }
+                dispatcherParked = false;
+            }
+        }
+    }
+
+    private void dispatch(final T event)
+    {
+        for (final EventObserver<T> observer : observers)
+        {
+            try
+            {
+                observer.notify(event);
+            }
+            catch (final Throwable error)
+            {
+                try
+                {
+                    notificationFailurePolicy.notificationFailure(observer, event, error);
+                }
+                catch (final Throwable policyError)
+                {
+                    // There is no caller to report to on the dispatcher thread
+                    LOG.warn("{@method} observer {} failed on event {}: {message}", observer, event, policyError);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.metrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.Map;
+
+/**
+ * Base class for {@link Metric} implementations.
+ * 
+ * @author Herve Quiroz
+ */
+abstract class AbstractMetric implements Metric
+{
+    private final String name;
+    private final String help;
+    private final Map<String, String> labels;
+
+    protected AbstractMetric(final String name, final String help, final Map<String, String> labels)
+    {
+        this.name = Preconditions.checkNotNull(name);
+        this.help = Preconditions.checkNotNull(help);
+        this.labels = ImmutableMap.copyOf(labels);
+    }
+
+    @Override
+    public final String getName()
+    {
+        return name;
+    }
+
+    @Override
+    public final String getHelp()
+    {
+        return help;
+    }
+
+    @Override
+    public final Map<String, String> getLabels()
+    {
+        return labels;
+    }
+
+    @Override
+    public String toString()
+    {
+        return getType() + " " + name + labels;
+    }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link Metric} that only goes up.
+ * 
+ * @author Herve Quiroz
+ */
+public final class Counter extends AbstractMetric
+{
+    private final LongAdder value = new LongAdder();
+
+    Counter(final String name, final String help, final Map<String, String> labels)
+    {
+        super(name, help, labels);
+    }
+
+    @Override
+    public MetricType getType()
+    {
+        return MetricType.COUNTER;
+    }
+
+    public void increment()
+    {
+        value.increment();
+    }
+
+    public void add(final long amount)
+    {
+        Preconditions.checkArgument(amount >= 0, "amount = %s", amount);
+        value.add(amount);
+    }
+
+    public long get()
+    {
+        return value.sum();
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.metrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+
+import java.util.Map;
+
+/**
+ * A {@link Metric} whose value is read from a {@link Supplier} each time it
+ * is exported.
+ * 
+ * @author Herve Quiroz
+ */
+public final class Gauge extends AbstractMetric
+{
+    private final Supplier<? extends Number> value;
+
+    Gauge(final String name, final String help, final Map<String, String> labels,
+            final Supplier<? extends Number> value)
+    {
+        super(name, help, labels);
+        this.value = Preconditions.checkNotNull(value);
+    }
+
+    @Override
+    public MetricType getType()
+    {
+        return MetricType.GAUGE;
+    }
+
+    public double get()
+    {
+        final Number number = value.get();
+        if (number == null)
+        {
+            return Double.NaN;
+        }
+
+        return number.doubleValue();
+    }
+}
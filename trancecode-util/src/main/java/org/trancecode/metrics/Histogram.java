@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.metrics;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link Metric} that counts observed values in buckets.
+ * <p>
+ * Observing a value only takes a binary search among the bucket bounds and two
+ * {@link LongAdder} increments, so histograms can be updated from hot paths.
+ * 
+ * @author Herve Quiroz
+ */
+public final class Histogram extends AbstractMetric
+{
+    private static final double[] DURATION_BUCKETS = { 0.0001, 0.0005, 0.001, 0.005, 0.01, 0.025, 0.05, 0.1,
+            0.25, 0.5, 1, 2.5, 5, 10, 30, 60 };
+    private static final double[] COUNT_BUCKETS = { 0, 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 10000 };
+    private static final double NANOSECONDS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final double[] upperBounds;
+    // The last bucket is for values greater than all the bounds
+    private final LongAdder[] buckets;
+    private final LongAdder count = new LongAdder();
+    private final DoubleAdder sum = new DoubleAdder();
+
+    Histogram(final String name, final String help, final Map<String, String> labels, final double[] upperBounds)
+    {
+        super(name, help, labels);
+        Preconditions.checkArgument(upperBounds.length > 0, "no bucket");
+        this.upperBounds = upperBounds.clone();
+        for (int i = 1; i < upperBounds.length; i++)
+        {
+            Preconditions.checkArgument(upperBounds[i - 1] < upperBounds[i], "bucket bounds must be increasing: %s",
+                    Arrays.toString(upperBounds));
+        }
+
+        buckets = new LongAdder[upperBounds.length + 1];
+        for (int i = 0; i < buckets.length; i++)
+        {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Returns bucket bounds suited for durations, in seconds.
+     */
+    public static double[] durationBuckets()
+    {
+        return DURATION_BUCKETS.clone();
+    }
+
+    /**
+     * Returns bucket bounds suited for small counts such as a number of
+     * documents.
+     */
+    public static double[] countBuckets()
+    {
+        return COUNT_BUCKETS.clone();
+    }
+
+    @Override
+    public MetricType getType()
+    {
+        return MetricType.HISTOGRAM;
+    }
+
+    public void observe(final double value)
+    {
+        int index = Arrays.binarySearch(upperBounds, value);
+        if (index < 0)
+        {
+            index = -index - 1;
+        }
+        buckets[index].increment();
+        count.increment();
+        sum.add(value);
+    }
+
+    /**
+     * Observes a duration measured with {@link System#nanoTime()}, recorded in
+     * seconds.
+     */
+    public void observeNanos(final long nanoseconds)
+    {
+        observe(nanoseconds / NANOSECONDS_PER_SECOND);
+    }
+
+    public double[] getUpperBounds()
+    {
+        return upperBounds.clone();
+    }
+
+    /**
+     * Returns the cumulative count of observed values for each upper bound,
+     * followed by the total count.
+     */
+    public long[] getCumulativeCounts()
+    {
+        final long[] counts = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++)
+        {
+            total += buckets[i].sum();
+            counts[i] = total;
+        }
+
+        return counts;
+    }
+
+    public long getCount()
+    {
+        return count.sum();
+    }
+
+    public double getSum()
+    {
+        return sum.sum();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.metrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+
+/**
+ * Exposes each series of a {@link MetricsRegistry} as a read-only MBean
+ * attribute, named after the Prometheus series. Metrics registered after the
+ * MBean show up the next time its attributes are listed.
+ * 
+ * @author Herve Quiroz
+ */
+final class MetricsMBean implements DynamicMBean
+{
+    private final MetricsRegistry registry;
+
+    public MetricsMBean(final MetricsRegistry registry)
+    {
+        this.registry = Preconditions.checkNotNull(registry);
+    }
+
+    private static String seriesName(final Metric metric, final String suffix)
+    {
+        final StringBuilder name = new StringBuilder(metric.getName()).append(suffix);
+        for (final Entry<String, String> label : metric.getLabels().entrySet())
+        {
+            name.append('.').append(label.getKey()).append('=').append(label.getValue());
+        }
+
+        return name.toString();
+    }
+
+    private Map<String, Number> getValues()
+    {
+        final Map<String, Number> values = Maps.newLinkedHashMap();
+        for (final Metric metric : MetricsRegistries.sorted(registry.getMetrics()))
+        {
+            switch (metric.getType())
+            {
+                case COUNTER:
+                    values.put(seriesName(metric, ""), ((Counter) metric).get());
+                    break;
+                case GAUGE:
+                    values.put(seriesName(metric, ""), ((Gauge) metric).get());
+                    break;
+                case HISTOGRAM:
+                    final Histogram histogram = (Histogram) metric;
+                    final long count = histogram.getCount();
+                    values.put(seriesName(metric, "_count"), count);
+                    values.put(seriesName(metric, "_sum"), histogram.getSum());
+                    values.put(seriesName(metric, "_mean"), count > 0 ? histogram.getSum() / count : 0.0);
+                    break;
+                default:
+                    throw new IllegalStateException(metric.getType().name());
+            }
+        }
+
+        return values;
+    }
+
+    @Override
+    public Object getAttribute(final String attribute) throws AttributeNotFoundException
+    {
+        final Number value = getValues().get(attribute);
+        if (value == null)
+        {
+            throw new AttributeNotFoundException(attribute);
+        }
+
+        return value;
+    }
+
+    @Override
+    public void setAttribute(final Attribute attribute)
+    {
+        throw new UnsupportedOperationException("metrics are read-only");
+    }
+
+    @Override
+    public AttributeList getAttributes(final String[] attributes)
+    {
+        final Map<String, Number> values = getValues();
+        final AttributeList list = new AttributeList();
+        for (final String attribute : attributes)
+        {
+            final Number value = values.get(attribute);
+            if (value != null)
+            {
+                list.add(new Attribute(attribute, value));
+            }
+        }
+
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(final AttributeList attributes)
+    {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(final String actionName, final Object[] params, final String[] signature)
+    {
+        throw new UnsupportedOperationException(actionName);
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo()
+    {
+        final List<MBeanAttributeInfo> attributes = Lists.newArrayList();
+        for (final Entry<String, Number> value : getValues().entrySet())
+        {
+            attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                    value.getKey(), true, false, false));
+        }
+
+        return new MBeanInfo(getClass().getName(), "Metrics", attributes.toArray(new MBeanAttributeInfo[0]), null,
+                new MBeanOperationInfo[0], null);
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.metrics;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Ordering;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.trancecode.logging.Logger;
+
+/**
+ * Utility methods related to {@link MetricsRegistry}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class MetricsRegistries
+{
+    private static final Logger LOG = Logger.getLogger(MetricsRegistries.class);
+
+    private static final Ordering<Metric> METRIC_ORDERING = Ordering.<String> natural().onResultOf(
+            (final Metric metric) -> metric.getName() + metric.getLabels());
+
+    private MetricsRegistries()
+    {
+        // No instantiation
+    }
+
+    public static MetricsRegistry newMetricsRegistry()
+    {
+        return new DefaultMetricsRegistry();
+    }
+
+    /**
+     * Exposes the metrics of the registry as the attributes of an MBean
+     * registered in the platform MBean server under the specified name.
+     */
+    public static ObjectName registerMBean(final MetricsRegistry registry, final String objectName)
+    {
+        try
+        {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            final ObjectName name = new ObjectName(objectName);
+            if (server.isRegistered(name))
+            {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new MetricsMBean(registry), name);
+            LOG.debug("{@method} registered {}", name);
+            return name;
+        }
+        catch (final JMException e)
+        {
+            throw new IllegalStateException("cannot register MBean " + objectName, e);
+        }
+    }
+
+    static Iterable<Metric> sorted(final Iterable<Metric> metrics)
+    {
+        return METRIC_ORDERING.sortedCopy(metrics);
+    }
+
+    private static final class DefaultMetricsRegistry implements MetricsRegistry
+    {
+        private final Map<ImmutableList<String>, Metric> metrics = new ConcurrentHashMap<>();
+
+        private static ImmutableList<String> key(final String name, final String... labels)
+        {
+            Preconditions.checkArgument(labels.length % 2 == 0, "labels must be name/value pairs: %s",
+                    Arrays.toString(labels));
+            return ImmutableList.<String> builder().add(Preconditions.checkNotNull(name)).add(labels).build();
+        }
+
+        private static Map<String, String> labels(final String... labels)
+        {
+            final ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
+            for (int i = 0; i < labels.length; i += 2)
+            {
+                builder.put(labels[i], labels[i + 1]);
+            }
+
+            return builder.build();
+        }
+
+        private <T extends Metric> T get(final Class<T> type, final ImmutableList<String> key,
+                final Function<ImmutableList<String>, T> factory)
+        {
+            final Metric metric = metrics.computeIfAbsent(key, factory);
+            Preconditions.checkArgument(type.isInstance(metric), "%s is already registered as %s", key.get(0),
+                    metric.getType());
+            return type.cast(metric);
+        }
+
+        @Override
+        public Counter counter(final String name, final String help, final String... labels)
+        {
+            return get(Counter.class, key(name, labels), key -> new Counter(name, help, labels(labels)));
+        }
+
+        @Override
+        public Histogram histogram(final String name, final String help, final double[] upperBounds,
+                final String... labels)
+        {
+            return get(Histogram.class, key(name, labels),
+                    key -> new Histogram(name, help, labels(labels), upperBounds));
+        }
+
+        @Override
+        public Gauge gauge(final String name, final String help, final Supplier<? extends Number> value,
+                final String... labels)
+        {
+            final ImmutableList<String> key = key(name, labels);
+            final Gauge gauge = new Gauge(name, help, labels(labels), value);
+            final Metric previous = metrics.put(key, gauge);
+            if (previous != null && !(previous instanceof Gauge))
+            {
+                metrics.put(key, previous);
+                throw new IllegalArgumentException(name + " is already registered as " + previous.getType());
+            }
+
+            return gauge;
+        }
+
+        @Override
+        public Iterable<Metric> getMetrics()
+        {
+            return ImmutableList.copyOf(metrics.values());
+        }
+    }
+}
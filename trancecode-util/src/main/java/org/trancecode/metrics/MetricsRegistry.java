@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.metrics;
+
+import com.google.common.base.Supplier;
+
+/**
+ * A set of {@link Metric} instances identified by name and labels.
+ * <p>
+ * Labels are given as alternating names and values. Asking twice for the same
+ * name and labels returns the same metric, so callers on hot paths should keep
+ * a reference to the metrics they update rather than look them up each time.
+ * 
+ * @author Herve Quiroz
+ */
+public interface MetricsRegistry
+{
+    Counter counter(String name, String help, String... labels);
+
+    Histogram histogram(String name, String help, double[] upperBounds, String... labels);
+
+    /**
+     * Registers a gauge, replacing any gauge previously registered with the
+     * same name and labels.
+     */
+    Gauge gauge(String name, String help, Supplier<? extends Number> value, String... labels);
+
+    Iterable<Metric> getMetrics();
+}
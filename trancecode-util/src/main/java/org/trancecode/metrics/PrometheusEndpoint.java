@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.metrics;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import org.trancecode.logging.Logger;
+
+/**
+ * Serves the metrics of a {@link MetricsRegistry} in the Prometheus text
+ * format over HTTP, on the loopback interface only.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PrometheusEndpoint implements Closeable
+{
+    public static final String PATH = "/metrics";
+
+    private static final Logger LOG = Logger.getLogger(PrometheusEndpoint.class);
+
+    private final HttpServer server;
+
+    private PrometheusEndpoint(final HttpServer server)
+    {
+        this.server = server;
+    }
+
+    /**
+     * Starts serving the metrics on the specified port, or on any free port if
+     * {@code port} is 0.
+     */
+    public static PrometheusEndpoint start(final MetricsRegistry registry, final int port) throws IOException
+    {
+        Preconditions.checkNotNull(registry);
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                0);
+        server.createContext(PATH, exchange -> {
+            try
+            {
+                final byte[] body = PrometheusTextFormat.toString(registry).getBytes(Charsets.UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", PrometheusTextFormat.CONTENT_TYPE);
+                exchange.sendResponseHeaders(200, body.length);
+                try (final OutputStream responseBody = exchange.getResponseBody())
+                {
+                    responseBody.write(body);
+                }
+            }
+            finally
+            {
+                exchange.close();
+            }
+        });
+        server.start();
+        LOG.debug("{@method} serving metrics on {}", server.getAddress());
+        return new PrometheusEndpoint(server);
+    }
+
+    public int getPort()
+    {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close()
+    {
+        server.stop(0);
+    }
+}
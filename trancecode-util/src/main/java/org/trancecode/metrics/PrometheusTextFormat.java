@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.metrics;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Writes the metrics of a {@link MetricsRegistry} in the Prometheus text
+ * exposition format.
+ * 
+ * @author Herve Quiroz
+ * @see <a href="https://prometheus.io/docs/instrumenting/exposition_formats/">
+ *      Exposition formats</a>
+ */
+public final class PrometheusTextFormat
+{
+    public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private PrometheusTextFormat()
+    {
+        // No instantiation
+    }
+
+    public static void write(final MetricsRegistry registry, final Appendable destination) throws IOException
+    {
+        String previousName = null;
+        for (final Metric metric : MetricsRegistries.sorted(registry.getMetrics()))
+        {
+            if (!metric.getName().equals(previousName))
+            {
+                destination.append("# HELP ").append(metric.getName()).append(' ')
+                        .append(escapeHelp(metric.getHelp())).append('\n');
+                destination.append("# TYPE ").append(metric.getName()).append(' ')
+                        .append(metric.getType().name().toLowerCase()).append('\n');
+                previousName = metric.getName();
+            }
+
+            switch (metric.getType())
+            {
+                case COUNTER:
+                    writeSample(destination, metric.getName(), metric.getLabels(), null,
+                            Long.toString(((Counter) metric).get()));
+                    break;
+                case GAUGE:
+                    writeSample(destination, metric.getName(), metric.getLabels(), null,
+                            toString(((Gauge) metric).get()));
+                    break;
+                case HISTOGRAM:
+                    final Histogram histogram = (Histogram) metric;
+                    final double[] upperBounds = histogram.getUpperBounds();
+                    final long[] counts = histogram.getCumulativeCounts();
+                    for (int i = 0; i < upperBounds.length; i++)
+                    {
+                        writeSample(destination, metric.getName() + "_bucket", metric.getLabels(),
+                                toString(upperBounds[i]), Long.toString(counts[i]));
+                    }
+                    writeSample(destination, metric.getName() + "_bucket", metric.getLabels(), "+Inf",
+                            Long.toString(counts[upperBounds.length]));
+                    writeSample(destination, metric.getName() + "_sum", metric.getLabels(), null,
+                            toString(histogram.getSum()));
+                    writeSample(destination, metric.getName() + "_count", metric.getLabels(), null,
+                            Long.toString(counts[upperBounds.length]));
+                    break;
+                default:
+                    throw new IllegalStateException(metric.getType().name());
+            }
+        }
+    }
+
+    public static String toString(final MetricsRegistry registry)
+    {
+        final StringBuilder text = new StringBuilder();
+        try
+        {
+            write(registry, text);
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+
+        return text.toString();
+    }
+
+    /**
+     * Writes the metrics to a file for a local scraper (such as the node
+     * exporter textfile collector). The file is replaced atomically so that
+     * readers never see a partial file.
+     */
+    public static void write(final MetricsRegistry registry, final File file) throws IOException
+    {
+        final File temporaryFile = new File(file.getPath() + ".tmp");
+        Files.write(toString(registry), temporaryFile, Charsets.UTF_8);
+        if (!temporaryFile.renameTo(file))
+        {
+            Files.move(temporaryFile, file);
+        }
+    }
+
+    private static void writeSample(final Appendable destination, final String name,
+            final Map<String, String> labels, final String le, final String value) throws IOException
+    {
+        destination.append(name);
+        if (!labels.isEmpty() || le != null)
+        {
+            destination.append('{');
+            boolean first = true;
+            for (final Entry<String, String> label : labels.entrySet())
+            {
+                if (!first)
+                {
+                    destination.append(',');
+                }
+                destination.append(label.getKey()).append("=\"").append(escapeLabelValue(label.getValue()))
+                        .append('"');
+                first = false;
+            }
+            if (le != null)
+            {
+                if (!first)
+                {
+                    destination.append(',');
+                }
+                destination.append("le=\"").append(le).append('"');
+            }
+            destination.append('}');
+        }
+        destination.append(' ').append(value).append('\n');
+    }
+
+    private static String toString(final double value)
+    {
+        if (Double.isNaN(value))
+        {
+            return "NaN";
+        }
+        if (Double.isInfinite(value))
+        {
+            return value > 0 ? "+Inf" : "-Inf";
+        }
+        if (value == Math.rint(value) && Math.abs(value) < Long.MAX_VALUE)
+        {
+            return Long.toString((long) value);
+        }
+
+        return Double.toString(value);
+    }
+
+    private static String escapeHelp(final String help)
+    {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    private static String escapeLabelValue(final String value)
+    {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -44,6 +44,7 @@ import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
 import net.sf.saxon.s9api.XdmValue;
 import net.sf.saxon.s9api.XsltTransformer;
+import net.sf.saxon.tree.tiny.TinyNodeImpl;
 import org.apache.commons.lang.StringUtils;
 import org.trancecode.xml.XmlSchemaTypes;
 import org.w3c.dom.Document;
@@ -219,6 +220,21 @@ public final class Saxon
         return false;
     }
 
+    /**
+     * Returns the number of nodes of the tree holding the specified node,
+     * without walking it, or 0 if the tree was not built by Saxon itself.
+     */
+    public static long getNodeCount(final XdmNode node)
+    {
+        final Object underlyingNode = node.getUnderlyingNode();
+        if (underlyingNode instanceof TinyNodeImpl)
+        {
+            return ((TinyNodeImpl) underlyingNode).getTree().getNumberOfNodes();
+        }
+
+        return 0;
+    }
+
     public static Iterable<Source> asSources(final Iterable<XdmNode> nodes)
     {
         return Iterables.transform(nodes, SaxonFunctions.asSource());
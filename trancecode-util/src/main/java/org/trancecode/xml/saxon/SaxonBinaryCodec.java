@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.NamespaceBinding;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.type.SimpleType;
+import net.sf.saxon.type.Untyped;
+
+/**
+ * A compact binary encoding of Saxon documents.
+ * <p>
+ * The encoding is a pre-order stream of the document nodes where names and
+ * namespace URIs are written once and then referred to by index. Decoding
+ * replays the stream through a {@link SaxonBuilder}, which is much cheaper than
+ * parsing serialized XML.
+ * <p>
+ * The system identifier of every element is kept, so that nodes copied from
+ * other documents keep their base URI. Type annotations are kept by name and
+ * are resolved against the configuration given to {@link #decode}, so the
+ * schema types must be known to it. Documents annotated with anonymous types
+ * cannot be encoded. Line numbers are not kept.
+ * 
+ * @author Herve Quiroz
+ */
+public final class SaxonBinaryCodec
+{
+    private static final int MAGIC = 0x54435845;
+
+    private static final byte END_OF_CHILDREN = 0;
+    private static final byte ELEMENT_NODE = 1;
+    private static final byte TEXT_NODE = 2;
+    private static final byte COMMENT_NODE = 3;
+    private static final byte PROCESSING_INSTRUCTION_NODE = 4;
+
+    private SaxonBinaryCodec()
+    {
+        // No instantiation
+    }
+
+    /**
+     * @throws IllegalArgumentException
+     *             if a node of the document is annotated with an anonymous
+     *             type
+     */
+    public static byte[] encode(final XdmNode document)
+    {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try
+        {
+            encode(document, bytes);
+        }
+        catch (final IOException e)
+        {
+            // Cannot happen with an in-memory stream
+            throw new IllegalStateException(e);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the encoded form of a document to a stream, without holding the
+     * whole encoded document in memory. The stream is flushed but not closed.
+     * 
+     * @throws IllegalArgumentException
+     *             if a node of the document is annotated with an anonymous
+     *             type
+     */
+    public static void encode(final XdmNode document, final OutputStream output) throws IOException
+    {
+        Preconditions.checkArgument(document.getNodeKind() == XdmNodeKind.DOCUMENT, "not a document: %s",
+                document.getNodeKind());
+
+        final Encoder encoder = new Encoder(new DataOutputStream(output));
+        encoder.output.writeInt(MAGIC);
+        final String systemId = document.getUnderlyingNode().getSystemId();
+        encoder.writeString(systemId != null ? systemId : "");
+        encoder.writeChildren(document);
+        encoder.output.flush();
+    }
+
+    /**
+     * Rebuilds a document from its encoded form. The buffer is read from its
+     * current position and is not modified.
+     */
+    public static XdmNode decode(final ByteBuffer buffer, final Configuration configuration)
+    {
+        final Decoder decoder = new Decoder(buffer.duplicate(), configuration);
+        Preconditions.checkArgument(decoder.input.getInt() == MAGIC, "not an encoded document");
+
+        final SaxonBuilder builder = new SaxonBuilder(configuration);
+        final String systemId = decoder.readString();
+        if (!systemId.isEmpty())
+        {
+            builder.setSystemId(systemId);
+        }
+        builder.startDocument();
+        decoder.readChildren(builder);
+        builder.endDocument();
+
+        return builder.getNode();
+    }
+
+    private static final class Encoder
+    {
+        private final DataOutputStream output;
+        private final Map<String, Integer> names = Maps.newHashMap();
+
+        public Encoder(final DataOutputStream output)
+        {
+            this.output = output;
+        }
+
+        public void writeChildren(final XdmNode node) throws IOException
+        {
+            for (final XdmNode child : SaxonAxis.childNodesNoAttributes(node))
+            {
+                switch (child.getNodeKind())
+                {
+                    case ELEMENT:
+                        writeElement(child);
+                        break;
+                    case TEXT:
+                        output.writeByte(TEXT_NODE);
+                        writeString(child.getStringValue());
+                        break;
+                    case COMMENT:
+                        output.writeByte(COMMENT_NODE);
+                        writeString(child.getStringValue());
+                        break;
+                    case PROCESSING_INSTRUCTION:
+                        output.writeByte(PROCESSING_INSTRUCTION_NODE);
+                        writeName(child.getNodeName().getLocalName());
+                        writeString(child.getStringValue());
+                        break;
+                    default:
+                        throw new IllegalStateException(child.getNodeKind().toString());
+                }
+            }
+            output.writeByte(END_OF_CHILDREN);
+        }
+
+        private void writeElement(final XdmNode element) throws IOException
+        {
+            output.writeByte(ELEMENT_NODE);
+            writeQName(element.getNodeName());
+            writeType(element.getUnderlyingNode().getSchemaType(), Untyped.getInstance());
+            final String systemId = element.getUnderlyingNode().getSystemId();
+            writeName(systemId != null ? systemId : "");
+
+            final List<NamespaceBinding> namespaces = Lists.newArrayList();
+            final NamespaceBinding[] declaredNamespaces = element.getUnderlyingNode().getDeclaredNamespaces(null);
+            if (declaredNamespaces != null)
+            {
+                for (final NamespaceBinding namespace : declaredNamespaces)
+                {
+                    if (namespace == null)
+                    {
+                        break;
+                    }
+                    namespaces.add(namespace);
+                }
+            }
+            writeInt(namespaces.size());
+            for (final NamespaceBinding namespace : namespaces)
+            {
+                writeName(namespace.getPrefix());
+                writeName(namespace.getURI());
+            }
+
+            final List<XdmNode> attributes = Lists.newArrayList(SaxonAxis.attributes(element));
+            writeInt(attributes.size());
+            for (final XdmNode attribute : attributes)
+            {
+                writeQName(attribute.getNodeName());
+                writeType(attribute.getUnderlyingNode().getSchemaType(), BuiltInAtomicType.UNTYPED_ATOMIC);
+                writeString(attribute.getStringValue());
+            }
+
+            writeChildren(element);
+        }
+
+        /**
+         * Writes the name of a type annotation, or an empty name for the
+         * default annotation of untyped documents.
+         */
+        private void writeType(final SchemaType type, final SchemaType untyped) throws IOException
+        {
+            if (type == null || type == untyped)
+            {
+                writeName("");
+                return;
+            }
+
+            Preconditions.checkArgument(!type.isAnonymousType(), "cannot encode anonymous type: %s",
+                    type.getDescription());
+            writeName(type.getEQName());
+        }
+
+        private void writeQName(final QName name) throws IOException
+        {
+            writeName(name.getPrefix());
+            writeName(name.getNamespaceURI());
+            writeName(name.getLocalName());
+        }
+
+        /**
+         * Writes the index of a name, followed by the name itself the first
+         * time it is seen.
+         */
+        private void writeName(final String name) throws IOException
+        {
+            final Integer index = names.get(name);
+            if (index != null)
+            {
+                writeInt(index + 1);
+            }
+            else
+            {
+                names.put(name, names.size());
+                writeInt(0);
+                writeString(name);
+            }
+        }
+
+        public void writeString(final String value) throws IOException
+        {
+            final byte[] bytes = value.getBytes(Charsets.UTF_8);
+            writeInt(bytes.length);
+            output.write(bytes);
+        }
+
+        private void writeInt(final int value) throws IOException
+        {
+            int remaining = value;
+            while ((remaining & ~0x7F) != 0)
+            {
+                output.writeByte((remaining & 0x7F) | 0x80);
+                remaining >>>= 7;
+            }
+            output.writeByte(remaining);
+        }
+    }
+
+    private static final class Decoder
+    {
+        private final ByteBuffer input;
+        private final Configuration configuration;
+        private final List<String> names = Lists.newArrayList();
+
+        public Decoder(final ByteBuffer input, final Configuration configuration)
+        {
+            this.input = input;
+            this.configuration = configuration;
+        }
+
+        public void readChildren(final SaxonBuilder builder)
+        {
+            for (byte kind = input.get(); kind != END_OF_CHILDREN; kind = input.get())
+            {
+                switch (kind)
+                {
+                    case ELEMENT_NODE:
+                        readElement(builder);
+                        break;
+                    case TEXT_NODE:
+                        builder.text(readString());
+                        break;
+                    case COMMENT_NODE:
+                        builder.comment(readString());
+                        break;
+                    case PROCESSING_INSTRUCTION_NODE:
+                        final String name = readName();
+                        builder.processingInstruction(name, readString());
+                        break;
+                    default:
+                        throw new IllegalStateException("unexpected node kind: " + kind);
+                }
+            }
+        }
+
+        private void readElement(final SaxonBuilder builder)
+        {
+            final QName elementName = readQName();
+            final SchemaType elementType = readType(Untyped.getInstance());
+            final String systemId = readName();
+            builder.startElement(elementName, elementType, !systemId.isEmpty() ? systemId : null);
+            for (int i = readInt(); i > 0; i--)
+            {
+                final String prefix = readName();
+                builder.namespace(prefix, readName());
+            }
+            for (int i = readInt(); i > 0; i--)
+            {
+                final QName name = readQName();
+                final SchemaType type = readType(BuiltInAtomicType.UNTYPED_ATOMIC);
+                builder.attribute(name, readString(), (SimpleType) type);
+            }
+            builder.startContent();
+            readChildren(builder);
+            builder.endElement();
+        }
+
+        private SchemaType readType(final SchemaType untyped)
+        {
+            final String name = readName();
+            if (name.isEmpty())
+            {
+                return untyped;
+            }
+
+            final SchemaType type = configuration.getSchemaType(StructuredQName.fromEQName(name));
+            if (type == null)
+            {
+                throw new IllegalStateException("unknown type: " + name);
+            }
+
+            return type;
+        }
+
+        private QName readQName()
+        {
+            final String prefix = readName();
+            final String namespaceUri = readName();
+            return new QName(prefix, namespaceUri, readName());
+        }
+
+        private String readName()
+        {
+            final int index = readInt();
+            if (index == 0)
+            {
+                final String name = readString();
+                names.add(name);
+                return name;
+            }
+
+            return names.get(index - 1);
+        }
+
+        public String readString()
+        {
+            final byte[] bytes = new byte[readInt()];
+            input.get(bytes);
+            return new String(bytes, Charsets.UTF_8);
+        }
+
+        private int readInt()
+        {
+            int value = 0;
+            for (int shift = 0;; shift += 7)
+            {
+                final byte b = input.get();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0)
+                {
+                    return value;
+                }
+            }
+        }
+    }
+}
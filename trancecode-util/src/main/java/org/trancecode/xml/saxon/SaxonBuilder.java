@@ -25,6 +25,8 @@ import net.sf.saxon.Configuration;
 import net.sf.saxon.event.NamespaceReducer;
 import net.sf.saxon.event.Receiver;
 import net.sf.saxon.event.TreeReceiver;
+import net.sf.saxon.expr.parser.ExplicitLocation;
+import net.sf.saxon.expr.parser.Location;
 import net.sf.saxon.om.FingerprintedQName;
 import net.sf.saxon.om.NamePool;
 import net.sf.saxon.om.NamespaceBinding;
@@ -44,7 +46,10 @@ import net.sf.saxon.tree.linked.TextImpl;
 import net.sf.saxon.tree.util.NamespaceIterator;
 import net.sf.saxon.type.BuiltInAtomicType;
 import net.sf.saxon.type.BuiltInType;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.type.SimpleType;
 
+import java.io.Writer;
 import java.util.Iterator;
 
 //import net.sf.saxon.tree.iter.NamespaceIterator;
@@ -58,9 +63,13 @@ import java.util.Iterator;
  */
 public class SaxonBuilder
 {
+    private static final int TEXT_CHUNK_SIZE = 8192;
+
     private final XdmDestination destination = new XdmDestination();
     private final NamespaceReducer receiver;
     private final NamePool namePool;
+    private SaxonFingerprint.Accumulator fingerprint;
+    private String systemId;
 
     /**
      * Creates a new builder based on the given Saxon configuration.
@@ -84,6 +93,28 @@ public class SaxonBuilder
         }
     }
 
+    /**
+     * Sets the system identifier (and base URI) of the document being built.
+     * Must be called before {@link #startDocument()}.
+     */
+    public void setSystemId(final String systemId)
+    {
+        this.systemId = systemId;
+        receiver.setSystemId(systemId);
+    }
+
+    /**
+     * Enables or disables the incremental computation of the
+     * {@link SaxonFingerprint} of the nodes being built. Must be called before
+     * any node is added.
+     * 
+     * @see #getFingerprint()
+     */
+    public void setFingerprinting(final boolean fingerprinting)
+    {
+        fingerprint = fingerprinting ? new SaxonFingerprint.Accumulator() : null;
+    }
+
     /**
      * Starts a document node.
      */
@@ -92,6 +123,10 @@ public class SaxonBuilder
         try
         {
             receiver.startDocument(0);
+            if (fingerprint != null)
+            {
+                fingerprint.startDocument();
+            }
         }
         catch (final XPathException e)
         {
@@ -107,6 +142,11 @@ public class SaxonBuilder
         try
         {
             receiver.endDocument();
+            if (fingerprint != null)
+            {
+                fingerprint.endDocument();
+                SaxonFingerprint.memoize(getNode(), fingerprint.getFingerprint());
+            }
         }
         catch (final XPathException e)
         {
@@ -121,13 +161,38 @@ public class SaxonBuilder
      *            The QName of the new element.
      */
     public void startElement(final QName qname)
+    {
+        startElement(qname, BuiltInType.getSchemaType(StandardNames.XS_UNTYPED), null);
+    }
+
+    /**
+     * Starts a new element with the given QName, type annotation and system
+     * identifier.
+     * 
+     * @param qname
+     *            The QName of the new element.
+     * @param type
+     *            The type annotation of the new element.
+     * @param elementSystemId
+     *            The system identifier (and base URI) of the new element, or
+     *            {@code null} for the one of the document.
+     */
+    public void startElement(final QName qname, final SchemaType type, final String elementSystemId)
     {
         try
         {
             ElementImpl element = new ElementImpl();
             element.setNodeName(new FingerprintedQName(qname.getStructuredQName(), namePool));
-            receiver.startElement(element.getNodeName(), BuiltInType.getSchemaType(StandardNames.XS_UNTYPED),
-              element, 0);
+            // Always set, so that the element does not take the system
+            // identifier of a preceding element copied from another document
+            final String locationSystemId = (elementSystemId != null) ? elementSystemId : systemId;
+            final Location location = (locationSystemId != null) ? new ExplicitLocation(locationSystemId, -1, -1)
+                    : element;
+            receiver.startElement(element.getNodeName(), type, location, 0);
+            if (fingerprint != null)
+            {
+                fingerprint.startElement(qname);
+            }
         }
         catch (final XPathException e)
         {
@@ -170,6 +235,10 @@ public class SaxonBuilder
         try
         {
             receiver.endElement();
+            if (fingerprint != null)
+            {
+                fingerprint.endElement();
+            }
         }
         catch (final XPathException e)
         {
@@ -203,13 +272,31 @@ public class SaxonBuilder
      *            The value of the attribute
      */
     public void attribute(final QName qname, final String value)
+    {
+        attribute(qname, value, BuiltInAtomicType.UNTYPED_ATOMIC);
+    }
+
+    /**
+     * Adds an attribute with the given type annotation to the current element.
+     * 
+     * @param qname
+     *            The QName of the attribute
+     * @param value
+     *            The value of the attribute
+     * @param type
+     *            The type annotation of the attribute
+     */
+    public void attribute(final QName qname, final String value, final SimpleType type)
     {
         try
         {
             AttributeImpl attributeNode = new AttributeImpl(null, 0);
             receiver.attribute(new FingerprintedQName(qname.getPrefix(), qname.getNamespaceURI(), qname.getLocalName()),
-              BuiltInAtomicType.UNTYPED_ATOMIC, value, attributeNode, 0);
-
+              type, value, attributeNode, 0);
+            if (fingerprint != null)
+            {
+                fingerprint.attribute(qname, value);
+            }
         }
         catch (final XPathException e)
         {
@@ -229,6 +316,10 @@ public class SaxonBuilder
         {
             CommentImpl commentNode = new CommentImpl(comment);
             receiver.comment(comment, commentNode, 0);
+            if (fingerprint != null)
+            {
+                fingerprint.comment(comment);
+            }
         }
         catch (final XPathException e)
         {
@@ -274,6 +365,10 @@ public class SaxonBuilder
             for (final XdmNode node : nodes)
             {
                 receiver.append(node.getUnderlyingNode(), node.getUnderlyingNode().saveLocation(), NodeInfo.LOCAL_NAMESPACES);
+                if (fingerprint != null)
+                {
+                    fingerprint.node(node);
+                }
             }
         }
         catch (final XPathException e)
@@ -296,6 +391,10 @@ public class SaxonBuilder
         {
             ProcInstImpl procInst = new ProcInstImpl(name, data);
             receiver.processingInstruction(name, data, procInst, 0);
+            if (fingerprint != null)
+            {
+                fingerprint.processingInstruction(name, data);
+            }
         }
         catch (final XPathException e)
         {
@@ -315,6 +414,10 @@ public class SaxonBuilder
         {
             TextImpl textNode = new TextImpl(text);
             receiver.characters(text, textNode, 0);
+            if (fingerprint != null)
+            {
+                fingerprint.text(text);
+            }
         }
         catch (final XPathException e)
         {
@@ -322,6 +425,56 @@ public class SaxonBuilder
         }
     }
 
+    /**
+     * Returns a writer that adds the characters written to it as text. The
+     * characters are buffered and added in chunks, which are merged into a
+     * single text node. The writer must be flushed or closed before any other
+     * node is added.
+     */
+    public Writer newTextWriter()
+    {
+        return new Writer()
+        {
+            private final StringBuilder buffer = new StringBuilder(TEXT_CHUNK_SIZE);
+
+            @Override
+            public void write(final char[] cbuf, final int off, final int len)
+            {
+                buffer.append(cbuf, off, len);
+                if (buffer.length() >= TEXT_CHUNK_SIZE)
+                {
+                    flush();
+                }
+            }
+
+            @Override
+            public void write(final String str, final int off, final int len)
+            {
+                buffer.append(str, off, off + len);
+                if (buffer.length() >= TEXT_CHUNK_SIZE)
+                {
+                    flush();
+                }
+            }
+
+            @Override
+            public void flush()
+            {
+                if (buffer.length() > 0)
+                {
+                    text(buffer.toString());
+                    buffer.setLength(0);
+                }
+            }
+
+            @Override
+            public void close()
+            {
+                flush();
+            }
+        };
+    }
+
     /**
      * Adds a raw XML fragment
      * 
@@ -346,6 +499,20 @@ public class SaxonBuilder
         nodes(filteredSubNodesList);
     }
 
+    /**
+     * Returns the fingerprint of the node built by this builder. The
+     * fingerprint of a document is also memoized on the document node when it
+     * is ended, so that {@link SaxonFingerprint#of(XdmNode)} does not walk the
+     * document again.
+     * 
+     * @see #setFingerprinting(boolean)
+     */
+    public SaxonFingerprint getFingerprint()
+    {
+        Preconditions.checkState(fingerprint != null, "fingerprinting is not enabled");
+        return fingerprint.getFingerprint();
+    }
+
     /**
      * Returns the result node built by this builder.
      */
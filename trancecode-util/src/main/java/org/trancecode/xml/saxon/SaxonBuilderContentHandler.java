@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import java.util.List;
+
+import net.sf.saxon.s9api.QName;
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.Locator;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * A SAX handler that appends the parsed nodes to the current node of a
+ * {@link SaxonBuilder}, so that a document can be parsed into the content of
+ * the node being built without an intermediate tree.
+ * <p>
+ * The document node itself is not built: its children are appended in its
+ * place. The content of the DTD is ignored.
+ * 
+ * @author Herve Quiroz
+ */
+public class SaxonBuilderContentHandler implements ContentHandler, LexicalHandler
+{
+    public static final String LEXICAL_HANDLER_PROPERTY = "http://xml.org/sax/properties/lexical-handler";
+
+    private final SaxonBuilder builder;
+    private final List<String[]> namespaces = Lists.newArrayList();
+    private int depth;
+    private boolean inDtd;
+
+    public SaxonBuilderContentHandler(final SaxonBuilder builder)
+    {
+        this.builder = Preconditions.checkNotNull(builder);
+    }
+
+    /**
+     * Returns the name of the element to be built for a parsed element, the
+     * top-level elements being at depth 1. Returns the parsed name by default.
+     */
+    protected QName getElementName(final QName name, final int depth)
+    {
+        return name;
+    }
+
+    private static QName getName(final String uri, final String localName, final String qName)
+    {
+        final int colon = qName.indexOf(':');
+        final String prefix = (colon > 0) ? qName.substring(0, colon) : "";
+        final String local = localName.isEmpty() ? qName.substring(colon + 1) : localName;
+        return new QName(prefix, uri, local);
+    }
+
+    @Override
+    public void startPrefixMapping(final String prefix, final String uri)
+    {
+        namespaces.add(new String[] { prefix, uri });
+    }
+
+    @Override
+    public void endPrefixMapping(final String prefix)
+    {
+        // Namespace declarations are scoped by the builder
+    }
+
+    @Override
+    public void startElement(final String uri, final String localName, final String qName, final Attributes atts)
+    {
+        depth++;
+        final QName name = getElementName(getName(uri, localName, qName), depth);
+        builder.startElement(name);
+        for (final String[] namespace : namespaces)
+        {
+            // The element name takes precedence over a conflicting declaration
+            if (!namespace[0].equals(name.getPrefix()) || namespace[1].equals(name.getNamespaceURI()))
+            {
+                builder.namespace(namespace[0], namespace[1]);
+            }
+        }
+        namespaces.clear();
+
+        for (int i = 0; i < atts.getLength(); i++)
+        {
+            final String attributeQName = atts.getQName(i);
+            if (!attributeQName.equals("xmlns") && !attributeQName.startsWith("xmlns:"))
+            {
+                builder.attribute(getName(atts.getURI(i), atts.getLocalName(i), attributeQName), atts.getValue(i));
+            }
+        }
+        builder.startContent();
+    }
+
+    @Override
+    public void endElement(final String uri, final String localName, final String qName)
+    {
+        builder.endElement();
+        depth--;
+    }
+
+    @Override
+    public void characters(final char[] ch, final int start, final int length)
+    {
+        if (length > 0)
+        {
+            builder.text(new String(ch, start, length));
+        }
+    }
+
+    @Override
+    public void ignorableWhitespace(final char[] ch, final int start, final int length)
+    {
+        characters(ch, start, length);
+    }
+
+    @Override
+    public void processingInstruction(final String target, final String data)
+    {
+        builder.processingInstruction(target, data);
+    }
+
+    @Override
+    public void comment(final char[] ch, final int start, final int length)
+    {
+        if (!inDtd)
+        {
+            builder.comment(new String(ch, start, length));
+        }
+    }
+
+    @Override
+    public void startDTD(final String name, final String publicId, final String systemId)
+    {
+        inDtd = true;
+    }
+
+    @Override
+    public void endDTD()
+    {
+        inDtd = false;
+    }
+
+    @Override
+    public void setDocumentLocator(final Locator locator)
+    {
+        // Not used
+    }
+
+    @Override
+    public void startDocument()
+    {
+        // The children of the document are appended to the current node
+    }
+
+    @Override
+    public void endDocument()
+    {
+        // The children of the document are appended to the current node
+    }
+
+    @Override
+    public void skippedEntity(final String name)
+    {
+        // Not used
+    }
+
+    @Override
+    public void startEntity(final String name)
+    {
+        // Not used
+    }
+
+    @Override
+    public void endEntity(final String name)
+    {
+        // Not used
+    }
+
+    @Override
+    public void startCDATA()
+    {
+        // CDATA sections are merged with the surrounding text
+    }
+
+    @Override
+    public void endCDATA()
+    {
+        // CDATA sections are merged with the surrounding text
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import org.trancecode.logging.Logger;
+
+/**
+ * Native implementation of the XPath {@code fn:deep-equal()} function for
+ * nodes.
+ * <p>
+ * Both trees are first reduced to their
+ * {@link SaxonFingerprint#ofDeepEqual(XdmNode) fingerprint}, where comments
+ * and processing instructions are ignored, as well as namespace prefixes and
+ * the order of attributes. Trees with different fingerprints are not equal.
+ * Trees with the same fingerprint are then compared node by node.
+ * <p>
+ * Trees holding schema-typed nodes, whose typed values may be equal despite
+ * different string values, are compared with {@code fn:deep-equal()}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class SaxonDeepEqual
+{
+    private static final Logger LOG = Logger.getLogger(SaxonDeepEqual.class);
+    private static final ConcurrentMap<Processor, XPathExecutable> DEEP_EQUAL = new MapMaker().weakKeys().makeMap();
+    private static final QName NODE1 = new QName("node1");
+    private static final QName NODE2 = new QName("node2");
+
+    private SaxonDeepEqual()
+    {
+        // No instantiation
+    }
+
+    /**
+     * Returns {@code true} if both nodes are equal according to
+     * {@code fn:deep-equal()}.
+     */
+    public static boolean deepEqual(final XdmNode node1, final XdmNode node2, final Processor processor)
+    {
+        final SaxonFingerprint fingerprint1;
+        final SaxonFingerprint fingerprint2;
+        try
+        {
+            fingerprint1 = SaxonFingerprint.ofDeepEqual(node1);
+            fingerprint2 = SaxonFingerprint.ofDeepEqual(node2);
+        }
+        catch (final IllegalArgumentException e)
+        {
+            LOG.trace("{@method} {message}", e);
+            return xpathDeepEqual(node1, node2, processor);
+        }
+
+        return fingerprint1.equals(fingerprint2) && equal(node1, node2);
+    }
+
+    private static boolean equal(final XdmNode node1, final XdmNode node2)
+    {
+        final XdmNodeKind nodeKind = node1.getNodeKind();
+        if (nodeKind != node2.getNodeKind())
+        {
+            return false;
+        }
+
+        switch (nodeKind)
+        {
+            case DOCUMENT:
+                return childrenEqual(node1, node2);
+
+            case ELEMENT:
+                if (!node1.getNodeName().equals(node2.getNodeName()))
+                {
+                    return false;
+                }
+                final Map<QName, String> attributes = Maps.newHashMap();
+                for (final XdmNode attribute : SaxonAxis.attributes(node1))
+                {
+                    attributes.put(attribute.getNodeName(), attribute.getStringValue());
+                }
+                int attributeCount = 0;
+                for (final XdmNode attribute : SaxonAxis.attributes(node2))
+                {
+                    if (!attribute.getStringValue().equals(attributes.get(attribute.getNodeName())))
+                    {
+                        return false;
+                    }
+                    attributeCount++;
+                }
+                return attributeCount == attributes.size() && childrenEqual(node1, node2);
+
+            case ATTRIBUTE:
+                return node1.getNodeName().equals(node2.getNodeName())
+                        && node1.getStringValue().equals(node2.getStringValue());
+
+            case PROCESSING_INSTRUCTION:
+            case NAMESPACE:
+                return node1.getNodeName().getLocalName().equals(node2.getNodeName().getLocalName())
+                        && node1.getStringValue().equals(node2.getStringValue());
+
+            default:
+                return node1.getStringValue().equals(node2.getStringValue());
+        }
+    }
+
+    private static boolean childrenEqual(final XdmNode node1, final XdmNode node2)
+    {
+        final Iterator<XdmNode> children1 = Iterables.filter(SaxonAxis.childNodesNoAttributes(node1),
+                SaxonDeepEqual::isSignificant).iterator();
+        final Iterator<XdmNode> children2 = Iterables.filter(SaxonAxis.childNodesNoAttributes(node2),
+                SaxonDeepEqual::isSignificant).iterator();
+        while (children1.hasNext() && children2.hasNext())
+        {
+            if (!equal(children1.next(), children2.next()))
+            {
+                return false;
+            }
+        }
+
+        return !children1.hasNext() && !children2.hasNext();
+    }
+
+    private static boolean isSignificant(final XdmNode child)
+    {
+        return child.getNodeKind() != XdmNodeKind.COMMENT && child.getNodeKind() != XdmNodeKind.PROCESSING_INSTRUCTION;
+    }
+
+    private static boolean xpathDeepEqual(final XdmNode node1, final XdmNode node2, final Processor processor)
+    {
+        try
+        {
+            XPathExecutable deepEqual = DEEP_EQUAL.get(processor);
+            if (deepEqual == null)
+            {
+                final XPathCompiler xpathCompiler = processor.newXPathCompiler();
+                xpathCompiler.declareVariable(NODE1);
+                xpathCompiler.declareVariable(NODE2);
+                deepEqual = xpathCompiler.compile("deep-equal($node1, $node2)");
+                DEEP_EQUAL.put(processor, deepEqual);
+            }
+
+            final XPathSelector selector = deepEqual.load();
+            selector.setVariable(NODE1, node1);
+            selector.setVariable(NODE2, node2);
+            return ((XdmAtomicValue) selector.evaluateSingle()).getBooleanValue();
+        }
+        catch (final SaxonApiException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.MapMaker;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ConcurrentMap;
+
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.Untyped;
+
+/**
+ * A 128-bit fingerprint of the canonical form of a node, computed by walking
+ * the tree without serializing it.
+ * <p>
+ * Namespace prefixes, namespace declarations and the order of attributes are
+ * not significant. Element and attribute names (namespace URI and local
+ * name), attribute values, text, comments and processing instructions are.
+ * Adjacent text is considered as a single text node, as it would be once
+ * parsed again. The fingerprint of a document node is memoized as long as the
+ * document is reachable.
+ * <p>
+ * Two nodes with different fingerprints are different. Two nodes with the
+ * same fingerprint are the same with a very high probability, but the
+ * fingerprint is not a cryptographic hash and must not be relied upon for
+ * untrusted content.
+ * <p>
+ * {@link #ofDeepEqual(XdmNode)} returns a looser fingerprint where comments
+ * and processing instructions are not significant either, so that it can
+ * rule out nodes that are not equal according to {@code fn:deep-equal()}.
+ * 
+ * @see SaxonBuilder#setFingerprinting(boolean)
+ * @author Herve Quiroz
+ */
+public final class SaxonFingerprint
+{
+    private static final ConcurrentMap<NodeInfo, SaxonFingerprint> DOCUMENT_FINGERPRINTS = new MapMaker().weakKeys()
+            .makeMap();
+    private static final ConcurrentMap<NodeInfo, SaxonFingerprint> DEEP_EQUAL_FINGERPRINTS = new MapMaker()
+            .weakKeys().makeMap();
+
+    private static final long PRIME_HIGH = 0x100000001B3L;
+    private static final long PRIME_LOW = 0x9E3779B97F4A7C15L;
+    private static final long SEED_HIGH = 0xCBF29CE484222325L;
+    private static final long SEED_LOW = 0x84222325CBF29CE4L;
+
+    private final long high;
+    private final long low;
+
+    private SaxonFingerprint(final long high, final long low)
+    {
+        this.high = high;
+        this.low = low;
+    }
+
+    /**
+     * Returns the fingerprint of the given node.
+     */
+    public static SaxonFingerprint of(final XdmNode node)
+    {
+        return of(node, false, DOCUMENT_FINGERPRINTS);
+    }
+
+    /**
+     * Returns a fingerprint of the given node that is the same for any two
+     * nodes that are equal according to {@code fn:deep-equal()}. Comments and
+     * processing instructions are not significant, and text on both sides of
+     * them is considered as a single text node.
+     * 
+     * @throws IllegalArgumentException
+     *             if the tree holds schema-typed nodes, whose typed values may
+     *             be equal despite different string values
+     */
+    public static SaxonFingerprint ofDeepEqual(final XdmNode node)
+    {
+        return of(node, true, DEEP_EQUAL_FINGERPRINTS);
+    }
+
+    private static SaxonFingerprint of(final XdmNode node, final boolean deepEqual,
+            final ConcurrentMap<NodeInfo, SaxonFingerprint> documentFingerprints)
+    {
+        if (node.getNodeKind() != XdmNodeKind.DOCUMENT)
+        {
+            return compute(node, deepEqual);
+        }
+
+        final NodeInfo document = node.getUnderlyingNode();
+        SaxonFingerprint fingerprint = documentFingerprints.get(document);
+        if (fingerprint == null)
+        {
+            fingerprint = compute(node, deepEqual);
+            documentFingerprints.put(document, fingerprint);
+        }
+
+        return fingerprint;
+    }
+
+    static void memoize(final XdmNode document, final SaxonFingerprint fingerprint)
+    {
+        Preconditions.checkArgument(document.getNodeKind() == XdmNodeKind.DOCUMENT, "not a document: %s", document);
+        DOCUMENT_FINGERPRINTS.put(document.getUnderlyingNode(), fingerprint);
+    }
+
+    private static SaxonFingerprint compute(final XdmNode node, final boolean deepEqual)
+    {
+        if (node.getNodeKind() == XdmNodeKind.ATTRIBUTE)
+        {
+            if (deepEqual)
+            {
+                checkUntyped(node);
+            }
+            final long[] hash = attributeHash(node.getNodeName(), node.getStringValue());
+            return new SaxonFingerprint(hash[0], hash[1]);
+        }
+
+        final Accumulator accumulator = new Accumulator(deepEqual);
+        if (node.getNodeKind() == XdmNodeKind.DOCUMENT)
+        {
+            accumulator.startDocument();
+            accumulator.node(node);
+            accumulator.endDocument();
+        }
+        else
+        {
+            accumulator.node(node);
+        }
+
+        return accumulator.getFingerprint();
+    }
+
+    private static void checkUntyped(final XdmNode node)
+    {
+        final Object type = node.getUnderlyingNode().getSchemaType();
+        Preconditions.checkArgument(type == Untyped.getInstance() || type == BuiltInAtomicType.UNTYPED_ATOMIC,
+                "schema-typed node: %s", node.getNodeName());
+    }
+
+    public long getHigh()
+    {
+        return high;
+    }
+
+    public long getLow()
+    {
+        return low;
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        if (o instanceof SaxonFingerprint)
+        {
+            final SaxonFingerprint other = (SaxonFingerprint) o;
+            return high == other.high && low == other.low;
+        }
+
+        return false;
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (int) (low ^ (low >>> 32));
+    }
+
+    /**
+     * Returns the fingerprint as 32 hexadecimal digits.
+     */
+    @Override
+    public String toString()
+    {
+        return String.format("%016x%016x", high, low);
+    }
+
+    private static long mix(final long value)
+    {
+        // MurmurHash3 finalizer
+        long hash = value;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private static long hash(final long seed, final long prime, final String value)
+    {
+        long hash = seed ^ value.length();
+        for (int i = 0; i < value.length(); i++)
+        {
+            hash = (hash ^ value.charAt(i)) * prime;
+        }
+
+        return mix(hash);
+    }
+
+    private static long[] leafHash(final XdmNodeKind nodeKind, final String name, final String value)
+    {
+        final long high = hash(hash(SEED_HIGH + nodeKind.ordinal(), PRIME_HIGH, name), PRIME_HIGH, value);
+        final long low = hash(hash(SEED_LOW + nodeKind.ordinal(), PRIME_LOW, name), PRIME_LOW, value);
+        return new long[] { high, low };
+    }
+
+    private static long[] nameHash(final XdmNodeKind nodeKind, final QName name)
+    {
+        // The prefix is not significant
+        return leafHash(nodeKind, name.getNamespaceURI(), name.getLocalName());
+    }
+
+    private static long[] attributeHash(final QName name, final String value)
+    {
+        final long[] nameHash = nameHash(XdmNodeKind.ATTRIBUTE, name);
+        return new long[] { hash(nameHash[0], PRIME_HIGH, value), hash(nameHash[1], PRIME_LOW, value) };
+    }
+
+    /**
+     * Computes a fingerprint from a sequence of tree construction events, in
+     * the same order as they are sent to a {@link SaxonBuilder}.
+     */
+    static final class Accumulator
+    {
+        private final Deque<Frame> frames = new ArrayDeque<>();
+        private final StringBuilder text = new StringBuilder();
+        private final boolean deepEqual;
+        private SaxonFingerprint fingerprint;
+
+        public Accumulator()
+        {
+            this(false);
+        }
+
+        private Accumulator(final boolean deepEqual)
+        {
+            this.deepEqual = deepEqual;
+        }
+
+        public void startDocument()
+        {
+            flushText();
+            frames.push(new Frame(leafHash(XdmNodeKind.DOCUMENT, "", "")));
+        }
+
+        public void endDocument()
+        {
+            end();
+        }
+
+        public void startElement(final QName name)
+        {
+            flushText();
+            frames.push(new Frame(nameHash(XdmNodeKind.ELEMENT, name)));
+        }
+
+        public void endElement()
+        {
+            end();
+        }
+
+        public void attribute(final QName name, final String value)
+        {
+            Preconditions.checkState(!frames.isEmpty(), "attribute outside of an element: %s", name);
+            frames.peek().addAttribute(attributeHash(name, value));
+        }
+
+        public void text(final String value)
+        {
+            text.append(value);
+        }
+
+        public void comment(final String value)
+        {
+            if (deepEqual)
+            {
+                return;
+            }
+            flushText();
+            add(leafHash(XdmNodeKind.COMMENT, "", value));
+        }
+
+        public void processingInstruction(final String name, final String data)
+        {
+            if (deepEqual)
+            {
+                return;
+            }
+            flushText();
+            add(leafHash(XdmNodeKind.PROCESSING_INSTRUCTION, name, data));
+        }
+
+        /**
+         * Appends a copy of the given node. The children of a document node
+         * are appended in place of the document node itself.
+         */
+        public void node(final XdmNode node)
+        {
+            switch (node.getNodeKind())
+            {
+                case DOCUMENT:
+                    for (final XdmNode child : SaxonAxis.childNodesNoAttributes(node))
+                    {
+                        node(child);
+                    }
+                    break;
+
+                case ELEMENT:
+                    if (deepEqual)
+                    {
+                        checkUntyped(node);
+                    }
+                    startElement(node.getNodeName());
+                    for (final XdmNode attribute : SaxonAxis.attributes(node))
+                    {
+                        if (deepEqual)
+                        {
+                            checkUntyped(attribute);
+                        }
+                        attribute(attribute.getNodeName(), attribute.getStringValue());
+                    }
+                    for (final XdmNode child : SaxonAxis.childNodesNoAttributes(node))
+                    {
+                        node(child);
+                    }
+                    endElement();
+                    break;
+
+                case ATTRIBUTE:
+                    if (deepEqual)
+                    {
+                        checkUntyped(node);
+                    }
+                    attribute(node.getNodeName(), node.getStringValue());
+                    break;
+
+                case TEXT:
+                    text(node.getStringValue());
+                    break;
+
+                case COMMENT:
+                    comment(node.getStringValue());
+                    break;
+
+                case PROCESSING_INSTRUCTION:
+                    processingInstruction(node.getNodeName().getLocalName(), node.getStringValue());
+                    break;
+
+                default:
+                    // Namespace nodes are not significant
+                    break;
+            }
+        }
+
+        /**
+         * Returns the fingerprint of the last top-level node.
+         */
+        public SaxonFingerprint getFingerprint()
+        {
+            flushText();
+            Preconditions.checkState(frames.isEmpty(), "%s node(s) not ended", frames.size());
+            Preconditions.checkState(fingerprint != null, "no node");
+            return fingerprint;
+        }
+
+        private void end()
+        {
+            flushText();
+            Preconditions.checkState(!frames.isEmpty(), "no node to end");
+            add(frames.pop().getHash());
+        }
+
+        private void flushText()
+        {
+            if (text.length() > 0)
+            {
+                add(leafHash(XdmNodeKind.TEXT, "", text.toString()));
+                text.setLength(0);
+            }
+        }
+
+        private void add(final long[] hash)
+        {
+            if (frames.isEmpty())
+            {
+                fingerprint = new SaxonFingerprint(hash[0], hash[1]);
+            }
+            else
+            {
+                frames.peek().addChild(hash);
+            }
+        }
+    }
+
+    private static final class Frame
+    {
+        private final long[] nodeHash;
+        private long attributesHigh;
+        private long attributesLow;
+        private long childrenHigh = SEED_HIGH;
+        private long childrenLow = SEED_LOW;
+
+        public Frame(final long[] nodeHash)
+        {
+            this.nodeHash = nodeHash;
+        }
+
+        public void addAttribute(final long[] hash)
+        {
+            // Attribute order is not significant
+            attributesHigh += hash[0];
+            attributesLow += hash[1];
+        }
+
+        public void addChild(final long[] hash)
+        {
+            childrenHigh = mix(childrenHigh * PRIME_HIGH + hash[0]);
+            childrenLow = mix(childrenLow * PRIME_LOW + hash[1]);
+        }
+
+        public long[] getHash()
+        {
+            final long high = mix(mix(nodeHash[0] * PRIME_HIGH + attributesHigh) * PRIME_HIGH + childrenHigh);
+            final long low = mix(mix(nodeHash[1] * PRIME_LOW + attributesLow) * PRIME_LOW + childrenLow);
+            return new long[] { high, low };
+        }
+    }
+}
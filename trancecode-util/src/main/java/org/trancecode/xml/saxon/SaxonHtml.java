@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import java.io.IOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.event.NamespaceReducer;
+import net.sf.saxon.event.PipelineConfiguration;
+import net.sf.saxon.event.ReceivingContentHandler;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.tree.tiny.TinyBuilder;
+import org.ccil.cowan.tagsoup.Parser;
+import org.trancecode.logging.Logger;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.ext.DefaultHandler2;
+import org.xml.sax.ext.LexicalHandler;
+
+/**
+ * Parses HTML into Saxon trees with pooled TagSoup parsers.
+ * <p>
+ * Most of the cost of a new TagSoup parser is the construction of its HTML
+ * schema, so parsers are reused across documents. A parser is only used by
+ * one thread at a time. As TagSoup adds unknown elements to the schema of the
+ * parser, a parser is discarded after {@value #MAXIMUM_PARSER_USES}
+ * documents.
+ * <p>
+ * The SAX events are sent straight to the tree builder, without the
+ * {@code SAXSource} adaptation of the s9api document builder.
+ * 
+ * @author Herve Quiroz
+ */
+public final class SaxonHtml
+{
+    public static final int MAXIMUM_POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+    public static final int MAXIMUM_PARSER_USES = 1000;
+
+    private static final Logger LOG = Logger.getLogger(SaxonHtml.class);
+    private static final String LEXICAL_HANDLER_PROPERTY = "http://xml.org/sax/properties/lexical-handler";
+    private static final DefaultHandler2 NO_HANDLER = new DefaultHandler2();
+    private static final Queue<PooledParser> POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger POOL_SIZE = new AtomicInteger();
+
+    private SaxonHtml()
+    {
+        // No instantiation
+    }
+
+    /**
+     * Parses an HTML document into a new XHTML document node.
+     */
+    public static XdmNode parse(final InputSource source, final Processor processor) throws IOException,
+            SAXException
+    {
+        final Configuration configuration = processor.getUnderlyingConfiguration();
+        final PipelineConfiguration pipelineConfiguration = configuration.makePipelineConfiguration();
+        final TinyBuilder builder = new TinyBuilder(pipelineConfiguration);
+        if (source.getSystemId() != null)
+        {
+            builder.setSystemId(source.getSystemId());
+        }
+
+        final ReceivingContentHandler handler = new ReceivingContentHandler();
+        handler.setPipelineConfiguration(pipelineConfiguration);
+        handler.setReceiver(new NamespaceReducer(builder));
+        parse(source, handler, handler);
+
+        return new XdmNode(builder.getCurrentRoot());
+    }
+
+    /**
+     * Parses an HTML document and appends its root element to the node being
+     * built.
+     */
+    public static void parse(final InputSource source, final SaxonBuilder builder) throws IOException,
+            SAXException
+    {
+        final SaxonBuilderContentHandler handler = new SaxonBuilderContentHandler(builder);
+        parse(source, handler, handler);
+    }
+
+    private static void parse(final InputSource source, final ContentHandler contentHandler,
+            final LexicalHandler lexicalHandler) throws IOException, SAXException
+    {
+        final PooledParser parser = borrowParser();
+        parser.parser.setContentHandler(contentHandler);
+        parser.parser.setProperty(LEXICAL_HANDLER_PROPERTY, lexicalHandler);
+        parser.parser.parse(source);
+
+        // A parser that failed is not returned to the pool
+        releaseParser(parser);
+    }
+
+    private static PooledParser borrowParser()
+    {
+        final PooledParser parser = POOL.poll();
+        if (parser != null)
+        {
+            POOL_SIZE.decrementAndGet();
+            return parser;
+        }
+
+        LOG.trace("{@method} new parser");
+        return new PooledParser();
+    }
+
+    private static void releaseParser(final PooledParser parser) throws SAXException
+    {
+        // Do not keep the handlers (and the trees they build) reachable
+        parser.parser.setContentHandler(NO_HANDLER);
+        parser.parser.setProperty(LEXICAL_HANDLER_PROPERTY, NO_HANDLER);
+
+        if (++parser.uses >= MAXIMUM_PARSER_USES)
+        {
+            LOG.trace("{@method} discard parser after {} uses", parser.uses);
+            return;
+        }
+
+        if (POOL_SIZE.incrementAndGet() > MAXIMUM_POOL_SIZE)
+        {
+            POOL_SIZE.decrementAndGet();
+            return;
+        }
+
+        POOL.add(parser);
+    }
+
+    private static final class PooledParser
+    {
+        private final Parser parser = new Parser();
+        private int uses;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.collection;
+
+import com.google.common.collect.ImmutableList;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link PersistentSequence}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PersistentSequenceTest extends AbstractTest
+{
+    @Test
+    public void append()
+    {
+        PersistentSequence<Integer> sequence = PersistentSequence.empty();
+        for (int i = 0; i < 100; i++)
+        {
+            sequence = sequence.append(i);
+        }
+
+        Assert.assertEquals(sequence.size(), 100);
+        for (int i = 0; i < 100; i++)
+        {
+            Assert.assertEquals(sequence.get(i).intValue(), i);
+        }
+    }
+
+    @Test
+    public void appendToPrefix()
+    {
+        final PersistentSequence<String> ab = PersistentSequence.copyOf(ImmutableList.of("a", "b"));
+        final PersistentSequence<String> abc = ab.append("c");
+        final PersistentSequence<String> abd = ab.append("d");
+        final PersistentSequence<String> abcef = abc.appendAll(ImmutableList.of("e", "f"));
+
+        Assert.assertEquals(ab, ImmutableList.of("a", "b"));
+        Assert.assertEquals(abc, ImmutableList.of("a", "b", "c"));
+        Assert.assertEquals(abd, ImmutableList.of("a", "b", "d"));
+        Assert.assertEquals(abcef, ImmutableList.of("a", "b", "c", "e", "f"));
+        Assert.assertEquals(abd.appendAll(abc), ImmutableList.of("a", "b", "d", "a", "b", "c"));
+    }
+
+    @Test
+    public void copyOf()
+    {
+        final PersistentSequence<String> sequence = PersistentSequence.copyOf(ImmutableList.of("a"));
+        Assert.assertSame(PersistentSequence.copyOf(sequence), sequence);
+        Assert.assertSame(sequence.appendAll(ImmutableList.<String> of()), sequence);
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void immutable()
+    {
+        PersistentSequence.empty().append("a").add("b");
+    }
+
+    @Test(expectedExceptions = NullPointerException.class)
+    public void nullElement()
+    {
+        PersistentSequence.empty().appendAll(ImmutableList.of("a")).append(null);
+    }
+}
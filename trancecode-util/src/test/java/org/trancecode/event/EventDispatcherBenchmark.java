@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.event;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the cost of emitting the two events that surround the execution of
+ * a step, with synchronous and asynchronous dispatchers and 0, 1 or 10
+ * observers.
+ * <p>
+ * Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=org.trancecode.event.EventDispatcherBenchmark
+ * -Dexec.classpathScope=test}.
+ * 
+ * @author Herve Quiroz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EventDispatcherBenchmark
+{
+    private static final class StepEvent implements Event
+    {
+        private final int step;
+
+        public StepEvent(final int step)
+        {
+            this.step = step;
+        }
+    }
+
+    @Param({ "0", "1", "10" })
+    private int observers;
+
+    private EventDispatcher<StepEvent> synchronousDispatcher;
+    private RingBufferEventDispatcher<StepEvent> asynchronousDispatcher;
+    private int step;
+    private volatile int lastStep;
+
+    @Setup
+    public void setup()
+    {
+        synchronousDispatcher = EventDispatchers.newEventDispatcher();
+        asynchronousDispatcher = EventDispatchers.newAsynchronousEventDispatcher();
+        for (int i = 0; i < observers; i++)
+        {
+            synchronousDispatcher.addObserver(event -> lastStep = event.step);
+            asynchronousDispatcher.addObserver(event -> lastStep = event.step);
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        asynchronousDispatcher.close();
+    }
+
+    private int runStep(final EventDispatcher<StepEvent> dispatcher)
+    {
+        step++;
+        if (dispatcher.hasObservers())
+        {
+            dispatcher.notify(new StepEvent(step));
+        }
+
+        if (dispatcher.hasObservers())
+        {
+            dispatcher.notify(new StepEvent(step));
+        }
+
+        return step;
+    }
+
+    @Benchmark
+    public int synchronous()
+    {
+        return runStep(synchronousDispatcher);
+    }
+
+    @Benchmark
+    public int asynchronous()
+    {
+        return runStep(asynchronousDispatcher);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(EventDispatcherBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.event;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link EventDispatchers}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class EventDispatchersTest extends AbstractTest
+{
+    private static final class TestEvent implements Event
+    {
+        private final int id;
+
+        public TestEvent(final int id)
+        {
+            this.id = id;
+        }
+    }
+
+    @Test
+    public void synchronousDispatcher()
+    {
+        final EventDispatcher<TestEvent> dispatcher = EventDispatchers.newEventDispatcher();
+        Assert.assertFalse(dispatcher.hasObservers());
+        dispatcher.notify(new TestEvent(0));
+
+        final List<Integer> received = Lists.newArrayList();
+        final EventObserver<TestEvent> observer = event -> received.add(event.id);
+        dispatcher.addObserver(observer);
+        Assert.assertTrue(dispatcher.hasObservers());
+        dispatcher.notify(new TestEvent(1));
+        dispatcher.notify(new TestEvent(2));
+        Assert.assertEquals(received, ImmutableList.of(1, 2));
+
+        dispatcher.removeObserver(observer);
+        Assert.assertFalse(dispatcher.hasObservers());
+        dispatcher.notify(new TestEvent(3));
+        Assert.assertEquals(received, ImmutableList.of(1, 2));
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void synchronousDispatcherFailure()
+    {
+        final EventDispatcher<TestEvent> dispatcher = EventDispatchers.newEventDispatcher();
+        dispatcher.addObserver(event -> {
+            throw new IllegalStateException();
+        });
+        dispatcher.notify(new TestEvent(0));
+    }
+
+    @Test
+    public void asynchronousDispatcher() throws InterruptedException
+    {
+        final int publishers = 4;
+        final int eventsPerPublisher = 10000;
+        final List<Integer> received = Collections.synchronizedList(Lists.<Integer> newArrayList());
+        final RingBufferEventDispatcher<TestEvent> dispatcher = EventDispatchers.newAsynchronousEventDispatcher(16,
+                AbstractEventObservable.ignoreErrors());
+        dispatcher.addObserver(event -> received.add(event.id));
+        dispatcher.addObserver(event -> {
+            throw new IllegalStateException("failures do not stop the dispatcher");
+        });
+
+        final List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < publishers; i++)
+        {
+            final int publisher = i;
+            final Thread thread = new Thread(() -> {
+                for (int j = 0; j < eventsPerPublisher; j++)
+                {
+                    dispatcher.notify(new TestEvent(publisher * eventsPerPublisher + j));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        dispatcher.close();
+
+        Assert.assertEquals(dispatcher.pendingEvents(), 0);
+        Assert.assertEquals(received.size(), publishers * eventsPerPublisher);
+        Assert.assertEquals(Sets.newHashSet(received).size(), publishers * eventsPerPublisher);
+    }
+
+    @Test(timeOut = 10000)
+    public void asynchronousDispatcherIdle() throws InterruptedException
+    {
+        final BlockingQueue<Integer> received = new LinkedBlockingQueue<>();
+        final RingBufferEventDispatcher<TestEvent> dispatcher = EventDispatchers.newAsynchronousEventDispatcher();
+        dispatcher.addObserver(event -> received.add(event.id));
+
+        for (int i = 0; i < 3; i++)
+        {
+            // An idle dispatcher thread parks until an event wakes it up
+            while (!dispatcher.isDispatcherParked())
+            {
+                Thread.sleep(1);
+            }
+            dispatcher.notify(new TestEvent(i));
+            Assert.assertEquals(received.take().intValue(), i);
+        }
+        dispatcher.close();
+    }
+
+    @Test
+    public void asynchronousDispatcherClose() throws InterruptedException
+    {
+        final int publishers = 4;
+        final int eventsPerPublisher = 1000;
+        final CountDownLatch firstEvent = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+        final AtomicInteger accepted = new AtomicInteger();
+        final AtomicInteger rejected = new AtomicInteger();
+        final RingBufferEventDispatcher<TestEvent> dispatcher = EventDispatchers.newAsynchronousEventDispatcher(4,
+                AbstractEventObservable.ignoreErrors());
+        dispatcher.addObserver(event -> {
+            firstEvent.countDown();
+            try
+            {
+                release.await();
+            }
+            catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            received.incrementAndGet();
+        });
+
+        final List<Thread> threads = Lists.newArrayList();
+        for (int i = 0; i < publishers; i++)
+        {
+            final Thread thread = new Thread(() -> {
+                for (int j = 0; j < eventsPerPublisher; j++)
+                {
+                    try
+                    {
+                        dispatcher.notify(new TestEvent(j));
+                        accepted.incrementAndGet();
+                    }
+                    catch (final IllegalStateException e)
+                    {
+                        rejected.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        // The observer blocks, so the publishers end up waiting on a full buffer
+        firstEvent.await();
+        final Thread closer = new Thread(dispatcher::close);
+        closer.start();
+        for (final Thread thread : threads)
+        {
+            thread.join();
+        }
+        release.countDown();
+        closer.join();
+
+        Assert.assertEquals(accepted.get() + rejected.get(), publishers * eventsPerPublisher);
+        Assert.assertTrue(rejected.get() > 0);
+        Assert.assertEquals(received.get(), accepted.get());
+        Assert.assertEquals(dispatcher.pendingEvents(), 0);
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.metrics;
+
+import com.google.common.base.Suppliers;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link PrometheusTextFormat}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PrometheusTextFormatTest extends AbstractTest
+{
+    @Test
+    public void write()
+    {
+        final MetricsRegistry registry = MetricsRegistries.newMetricsRegistry();
+        registry.counter("runs_total", "Runs").add(3);
+        registry.counter("runs_total", "Runs").increment();
+        registry.gauge("queue_depth", "Queue depth", Suppliers.ofInstance(2));
+        final Histogram histogram = registry.histogram("latency_seconds", "Latency", new double[] { 0.5, 1 },
+                "type", "p:\"identity\"");
+        histogram.observe(0.25);
+        histogram.observe(0.75);
+        histogram.observe(3);
+
+        final String expected = "# HELP latency_seconds Latency\n" //
+                + "# TYPE latency_seconds histogram\n" //
+                + "latency_seconds_bucket{type=\"p:\\\"identity\\\"\",le=\"0.5\"} 1\n"
+                + "latency_seconds_bucket{type=\"p:\\\"identity\\\"\",le=\"1\"} 2\n"
+                + "latency_seconds_bucket{type=\"p:\\\"identity\\\"\",le=\"+Inf\"} 3\n"
+                + "latency_seconds_sum{type=\"p:\\\"identity\\\"\"} 4\n"
+                + "latency_seconds_count{type=\"p:\\\"identity\\\"\"} 3\n" //
+                + "# HELP queue_depth Queue depth\n" //
+                + "# TYPE queue_depth gauge\n" //
+                + "queue_depth 2\n" //
+                + "# HELP runs_total Runs\n" //
+                + "# TYPE runs_total counter\n" //
+                + "runs_total 4\n";
+        Assert.assertEquals(PrometheusTextFormat.toString(registry), expected);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void conflictingTypes()
+    {
+        final MetricsRegistry registry = MetricsRegistries.newMetricsRegistry();
+        registry.counter("runs", "Runs");
+        registry.histogram("runs", "Runs", Histogram.durationBuckets());
+    }
+}
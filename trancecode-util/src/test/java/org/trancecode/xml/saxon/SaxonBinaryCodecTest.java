@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.type.Untyped;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link SaxonBinaryCodec}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class SaxonBinaryCodecTest extends AbstractTest
+{
+    private final Processor processor = new Processor(false);
+
+    @Test
+    public void roundTrip() throws Exception
+    {
+        final String xml = "<?pi data?><a:root xmlns:a='urn:a' xmlns='urn:default' a:attribute='1' attribute='2'>"
+                + "<child>text &amp; more</child><!-- comment --><a:child><x:y xmlns:x='urn:x'/></a:child>"
+                + "<child>é€</child></a:root>";
+        final XdmNode document = processor.newDocumentBuilder().build(
+                new StreamSource(new StringReader(xml), "http://example.org/document.xml"));
+
+        final XdmNode decoded = SaxonBinaryCodec.decode(ByteBuffer.wrap(SaxonBinaryCodec.encode(document)),
+                processor.getUnderlyingConfiguration());
+
+        Assert.assertEquals(decoded.toString(), document.toString());
+        Assert.assertEquals(decoded.getBaseURI(), document.getBaseURI());
+    }
+
+    @Test
+    public void elementSystemIds() throws Exception
+    {
+        final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
+        builder.setSystemId("http://example.org/document.xml");
+        builder.startDocument();
+        builder.startElement(new QName("root"));
+        builder.startContent();
+        builder.startElement(new QName("included"), Untyped.getInstance(), "http://example.org/included.xml");
+        builder.startContent();
+        builder.startElement(new QName("child"), Untyped.getInstance(), "http://example.org/included.xml");
+        builder.startContent();
+        builder.endElement();
+        builder.endElement();
+        builder.startElement(new QName("after"));
+        builder.startContent();
+        builder.endElement();
+        builder.endElement();
+        builder.endDocument();
+        final XdmNode document = builder.getNode();
+
+        final XdmNode decoded = SaxonBinaryCodec.decode(ByteBuffer.wrap(SaxonBinaryCodec.encode(document)),
+                processor.getUnderlyingConfiguration());
+
+        final XdmNode root = SaxonAxis.childElement(decoded);
+        final XdmNode includedElement = SaxonAxis.childElement(root, new QName("included"));
+        Assert.assertEquals(root.getBaseURI().toString(), "http://example.org/document.xml");
+        Assert.assertEquals(includedElement.getBaseURI().toString(), "http://example.org/included.xml");
+        Assert.assertEquals(SaxonAxis.childElement(includedElement).getBaseURI().toString(),
+                "http://example.org/included.xml");
+        Assert.assertEquals(SaxonAxis.childElement(root, new QName("after")).getBaseURI().toString(),
+                "http://example.org/document.xml");
+    }
+}
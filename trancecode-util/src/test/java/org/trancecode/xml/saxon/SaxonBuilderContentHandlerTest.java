@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import java.io.StringReader;
+import java.io.Writer;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
+
+/**
+ * Tests for {@link SaxonBuilderContentHandler}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class SaxonBuilderContentHandlerTest extends AbstractTest
+{
+    private final Processor processor = new Processor(false);
+
+    private XdmNode parse(final String xml) throws Exception
+    {
+        return processor.newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+    }
+
+    @Test
+    public void parseIntoBuilder() throws Exception
+    {
+        final String xml = "<a:child xmlns:a='urn:a' x='1'>text<!--comment--><?pi data?><b a:y='2'/></a:child>";
+        final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
+        builder.startDocument();
+        builder.startElement(new QName("root"));
+        builder.startContent();
+        final XMLReader reader = XMLReaderFactory.createXMLReader();
+        final SaxonBuilderContentHandler handler = new SaxonBuilderContentHandler(builder);
+        reader.setContentHandler(handler);
+        reader.setProperty(SaxonBuilderContentHandler.LEXICAL_HANDLER_PROPERTY, handler);
+        reader.parse(new InputSource(new StringReader(xml)));
+        builder.endElement();
+        builder.endDocument();
+
+        Assert.assertTrue(SaxonDeepEqual.deepEqual(builder.getNode(), parse("<root>" + xml + "</root>"), processor));
+        Assert.assertEquals(SaxonFingerprint.of(builder.getNode()), SaxonFingerprint.of(parse("<root>" + xml
+                + "</root>")));
+    }
+
+    @Test
+    public void textWriter() throws Exception
+    {
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+        {
+            text.append("text ").append(i);
+        }
+
+        final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
+        builder.startDocument();
+        builder.startElement(new QName("root"));
+        builder.startContent();
+        final Writer writer = builder.newTextWriter();
+        writer.write(text.toString());
+        writer.close();
+        builder.endElement();
+        builder.endDocument();
+
+        final XdmNode root = SaxonAxis.childElement(builder.getNode());
+        Assert.assertEquals(root.getStringValue(), text.toString());
+        Assert.assertEquals(SaxonAxis.childNodes(root).iterator().next().getStringValue(), text.toString());
+    }
+}
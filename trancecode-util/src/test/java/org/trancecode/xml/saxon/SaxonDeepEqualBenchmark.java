@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link SaxonDeepEqual} with the XPath {@code fn:deep-equal()}
+ * function on documents of 1000 records that are equal, that differ by the
+ * value of the last record, or that are entirely different.
+ * <p>
+ * Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=org.trancecode.xml.saxon.SaxonDeepEqualBenchmark
+ * -Dexec.classpathScope=test}.
+ * 
+ * @author Herve Quiroz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaxonDeepEqualBenchmark
+{
+    private static final int RECORDS = 1000;
+    private static final QName NODE1 = new QName("node1");
+    private static final QName NODE2 = new QName("node2");
+
+    @Param({ "equal", "nearlyEqual", "different" })
+    private String alternate;
+
+    private final Processor processor = new Processor(false);
+    private XdmNode source;
+    private XdmNode alternateNode;
+    private XPathExecutable deepEqual;
+
+    private static String newDocument(final String lastValue, final String recordName)
+    {
+        final StringBuilder xml = new StringBuilder("<records>");
+        for (int i = 0; i < RECORDS; i++)
+        {
+            final String value;
+            if (i == RECORDS - 1)
+            {
+                value = lastValue;
+            }
+            else
+            {
+                value = Integer.toString(i);
+            }
+            xml.append("<").append(recordName).append(" id='").append(i).append("'><value>").append(value)
+                    .append("</value></").append(recordName).append(">");
+        }
+
+        return xml.append("</records>").toString();
+    }
+
+    private XdmNode parse(final String xml) throws SaxonApiException
+    {
+        return processor.newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+    }
+
+    @Setup
+    public void setup() throws SaxonApiException
+    {
+        source = parse(newDocument("last", "record"));
+        if (alternate.equals("equal"))
+        {
+            alternateNode = parse(newDocument("last", "record"));
+        }
+        else if (alternate.equals("nearlyEqual"))
+        {
+            alternateNode = parse(newDocument("other", "record"));
+        }
+        else
+        {
+            alternateNode = parse(newDocument("last", "entry"));
+        }
+
+        final XPathCompiler xpathCompiler = processor.newXPathCompiler();
+        xpathCompiler.declareVariable(NODE1);
+        xpathCompiler.declareVariable(NODE2);
+        deepEqual = xpathCompiler.compile("deep-equal($node1, $node2)");
+    }
+
+    @Benchmark
+    public boolean xpath() throws SaxonApiException
+    {
+        final XPathSelector selector = deepEqual.load();
+        selector.setVariable(NODE1, source);
+        selector.setVariable(NODE2, alternateNode);
+        return ((XdmAtomicValue) selector.evaluateSingle()).getBooleanValue();
+    }
+
+    @Benchmark
+    public boolean hashing()
+    {
+        return SaxonDeepEqual.deepEqual(source, alternateNode, processor);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(SaxonDeepEqualBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathSelector;
+import net.sf.saxon.s9api.XdmAtomicValue;
+import net.sf.saxon.s9api.XdmNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link SaxonDeepEqual}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class SaxonDeepEqualTest extends AbstractTest
+{
+    private final Processor processor = new Processor(false);
+
+    private XdmNode parse(final String xml) throws Exception
+    {
+        return processor.newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+    }
+
+    private void assertDeepEqual(final String xml1, final String xml2, final boolean expected) throws Exception
+    {
+        final XdmNode node1 = parse(xml1);
+        final XdmNode node2 = parse(xml2);
+
+        final XPathCompiler xpathCompiler = processor.newXPathCompiler();
+        xpathCompiler.declareVariable(new QName("node1"));
+        xpathCompiler.declareVariable(new QName("node2"));
+        final XPathSelector selector = xpathCompiler.compile("deep-equal($node1, $node2)").load();
+        selector.setVariable(new QName("node1"), node1);
+        selector.setVariable(new QName("node2"), node2);
+        Assert.assertEquals(((XdmAtomicValue) selector.evaluateSingle()).getBooleanValue(), expected);
+
+        Assert.assertEquals(SaxonDeepEqual.deepEqual(node1, node2, processor), expected);
+        Assert.assertEquals(SaxonDeepEqual.deepEqual(node2, node1, processor), expected);
+        if (expected)
+        {
+            Assert.assertEquals(SaxonFingerprint.ofDeepEqual(node1), SaxonFingerprint.ofDeepEqual(node2));
+        }
+    }
+
+    @Test
+    public void equalDocuments() throws Exception
+    {
+        assertDeepEqual("<a:root xmlns:a='urn:a' x='1' y='2'><child>text</child><!-- comment --></a:root>",
+                "<b:root xmlns:b='urn:a' y='2' x='1'><?pi data?><child>text</child></b:root>", true);
+        assertDeepEqual("<root/>", "<root></root>", true);
+    }
+
+    @Test
+    public void nearlyEqualDocuments() throws Exception
+    {
+        assertDeepEqual("<root x='1'><child>text</child></root>", "<root x='2'><child>text</child></root>", false);
+        assertDeepEqual("<root x='1'><child>text</child></root>", "<root x='1' y='1'><child>text</child></root>",
+                false);
+        assertDeepEqual("<root><child>text</child></root>", "<root><child>text </child></root>", false);
+        assertDeepEqual("<root><child/></root>", "<root><child/><child/></root>", false);
+        assertDeepEqual("<root xmlns='urn:a'/>", "<root xmlns='urn:b'/>", false);
+        assertDeepEqual("<root>a<!-- comment -->b</root>", "<root>ab</root>", false);
+    }
+
+    @Test
+    public void differentDocuments() throws Exception
+    {
+        assertDeepEqual("<root><a><b/></a></root>", "<other>text</other>", false);
+        assertDeepEqual("<root><a><b/></a></root>", "<root>text</root>", false);
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import java.io.StringReader;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link SaxonFingerprint}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class SaxonFingerprintTest extends AbstractTest
+{
+    private final Processor processor = new Processor(false);
+
+    private XdmNode parse(final String xml) throws Exception
+    {
+        return processor.newDocumentBuilder().build(new StreamSource(new StringReader(xml)));
+    }
+
+    private void assertSameFingerprint(final String xml1, final String xml2, final boolean expected) throws Exception
+    {
+        final SaxonFingerprint fingerprint1 = SaxonFingerprint.of(parse(xml1));
+        final SaxonFingerprint fingerprint2 = SaxonFingerprint.of(parse(xml2));
+        Assert.assertEquals(fingerprint1.equals(fingerprint2), expected, fingerprint1 + " / " + fingerprint2);
+    }
+
+    @Test
+    public void canonicalForm() throws Exception
+    {
+        assertSameFingerprint("<a:root xmlns:a='urn:a' x='1' y='2'><child>text</child></a:root>",
+                "<b:root xmlns:b='urn:a' y='2' x='1'><child>text</child></b:root>", true);
+        assertSameFingerprint("<root xmlns:unused='urn:unused'/>", "<root></root>", true);
+        assertSameFingerprint("<root>a<![CDATA[b]]>c</root>", "<root>abc</root>", true);
+    }
+
+    @Test
+    public void differentDocuments() throws Exception
+    {
+        assertSameFingerprint("<root x='1'/>", "<root x='2'/>", false);
+        assertSameFingerprint("<root x='1'/>", "<root y='1'/>", false);
+        assertSameFingerprint("<root><a/><b/></root>", "<root><b/><a/></root>", false);
+        assertSameFingerprint("<root><a/></root>", "<root><a></a><a/></root>", false);
+        assertSameFingerprint("<root>text</root>", "<root><!--text--></root>", false);
+        assertSameFingerprint("<root><?pi data?></root>", "<root/>", false);
+        assertSameFingerprint("<a:root xmlns:a='urn:a'/>", "<a:root xmlns:a='urn:b'/>", false);
+        assertSameFingerprint("<root><a>b</a></root>", "<root><a/>b</root>", false);
+    }
+
+    @Test
+    public void deepEqualFingerprint() throws Exception
+    {
+        final XdmNode document1 = parse("<root>a<!--comment-->b<?pi data?><child/></root>");
+        final XdmNode document2 = parse("<root>ab<child/></root>");
+        Assert.assertFalse(SaxonFingerprint.of(document1).equals(SaxonFingerprint.of(document2)));
+        Assert.assertEquals(SaxonFingerprint.ofDeepEqual(document1), SaxonFingerprint.ofDeepEqual(document2));
+        Assert.assertFalse(SaxonFingerprint.ofDeepEqual(document1).equals(SaxonFingerprint.of(document1)));
+        Assert.assertSame(SaxonFingerprint.ofDeepEqual(document1), SaxonFingerprint.ofDeepEqual(document1));
+    }
+
+    @Test
+    public void memoizedDocumentFingerprint() throws Exception
+    {
+        final XdmNode document = parse("<root/>");
+        Assert.assertSame(SaxonFingerprint.of(document), SaxonFingerprint.of(document));
+    }
+
+    @Test
+    public void incrementalFingerprint() throws Exception
+    {
+        final XdmNode child = parse("<child xmlns='urn:test'>text</child>");
+
+        final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
+        builder.setFingerprinting(true);
+        builder.startDocument();
+        builder.startElement(new QName("p", "urn:test", "root"));
+        builder.namespace("p", "urn:test");
+        builder.attribute(new QName("y"), "2");
+        builder.attribute(new QName("x"), "1");
+        builder.startContent();
+        builder.text("a");
+        builder.text("b");
+        builder.nodes(child);
+        builder.comment("comment");
+        builder.processingInstruction("pi", "data");
+        builder.endElement();
+        builder.endDocument();
+
+        final XdmNode document = builder.getNode();
+        final SaxonFingerprint expected = SaxonFingerprint.of(parse("<root xmlns='urn:test' x='1' y='2'>ab"
+                + "<child>text</child><!--comment--><?pi data?></root>"));
+        Assert.assertEquals(builder.getFingerprint(), expected);
+        Assert.assertSame(SaxonFingerprint.of(document), builder.getFingerprint());
+    }
+}
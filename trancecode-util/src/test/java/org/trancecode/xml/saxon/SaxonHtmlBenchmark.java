@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.sax.SAXSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.ccil.cowan.tagsoup.Parser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * Compares {@link SaxonHtml} with a new TagSoup parser wrapped in a
+ * {@code SAXSource} for the s9api document builder, on generated pages of
+ * the size of typical real-world HTML pages (a small article page and a large
+ * listing page), with unclosed elements, unquoted attributes and comments.
+ * <p>
+ * Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=org.trancecode.xml.saxon.SaxonHtmlBenchmark
+ * -Dexec.classpathScope=test}.
+ * 
+ * @author Herve Quiroz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SaxonHtmlBenchmark
+{
+    @Param({ "20", "500" })
+    private int paragraphs;
+
+    private final Processor processor = new Processor(false);
+    private String html;
+
+    @Setup
+    public void setup()
+    {
+        final StringBuilder page = new StringBuilder("<!DOCTYPE html><html><head><title>Page</title>");
+        page.append("<meta charset=utf-8><link rel=stylesheet href=style.css>");
+        page.append("<script>var x = 1 < 2 && true;</script></head><body><div id=header><ul class=menu>");
+        for (int i = 0; i < 10; i++)
+        {
+            page.append("<li><a href=/section/").append(i).append(">Section ").append(i).append("</a>");
+        }
+        page.append("</ul></div><div id=content>");
+        for (int i = 0; i < paragraphs; i++)
+        {
+            page.append("<!-- paragraph ").append(i).append(" --><h2>Title ").append(i).append("</h2>");
+            page.append("<p class=text>Lorem ipsum dolor sit amet, <b>consectetur <i>adipiscing</b> elit</i>, sed ");
+            page.append("do eiusmod tempor &amp; incididunt ut labore et dolore magna aliqua.<br>");
+            page.append("<img src=image").append(i).append(".png alt='Image ").append(i).append("'>");
+            page.append("<table><tr><td>").append(i).append("<td>value<tr><td>total<td>").append(i * 2);
+            page.append("</table>");
+        }
+        page.append("</div><div id=footer>&copy; Example</div></body></html>");
+        html = page.toString();
+    }
+
+    @Benchmark
+    public XdmNode documentBuilder() throws SaxonApiException
+    {
+        return processor.newDocumentBuilder().build(
+                new SAXSource(new Parser(), new InputSource(new StringReader(html))));
+    }
+
+    @Benchmark
+    public XdmNode pooledParser() throws IOException, SAXException
+    {
+        return SaxonHtml.parse(new InputSource(new StringReader(html)), processor);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(SaxonHtmlBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xml.saxon;
+
+import java.io.StringReader;
+
+import javax.xml.transform.sax.SAXSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.ccil.cowan.tagsoup.Parser;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.xml.sax.InputSource;
+
+/**
+ * Tests for {@link SaxonHtml}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class SaxonHtmlTest extends AbstractTest
+{
+    private static final String XHTML_NAMESPACE = "http://www.w3.org/1999/xhtml";
+    private static final String HTML = "<html><head><title>Test</title></head><body><p class=x>one<br>two"
+            + "<!-- comment --><ul><li>a<li>b</ul></body></html>";
+
+    private final Processor processor = new Processor(false);
+
+    private XdmNode parseWithDocumentBuilder(final String html) throws Exception
+    {
+        return processor.newDocumentBuilder().build(
+                new SAXSource(new Parser(), new InputSource(new StringReader(html))));
+    }
+
+    @Test
+    public void parseDocument() throws Exception
+    {
+        final XdmNode expected = parseWithDocumentBuilder(HTML);
+        for (int i = 0; i < 3; i++)
+        {
+            // The same pooled parser is reused
+            final XdmNode document = SaxonHtml.parse(new InputSource(new StringReader(HTML)), processor);
+            Assert.assertEquals(SaxonAxis.childElement(document).getNodeName(), new QName(XHTML_NAMESPACE, "html"));
+            Assert.assertEquals(SaxonFingerprint.of(document), SaxonFingerprint.of(expected));
+        }
+    }
+
+    @Test
+    public void parseIntoBuilder() throws Exception
+    {
+        final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
+        builder.startDocument();
+        SaxonHtml.parse(new InputSource(new StringReader(HTML)), builder);
+        builder.endDocument();
+
+        Assert.assertEquals(SaxonFingerprint.of(builder.getNode()),
+                SaxonFingerprint.of(parseWithDocumentBuilder(HTML)));
+    }
+}
@@ -17,19 +17,25 @@
  */
 package org.trancecode.xproc.cli;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.net.URL;
+import java.util.List;
 import java.util.Properties;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.URIResolver;
 
+import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
 import org.apache.commons.cli.CommandLine;
@@ -42,12 +48,17 @@ import org.apache.log4j.ConsoleAppender;
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
+import org.trancecode.api.Nullable;
+import org.trancecode.event.EventDispatcher;
+import org.trancecode.event.EventDispatchers;
 import org.trancecode.xproc.PipelineConfiguration;
 import org.trancecode.xproc.Pipeline;
 import org.trancecode.xproc.PipelineProcessor;
 import org.trancecode.xproc.PipelineResult;
 import org.trancecode.xproc.RunnablePipeline;
 import org.trancecode.xproc.Tubular;
+import org.trancecode.xproc.event.StepProfiler;
+import org.trancecode.xproc.event.XProcEvent;
 import org.trancecode.xproc.port.Port;
 
 /**
@@ -65,9 +76,14 @@ public final class CommandLineExecutor
     private final Option optionOption;
     private final Option paramOption;
     private final Option portBindingOption;
+    private final Option profileOption;
     private final Option verboseOption;
     private final Option versionOption;
     private final Option xplOption;
+    private final Option serverOption;
+    private final Option connectOption;
+
+    private PipelineConfiguration configuration;
 
     protected CommandLineExecutor()
     {
@@ -100,6 +116,12 @@ public final class CommandLineExecutor
         portBindingOption.setValueSeparator('=');
         options.addOption(portBindingOption);
 
+        profileOption = new Option("P", "profile", true,
+                "Write an execution profile of the pipeline steps to the specified file,"
+                        + " and collapsed stacks for flame graphs to the same file with a .collapsed suffix");
+        profileOption.setArgName("file");
+        options.addOption(profileOption);
+
         verboseOption = new Option("v", "verbose", false, "Display more information");
         options.addOption(verboseOption);
 
@@ -108,13 +130,55 @@ public final class CommandLineExecutor
 
         xplOption = new Option("x", "xpl", true, "XProc pipeline to load and run");
         xplOption.setArgName("uri");
-        xplOption.setRequired(true);
         xplOption.setType(URL.class);
         options.addOption(xplOption);
+
+        serverOption = new Option("S", "server", true,
+                "Keep running and execute the pipelines submitted with --connect on the specified local port");
+        serverOption.setArgName("port");
+        serverOption.setType(Number.class);
+        options.addOption(serverOption);
+
+        connectOption = new Option("C", "connect", true,
+                "Submit the pipeline to a server started with --server on the specified local port");
+        connectOption.setArgName("port");
+        connectOption.setType(Number.class);
+        options.addOption(connectOption);
+    }
+
+    /**
+     * Returns the pipeline configuration shared by all the executions of this
+     * executor, so that a server keeps parsed pipelines and libraries across
+     * requests.
+     */
+    private synchronized PipelineConfiguration getPipelineConfiguration()
+    {
+        if (configuration == null)
+        {
+            configuration = new PipelineConfiguration();
+        }
+
+        return configuration;
     }
 
     protected int execute(final String[] args, final InputStream stdin, final PrintStream stdout,
             final PrintStream stderr)
+    {
+        return execute(args, null, false, stdin, stdout, stderr);
+    }
+
+    /**
+     * Executes a request submitted to a server. Relative paths are resolved
+     * against the working directory of the client.
+     */
+    int executeRequest(final String[] args, final File workingDirectory, final InputStream stdin,
+            final PrintStream stdout, final PrintStream stderr)
+    {
+        return execute(args, workingDirectory, true, stdin, stdout, stderr);
+    }
+
+    private int execute(final String[] args, @Nullable final File workingDirectory, final boolean request,
+            final InputStream stdin, final PrintStream stdout, final PrintStream stderr)
     {
         final GnuParser parser = new GnuParser();
 
@@ -122,6 +186,24 @@ public final class CommandLineExecutor
         {
             final CommandLine commandLine = parser.parse(options, args);
 
+            if (commandLine.hasOption(serverOption.getOpt()) || commandLine.hasOption(connectOption.getOpt()))
+            {
+                if (request)
+                {
+                    stderr.println("Options --" + serverOption.getLongOpt() + " and --" + connectOption.getLongOpt()
+                            + " cannot be submitted to a server.");
+                    return 2;
+                }
+
+                if (commandLine.hasOption(serverOption.getOpt()))
+                {
+                    return startServer(getPort(commandLine, serverOption), stderr);
+                }
+
+                return PipelineClient.execute(getPort(commandLine, connectOption), withoutConnectOption(args),
+                        new File("").getAbsoluteFile(), stdout, stderr);
+            }
+
             if (commandLine.hasOption(helpOption.getOpt()))
             {
                 printHelp(stderr);
@@ -136,10 +218,19 @@ public final class CommandLineExecutor
 
             if (commandLine.hasOption(verboseOption.getOpt()))
             {
-                Logger.getRootLogger().setLevel(Level.DEBUG);
+                if (request)
+                {
+                    // The logging configuration is shared by all the requests
+                    stderr.println("Option --" + verboseOption.getLongOpt()
+                            + " is ignored for requests; start the server with it instead.");
+                }
+                else
+                {
+                    Logger.getRootLogger().setLevel(Level.DEBUG);
+                }
             }
 
-            final PipelineConfiguration configurationPipelineContext = new PipelineConfiguration();
+            final PipelineConfiguration configurationPipelineContext = getPipelineConfiguration();
             final URIResolver uriResolver = configurationPipelineContext.getUriResolver();
             final PipelineProcessor pipelineProcessor = new PipelineProcessor(configurationPipelineContext);
             final String[] libraries = commandLine.getOptionValues(librariesOption.getOpt());
@@ -151,7 +242,7 @@ public final class CommandLineExecutor
                     // FIXME this will not really have any effect has the parsed
                     // library is returned and the pipeline processor stays
                     // unchanged
-                    pipelineProcessor.buildPipelineLibrary(newSource(uriResolver, library,
+                    pipelineProcessor.buildPipelineLibrary(newSource(uriResolver, workingDirectory, library,
                             "Cannot read library from %s", library));
                 }
             }
@@ -167,7 +258,8 @@ public final class CommandLineExecutor
             }
             else
             {
-                final Source xplSource = newSource(uriResolver, xplValue, "Cannot read pipeline from %s", xplValue);
+                final Source xplSource = newSource(uriResolver, workingDirectory, xplValue,
+                        "Cannot read pipeline from %s", xplValue);
 
                 if (xplSource != null)
                 {
@@ -184,8 +276,8 @@ public final class CommandLineExecutor
                             LOG.debug("input port binding: {} = {}", portBindingName, portBindingValue);
                             runnablePipeline.bindSourcePort(
                                     portBindingName,
-                                    newSource(uriResolver, portBindingValue, "Cannot bind port to resource from %s",
-                                            portBindingValue));
+                                    newSource(uriResolver, workingDirectory, portBindingValue,
+                                            "Cannot bind port to resource from %s", portBindingValue));
                         }
                     }
 
@@ -203,7 +295,31 @@ public final class CommandLineExecutor
                         runnablePipeline.withParam(new QName(paramName), paramValue);
                     }
 
-                    final PipelineResult pipelineResult = runnablePipeline.run();
+                    final PipelineResult pipelineResult;
+                    final String profileValue = commandLine.getOptionValue(profileOption.getOpt());
+                    if (profileValue != null)
+                    {
+                        // The configuration is shared by concurrent requests,
+                        // so the profiler only observes the events of this run
+                        final StepProfiler profiler = StepProfiler.newProfiler(runnablePipeline.getPipeline());
+                        final EventDispatcher<XProcEvent> eventDispatcher = EventDispatchers.newEventDispatcher();
+                        eventDispatcher.addObserver(profiler);
+                        eventDispatcher.addObserver(configurationPipelineContext.getEventDispatcher());
+                        runnablePipeline.setEventDispatcher(eventDispatcher);
+                        try
+                        {
+                            pipelineResult = runnablePipeline.run();
+                        }
+                        finally
+                        {
+                            writeProfile(profiler, newFile(workingDirectory, profileValue),
+                                    configurationPipelineContext.getProcessor(), stderr);
+                        }
+                    }
+                    else
+                    {
+                        pipelineResult = runnablePipeline.run();
+                    }
                     final Port primaryOutputPort = pipelineResult.getPipeline().getPrimaryOutputPort();
                     if (primaryOutputPort != null
                             && !portBindingProperties.stringPropertyNames().contains(primaryOutputPort.getPortName()))
@@ -232,18 +348,95 @@ public final class CommandLineExecutor
         return 0;
     }
 
-    private static Source newSource(final URIResolver uriResolver, final String uri, final String errorMessage,
-            final Object... args)
+    private int startServer(final int port, final PrintStream stderr)
     {
+        try (final PipelineServer server = new PipelineServer(this, port))
+        {
+            LOG.info("listening on port {}", server.getPort());
+            server.serve();
+            return 0;
+        }
+        catch (final IOException e)
+        {
+            stderr.println("Cannot start server on port " + port + ": " + e.getMessage());
+            return 4;
+        }
+    }
+
+    private static int getPort(final CommandLine commandLine, final Option option) throws ParseException
+    {
+        return ((Number) commandLine.getParsedOptionValue(option.getOpt())).intValue();
+    }
+
+    private String[] withoutConnectOption(final String[] args)
+    {
+        final List<String> forwardedArgs = Lists.newArrayList();
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("-" + connectOption.getOpt()) || args[i].equals("--" + connectOption.getLongOpt()))
+            {
+                i++;
+            }
+            else if (!args[i].startsWith("--" + connectOption.getLongOpt() + "="))
+            {
+                forwardedArgs.add(args[i]);
+            }
+        }
+
+        return forwardedArgs.toArray(new String[forwardedArgs.size()]);
+    }
+
+    private static File newFile(@Nullable final File workingDirectory, final String path)
+    {
+        final File file = new File(path);
+        if (!file.isAbsolute() && workingDirectory != null)
+        {
+            return new File(workingDirectory, path);
+        }
+
+        return file;
+    }
+
+    private static void writeProfile(final StepProfiler profiler, final File reportFile, final Processor processor,
+            final PrintStream stderr)
+    {
+        final File collapsedStacksFile = new File(reportFile.getPath() + ".collapsed");
+        try
+        {
+            Files.write(profiler.getReport(processor).toString(), reportFile, Charsets.UTF_8);
+            final StringBuilder collapsedStacks = new StringBuilder();
+            profiler.writeCollapsedStacks(collapsedStacks);
+            Files.write(collapsedStacks, collapsedStacksFile, Charsets.UTF_8);
+        }
+        catch (final IOException e)
+        {
+            stderr.println("Cannot write profile to " + reportFile + ": " + e.getMessage());
+        }
+    }
+
+    private static Source newSource(final URIResolver uriResolver, @Nullable final File workingDirectory,
+            final String uri, final String errorMessage, final Object... args)
+    {
+        final String baseUri;
+        if (workingDirectory != null)
+        {
+            baseUri = workingDirectory.toURI().toString();
+        }
+        else
+        {
+            baseUri = "";
+        }
+
         try
         {
-            return uriResolver.resolve(uri, "");
+            return uriResolver.resolve(uri, baseUri);
         }
         catch (final TransformerException resolverError)
         {
+            final File file = newFile(workingDirectory, uri);
             try
             {
-                return uriResolver.resolve(new File(uri).toURI().toString(), "");
+                return uriResolver.resolve(file.toURI().toString(), "");
             }
             catch (final TransformerException fileError)
             {
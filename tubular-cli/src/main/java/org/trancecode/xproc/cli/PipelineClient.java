@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.trancecode.xproc.cli;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Submits a command line to a {@link PipelineServer} and copies the outcome to
+ * the local standard streams. The request is authenticated with the token
+ * that the server wrote to a file only readable by its owner.
+ * 
+ * @author Herve Quiroz
+ */
+final class PipelineClient
+{
+    private PipelineClient()
+    {
+        // No instantiation
+    }
+
+    public static int execute(final int port, final String[] args, final File workingDirectory,
+            final PrintStream stdout, final PrintStream stderr)
+    {
+        final String token;
+        try
+        {
+            token = PipelineServer.readToken(port);
+        }
+        catch (final IOException e)
+        {
+            stderr.println("Cannot read the token of the server on port " + port + ": " + e.getMessage());
+            return 4;
+        }
+
+        try (final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port))
+        {
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            output.writeUTF(token);
+            output.writeInt(args.length);
+            for (final String arg : args)
+            {
+                output.writeUTF(arg);
+            }
+            output.writeUTF(workingDirectory.getAbsolutePath());
+            output.flush();
+
+            final DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final int exitCode = input.readInt();
+            stdout.write(readBytes(input));
+            stdout.flush();
+            stderr.write(readBytes(input));
+            stderr.flush();
+
+            return exitCode;
+        }
+        catch (final IOException e)
+        {
+            stderr.println("Cannot submit pipeline to server on port " + port + ": " + e.getMessage());
+            return 4;
+        }
+    }
+
+    private static byte[] readBytes(final DataInputStream input) throws IOException
+    {
+        final byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+ */
+package org.trancecode.xproc.cli;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Closeables;
+import com.google.common.io.Files;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.FileSystems;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.trancecode.io.IOUtil;
+import org.trancecode.logging.Logger;
+
+/**
+ * Executes pipelines submitted by {@link PipelineClient} within a long-lived
+ * process, so that the JVM, Saxon and the pipeline configuration are
+ * initialized only once.
+ * <p>
+ * The server only listens on the loopback interface. As any local user may
+ * connect to it, the server generates a random token that it writes to
+ * {@code ~/.tubular/server-<port>.token}, a file only readable by its owner,
+ * and rejects the requests that do not start with this token. A request is
+ * then made of the command line arguments and the working directory of the
+ * client, and the response of the exit code followed by the content written
+ * to the standard output and error streams.
+ * 
+ * @author Herve Quiroz
+ */
+final class PipelineServer implements Closeable
+{
+    private static final Logger LOG = Logger.getLogger(PipelineServer.class);
+    private static final int TOKEN_LENGTH = 32;
+
+    private final CommandLineExecutor executor;
+    private final ServerSocket serverSocket;
+    private final ExecutorService requestExecutor;
+    private final File tokenFile;
+    private final byte[] token;
+
+    public PipelineServer(final CommandLineExecutor executor, final int port) throws IOException
+    {
+        this.executor = Preconditions.checkNotNull(executor);
+        serverSocket = new ServerSocket(port, 0, InetAddress.getLoopbackAddress());
+        try
+        {
+            token = newToken().getBytes(Charsets.UTF_8);
+            tokenFile = getTokenFile(serverSocket.getLocalPort());
+            writeOwnerOnlyFile(tokenFile, token);
+        }
+        catch (final IOException | RuntimeException e)
+        {
+            Closeables.closeQuietly(serverSocket);
+            throw e;
+        }
+        requestExecutor = Executors.newCachedThreadPool();
+    }
+
+    private static String newToken()
+    {
+        final byte[] bytes = new byte[TOKEN_LENGTH];
+        new SecureRandom().nextBytes(bytes);
+        final StringBuilder token = new StringBuilder(2 * TOKEN_LENGTH);
+        for (final byte b : bytes)
+        {
+            token.append(String.format("%02x", b & 0xFF));
+        }
+
+        return token.toString();
+    }
+
+    static File getTokenFile(final int port)
+    {
+        return new File(new File(System.getProperty("user.home"), ".tubular"), "server-" + port + ".token");
+    }
+
+    /**
+     * Returns the token of the server listening on the given port.
+     */
+    static String readToken(final int port) throws IOException
+    {
+        return Files.toString(getTokenFile(port), Charsets.UTF_8);
+    }
+
+    private static void writeOwnerOnlyFile(final File file, final byte[] content) throws IOException
+    {
+        final File directory = file.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("cannot create directory " + directory);
+        }
+
+        java.nio.file.Files.deleteIfExists(file.toPath());
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix"))
+        {
+            java.nio.file.Files.createFile(file.toPath(),
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        }
+        else
+        {
+            java.nio.file.Files.createFile(file.toPath());
+            if (!file.setReadable(false, false) || !file.setReadable(true, true) || !file.setWritable(false, false)
+                    || !file.setWritable(true, true))
+            {
+                java.nio.file.Files.delete(file.toPath());
+                throw new IOException("cannot restrict the permissions of " + file);
+            }
+        }
+        Files.write(content, file);
+    }
+
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Accepts requests until the server is closed.
+     */
+    public void serve() throws IOException
+    {
+        while (!serverSocket.isClosed())
+        {
+            final Socket socket;
+            try
+            {
+                socket = serverSocket.accept();
+            }
+            catch (final SocketException e)
+            {
+                if (serverSocket.isClosed())
+                {
+                    return;
+                }
+
+                throw e;
+            }
+
+            requestExecutor.execute(() -> handleRequest(socket));
+        }
+    }
+
+    private void handleRequest(final Socket socket)
+    {
+        try
+        {
+            final DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            if (!MessageDigest.isEqual(token, input.readUTF().getBytes(Charsets.UTF_8)))
+            {
+                LOG.warn("rejected request with an invalid token from {}", socket.getRemoteSocketAddress());
+                return;
+            }
+
+            final String[] args = new String[input.readInt()];
+            for (int i = 0; i < args.length; i++)
+            {
+                args[i] = input.readUTF();
+            }
+            final File workingDirectory = new File(input.readUTF());
+            LOG.debug("{@method} args = {} ; workingDirectory = {}", args, workingDirectory);
+
+            final ByteArrayOutputStream stdoutBytes = new ByteArrayOutputStream();
+            final ByteArrayOutputStream stderrBytes = new ByteArrayOutputStream();
+            int exitCode;
+            try (final PrintStream stdout = new PrintStream(stdoutBytes, true, "UTF-8");
+                    final PrintStream stderr = new PrintStream(stderrBytes, true, "UTF-8"))
+            {
+                try
+                {
+                    exitCode = executor.executeRequest(args, workingDirectory, IOUtil.newNullInputStream(), stdout,
+                            stderr);
+                }
+                catch (final RuntimeException e)
+                {
+                    e.printStackTrace(stderr);
+                    exitCode = 1;
+                }
+            }
+
+            final DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            output.writeInt(exitCode);
+            writeBytes(output, stdoutBytes.toByteArray());
+            writeBytes(output, stderrBytes.toByteArray());
+            output.flush();
+        }
+        catch (final IOException e)
+        {
+            LOG.warn("error while handling request: {message}", e);
+        }
+        finally
+        {
+            Closeables.closeQuietly(socket);
+        }
+    }
+
+    private static void writeBytes(final DataOutputStream output, final byte[] bytes) throws IOException
+    {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        requestExecutor.shutdown();
+        try
+        {
+            serverSocket.close();
+        }
+        finally
+        {
+            if (!tokenFile.delete())
+            {
+                LOG.warn("cannot delete token file {}", tokenFile);
+            }
+        }
+    }
+}
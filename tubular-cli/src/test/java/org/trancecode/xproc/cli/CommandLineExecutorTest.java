@@ -21,6 +21,7 @@ import com.beust.jcommander.internal.Lists;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.lang.reflect.Method;
@@ -131,6 +132,70 @@ public final class CommandLineExecutorTest extends AbstractTest
         // TODO handle stderr
     }
 
+    @Test
+    public void server() throws Exception
+    {
+        final File testDirectory = new File(CommandLineExecutorTest.class.getResource(
+                "/" + CommandLineExecutorTest.class.getSimpleName() + "/simple-identity-01/pipeline.xpl").toURI())
+                .getParentFile();
+        final String expectedStdout = FileUtils.readFileToString(new File(testDirectory, "stdout.xml"));
+        final String[] args = { "--xpl", "pipeline.xpl", "-b", "source=source.xml" };
+
+        try (final PipelineServer server = new PipelineServer(new CommandLineExecutor(), 0))
+        {
+            final Thread serverThread = new Thread(() -> {
+                try
+                {
+                    server.serve();
+                }
+                catch (final IOException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+
+            for (int i = 0; i < 2; i++)
+            {
+                final ByteArrayOutputStream stdoutBytes = new ByteArrayOutputStream();
+                final PrintStream stdout = new PrintStream(stdoutBytes);
+                final int exitCode = PipelineClient.execute(server.getPort(), args, testDirectory, stdout,
+                        System.err);
+                stdout.close();
+
+                Assert.assertEquals(exitCode, 0);
+                assertXmlEquals(stdoutBytes.toString(), expectedStdout);
+            }
+        }
+    }
+
+    @Test
+    public void profile() throws Exception
+    {
+        final File testDirectory = new File(CommandLineExecutorTest.class.getResource(
+                "/" + CommandLineExecutorTest.class.getSimpleName() + "/simple-identity-01/pipeline.xpl").toURI())
+                .getParentFile();
+        final File reportFile = File.createTempFile("profile", ".xml");
+        final File collapsedStacksFile = new File(reportFile.getPath() + ".collapsed");
+        reportFile.deleteOnExit();
+        collapsedStacksFile.deleteOnExit();
+        final String[] args = { "--xpl", new File(testDirectory, "pipeline.xpl").getAbsolutePath(), "-b",
+                "source=" + new File(testDirectory, "source.xml").getAbsolutePath(), "--profile",
+                reportFile.getAbsolutePath() };
+
+        final ByteArrayOutputStream stdoutBytes = new ByteArrayOutputStream();
+        final PrintStream stdout = new PrintStream(stdoutBytes);
+        final int exitCode = new CommandLineExecutor().execute(args, IOUtil.newNullInputStream(), stdout, System.err);
+        stdout.close();
+
+        Assert.assertEquals(exitCode, 0);
+        final String report = FileUtils.readFileToString(reportFile);
+        Assert.assertTrue(report.contains("tubular:profile"), report);
+        Assert.assertTrue(report.contains("tubular:step"), report);
+        Assert.assertTrue(collapsedStacksFile.isFile());
+    }
+
     private static void assertXmlEquals(final String actual, final String expected)
     {
         try
@@ -43,38 +43,51 @@ abstract class AbstractPipelineContext implements PipelineContext
 {
     static final String PROPERTY_PREFIX = "http://www.trancecode.org/tubular/1/property/";
 
+    static final String PROPERTY_CATALOG = PROPERTY_PREFIX + "catalog";
+    static final String PROPERTY_DOCUMENT_STORE = PROPERTY_PREFIX + "documentStore";
     static final String PROPERTY_EPISODE = PROPERTY_PREFIX + "episode";
     static final String PROPERTY_EVENT_DISPATCHER = PROPERTY_PREFIX + "eventDispatcher";
     static final String PROPERTY_EXECUTOR = PROPERTY_PREFIX + "executor";
+    static final String PROPERTY_METRICS = PROPERTY_PREFIX + "metrics";
     static final String PROPERTY_INPUT_RESOLVER = PROPERTY_PREFIX + "inputResolver";
     static final String PROPERTY_OUTPUT_RESOLVER = PROPERTY_PREFIX + "outputResolver";
     static final String PROPERTY_PIPELINE_LIBRARY = PROPERTY_PREFIX + "pipelineLibrary";
+    static final String PROPERTY_PIPELINE_LIBRARY_CACHE = PROPERTY_PREFIX + "pipelineLibraryCache";
     static final String PROPERTY_PROCESSOR = PROPERTY_PREFIX + "processor";
     static final String PROPERTY_STEP_PROCESSORS = PROPERTY_PREFIX + "stepProcessors";
+    static final String PROPERTY_STEP_RESULT_CACHE = PROPERTY_PREFIX + "stepResultCache";
     static final String PROPERTY_URI_RESOLVER = PROPERTY_PREFIX + "uriResolver";
 
     final Map<String, Object> properties;
 
+    Supplier<DocumentStore> documentStore;
     Supplier<Episode> episode;
     Supplier<EventDispatcher<XProcEvent>> eventDispatcher;
     Supplier<TaskExecutor> executor;
     Supplier<InputResolver> inputResolver;
+    Supplier<PipelineMetrics> metrics;
     Supplier<OutputResolver> outputResolver;
     Supplier<PipelineLibrary> pipelineLibrary;
+    Supplier<PipelineLibraryCache> pipelineLibraryCache;
     Supplier<Processor> processor;
     Supplier<Map<QName, StepProcessor>> stepProcessors;
+    Supplier<StepResultCache> stepResultCache;
     Supplier<URIResolver> uriResolver;
 
     protected AbstractPipelineContext(final Map<String, Object> properties)
     {
         this.properties = Preconditions.checkNotNull(properties);
+        documentStore = TcSuppliers.getFromMap(properties, PROPERTY_DOCUMENT_STORE);
         episode = TcSuppliers.getFromMap(properties, PROPERTY_EPISODE);
         executor = TcSuppliers.getFromMap(properties, PROPERTY_EXECUTOR);
         inputResolver = TcSuppliers.getFromMap(properties, PROPERTY_INPUT_RESOLVER);
+        metrics = TcSuppliers.getFromMap(properties, PROPERTY_METRICS);
         outputResolver = TcSuppliers.getFromMap(properties, PROPERTY_OUTPUT_RESOLVER);
         pipelineLibrary = TcSuppliers.getFromMap(properties, PROPERTY_PIPELINE_LIBRARY);
+        pipelineLibraryCache = TcSuppliers.getFromMap(properties, PROPERTY_PIPELINE_LIBRARY_CACHE);
         processor = TcSuppliers.getFromMap(properties, PROPERTY_PROCESSOR);
         stepProcessors = TcSuppliers.getFromMap(properties, PROPERTY_STEP_PROCESSORS);
+        stepResultCache = TcSuppliers.getFromMap(properties, PROPERTY_STEP_RESULT_CACHE);
         uriResolver = TcSuppliers.getFromMap(properties, PROPERTY_URI_RESOLVER);
 
         eventDispatcher = TcSuppliers.getFromMap(properties, PROPERTY_EVENT_DISPATCHER);
@@ -84,6 +97,13 @@ abstract class AbstractPipelineContext implements PipelineContext
     @Override
     public final <T> T getProperty(final String name)
     {
+        if (PROPERTY_EPISODE.equals(name))
+        {
+            @SuppressWarnings("unchecked")
+            final T value = (T) getEpisode();
+            return value;
+        }
+
         @SuppressWarnings("unchecked")
         final T value = (T) properties.get(name);
         return value;
@@ -94,6 +114,12 @@ abstract class AbstractPipelineContext implements PipelineContext
         return properties;
     }
 
+    @Override
+    public final DocumentStore getDocumentStore()
+    {
+        return documentStore.get();
+    }
+
     @Override
     public final Episode getEpisode()
     {
@@ -117,6 +143,12 @@ abstract class AbstractPipelineContext implements PipelineContext
         return inputResolver.get();
     }
 
+    @Override
+    public final PipelineMetrics getMetrics()
+    {
+        return metrics.get();
+    }
+
     @Override
     public final OutputResolver getOutputResolver()
     {
@@ -129,12 +161,24 @@ abstract class AbstractPipelineContext implements PipelineContext
         return pipelineLibrary.get();
     }
 
+    @Override
+    public final PipelineLibraryCache getPipelineLibraryCache()
+    {
+        return pipelineLibraryCache.get();
+    }
+
     @Override
     public final Processor getProcessor()
     {
         return processor.get();
     }
 
+    @Override
+    public final StepResultCache getStepResultCache()
+    {
+        return stepResultCache.get();
+    }
+
     @Override
     public final URIResolver getUriResolver()
     {
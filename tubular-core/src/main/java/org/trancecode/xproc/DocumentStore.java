@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xproc;
+
+import com.google.common.base.Preconditions;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.logging.Logger;
+import org.trancecode.xml.saxon.Saxon;
+import org.trancecode.xml.saxon.SaxonBinaryCodec;
+
+/**
+ * Keeps large intermediate documents outside of the Java heap.
+ * <p>
+ * A document written to a step output port is encoded with
+ * {@link SaxonBinaryCodec} into a direct buffer or a memory-mapped temporary
+ * file when it has at least a given number of nodes. The decision only depends
+ * on the document, so a pipeline sees the same documents from one run to the
+ * next. The original tree is not referenced by the store: each read of the port
+ * decodes a new tree, with the same base URIs and type annotations, that is
+ * only held by the reader.
+ * <p>
+ * The space used by a document is not reclaimed before the store is closed:
+ * the temporary file of a mapped store grows with every document stored, see
+ * {@link #getStoredBytes()}. A store set on a {@link PipelineConfiguration} is
+ * closed along with it.
+ * 
+ * @author Herve Quiroz
+ */
+public final class DocumentStore implements Closeable
+{
+    public static final long DEFAULT_MINIMUM_NODES = 100000;
+
+    private static final Logger LOG = Logger.getLogger(DocumentStore.class);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final long minimumNodes;
+    private final File file;
+    private final FileChannel fileChannel;
+    private final AtomicLong storedBytes = new AtomicLong();
+
+    /**
+     * Returns a store that keeps documents in direct byte buffers.
+     */
+    public static DocumentStore newDirectStore(final long minimumNodes)
+    {
+        return new DocumentStore(minimumNodes, null, null);
+    }
+
+    public static DocumentStore newDirectStore()
+    {
+        return newDirectStore(DEFAULT_MINIMUM_NODES);
+    }
+
+    /**
+     * Returns a store that keeps documents in a temporary file from the given
+     * directory, mapped in memory when the documents are read. The file is
+     * deleted when the store is closed.
+     */
+    public static DocumentStore newMappedStore(final File directory, final long minimumNodes) throws IOException
+    {
+        final File file = File.createTempFile("tubular-documents", ".bin", directory);
+        file.deleteOnExit();
+        final FileChannel fileChannel = new RandomAccessFile(file, "rw").getChannel();
+        return new DocumentStore(minimumNodes, file, fileChannel);
+    }
+
+    public static DocumentStore newMappedStore(final File directory) throws IOException
+    {
+        return newMappedStore(directory, DEFAULT_MINIMUM_NODES);
+    }
+
+    private DocumentStore(final long minimumNodes, final File file, final FileChannel fileChannel)
+    {
+        Preconditions.checkArgument(minimumNodes >= 0, "minimumNodes = %s", minimumNodes);
+        this.minimumNodes = minimumNodes;
+        this.file = file;
+        this.fileChannel = fileChannel;
+    }
+
+    /**
+     * Returns the given documents, with the ones selected by the policy of this
+     * store moved out of the heap.
+     */
+    public List<XdmNode> store(final List<XdmNode> documents, final Configuration configuration)
+    {
+        final Object[] elements = new Object[documents.size()];
+        boolean stored = false;
+        for (int i = 0; i < elements.length; i++)
+        {
+            final XdmNode document = documents.get(i);
+            // Only documents built by Saxon itself are considered
+            if (Saxon.getNodeCount(document) >= minimumNodes)
+            {
+                elements[i] = new StoredDocument(store(document), configuration);
+                stored = true;
+            }
+            else
+            {
+                elements[i] = document;
+            }
+        }
+
+        if (!stored)
+        {
+            return documents;
+        }
+
+        return new StoredDocuments(elements);
+    }
+
+    /**
+     * Returns {@code true} if the given nodes were returned by
+     * {@link #store(List, Configuration)} and should not be copied.
+     */
+    public static boolean isStored(final Iterable<XdmNode> nodes)
+    {
+        return nodes instanceof StoredDocuments;
+    }
+
+    /**
+     * Returns the number of bytes written to this store since it was created.
+     */
+    public long getStoredBytes()
+    {
+        return storedBytes.get();
+    }
+
+    private ByteBuffer store(final XdmNode document)
+    {
+        try
+        {
+            if (fileChannel == null)
+            {
+                final DirectBufferOutputStream output = new DirectBufferOutputStream();
+                SaxonBinaryCodec.encode(document, new BufferedOutputStream(output, BUFFER_SIZE));
+                final ByteBuffer buffer = output.getBuffer();
+                storedBytes.addAndGet(buffer.remaining());
+                return buffer;
+            }
+
+            synchronized (fileChannel)
+            {
+                // The document is streamed to the end of the file
+                final long position = storedBytes.get();
+                fileChannel.position(position);
+                SaxonBinaryCodec.encode(document,
+                        new BufferedOutputStream(Channels.newOutputStream(fileChannel), BUFFER_SIZE));
+                final long length = fileChannel.position() - position;
+                storedBytes.addAndGet(length);
+                return fileChannel.map(MapMode.READ_ONLY, position, length);
+            }
+        }
+        catch (final IOException e)
+        {
+            throw new IllegalStateException("cannot store document to " + file, e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (fileChannel != null)
+        {
+            LOG.trace("{@method} file = {} ; size = {}", file, storedBytes);
+            fileChannel.close();
+            if (!file.delete())
+            {
+                LOG.warn("cannot delete {}", file);
+            }
+        }
+    }
+
+    /**
+     * Collects an encoded document into a direct buffer, which is grown as
+     * needed, so that the encoded form is never held on the heap.
+     */
+    private static final class DirectBufferOutputStream extends OutputStream
+    {
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        @Override
+        public void write(final int b)
+        {
+            ensureRemaining(1);
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(final byte[] bytes, final int offset, final int length)
+        {
+            ensureRemaining(length);
+            buffer.put(bytes, offset, length);
+        }
+
+        private void ensureRemaining(final int length)
+        {
+            if (buffer.remaining() < length)
+            {
+                final ByteBuffer newBuffer = ByteBuffer.allocateDirect(Math.max(buffer.capacity() * 2,
+                        buffer.position() + length));
+                buffer.flip();
+                newBuffer.put(buffer);
+                buffer = newBuffer;
+            }
+        }
+
+        public ByteBuffer getBuffer()
+        {
+            final ByteBuffer result = buffer.duplicate();
+            result.flip();
+            return result.asReadOnlyBuffer();
+        }
+    }
+
+    private static final class StoredDocument
+    {
+        private final ByteBuffer buffer;
+        private final Configuration configuration;
+
+        public StoredDocument(final ByteBuffer buffer, final Configuration configuration)
+        {
+            this.buffer = buffer;
+            this.configuration = configuration;
+        }
+
+        public XdmNode get()
+        {
+            LOG.trace("{@method} {} bytes", buffer.remaining());
+            return SaxonBinaryCodec.decode(buffer, configuration);
+        }
+    }
+
+    private static final class StoredDocuments extends AbstractList<XdmNode> implements RandomAccess
+    {
+        private final Object[] elements;
+
+        public StoredDocuments(final Object[] elements)
+        {
+            this.elements = elements;
+        }
+
+        @Override
+        public XdmNode get(final int index)
+        {
+            final Object element = elements[index];
+            if (element instanceof StoredDocument)
+            {
+                return ((StoredDocument) element).get();
+            }
+
+            return (XdmNode) element;
+        }
+
+        @Override
+        public int size()
+        {
+            return elements.length;
+        }
+    }
+}
@@ -21,6 +21,7 @@ package org.trancecode.xproc;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -35,17 +36,20 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.NoSuchElementException;
+import java.util.Set;
 
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XPathCompiler;
+import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmAtomicValue;
 import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmValue;
 import org.apache.commons.lang.StringUtils;
+import org.trancecode.api.Nullable;
 import org.trancecode.api.ReturnsNullable;
 import org.trancecode.collection.TcMaps;
 import org.trancecode.logging.Logger;
@@ -58,6 +62,7 @@ import org.trancecode.xml.saxon.SaxonNamespaces;
 import org.trancecode.xproc.api.PipelineException;
 import org.trancecode.xproc.api.XProcException;
 import org.trancecode.xproc.binding.PortBinding;
+import org.trancecode.xproc.event.FlightRecorderEvents;
 import org.trancecode.xproc.port.EnvironmentPort;
 import org.trancecode.xproc.port.Port;
 import org.trancecode.xproc.port.PortFunctions;
@@ -749,10 +754,78 @@ public final class Environment
 
     public XdmValue evaluateXPath(final String select, final XdmNode xpathContextNode,
             final Map<QName, String> additionalParameters)
+    {
+        return evaluateXPath(select, null, xpathContextNode, additionalParameters);
+    }
+
+    /**
+     * Evaluates an XPath expression against the XPath context node, reusing the
+     * compiled expression cached on the given step.
+     */
+    public XdmValue evaluateXPath(final String select, final Step step)
+    {
+        assert step != null;
+        final XdmNode xpathContextNode = getXPathContextNode();
+        assert xpathContextNode != null;
+        LOG.trace("xpathContextNode = {}", xpathContextNode);
+
+        return evaluateXPath(select, step, xpathContextNode, null);
+    }
+
+    private XdmValue evaluateXPath(final String select, @Nullable final Step step, final XdmNode xpathContextNode,
+            final Map<QName, String> additionalParameters)
     {
         assert select != null;
         LOG.trace("{@method} select = {}", select);
 
+        final Map<QName, String> variables = getXPathVariables(additionalParameters);
+        final Object flightEvent = FlightRecorderEvents.beginXPath();
+        try
+        {
+            final Set<QName> variableNames = variables.keySet();
+            final XPathExecutable xpathExecutable;
+            if (step == null)
+            {
+                xpathExecutable = compileXPath(select, variableNames);
+            }
+            else
+            {
+                // The compiled expression only depends on the in-scope variable
+                // names and the base URI
+                final String pipelineSystemId = Strings.nullToEmpty(getPipeline().getLocation().getSystemId());
+                xpathExecutable = step.getCompiledData(ImmutableList.of(select, pipelineSystemId, variableNames),
+                        () -> compileXPath(select, variableNames));
+            }
+
+            return evaluateXPath(xpathExecutable, xpathContextNode, variables);
+        }
+        catch (final Exception e)
+        {
+            final String exceptionMessage = e.getMessage();
+
+            if (exceptionMessage.contains("context item is undefined"))
+            {
+                // Keep the original exception message to allow correct
+                // exception handling
+                throw new IllegalStateException(exceptionMessage, e);
+            }
+            else
+            {
+                throw new IllegalStateException("error while evaluating XPath query: " + select, e);
+            }
+        }
+        finally
+        {
+            FlightRecorderEvents.endXPath(flightEvent, select, configuration);
+        }
+    }
+
+    /**
+     * Returns the variables visible to XPath expressions evaluated in this
+     * environment, along with the given additional parameters.
+     */
+    public Map<QName, String> getXPathVariables(@Nullable final Map<QName, String> additionalParameters)
+    {
         // TODO slow
         final Map<QName, String> temporaryVariables = TcMaps.merge(inheritedVariables, localVariables);
         final Map<QName, String> variables;
@@ -766,30 +839,38 @@ public final class Environment
             variables = temporaryVariables;
         }
 
+        return ImmutableMap.copyOf(Maps.filterValues(variables, Predicates.notNull()));
+    }
+
+    /**
+     * Compiles an XPath expression that refers to the given variables, so that
+     * it can be evaluated several times with
+     * {@link #evaluateXPath(XPathExecutable, XdmNode, Map)}.
+     */
+    public XPathExecutable compileXPath(final String select, final Set<QName> variableNames)
+    {
+        final String pipelineSystemId = Strings.nullToEmpty(getPipeline().getLocation().getSystemId());
         try
         {
-            final XPathCompiler xpathCompiler = configuration.getProcessor().newXPathCompiler();
-            xpathCompiler.setSchemaAware(true);
-            final String pipelineSystemId = getPipeline().getLocation().getSystemId();
-            if (!Strings.isNullOrEmpty(pipelineSystemId))
-            {
-                xpathCompiler.setBaseURI(URI.create(pipelineSystemId));
-            }
-            for (final Map.Entry<QName, String> variableEntry : variables.entrySet())
-            {
-                if (variableEntry.getValue() != null)
-                {
-                    xpathCompiler.declareVariable(variableEntry.getKey());
-                }
-            }
-
-            xpathCompiler.declareNamespace(XProcXmlModel.xprocNamespace().prefix(), XProcXmlModel.xprocNamespace()
-                    .uri());
-            xpathCompiler.declareNamespace(XProcXmlModel.xprocStepNamespace().prefix(), XProcXmlModel
-                    .xprocStepNamespace().uri());
+            return compileXPath(select, pipelineSystemId, variableNames);
+        }
+        catch (final SaxonApiException e)
+        {
+            throw new IllegalStateException("error while compiling XPath query: " + select, e);
+        }
+    }
 
-            final XPathSelector selector = xpathCompiler.compile(select).load();
-            setCurrentXPathContext(xpathContextNode);
+    /**
+     * Evaluates a compiled XPath expression, binding each of its declared
+     * variables to the value from the given map.
+     */
+    public XdmValue evaluateXPath(final XPathExecutable xpathExecutable, @Nullable final XdmNode xpathContextNode,
+            final Map<QName, String> variables)
+    {
+        final XPathSelector selector = xpathExecutable.load();
+        setCurrentXPathContext(xpathContextNode);
+        try
+        {
             if (xpathContextNode != null)
             {
                 selector.setContextItem(xpathContextNode);
@@ -797,30 +878,39 @@ public final class Environment
 
             for (final Map.Entry<QName, String> variableEntry : variables.entrySet())
             {
-                if (variableEntry.getValue() != null)
-                {
-                    selector.setVariable(variableEntry.getKey(),
-                            Saxon.getUntypedXdmItem(variableEntry.getValue(), configuration.getProcessor()));
-                }
+                selector.setVariable(variableEntry.getKey(),
+                        Saxon.getUntypedXdmItem(variableEntry.getValue(), configuration.getProcessor()));
             }
 
             return selector.evaluate();
         }
-        catch (final Exception e)
+        catch (final SaxonApiException e)
         {
-            final String exceptionMessage = e.getMessage();
+            // Keep the original exception message to allow correct exception
+            // handling
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
 
-            if (exceptionMessage.contains("context item is undefined"))
-            {
-                // Keep the original exception message to allow correct
-                // exception handling
-                throw new IllegalStateException(exceptionMessage, e);
-            }
-            else
-            {
-                throw new IllegalStateException("error while evaluating XPath query: " + select, e);
-            }
+    private XPathExecutable compileXPath(final String select, final String baseUri, final Iterable<QName> variableNames)
+            throws SaxonApiException
+    {
+        final XPathCompiler xpathCompiler = configuration.getProcessor().newXPathCompiler();
+        xpathCompiler.setSchemaAware(true);
+        if (!baseUri.isEmpty())
+        {
+            xpathCompiler.setBaseURI(URI.create(baseUri));
         }
+        for (final QName variableName : variableNames)
+        {
+            xpathCompiler.declareVariable(variableName);
+        }
+
+        xpathCompiler.declareNamespace(XProcXmlModel.xprocNamespace().prefix(), XProcXmlModel.xprocNamespace().uri());
+        xpathCompiler.declareNamespace(XProcXmlModel.xprocStepNamespace().prefix(), XProcXmlModel
+                .xprocStepNamespace().uri());
+
+        return xpathCompiler.compile(select);
     }
 
     private EnvironmentPort getPort(final PortReference portReference)
@@ -849,6 +939,15 @@ public final class Environment
         return nodes;
     }
 
+    /**
+     * Reads nodes from a port lazily, see {@link EnvironmentPort#iterateNodes()}.
+     */
+    public Iterable<XdmNode> iterateNodes(final PortReference portReference)
+    {
+        LOG.trace("{@method} port = {}", portReference);
+        return getPort(portReference).iterateNodes();
+    }
+
     public XdmNode readNode(final PortReference portReference)
     {
         return Iterables.getOnlyElement(readNodes(portReference));
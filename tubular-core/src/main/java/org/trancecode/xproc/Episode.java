@@ -17,17 +17,48 @@
  */
 package org.trancecode.xproc;
 
+import com.google.common.base.Supplier;
+
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author Herve Quiroz
  */
 public final class Episode
 {
-    final String id = UUID.randomUUID().toString();
+    private volatile String id;
+    private final ConcurrentMap<Object, Object> data = new ConcurrentHashMap<>();
 
     public String getId()
     {
-        return id;
+        // Most runs never read the episode identifier, so the UUID (and the
+        // shared SecureRandom behind it) is only generated on demand
+        String episodeId = id;
+        if (episodeId == null)
+        {
+            synchronized (this)
+            {
+                episodeId = id;
+                if (episodeId == null)
+                {
+                    episodeId = UUID.randomUUID().toString();
+                    id = episodeId;
+                }
+            }
+        }
+
+        return episodeId;
+    }
+
+    /**
+     * Returns data shared by the steps run within this episode, such as the
+     * resources that are read only once per episode, computing it on first use.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getData(final Object key, final Supplier<T> supplier)
+    {
+        return (T) data.computeIfAbsent(key, k -> supplier.get());
     }
 }
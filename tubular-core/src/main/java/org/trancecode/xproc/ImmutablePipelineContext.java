@@ -17,12 +17,14 @@
  */
 package org.trancecode.xproc;
 
+import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableMap;
 
 import java.util.Map;
 
-import org.trancecode.collection.TcMaps;
+import org.trancecode.event.EventDispatcher;
 import org.trancecode.function.TcSuppliers;
+import org.trancecode.xproc.event.XProcEvent;
 
 /**
  * @author Herve Quiroz
@@ -47,17 +49,50 @@ public final class ImmutablePipelineContext extends AbstractPipelineContext
     ImmutablePipelineContext(final Map<String, Object> properties)
     {
         super(ImmutableMap.copyOf(properties));
+        documentStore = TcSuppliers.memoize(documentStore);
         executor = TcSuppliers.memoize(executor);
         inputResolver = TcSuppliers.memoize(inputResolver);
+        metrics = TcSuppliers.memoize(metrics);
         outputResolver = TcSuppliers.memoize(outputResolver);
         pipelineLibrary = TcSuppliers.memoize(pipelineLibrary);
+        pipelineLibraryCache = TcSuppliers.memoize(pipelineLibraryCache);
         processor = TcSuppliers.memoize(processor);
         stepProcessors = TcSuppliers.memoize(stepProcessors);
+        stepResultCache = TcSuppliers.memoize(stepResultCache);
         uriResolver = TcSuppliers.memoize(uriResolver);
     }
 
+    /**
+     * Returns a context for a new run of a pipeline. The properties and the
+     * memoized values of this context are shared, only the episode changes.
+     */
+    private ImmutablePipelineContext(final ImmutablePipelineContext context, final Episode episode)
+    {
+        super(context.properties);
+        this.episode = Suppliers.ofInstance(episode);
+        documentStore = context.documentStore;
+        eventDispatcher = context.eventDispatcher;
+        executor = context.executor;
+        inputResolver = context.inputResolver;
+        metrics = context.metrics;
+        outputResolver = context.outputResolver;
+        pipelineLibrary = context.pipelineLibrary;
+        pipelineLibraryCache = context.pipelineLibraryCache;
+        processor = context.processor;
+        stepProcessors = context.stepProcessors;
+        stepResultCache = context.stepResultCache;
+        uriResolver = context.uriResolver;
+    }
+
     ImmutablePipelineContext withNewEpisode()
     {
-        return new ImmutablePipelineContext(TcMaps.copyAndPut(properties, PROPERTY_EPISODE, new Episode()));
+        return new ImmutablePipelineContext(this, new Episode());
+    }
+
+    ImmutablePipelineContext withEventDispatcher(final EventDispatcher<XProcEvent> eventDispatcher)
+    {
+        final ImmutablePipelineContext context = new ImmutablePipelineContext(this, getEpisode());
+        context.eventDispatcher = Suppliers.ofInstance(eventDispatcher);
+        return context;
     }
 }
@@ -21,6 +21,17 @@ package org.trancecode.xproc;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+import java.util.List;
+import java.util.Map.Entry;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.logging.Logger;
+import org.trancecode.xproc.binding.PortBinding;
+import org.trancecode.xproc.binding.PortBindingFunctions;
 import org.trancecode.xproc.step.Step;
 
 /**
@@ -28,12 +39,14 @@ import org.trancecode.xproc.step.Step;
  */
 public final class Pipeline implements Supplier<RunnablePipeline>
 {
-    private final PipelineContext context;
+    private static final Logger LOG = Logger.getLogger(Pipeline.class);
+
+    private final ImmutablePipelineContext context;
     private final Step pipeline;
 
     Pipeline(final PipelineContext context, final Step pipeline)
     {
-        this.context = Preconditions.checkNotNull(context);
+        this.context = ImmutablePipelineContext.copyOf(context);
         this.pipeline = Preconditions.checkNotNull(pipeline);
     }
 
@@ -48,6 +61,36 @@ public final class Pipeline implements Supplier<RunnablePipeline>
         return new RunnablePipeline(this);
     }
 
+    /**
+     * Runs the pipeline with the inputs, options and parameters of the given
+     * request.
+     * <p>
+     * This method may be called concurrently from several threads: the
+     * compiled pipeline and the configuration are shared between runs and each
+     * run gets its own episode.
+     */
+    public PipelineResult run(final PipelineRequest request)
+    {
+        LOG.trace("{@method} pipeline = {} ; request = {}", pipeline, request);
+        Step step = pipeline;
+        for (final Entry<String, List<XdmNode>> input : request.getInputs().entrySet())
+        {
+            final List<PortBinding> portBindings = ImmutableList.copyOf(Iterables.transform(input.getValue(),
+                    PortBindingFunctions.toPortBinding()));
+            step = step.setPortBindings(input.getKey(), portBindings);
+        }
+        for (final Entry<QName, String> option : request.getOptions().entrySet())
+        {
+            step = step.withOptionValue(option.getKey(), option.getValue());
+        }
+        for (final Entry<QName, String> parameter : request.getParameters().entrySet())
+        {
+            step = step.withParam(parameter.getKey(), null, parameter.getValue(), step.getLocation());
+        }
+
+        return RunnablePipeline.run(step, context.withNewEpisode());
+    }
+
     public Step getUnderlyingPipeline()
     {
         return pipeline;
@@ -27,6 +27,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URL;
@@ -34,6 +35,7 @@ import java.util.Map;
 import java.util.ServiceLoader;
 import java.util.Set;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.URIResolver;
@@ -45,23 +47,32 @@ import org.trancecode.concurrent.TaskExecutor;
 import org.trancecode.concurrent.TaskExecutors;
 import org.trancecode.event.EventDispatcher;
 import org.trancecode.event.EventDispatchers;
+import org.trancecode.function.TcSuppliers;
 import org.trancecode.io.DefaultInputResolver;
 import org.trancecode.io.DefaultOutputResolver;
 import org.trancecode.io.InputResolver;
 import org.trancecode.io.OutputResolver;
 import org.trancecode.logging.Logger;
+import org.trancecode.metrics.MetricsRegistries;
+import org.trancecode.metrics.MetricsRegistry;
+import org.trancecode.xml.catalog.CachingCatalog;
+import org.trancecode.xml.catalog.CatalogUriResolvers;
 import org.trancecode.xproc.event.XProcEvent;
+import org.trancecode.xproc.step.AbstractCompoundStepProcessor;
+import org.trancecode.xproc.step.ChooseStepProcessor;
 import org.trancecode.xproc.step.CoreStepProcessor;
+import org.trancecode.xproc.step.ForEachStepProcessor;
 import org.trancecode.xproc.step.Step;
 import org.trancecode.xproc.step.StepProcessor;
 import org.trancecode.xproc.step.StepProcessors;
+import org.trancecode.xproc.step.ViewportStepProcessor;
 import org.trancecode.xproc.step.XProcSteps;
 import org.trancecode.xproc.xpath.XPathExtensionFunction;
 
 /**
  * @author Herve Quiroz
  */
-public final class PipelineConfiguration extends AbstractPipelineContext
+public final class PipelineConfiguration extends AbstractPipelineContext implements Closeable
 {
     private static final String RESOURCE_PATH_XPROC_LIBRARY_1_0 = "/org/trancecode/xproc/tubular.xpl";
     private static final Map<QName, StepProcessor> DEFAULT_STEP_PROCESSORS = getDefaultStepProcessors();
@@ -152,6 +163,8 @@ public final class PipelineConfiguration extends AbstractPipelineContext
         getProperties().put(PROPERTY_INPUT_RESOLVER, DefaultInputResolver.INSTANCE);
         getProperties().put(PROPERTY_OUTPUT_RESOLVER, DefaultOutputResolver.INSTANCE);
         getProperties().put(PROPERTY_PIPELINE_LIBRARY, DEFAULT_PIPELINE_LIBRARY);
+        getProperties().put(PROPERTY_PIPELINE_LIBRARY_CACHE, new PipelineLibraryCache());
+        setMetricsRegistry(MetricsRegistries.newMetricsRegistry());
         getProperties().put(PROPERTY_PROCESSOR, Preconditions.checkNotNull(processor));
         getProperties().put(PROPERTY_STEP_PROCESSORS, Maps.newHashMap(DEFAULT_STEP_PROCESSORS));
         getProperties().put(PROPERTY_URI_RESOLVER, processor.getUnderlyingConfiguration().getURIResolver());
@@ -162,6 +175,19 @@ public final class PipelineConfiguration extends AbstractPipelineContext
         }
     }
 
+    /**
+     * Sets the dispatcher that notifies {@link XProcEvent} observers, for
+     * instance an asynchronous one from
+     * {@link EventDispatchers#newAsynchronousEventDispatcher()} when observers
+     * are too slow to be notified from the pipeline thread.
+     */
+    public void setEventDispatcher(final EventDispatcher<XProcEvent> eventDispatcher)
+    {
+        getProperties().put(PROPERTY_EVENT_DISPATCHER, Preconditions.checkNotNull(eventDispatcher));
+        this.eventDispatcher = TcSuppliers.memoize(TcSuppliers.getFromMap(getProperties(),
+                PROPERTY_EVENT_DISPATCHER));
+    }
+
     public void setExecutor(final TaskExecutor executor)
     {
         getProperties().put(PROPERTY_EXECUTOR, Preconditions.checkNotNull(executor));
@@ -170,6 +196,74 @@ public final class PipelineConfiguration extends AbstractPipelineContext
     public void setExecutor(final ExecutorService executor)
     {
         setExecutor(TaskExecutors.forExecutorService(executor));
+        if (executor instanceof ThreadPoolExecutor)
+        {
+            getMetrics().registerExecutor("pipeline", (ThreadPoolExecutor) executor);
+        }
+    }
+
+    /**
+     * Enables speculative execution of {@code p:choose} branches. It only pays
+     * off with a parallel executor, see {@link #setExecutor(ExecutorService)}.
+     */
+    public void setSpeculativeChoose(final boolean speculativeChoose)
+    {
+        getProperties().put(ChooseStepProcessor.PROPERTY_SPECULATIVE_EXECUTION, speculativeChoose);
+    }
+
+    /**
+     * Enables the release of the documents written within a subpipeline as
+     * soon as the last step reading them has completed. Disabled by default
+     * as pipeline listeners may still read ports after that point.
+     */
+    public void setEarlyPortRelease(final boolean earlyPortRelease)
+    {
+        getProperties().put(AbstractCompoundStepProcessor.PROPERTY_EARLY_PORT_RELEASE, earlyPortRelease);
+    }
+
+    /**
+     * Sets the maximum number of {@code p:for-each} iterations submitted to
+     * the executor at a time. It only matters with a parallel executor, see
+     * {@link #setExecutor(ExecutorService)}, and may exceed the size of a
+     * bounded thread pool, see {@link ForEachStepProcessor#PROPERTY_CONCURRENCY}.
+     */
+    public void setForEachConcurrency(final int forEachConcurrency)
+    {
+        Preconditions.checkArgument(forEachConcurrency > 0, "forEachConcurrency = %s", forEachConcurrency);
+        getProperties().put(ForEachStepProcessor.PROPERTY_CONCURRENCY, forEachConcurrency);
+    }
+
+    /**
+     * Sets the maximum number of {@code p:viewport} iterations submitted to
+     * the executor at a time. It only matters with a parallel executor, see
+     * {@link #setExecutor(ExecutorService)}, and may exceed the size of a
+     * bounded thread pool, see {@link ViewportStepProcessor#PROPERTY_CONCURRENCY}.
+     */
+    public void setViewportConcurrency(final int viewportConcurrency)
+    {
+        Preconditions.checkArgument(viewportConcurrency > 0, "viewportConcurrency = %s", viewportConcurrency);
+        getProperties().put(ViewportStepProcessor.PROPERTY_CONCURRENCY, viewportConcurrency);
+    }
+
+    /**
+     * Sets the store where large intermediate documents are moved out of the
+     * heap. Documents are kept on the heap when no store is set, which is the
+     * default. The store is closed by {@link #close()}.
+     */
+    public void setDocumentStore(final DocumentStore documentStore)
+    {
+        getProperties().put(PROPERTY_DOCUMENT_STORE, Preconditions.checkNotNull(documentStore));
+    }
+
+    /**
+     * Sets the cache where the results of atomic steps are stored and reused
+     * when a step runs again with the same inputs, options and parameters.
+     * Steps are always executed when no cache is set, which is the default.
+     */
+    public void setStepResultCache(final StepResultCache stepResultCache)
+    {
+        getProperties().put(PROPERTY_STEP_RESULT_CACHE, Preconditions.checkNotNull(stepResultCache));
+        getMetrics().registerCache("step-results", stepResultCache);
     }
 
     public void setInputResolver(final InputResolver inputResolver)
@@ -182,11 +276,63 @@ public final class PipelineConfiguration extends AbstractPipelineContext
         getProperties().put(PROPERTY_URI_RESOLVER, Preconditions.checkNotNull(uriResolver));
     }
 
+    /**
+     * Resolves URIs through the given catalog, with the current
+     * {@link InputResolver} reading the resolved documents. This replaces the
+     * URI resolver and records the hits and misses of the catalog cache in the
+     * pipeline metrics.
+     */
+    public void setCatalog(final CachingCatalog catalog)
+    {
+        setUriResolver(CatalogUriResolvers.newUriResolver(getInputResolver(), catalog));
+        getProperties().put(PROPERTY_CATALOG, catalog);
+        getMetrics().registerCache("catalog", catalog);
+    }
+
     public void setOutputResolver(final OutputResolver outputResolver)
     {
         getProperties().put(PROPERTY_OUTPUT_RESOLVER, Preconditions.checkNotNull(outputResolver));
     }
 
+    /**
+     * Sets the cache of parsed pipeline libraries. The same cache may be shared
+     * by several configurations as long as they use the same
+     * {@link Processor}.
+     */
+    public void setPipelineLibraryCache(final PipelineLibraryCache pipelineLibraryCache)
+    {
+        getProperties().put(PROPERTY_PIPELINE_LIBRARY_CACHE, Preconditions.checkNotNull(pipelineLibraryCache));
+        getMetrics().registerCache("pipeline-library", pipelineLibraryCache);
+    }
+
+    /**
+     * Sets the registry where the runtime metrics of pipelines are recorded.
+     * The registry can then be exported with
+     * {@link org.trancecode.metrics.PrometheusTextFormat},
+     * {@link org.trancecode.metrics.PrometheusEndpoint} or
+     * {@link MetricsRegistries#registerMBean(MetricsRegistry, String)}.
+     */
+    public void setMetricsRegistry(final MetricsRegistry metricsRegistry)
+    {
+        final PipelineMetrics metrics = new PipelineMetrics(metricsRegistry);
+        final PipelineLibraryCache pipelineLibraryCache = getPipelineLibraryCache();
+        if (pipelineLibraryCache != null)
+        {
+            metrics.registerCache("pipeline-library", pipelineLibraryCache);
+        }
+        final StepResultCache stepResultCache = getStepResultCache();
+        if (stepResultCache != null)
+        {
+            metrics.registerCache("step-results", stepResultCache);
+        }
+        final CachingCatalog catalog = getProperty(PROPERTY_CATALOG);
+        if (catalog != null)
+        {
+            metrics.registerCache("catalog", catalog);
+        }
+        getProperties().put(PROPERTY_METRICS, metrics);
+    }
+
     public void registerStepProcessor(final StepProcessor stepProcessor)
     {
         Preconditions.checkNotNull(stepProcessor);
@@ -204,4 +350,19 @@ public final class PipelineConfiguration extends AbstractPipelineContext
     {
         properties.put(name, value);
     }
+
+    /**
+     * Releases the resources held by this configuration, such as the temporary
+     * file of its {@link DocumentStore}. Documents read from pipeline results
+     * afterwards may no longer be available.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        final DocumentStore documentStore = getDocumentStore();
+        if (documentStore != null)
+        {
+            documentStore.close();
+        }
+    }
 }
@@ -23,6 +23,7 @@ import javax.xml.transform.URIResolver;
 
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
+import org.trancecode.api.ReturnsNullable;
 import org.trancecode.concurrent.TaskExecutor;
 import org.trancecode.event.EventDispatcher;
 import org.trancecode.io.InputResolver;
@@ -35,6 +36,9 @@ import org.trancecode.xproc.step.StepProcessor;
  */
 public interface PipelineContext
 {
+    @ReturnsNullable
+    DocumentStore getDocumentStore();
+
     Episode getEpisode();
 
     EventDispatcher<XProcEvent> getEventDispatcher();
@@ -43,6 +47,8 @@ public interface PipelineContext
 
     InputResolver getInputResolver();
 
+    PipelineMetrics getMetrics();
+
     OutputResolver getOutputResolver();
 
     Processor getProcessor();
@@ -53,8 +59,14 @@ public interface PipelineContext
 
     Map<QName, StepProcessor> getStepProcessors();
 
+    @ReturnsNullable
+    StepResultCache getStepResultCache();
+
     PipelineLibrary getPipelineLibrary();
 
+    @ReturnsNullable
+    PipelineLibraryCache getPipelineLibraryCache();
+
     Map<String, Object> getProperties();
 
     <T> T getProperty(String name);
@@ -0,0 +1,287 @@
+/*
+ * Copyright (C) 2008 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xproc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Closeables;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.saxon.s9api.QName;
+import org.trancecode.api.ReturnsNullable;
+import org.trancecode.logging.Logger;
+import org.trancecode.xproc.step.StepProcessor;
+
+/**
+ * Keeps parsed {@link PipelineLibrary} instances so that a pipeline and the
+ * libraries it imports are parsed only once per {@link PipelineConfiguration}.
+ * <p>
+ * A cached library is discarded as soon as the content of its source or of any
+ * of the sources it imports changes. A source file is only read again when its
+ * size or modification time changed, or when it was modified so close to the
+ * time it was last read that a later change may have kept both, as modification
+ * times are too coarse to notice a file rewritten right after it was read. Only
+ * libraries loaded from {@code file:} URIs and from {@code jar:} URIs are
+ * cached. The latter are considered immutable: a library whose sources all come
+ * from {@code jar:} URIs is shared by every cache of the JVM that uses the same
+ * parent library and step processors.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineLibraryCache
+{
+    private static final Logger LOG = Logger.getLogger(PipelineLibraryCache.class);
+    // Covers the resolution of the modification times of most file systems
+    private static final long MODIFICATION_TIME_RESOLUTION = 2000;
+    private static final ConcurrentMap<URI, CachedLibrary> IMMUTABLE_LIBRARIES = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<URI, CachedLibrary> libraries = new ConcurrentHashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private static final class CachedLibrary
+    {
+        private final PipelineLibrary parentLibrary;
+        private final PipelineLibrary library;
+        private final Map<QName, StepProcessor> stepProcessors;
+        private final ConcurrentMap<URI, SourceFile> sourceFiles;
+
+        public CachedLibrary(final PipelineLibrary parentLibrary, final PipelineLibrary library,
+                final Map<QName, StepProcessor> stepProcessors, final Map<URI, SourceFile> sourceFiles)
+        {
+            this.parentLibrary = parentLibrary;
+            this.library = library;
+            this.stepProcessors = stepProcessors;
+            this.sourceFiles = new ConcurrentHashMap<>(sourceFiles);
+        }
+
+        public boolean isUpToDate()
+        {
+            for (final Entry<URI, SourceFile> entry : sourceFiles.entrySet())
+            {
+                final SourceFile sourceFile = entry.getValue();
+                final File file = new File(entry.getKey());
+                if (!sourceFile.isRacy() && file.length() == sourceFile.length
+                        && file.lastModified() == sourceFile.lastModified)
+                {
+                    continue;
+                }
+
+                final SourceFile currentSourceFile = SourceFile.read(file);
+                if (currentSourceFile == null || !MessageDigest.isEqual(currentSourceFile.digest, sourceFile.digest))
+                {
+                    return false;
+                }
+                sourceFiles.replace(entry.getKey(), sourceFile, currentSourceFile);
+            }
+
+            return true;
+        }
+    }
+
+    /**
+     * The state of a source file when its content was last read.
+     */
+    private static final class SourceFile
+    {
+        private final long length;
+        private final long lastModified;
+        private final byte[] digest;
+        private final long readTime;
+
+        private SourceFile(final long length, final long lastModified, final byte[] digest, final long readTime)
+        {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.digest = digest;
+            this.readTime = readTime;
+        }
+
+        /**
+         * Returns the state of the given file, or {@code null} if it cannot be
+         * read.
+         */
+        @ReturnsNullable
+        public static SourceFile read(final File file)
+        {
+            if (!file.isFile())
+            {
+                return null;
+            }
+
+            // Taken before the content so that a concurrent change is noticed
+            final long readTime = System.currentTimeMillis();
+            final long length = file.length();
+            final long lastModified = file.lastModified();
+            try
+            {
+                final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                final InputStream input = new FileInputStream(file);
+                try
+                {
+                    final byte[] buffer = new byte[8192];
+                    for (int read = input.read(buffer); read >= 0; read = input.read(buffer))
+                    {
+                        digest.update(buffer, 0, read);
+                    }
+                }
+                finally
+                {
+                    Closeables.closeQuietly(input);
+                }
+                return new SourceFile(length, lastModified, digest.digest(), readTime);
+            }
+            catch (final IOException e)
+            {
+                LOG.trace("{@method} cannot read {}: {message}", file, e);
+                return null;
+            }
+            catch (final NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Returns {@code true} if the file may have been changed after it was
+         * read without its size or modification time changing.
+         */
+        public boolean isRacy()
+        {
+            return lastModified + MODIFICATION_TIME_RESOLUTION >= readTime;
+        }
+    }
+
+    /**
+     * Returns the library previously parsed from {@code uri} on top of
+     * {@code parentLibrary} with the given step processors, or {@code null} if
+     * there is none or if it is out of date.
+     */
+    @ReturnsNullable
+    public PipelineLibrary get(final URI uri, final PipelineLibrary parentLibrary,
+            final Map<QName, StepProcessor> stepProcessors)
+    {
+        final CachedLibrary immutableLibrary = IMMUTABLE_LIBRARIES.get(uri);
+        if (immutableLibrary != null && immutableLibrary.parentLibrary == parentLibrary
+                && immutableLibrary.stepProcessors.equals(stepProcessors))
+        {
+            hitCount.incrementAndGet();
+            return immutableLibrary.library;
+        }
+
+        final CachedLibrary cachedLibrary = libraries.get(uri);
+        if (cachedLibrary == null || cachedLibrary.parentLibrary != parentLibrary)
+        {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        if (!cachedLibrary.isUpToDate())
+        {
+            LOG.trace("{@method} out of date: {}", uri);
+            libraries.remove(uri, cachedLibrary);
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        hitCount.incrementAndGet();
+        return cachedLibrary.library;
+    }
+
+    /**
+     * Caches {@code library}, parsed on top of {@code parentLibrary} with the
+     * given step processors, unless one of its sources cannot be read again.
+     */
+    public void put(final PipelineLibrary library, final PipelineLibrary parentLibrary,
+            final Map<QName, StepProcessor> stepProcessors)
+    {
+        Preconditions.checkNotNull(library);
+        Preconditions.checkNotNull(parentLibrary);
+
+        final ImmutableMap.Builder<URI, SourceFile> sourceFiles = ImmutableMap.builder();
+        for (final URI uri : library.getImportedUris())
+        {
+            if (parentLibrary.getImportedUris().contains(uri) || "jar".equals(uri.getScheme()))
+            {
+                continue;
+            }
+
+            final SourceFile sourceFile;
+            if ("file".equals(uri.getScheme()))
+            {
+                sourceFile = SourceFile.read(new File(uri));
+            }
+            else
+            {
+                sourceFile = null;
+            }
+            if (sourceFile == null)
+            {
+                LOG.trace("{@method} cannot cache library: {} (imported from {})", library.getBaseUri(), uri);
+                return;
+            }
+
+            sourceFiles.put(uri, sourceFile);
+        }
+
+        final CachedLibrary cachedLibrary = new CachedLibrary(parentLibrary, library,
+                ImmutableMap.copyOf(stepProcessors), sourceFiles.build());
+        if (cachedLibrary.sourceFiles.isEmpty())
+        {
+            IMMUTABLE_LIBRARIES.put(library.getBaseUri(), cachedLibrary);
+        }
+        else
+        {
+            libraries.put(library.getBaseUri(), cachedLibrary);
+        }
+    }
+
+    public void invalidateAll()
+    {
+        libraries.clear();
+    }
+
+    public int size()
+    {
+        return libraries.size();
+    }
+
+    public long hitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long missCount()
+    {
+        return missCount.get();
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xproc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import net.sf.saxon.s9api.QName;
+import org.trancecode.metrics.Counter;
+import org.trancecode.metrics.Histogram;
+import org.trancecode.metrics.MetricsRegistry;
+import org.trancecode.xml.catalog.CachingCatalog;
+
+/**
+ * The runtime metrics of pipelines, recorded in a {@link MetricsRegistry}.
+ * <p>
+ * Metrics are looked up once and then only updated through
+ * {@link java.util.concurrent.atomic.LongAdder} instances, so recording them
+ * is cheap enough to be left on.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineMetrics
+{
+    private static final String PREFIX = "tubular_";
+
+    private final MetricsRegistry registry;
+    private final Counter pipelineRuns;
+    private final Counter pipelineFailures;
+    private final Histogram pipelineDuration;
+    private final Counter bytesLoaded;
+    private final Counter bytesStored;
+    private final Histogram httpRequestDuration;
+    private final Map<QName, StepMetrics> stepMetrics = new ConcurrentHashMap<>();
+
+    private final class StepMetrics
+    {
+        private final String type;
+        private final Histogram duration;
+        private final Counter failures;
+        private final Map<String, Histogram> portDocuments = new ConcurrentHashMap<>();
+
+        public StepMetrics(final QName stepType)
+        {
+            type = stepType.getClarkName();
+            duration = registry.histogram(PREFIX + "step_duration_seconds", "Duration of atomic step executions",
+                    Histogram.durationBuckets(), "type", type);
+            failures = registry.counter(PREFIX + "step_failures_total", "Atomic step executions that failed",
+                    "type", type);
+        }
+
+        public Histogram getPortDocuments(final String port)
+        {
+            final Histogram histogram = portDocuments.get(port);
+            if (histogram != null)
+            {
+                return histogram;
+            }
+
+            return portDocuments.computeIfAbsent(port, key -> registry.histogram(PREFIX + "port_documents",
+                    "Documents written to output ports by atomic steps", Histogram.countBuckets(), "type", type,
+                    "port", port));
+        }
+    }
+
+    public PipelineMetrics(final MetricsRegistry registry)
+    {
+        this.registry = Preconditions.checkNotNull(registry);
+        pipelineRuns = registry.counter(PREFIX + "pipeline_runs_total", "Pipeline runs");
+        pipelineFailures = registry.counter(PREFIX + "pipeline_failures_total", "Pipeline runs that failed");
+        pipelineDuration = registry.histogram(PREFIX + "pipeline_duration_seconds", "Duration of pipeline runs",
+                Histogram.durationBuckets());
+        bytesLoaded = registry.counter(PREFIX + "loaded_bytes_total", "Bytes read by p:load");
+        bytesStored = registry.counter(PREFIX + "stored_bytes_total", "Bytes written by p:store");
+        httpRequestDuration = registry.histogram(PREFIX + "http_request_duration_seconds",
+                "Duration of p:http-request calls", Histogram.durationBuckets());
+    }
+
+    public MetricsRegistry getRegistry()
+    {
+        return registry;
+    }
+
+    private StepMetrics getStepMetrics(final QName stepType)
+    {
+        final StepMetrics metrics = stepMetrics.get(stepType);
+        if (metrics != null)
+        {
+            return metrics;
+        }
+
+        return stepMetrics.computeIfAbsent(stepType, StepMetrics::new);
+    }
+
+    public void pipelineRun(final long durationNanos, final boolean failed)
+    {
+        pipelineRuns.increment();
+        pipelineDuration.observeNanos(durationNanos);
+        if (failed)
+        {
+            pipelineFailures.increment();
+        }
+    }
+
+    public void stepExecuted(final QName stepType, final long durationNanos, final boolean failed)
+    {
+        final StepMetrics metrics = getStepMetrics(stepType);
+        metrics.duration.observeNanos(durationNanos);
+        if (failed)
+        {
+            metrics.failures.increment();
+        }
+    }
+
+    public void documentsWritten(final QName stepType, final String port, final int documents)
+    {
+        getStepMetrics(stepType).getPortDocuments(port).observe(documents);
+    }
+
+    public void bytesLoaded(final long bytes)
+    {
+        bytesLoaded.add(bytes);
+    }
+
+    public void bytesStored(final long bytes)
+    {
+        bytesStored.add(bytes);
+    }
+
+    public void httpRequest(final long durationNanos)
+    {
+        httpRequestDuration.observeNanos(durationNanos);
+    }
+
+    /**
+     * Registers gauges for the hits, misses and hit ratio of a cache.
+     */
+    public void registerCache(final String cache, final Supplier<Long> hits, final Supplier<Long> misses)
+    {
+        registry.gauge(PREFIX + "cache_hits", "Cache hits", hits, "cache", cache);
+        registry.gauge(PREFIX + "cache_misses", "Cache misses", misses, "cache", cache);
+        registry.gauge(PREFIX + "cache_hit_ratio", "Ratio of cache lookups that were hits", () -> {
+            final long hitCount = hits.get();
+            final long requestCount = hitCount + misses.get();
+            return requestCount == 0 ? Double.NaN : (double) hitCount / requestCount;
+        }, "cache", cache);
+    }
+
+    public void registerCache(final String cache, final PipelineLibraryCache pipelineLibraryCache)
+    {
+        registerCache(cache, pipelineLibraryCache::hitCount, pipelineLibraryCache::missCount);
+    }
+
+    public void registerCache(final String cache, final StepResultCache stepResultCache)
+    {
+        registerCache(cache, stepResultCache::hitCount, stepResultCache::missCount);
+        registry.gauge(PREFIX + "cache_bytes_saved", "Bytes of step results reused instead of computed",
+                stepResultCache::bytesSaved, "cache", cache);
+    }
+
+    public void registerCache(final String cache, final CachingCatalog catalog)
+    {
+        registerCache(cache, () -> catalog.hitCount() + catalog.negativeHitCount(), catalog::missCount);
+    }
+
+    /**
+     * Registers gauges for the queue depth and the active threads of an
+     * executor.
+     */
+    public void registerExecutor(final String executor, final ThreadPoolExecutor threadPoolExecutor)
+    {
+        registry.gauge(PREFIX + "executor_queue_depth", "Tasks waiting in the executor queue",
+                () -> threadPoolExecutor.getQueue().size(), "executor", executor);
+        registry.gauge(PREFIX + "executor_active_threads", "Threads running tasks",
+                threadPoolExecutor::getActiveCount, "executor", executor);
+    }
+}
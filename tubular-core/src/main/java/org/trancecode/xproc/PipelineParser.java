@@ -49,6 +49,7 @@ import net.sf.saxon.s9api.XdmNodeKind;
 import net.sf.saxon.s9api.XdmValue;
 import org.trancecode.collection.TcIterables;
 import org.trancecode.logging.Logger;
+import org.trancecode.xml.Jaxp;
 import org.trancecode.xml.Location;
 import org.trancecode.xml.saxon.Saxon;
 import org.trancecode.xml.saxon.SaxonAxis;
@@ -95,19 +96,36 @@ public final class PipelineParser
 
     public static PipelineLibrary parseLibrary(final PipelineContext context, final Source source)
     {
-        LOG.trace("{@method} source = {}", source.getSystemId());
-        final PipelineParser parser = new PipelineParser(context, source);
-        parser.parse();
-        return parser.getLibrary();
+        return parseLibrary(context, source, context.getPipelineLibrary());
     }
 
     public static PipelineLibrary parseLibrary(final PipelineContext context, final Source source,
             final PipelineLibrary library)
     {
         LOG.trace("{@method} source = {}", source.getSystemId());
+        final PipelineLibraryCache cache = context.getPipelineLibraryCache();
+        if (cache != null && source.getSystemId() != null)
+        {
+            final PipelineLibrary cachedLibrary = cache.get(URI.create(source.getSystemId()), library,
+                    context.getStepProcessors());
+            if (cachedLibrary != null)
+            {
+                LOG.trace("  cached library: {}", cachedLibrary.getBaseUri());
+                // The source is not parsed, but it was opened by the caller
+                Jaxp.closeQuietly(source, LOG);
+                return cachedLibrary;
+            }
+        }
+
         final PipelineParser parser = new PipelineParser(context, source, library);
         parser.parse();
-        return parser.getLibrary();
+        final PipelineLibrary parsedLibrary = parser.getLibrary();
+        if (cache != null)
+        {
+            cache.put(parsedLibrary, library, context.getStepProcessors());
+        }
+
+        return parsedLibrary;
     }
 
     public static Step parsePipeline(final PipelineContext context, final Source source)
@@ -849,7 +867,7 @@ public final class PipelineParser
 
     private PipelineLibrary getLibrary()
     {
-        final Set<URI> uris = ImmutableSet.of();
+        final Set<URI> uris = ImmutableSet.copyOf(imports.keySet());
         return new PipelineLibrary(baseUri, localLibrary, uris, mainPipeline).importLibrary(library);
     }
 
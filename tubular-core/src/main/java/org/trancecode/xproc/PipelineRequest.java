@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xproc;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.List;
+import java.util.Map;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.collection.TcMaps;
+
+/**
+ * The inputs, options and parameters of a single run of a {@link Pipeline}.
+ * <p>
+ * Instances are immutable: each {@code with*()} method returns a new request,
+ * so that a request may be prepared once and submitted concurrently to
+ * {@link Pipeline#run(PipelineRequest)}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineRequest
+{
+    private static final PipelineRequest EMPTY_REQUEST = new PipelineRequest(ImmutableMap.<String, List<XdmNode>> of(),
+            ImmutableMap.<QName, String> of(), ImmutableMap.<QName, String> of());
+
+    private final Map<String, List<XdmNode>> inputs;
+    private final Map<QName, String> options;
+    private final Map<QName, String> parameters;
+
+    public static PipelineRequest newRequest()
+    {
+        return EMPTY_REQUEST;
+    }
+
+    private PipelineRequest(final Map<String, List<XdmNode>> inputs, final Map<QName, String> options,
+            final Map<QName, String> parameters)
+    {
+        this.inputs = inputs;
+        this.options = options;
+        this.parameters = parameters;
+    }
+
+    public PipelineRequest withInput(final String portName, final Iterable<XdmNode> nodes)
+    {
+        Preconditions.checkNotNull(portName);
+        return new PipelineRequest(TcMaps.copyAndPut(inputs, portName, ImmutableList.copyOf(nodes)), options,
+                parameters);
+    }
+
+    public PipelineRequest withInput(final String portName, final XdmNode... nodes)
+    {
+        return withInput(portName, ImmutableList.copyOf(nodes));
+    }
+
+    public PipelineRequest withOption(final QName name, final String value)
+    {
+        Preconditions.checkNotNull(name);
+        Preconditions.checkNotNull(value);
+        return new PipelineRequest(inputs, TcMaps.copyAndPut(options, name, value), parameters);
+    }
+
+    public PipelineRequest withParam(final QName name, final String value)
+    {
+        Preconditions.checkNotNull(name);
+        Preconditions.checkNotNull(value);
+        return new PipelineRequest(inputs, options, TcMaps.copyAndPut(parameters, name, value));
+    }
+
+    public Map<String, List<XdmNode>> getInputs()
+    {
+        return inputs;
+    }
+
+    public Map<QName, String> getOptions()
+    {
+        return options;
+    }
+
+    public Map<QName, String> getParameters()
+    {
+        return parameters;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[inputs = %s ; options = %s ; parameters = %s]", getClass().getSimpleName(),
+                inputs.keySet(), options, parameters);
+    }
+}
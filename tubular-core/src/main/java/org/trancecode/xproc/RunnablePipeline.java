@@ -34,12 +34,17 @@ import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.s9api.QName;
+import org.trancecode.event.EventDispatcher;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.UriResolvers;
 import org.trancecode.xml.saxon.SaxonFunctions;
 import org.trancecode.xml.saxon.SaxonQNames;
 import org.trancecode.xproc.binding.PortBinding;
 import org.trancecode.xproc.binding.PortBindingFunctions;
+import org.trancecode.xproc.event.AfterRunPipelineEvent;
+import org.trancecode.xproc.event.BeforeRunPipelineEvent;
+import org.trancecode.xproc.event.FlightRecorderEvents;
+import org.trancecode.xproc.event.XProcEvent;
 import org.trancecode.xproc.step.Step;
 
 /**
@@ -49,7 +54,7 @@ public final class RunnablePipeline implements Supplier<PipelineResult>
 {
     private static final Logger LOG = Logger.getLogger(RunnablePipeline.class);
 
-    private final PipelineContext context;
+    private ImmutablePipelineContext context;
     private Step pipeline;
 
     protected RunnablePipeline(final Pipeline pipeline)
@@ -68,11 +73,49 @@ public final class RunnablePipeline implements Supplier<PipelineResult>
     public PipelineResult run()
     {
         LOG.trace("{@method} pipeline = {}", pipeline);
-        final Environment environment = Environment.newEnvironment(pipeline, context);
-        final Environment resultEnvironment = pipeline.run(environment);
+        return run(pipeline, context);
+    }
+
+    static PipelineResult run(final Step pipeline, final PipelineContext context)
+    {
+        final EventDispatcher<XProcEvent> eventDispatcher = context.getEventDispatcher();
+        if (eventDispatcher.hasObservers())
+        {
+            eventDispatcher.notify(new BeforeRunPipelineEvent(pipeline));
+        }
+
+        final Object flightEvent = FlightRecorderEvents.beginPipeline();
+        final long startTime = System.nanoTime();
+        boolean failed = true;
+        final Environment resultEnvironment;
+        try
+        {
+            resultEnvironment = pipeline.run(Environment.newEnvironment(pipeline, context));
+            failed = false;
+        }
+        finally
+        {
+            context.getMetrics().pipelineRun(System.nanoTime() - startTime, failed);
+            FlightRecorderEvents.endPipeline(flightEvent, pipeline, context);
+        }
+
+        if (eventDispatcher.hasObservers())
+        {
+            eventDispatcher.notify(new AfterRunPipelineEvent(pipeline));
+        }
+
         return new PipelineResult(pipeline, resultEnvironment);
     }
 
+    /**
+     * Sets the dispatcher notified of the events of this run only, in place of
+     * the dispatcher of the pipeline configuration that is shared by all runs.
+     */
+    public void setEventDispatcher(final EventDispatcher<XProcEvent> eventDispatcher)
+    {
+        context = context.withEventDispatcher(Preconditions.checkNotNull(eventDispatcher));
+    }
+
     public void withParam(final javax.xml.namespace.QName name, final String value)
     {
         withParam(SaxonQNames.asSaxonQName(name), value);
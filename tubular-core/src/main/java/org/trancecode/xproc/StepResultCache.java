@@ -0,0 +1,564 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xproc;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.sf.saxon.Configuration;
+import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmItem;
+import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
+import net.sf.saxon.type.BuiltInAtomicType;
+import net.sf.saxon.type.SchemaType;
+import net.sf.saxon.type.Untyped;
+import org.trancecode.api.ReturnsNullable;
+import org.trancecode.io.AbstractInputResolver;
+import org.trancecode.io.InputResolver;
+import org.trancecode.logging.Logger;
+import org.trancecode.xml.saxon.SaxonAxis;
+import org.trancecode.xml.saxon.SaxonBinaryCodec;
+import org.trancecode.xml.saxon.SaxonFingerprint;
+import org.trancecode.xproc.port.Port;
+import org.trancecode.xproc.step.ExternalResources;
+import org.trancecode.xproc.step.Nondeterministic;
+import org.trancecode.xproc.step.Step;
+import org.trancecode.xproc.step.StepProcessor;
+import org.trancecode.xproc.step.TrackedReads;
+import org.trancecode.xproc.variable.Variable;
+
+/**
+ * A content-addressed store of atomic step results in a local directory.
+ * <p>
+ * A step execution is identified by the type of the step, the namespaces in
+ * scope, the values of its options and parameters, the values of the
+ * variables and options in scope, which steps such as {@code p:template} may
+ * read when they evaluate XPath expressions, and the digest of every document
+ * read from its input ports. The documents written to its output
+ * ports are stored with {@link SaxonBinaryCodec} in a file named after this
+ * key, so that the next execution with the same key, possibly from another
+ * process, reuses them instead of running the step again.
+ * <p>
+ * Input documents are identified by their {@link SaxonFingerprint}, which is
+ * memoized per document, along with their base URIs and type annotations. No
+ * document is serialized to compute a key.
+ * <p>
+ * Only steps that do not write external resources, according to
+ * {@link ExternalResources}, and that are not {@link Nondeterministic} are
+ * cached. Steps that read external resources are only cached if they are
+ * marked {@link TrackedReads}: the digest of each resource they read is stored
+ * with their results, which are discarded once one of these resources has
+ * changed.
+ * 
+ * @author Herve Quiroz
+ */
+public final class StepResultCache
+{
+    private static final Logger LOG = Logger.getLogger(StepResultCache.class);
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int FORMAT_VERSION = 3;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File directory;
+    private final ConcurrentMap<NodeInfo, byte[]> documentDigests = new MapMaker().weakKeys().makeMap();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+
+    public static StepResultCache newStepResultCache(final File directory)
+    {
+        return new StepResultCache(directory);
+    }
+
+    private StepResultCache(final File directory)
+    {
+        Preconditions.checkArgument(directory.isDirectory() || directory.mkdirs(), "cannot create directory %s",
+                directory);
+        this.directory = directory;
+    }
+
+    /**
+     * Returns {@code true} if the results of the given step processor only
+     * depend on its inputs, options and parameters, and on the external
+     * resources it reads through {@link StepResultCache.ResourceRecorder}.
+     */
+    public static boolean isCacheable(final StepProcessor stepProcessor)
+    {
+        final Class<?> stepProcessorClass = stepProcessor.getClass();
+        final ExternalResources externalResources = stepProcessorClass.getAnnotation(ExternalResources.class);
+        return externalResources != null && !externalResources.write()
+                && (!externalResources.read() || stepProcessorClass.isAnnotationPresent(TrackedReads.class))
+                && !stepProcessorClass.isAnnotationPresent(Nondeterministic.class);
+    }
+
+    /**
+     * Returns the key of the execution of the given step in the given
+     * environment.
+     */
+    public String getKey(final Step step, final Environment environment)
+    {
+        final MessageDigest digest = newDigest();
+        update(digest, Integer.toString(FORMAT_VERSION));
+        update(digest, step.getType().getClarkName());
+
+        if (step.getNode() != null)
+        {
+            final Map<String, String> namespaces = Maps.newTreeMap();
+            for (final XdmNode namespace : SaxonAxis.namespaces(step.getNode()))
+            {
+                namespaces.put(namespace.getNodeName().getLocalName(), namespace.getStringValue());
+            }
+            update(digest, namespaces);
+        }
+
+        final Map<String, String> options = Maps.newTreeMap();
+        for (final Variable variable : step.getVariables().values())
+        {
+            if (variable.isOption())
+            {
+                options.put(variable.getName().getClarkName(), environment.getVariable(variable.getName(), null));
+            }
+        }
+        update(digest, options);
+
+        final Map<String, String> variables = Maps.newTreeMap();
+        for (final Entry<QName, String> variable : environment.getXPathVariables(null).entrySet())
+        {
+            variables.put(variable.getKey().getClarkName(), variable.getValue());
+        }
+        update(digest, variables);
+
+        final Map<String, Port> inputPorts = Maps.newTreeMap();
+        for (final Port port : step.getInputPorts())
+        {
+            inputPorts.put(port.getPortName(), port);
+        }
+        for (final Port port : inputPorts.values())
+        {
+            update(digest, port.getPortName());
+            if (port.isParameter())
+            {
+                final Map<String, String> parameters = Maps.newTreeMap();
+                for (final Entry<QName, String> parameter : environment.readParameters(port.getPortReference())
+                        .entrySet())
+                {
+                    parameters.put(parameter.getKey().getClarkName(), parameter.getValue());
+                }
+                update(digest, parameters);
+            }
+            else
+            {
+                final List<XdmNode> documents = ImmutableList.copyOf(environment.readNodes(port.getPortReference()));
+                update(digest, Integer.toString(documents.size()));
+                for (final XdmNode document : documents)
+                {
+                    digest.update(getDigest(document));
+                }
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    private byte[] getDigest(final XdmNode document)
+    {
+        final NodeInfo node = document.getUnderlyingNode();
+        byte[] documentDigest = documentDigests.get(node);
+        if (documentDigest == null)
+        {
+            final MessageDigest digest = newDigest();
+            final SaxonFingerprint fingerprint = SaxonFingerprint.of(document);
+            digest.update(ByteBuffer.allocate(16).putLong(fingerprint.getHigh()).putLong(fingerprint.getLow())
+                    .array());
+            updateNodeProperties(digest, document);
+            documentDigest = digest.digest();
+            documentDigests.put(node, documentDigest);
+        }
+
+        return documentDigest;
+    }
+
+    /**
+     * Updates the digest with the base URIs and type annotations of the nodes
+     * of the document, which are not part of its fingerprint. Only the changes
+     * of base URI and the typed nodes are recorded, along with their position.
+     */
+    private static void updateNodeProperties(final MessageDigest digest, final XdmNode document)
+    {
+        String systemId = document.getUnderlyingNode().getSystemId();
+        update(digest, systemId);
+        int position = 0;
+        for (final XdmItem item : SaxonAxis.axis(document, Axis.DESCENDANT))
+        {
+            final XdmNode node = (XdmNode) item;
+            if (node.getNodeKind() != XdmNodeKind.ELEMENT)
+            {
+                continue;
+            }
+
+            position++;
+            final String elementSystemId = node.getUnderlyingNode().getSystemId();
+            if (!Objects.equal(elementSystemId, systemId))
+            {
+                update(digest, Integer.toString(position));
+                update(digest, elementSystemId);
+                systemId = elementSystemId;
+            }
+            updateType(digest, position, node, Untyped.getInstance());
+            for (final XdmNode attribute : SaxonAxis.attributes(node))
+            {
+                updateType(digest, position, attribute, BuiltInAtomicType.UNTYPED_ATOMIC);
+            }
+        }
+    }
+
+    private static void updateType(final MessageDigest digest, final int position, final XdmNode node,
+            final SchemaType untyped)
+    {
+        final SchemaType type = node.getUnderlyingNode().getSchemaType();
+        if (type != null && type != untyped)
+        {
+            update(digest, Integer.toString(position));
+            update(digest, node.getNodeName().getClarkName());
+            update(digest, type.getDescription());
+        }
+    }
+
+    /**
+     * Returns the documents written to each output port by the execution with
+     * the given key, or {@code null} if it has not been stored or if one of the
+     * external resources read by this execution has changed since.
+     */
+    @ReturnsNullable
+    public Map<String, List<XdmNode>> get(final String key, final Configuration configuration,
+            final InputResolver inputResolver)
+    {
+        final File file = getFile(key);
+        if (!file.isFile())
+        {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        try
+        {
+            final byte[] bytes = Files.toByteArray(file);
+            final DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+            final int resourceCount = input.readInt();
+            for (int i = 0; i < resourceCount; i++)
+            {
+                final URI uri = URI.create(input.readUTF());
+                final byte[] resourceDigest = new byte[input.readInt()];
+                input.readFully(resourceDigest);
+                if (!Arrays.equals(resourceDigest, getDigest(uri, inputResolver)))
+                {
+                    LOG.trace("{@method} key = {} ; {} has changed", key, uri);
+                    missCount.incrementAndGet();
+                    return null;
+                }
+            }
+
+            final ImmutableMap.Builder<String, List<XdmNode>> ports = ImmutableMap.builder();
+            final int portCount = input.readInt();
+            for (int i = 0; i < portCount; i++)
+            {
+                final String port = input.readUTF();
+                final ImmutableList.Builder<XdmNode> documents = ImmutableList.builder();
+                final int documentCount = input.readInt();
+                for (int j = 0; j < documentCount; j++)
+                {
+                    final byte[] document = new byte[input.readInt()];
+                    input.readFully(document);
+                    documents.add(SaxonBinaryCodec.decode(ByteBuffer.wrap(document), configuration));
+                }
+                ports.put(port, documents.build());
+            }
+
+            hitCount.incrementAndGet();
+            bytesSaved.addAndGet(bytes.length);
+            LOG.trace("{@method} key = {} ; {} bytes", key, bytes.length);
+            return ports.build();
+        }
+        catch (final IOException e)
+        {
+            LOG.warn("cannot read step result {}: {message}", file, e);
+            missCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    @ReturnsNullable
+    private static byte[] getDigest(final URI uri, final InputResolver inputResolver)
+    {
+        final MessageDigest digest = newDigest();
+        try (final InputStream input = new DigestInputStream(inputResolver.resolveInputStream(uri), digest))
+        {
+            final byte[] buffer = new byte[8192];
+            while (input.read(buffer) != -1)
+            {
+                // The digest is updated as the resource is read
+            }
+        }
+        catch (final IOException | RuntimeException e)
+        {
+            LOG.trace("{@method} cannot read {}: {message}", uri, e);
+            return null;
+        }
+
+        return digest.digest();
+    }
+
+    /**
+     * Stores the documents written to each output port by the execution with
+     * the given key, along with the digests of the external resources read by
+     * this execution.
+     */
+    public void put(final String key, final Map<URI, byte[]> resources,
+            final Map<String, ? extends Collection<XdmNode>> ports)
+    {
+        final File file = getFile(key);
+        try
+        {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(resources.size());
+            for (final Entry<URI, byte[]> resource : resources.entrySet())
+            {
+                output.writeUTF(resource.getKey().toString());
+                output.writeInt(resource.getValue().length);
+                output.write(resource.getValue());
+            }
+            output.writeInt(ports.size());
+            for (final Entry<String, ? extends Collection<XdmNode>> port : ports.entrySet())
+            {
+                output.writeUTF(port.getKey());
+                output.writeInt(port.getValue().size());
+                for (final XdmNode document : port.getValue())
+                {
+                    final byte[] encodedDocument = SaxonBinaryCodec.encode(document);
+                    output.writeInt(encodedDocument.length);
+                    output.write(encodedDocument);
+                }
+            }
+            output.flush();
+
+            // Written to a temporary file first so that concurrent readers
+            // never see a partial result
+            Files.createParentDirs(file);
+            final File temporaryFile = File.createTempFile(key, ".tmp", file.getParentFile());
+            Files.write(bytes.toByteArray(), temporaryFile);
+            if (!temporaryFile.renameTo(file) && !temporaryFile.delete())
+            {
+                LOG.warn("cannot delete {}", temporaryFile);
+            }
+        }
+        catch (final IOException e)
+        {
+            LOG.warn("cannot store step result {}: {message}", file, e);
+        }
+        catch (final IllegalArgumentException e)
+        {
+            // Documents annotated with anonymous types cannot be encoded
+            LOG.debug("cannot store step result {}: {message}", file, e);
+        }
+    }
+
+    private File getFile(final String key)
+    {
+        return new File(new File(directory, key.substring(0, 2)), key);
+    }
+
+    public long hitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long missCount()
+    {
+        return missCount.get();
+    }
+
+    /**
+     * Returns the size of the results read from this cache instead of being
+     * computed again.
+     */
+    public long bytesSaved()
+    {
+        return bytesSaved.get();
+    }
+
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch (final NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void update(final MessageDigest digest, final String value)
+    {
+        if (value == null)
+        {
+            digest.update((byte) 0);
+            return;
+        }
+
+        digest.update((byte) 1);
+        final byte[] bytes = value.getBytes(UTF_8);
+        digest.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+        digest.update(bytes);
+    }
+
+    private static void update(final MessageDigest digest, final Map<String, String> values)
+    {
+        update(digest, Integer.toString(values.size()));
+        for (final Entry<String, String> value : values.entrySet())
+        {
+            update(digest, value.getKey());
+            update(digest, value.getValue());
+        }
+    }
+
+    private static String toHex(final byte[] bytes)
+    {
+        final char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++)
+        {
+            hex[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+
+        return new String(hex);
+    }
+
+    /**
+     * Computes the digests of the resources read through the given resolver,
+     * so that they can be stored along with the results of a step.
+     */
+    public static final class ResourceRecorder extends AbstractInputResolver
+    {
+        private final InputResolver inputResolver;
+        private final Map<URI, MessageDigest> digests = Maps.newLinkedHashMap();
+        private final Map<URI, byte[]> readDigests = Maps.newLinkedHashMap();
+
+        public ResourceRecorder(final InputResolver inputResolver)
+        {
+            this.inputResolver = Preconditions.checkNotNull(inputResolver);
+        }
+
+        @Override
+        public InputStream resolveInputStream(final URI uri)
+        {
+            final MessageDigest digest = newDigest();
+            final InputStream input = inputResolver.resolveInputStream(uri);
+            synchronized (digests)
+            {
+                digests.put(uri, digest);
+                readDigests.remove(uri);
+            }
+
+            // A resource that is not read to the end gets a digest that does
+            // not match its content, so the result is never reused
+            return new DigestInputStream(input, digest);
+        }
+
+        /**
+         * Records a resource that the step got without reading it again, such
+         * as a resource already read earlier in the same episode, along with
+         * the digest of its content as computed by {@link #newResourceDigest()}.
+         */
+        public void addResource(final URI uri, final byte[] digest)
+        {
+            synchronized (digests)
+            {
+                if (!digests.containsKey(uri))
+                {
+                    readDigests.put(uri, digest.clone());
+                }
+            }
+        }
+
+        /**
+         * Returns a new digest of the kind used to record resources.
+         */
+        public static MessageDigest newResourceDigest()
+        {
+            return newDigest();
+        }
+
+        /**
+         * Returns the digests of the resources read so far.
+         */
+        public Map<URI, byte[]> getResources()
+        {
+            final ImmutableMap.Builder<URI, byte[]> resources = ImmutableMap.builder();
+            synchronized (digests)
+            {
+                for (final Entry<URI, MessageDigest> digest : digests.entrySet())
+                {
+                    resources.put(digest.getKey(), digest.getValue().digest());
+                }
+                resources.putAll(readDigests);
+            }
+
+            return resources.build();
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[directory = %s ; hits = %s ; misses = %s ; bytesSaved = %s]", getClass()
+                .getSimpleName(), directory, hitCount, missCount, bytesSaved);
+    }
+}
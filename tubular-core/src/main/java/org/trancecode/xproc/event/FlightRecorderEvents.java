@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.event;
+
+import org.trancecode.api.Nullable;
+import org.trancecode.api.ReturnsNullable;
+import org.trancecode.logging.Logger;
+import org.trancecode.xproc.PipelineContext;
+import org.trancecode.xproc.step.Step;
+
+/**
+ * Emits Java Flight Recorder events for pipeline runs, step executions,
+ * subpipelines, iterations and XPath evaluations.
+ * <p>
+ * Each {@code begin*()} method returns a handle to pass to the matching
+ * {@code end*()} method. The handle is {@code null} when the {@code jdk.jfr}
+ * API is not available in the running JVM or when the event type is not
+ * enabled in any recording, in which case nothing else is done. The
+ * {@code jdk.jfr} classes are only ever loaded through {@link JfrEvents}, so
+ * this class is safe to use on JVMs without Flight Recorder.
+ * 
+ * @author Herve Quiroz
+ */
+public final class FlightRecorderEvents
+{
+    private static final Logger LOG = Logger.getLogger(FlightRecorderEvents.class);
+    private static final boolean AVAILABLE = isFlightRecorderAvailable();
+
+    private FlightRecorderEvents()
+    {
+        // No instantiation
+    }
+
+    private static boolean isFlightRecorderAvailable()
+    {
+        try
+        {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        }
+        catch (final ClassNotFoundException | LinkageError e)
+        {
+            LOG.debug("Flight Recorder is not available: {message}", e);
+            return false;
+        }
+    }
+
+    public static boolean isAvailable()
+    {
+        return AVAILABLE;
+    }
+
+    @ReturnsNullable
+    public static Object beginPipeline()
+    {
+        return AVAILABLE ? JfrEvents.beginPipeline() : null;
+    }
+
+    public static void endPipeline(@Nullable final Object event, final Step pipeline, final PipelineContext context)
+    {
+        if (event != null)
+        {
+            JfrEvents.endPipeline(event, pipeline, context);
+        }
+    }
+
+    @ReturnsNullable
+    public static Object beginStep()
+    {
+        return AVAILABLE ? JfrEvents.beginStep() : null;
+    }
+
+    public static void endStep(@Nullable final Object event, final Step step, final PipelineContext context,
+            final int inputDocuments, final int outputDocuments)
+    {
+        if (event != null)
+        {
+            JfrEvents.endStep(event, step, context, inputDocuments, outputDocuments);
+        }
+    }
+
+    @ReturnsNullable
+    public static Object beginSubpipeline()
+    {
+        return AVAILABLE ? JfrEvents.beginSubpipeline() : null;
+    }
+
+    public static void endSubpipeline(@Nullable final Object event, final Iterable<Step> steps,
+            final PipelineContext context)
+    {
+        if (event != null)
+        {
+            JfrEvents.endSubpipeline(event, steps, context);
+        }
+    }
+
+    @ReturnsNullable
+    public static Object beginIteration()
+    {
+        return AVAILABLE ? JfrEvents.beginIteration() : null;
+    }
+
+    public static void endIteration(@Nullable final Object event, final Step step, final PipelineContext context,
+            final int iterationPosition, final int iterationSize)
+    {
+        if (event != null)
+        {
+            JfrEvents.endIteration(event, step, context, iterationPosition, iterationSize);
+        }
+    }
+
+    @ReturnsNullable
+    public static Object beginXPath()
+    {
+        return AVAILABLE ? JfrEvents.beginXPath() : null;
+    }
+
+    public static void endXPath(@Nullable final Object event, final String expression, final PipelineContext context)
+    {
+        if (event != null)
+        {
+            JfrEvents.endXPath(event, expression, context);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.event;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.Iterables;
+
+import java.util.function.Supplier;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import org.trancecode.xml.Location;
+import org.trancecode.xproc.PipelineContext;
+import org.trancecode.xproc.step.Step;
+import org.trancecode.xproc.step.StepFunctions;
+
+/**
+ * The Flight Recorder event types, only referenced from
+ * {@link FlightRecorderEvents} once the {@code jdk.jfr} API is known to be
+ * available.
+ * 
+ * @author Herve Quiroz
+ */
+final class JfrEvents
+{
+    // Looked up once, so that checking whether an event type is enabled does
+    // not allocate an event
+    private static final EventType PIPELINE_EVENT_TYPE = EventType.getEventType(PipelineFlightEvent.class);
+    private static final EventType STEP_EVENT_TYPE = EventType.getEventType(StepFlightEvent.class);
+    private static final EventType SUBPIPELINE_EVENT_TYPE = EventType.getEventType(SubpipelineFlightEvent.class);
+    private static final EventType ITERATION_EVENT_TYPE = EventType.getEventType(IterationFlightEvent.class);
+    private static final EventType XPATH_EVENT_TYPE = EventType.getEventType(XPathFlightEvent.class);
+
+    private JfrEvents()
+    {
+        // No instantiation
+    }
+
+    @Name("org.trancecode.xproc.Pipeline")
+    @Label("Pipeline")
+    @Category("Tubular")
+    @Description("Run of an XProc pipeline")
+    @StackTrace(false)
+    static final class PipelineFlightEvent extends Event
+    {
+        @Label("Pipeline")
+        String pipeline;
+
+        @Label("Location")
+        String location;
+
+        @Label("Episode")
+        String episode;
+    }
+
+    @Name("org.trancecode.xproc.Step")
+    @Label("Step")
+    @Category("Tubular")
+    @Description("Execution of an atomic XProc step")
+    @StackTrace(false)
+    static final class StepFlightEvent extends Event
+    {
+        @Label("Step")
+        String step;
+
+        @Label("Type")
+        String type;
+
+        @Label("Location")
+        String location;
+
+        @Label("Episode")
+        String episode;
+
+        @Label("Input Documents")
+        int inputDocuments;
+
+        @Label("Output Documents")
+        int outputDocuments;
+    }
+
+    @Name("org.trancecode.xproc.Subpipeline")
+    @Label("Subpipeline")
+    @Category("Tubular")
+    @Description("Execution of the steps of a compound XProc step")
+    @StackTrace(false)
+    static final class SubpipelineFlightEvent extends Event
+    {
+        @Label("Steps")
+        String steps;
+
+        @Label("Step Count")
+        int stepCount;
+
+        @Label("Episode")
+        String episode;
+    }
+
+    @Name("org.trancecode.xproc.Iteration")
+    @Label("Iteration")
+    @Category("Tubular")
+    @Description("Iteration of a p:for-each or p:viewport step")
+    @StackTrace(false)
+    static final class IterationFlightEvent extends Event
+    {
+        @Label("Step")
+        String step;
+
+        @Label("Type")
+        String type;
+
+        @Label("Location")
+        String location;
+
+        @Label("Episode")
+        String episode;
+
+        @Label("Iteration Position")
+        int iterationPosition;
+
+        @Label("Iteration Size")
+        int iterationSize;
+    }
+
+    @Name("org.trancecode.xproc.XPath")
+    @Label("XPath Evaluation")
+    @Category("Tubular")
+    @Description("Evaluation of an XPath expression from a pipeline")
+    @StackTrace(false)
+    static final class XPathFlightEvent extends Event
+    {
+        @Label("Expression")
+        String expression;
+
+        @Label("Episode")
+        String episode;
+    }
+
+    private static <T extends Event> T begin(final EventType eventType, final Supplier<T> eventFactory)
+    {
+        if (!eventType.isEnabled())
+        {
+            return null;
+        }
+
+        final T event = eventFactory.get();
+        event.begin();
+        return event;
+    }
+
+    private static String toString(final Location location)
+    {
+        if (location == null)
+        {
+            return null;
+        }
+
+        return location.getSystemId() + ":" + location.getLineNumber() + ":" + location.getColumnNumber();
+    }
+
+    static Object beginPipeline()
+    {
+        return begin(PIPELINE_EVENT_TYPE, PipelineFlightEvent::new);
+    }
+
+    static void endPipeline(final Object handle, final Step pipeline, final PipelineContext context)
+    {
+        final PipelineFlightEvent event = (PipelineFlightEvent) handle;
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.pipeline = pipeline.getName();
+            event.location = toString(pipeline.getLocation());
+            event.episode = context.getEpisode().getId();
+            event.commit();
+        }
+    }
+
+    static Object beginStep()
+    {
+        return begin(STEP_EVENT_TYPE, StepFlightEvent::new);
+    }
+
+    static void endStep(final Object handle, final Step step, final PipelineContext context,
+            final int inputDocuments, final int outputDocuments)
+    {
+        final StepFlightEvent event = (StepFlightEvent) handle;
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.step = step.getName();
+            event.type = step.getType().getClarkName();
+            event.location = toString(step.getLocation());
+            event.episode = context.getEpisode().getId();
+            event.inputDocuments = inputDocuments;
+            event.outputDocuments = outputDocuments;
+            event.commit();
+        }
+    }
+
+    static Object beginSubpipeline()
+    {
+        return begin(SUBPIPELINE_EVENT_TYPE, SubpipelineFlightEvent::new);
+    }
+
+    static void endSubpipeline(final Object handle, final Iterable<Step> steps, final PipelineContext context)
+    {
+        final SubpipelineFlightEvent event = (SubpipelineFlightEvent) handle;
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.steps = Joiner.on(',').join(Iterables.transform(steps, StepFunctions.getName()));
+            event.stepCount = Iterables.size(steps);
+            event.episode = context.getEpisode().getId();
+            event.commit();
+        }
+    }
+
+    static Object beginIteration()
+    {
+        return begin(ITERATION_EVENT_TYPE, IterationFlightEvent::new);
+    }
+
+    static void endIteration(final Object handle, final Step step, final PipelineContext context,
+            final int iterationPosition, final int iterationSize)
+    {
+        final IterationFlightEvent event = (IterationFlightEvent) handle;
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.step = step.getName();
+            event.type = step.getType().getClarkName();
+            event.location = toString(step.getLocation());
+            event.episode = context.getEpisode().getId();
+            event.iterationPosition = iterationPosition;
+            event.iterationSize = iterationSize;
+            event.commit();
+        }
+    }
+
+    static Object beginXPath()
+    {
+        return begin(XPATH_EVENT_TYPE, XPathFlightEvent::new);
+    }
+
+    static void endXPath(final Object handle, final String expression, final PipelineContext context)
+    {
+        final XPathFlightEvent event = (XPathFlightEvent) handle;
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.expression = expression;
+            event.episode = context.getEpisode().getId();
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.event;
+
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.xml.saxon.Saxon;
+import org.trancecode.xproc.step.Step;
+
+/**
+ * Notified once an atomic step has completed, before the
+ * {@link AfterExecuteStepEvent}, with the number of documents the step read
+ * from its input ports and wrote to its output ports, along with their number
+ * of nodes as given by {@link Saxon#getNodeCount(XdmNode)}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class StepDocumentsEvent extends AbstractStepEvent
+{
+    private final int inputDocuments;
+    private final long inputNodes;
+    private final int outputDocuments;
+    private final long outputNodes;
+
+    public StepDocumentsEvent(final Step pipeline, final Step step, final int inputDocuments,
+            final long inputNodes, final int outputDocuments, final long outputNodes)
+    {
+        super(pipeline, step);
+        this.inputDocuments = inputDocuments;
+        this.inputNodes = inputNodes;
+        this.outputDocuments = outputDocuments;
+        this.outputNodes = outputNodes;
+    }
+
+    public int getInputDocuments()
+    {
+        return inputDocuments;
+    }
+
+    public long getInputNodes()
+    {
+        return inputNodes;
+    }
+
+    public int getOutputDocuments()
+    {
+        return outputDocuments;
+    }
+
+    public long getOutputNodes()
+    {
+        return outputNodes;
+    }
+}
@@ -0,0 +1,395 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.event;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Ordering;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.api.Nullable;
+import org.trancecode.logging.Logger;
+import org.trancecode.xml.saxon.SaxonBuilder;
+import org.trancecode.xproc.Tubular;
+import org.trancecode.xproc.step.Step;
+
+/**
+ * An {@link XProcEventObserver} that measures the execution of every step.
+ * <p>
+ * Wall time, CPU time, allocated bytes and the number and size (in nodes) of
+ * the documents read and written by steps are aggregated by step path, that is
+ * the names of the enclosing steps from the pipeline down to the step. The
+ * iterations of {@code p:for-each} and {@code p:viewport} appear as a
+ * {@value #ITERATION} step below the compound step.
+ * <p>
+ * Nesting is tracked per thread: steps that the executor runs on another
+ * thread than their parent step are reported at the top level. CPU time and
+ * allocated bytes are those of the thread running the step. Documents are only
+ * counted for atomic steps, from the {@link StepDocumentsEvent} they notify.
+ * Nodes are only counted for documents built by Saxon as tiny trees.
+ * 
+ * @author Herve Quiroz
+ */
+public final class StepProfiler implements XProcEventObserver
+{
+    public static final String ITERATION = "#iteration";
+
+    private static final Logger LOG = Logger.getLogger(StepProfiler.class);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private static final QName ELEMENT_PROFILE = Tubular.namespace().newSaxonQName("profile");
+    private static final QName ELEMENT_STEP = Tubular.namespace().newSaxonQName("step");
+    private static final QName ATTRIBUTE_ALLOCATED_BYTES = new QName("allocated-bytes");
+    private static final QName ATTRIBUTE_COUNT = new QName("count");
+    private static final QName ATTRIBUTE_CPU_TIME = new QName("cpu-time-ns");
+    private static final QName ATTRIBUTE_INPUT_DOCUMENTS = new QName("input-documents");
+    private static final QName ATTRIBUTE_INPUT_NODES = new QName("input-nodes");
+    private static final QName ATTRIBUTE_NAME = new QName("name");
+    private static final QName ATTRIBUTE_OUTPUT_DOCUMENTS = new QName("output-documents");
+    private static final QName ATTRIBUTE_OUTPUT_NODES = new QName("output-nodes");
+    private static final QName ATTRIBUTE_PATH = new QName("path");
+    private static final QName ATTRIBUTE_SELF_WALL_TIME = new QName("self-wall-time-ns");
+    private static final QName ATTRIBUTE_TYPE = new QName("type");
+    private static final QName ATTRIBUTE_WALL_TIME = new QName("wall-time-ns");
+
+    private static final Ordering<List<String>> PATH_ORDERING = Ordering.<String> natural().onResultOf(
+            (final List<String> path) -> Joiner.on('/').join(path));
+
+    private final Step pipeline;
+    private final ThreadLocal<Deque<Frame>> stacks = ThreadLocal.withInitial(ArrayDeque::new);
+    private final Map<List<String>, Statistics> statistics = new ConcurrentHashMap<>();
+
+    /**
+     * Returns a profiler that records the execution of any pipeline.
+     */
+    public static StepProfiler newProfiler()
+    {
+        return new StepProfiler(null);
+    }
+
+    /**
+     * Returns a profiler that only records the execution of the specified
+     * pipeline, so that it can be registered on an event dispatcher shared
+     * with other pipelines.
+     */
+    public static StepProfiler newProfiler(final Step pipeline)
+    {
+        return new StepProfiler(pipeline);
+    }
+
+    private StepProfiler(@Nullable final Step pipeline)
+    {
+        this.pipeline = pipeline;
+    }
+
+    private static final class Frame
+    {
+        private final Step step;
+        private final boolean iteration;
+        private final List<String> path;
+        private final long wallTime = System.nanoTime();
+        private final long cpuTime = cpuTime();
+        private final long allocatedBytes = allocatedBytes();
+        private long excludedWallTime;
+        private long excludedCpuTime;
+        private long excludedAllocatedBytes;
+        private long inputDocuments;
+        private long inputNodes;
+        private long outputDocuments;
+        private long outputNodes;
+
+        public Frame(final Step step, final boolean iteration, final List<String> path)
+        {
+            this.step = step;
+            this.iteration = iteration;
+            this.path = path;
+        }
+    }
+
+    private static final class Statistics
+    {
+        private final String type;
+        private long count;
+        private long wallTime;
+        private long cpuTime;
+        private long allocatedBytes;
+        private long inputDocuments;
+        private long inputNodes;
+        private long outputDocuments;
+        private long outputNodes;
+
+        public Statistics(final String type)
+        {
+            this.type = type;
+        }
+
+        public synchronized void add(final long wallTime, final long cpuTime, final long allocatedBytes,
+                final long inputDocuments, final long inputNodes, final long outputDocuments, final long outputNodes)
+        {
+            count++;
+            this.wallTime += wallTime;
+            this.cpuTime += cpuTime;
+            this.allocatedBytes += allocatedBytes;
+            this.inputDocuments += inputDocuments;
+            this.inputNodes += inputNodes;
+            this.outputDocuments += outputDocuments;
+            this.outputNodes += outputNodes;
+        }
+
+        public synchronized long getWallTime()
+        {
+            return wallTime;
+        }
+    }
+
+    private static long cpuTime()
+    {
+        if (THREADS.isCurrentThreadCpuTimeSupported())
+        {
+            return THREADS.getCurrentThreadCpuTime();
+        }
+
+        return 0;
+    }
+
+    private static long allocatedBytes()
+    {
+        if (THREADS instanceof com.sun.management.ThreadMXBean)
+        {
+            final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled())
+            {
+                return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+
+        return 0;
+    }
+
+    @Override
+    public void notify(final XProcEvent event)
+    {
+        if (pipeline != null && event instanceof PipelineEvent && ((PipelineEvent) event).getPipeline() != pipeline)
+        {
+            return;
+        }
+
+        if (event instanceof BeforeRunPipelineEvent)
+        {
+            stacks.get().clear();
+        }
+        else if (event instanceof BeforeExecuteStepEvent)
+        {
+            push(((BeforeExecuteStepEvent) event).getStep(), false);
+        }
+        else if (event instanceof BeforeIterationStepEvent)
+        {
+            push(((BeforeIterationStepEvent) event).getStep(), true);
+        }
+        else if (event instanceof StepDocumentsEvent)
+        {
+            final StepDocumentsEvent documentsEvent = (StepDocumentsEvent) event;
+            final Frame frame = stacks.get().peek();
+            if (frame != null && frame.step == documentsEvent.getStep() && !frame.iteration)
+            {
+                frame.inputDocuments = documentsEvent.getInputDocuments();
+                frame.inputNodes = documentsEvent.getInputNodes();
+                frame.outputDocuments = documentsEvent.getOutputDocuments();
+                frame.outputNodes = documentsEvent.getOutputNodes();
+            }
+        }
+        else if (event instanceof AfterExecuteStepEvent)
+        {
+            pop(((AfterExecuteStepEvent) event).getStep(), false);
+        }
+        else if (event instanceof AfterIterationStepEvent)
+        {
+            pop(((AfterIterationStepEvent) event).getStep(), true);
+        }
+    }
+
+    private void push(final Step step, final boolean iteration)
+    {
+        final Deque<Frame> stack = stacks.get();
+        final ImmutableList.Builder<String> path = ImmutableList.builder();
+        if (!stack.isEmpty())
+        {
+            path.addAll(stack.peek().path);
+        }
+        if (iteration)
+        {
+            path.add(ITERATION);
+        }
+        else
+        {
+            path.add(step.getName());
+        }
+        stack.push(new Frame(step, iteration, path.build()));
+    }
+
+    private void pop(final Step step, final boolean iteration)
+    {
+        final long wallTime = System.nanoTime();
+        final long cpuTime = cpuTime();
+        final long allocatedBytes = allocatedBytes();
+
+        final Deque<Frame> stack = stacks.get();
+        if (!Iterators.any(stack.iterator(), frame -> frame.step == step && frame.iteration == iteration))
+        {
+            LOG.trace("{@method} no frame for step {}", step.getName());
+            return;
+        }
+
+        // Frames left by steps that failed are discarded
+        Frame frame = stack.pop();
+        while (frame.step != step || frame.iteration != iteration)
+        {
+            frame = stack.pop();
+        }
+
+        final String type = iteration ? ITERATION : step.getType().getClarkName();
+        statistics.computeIfAbsent(frame.path, path -> new Statistics(type)).add(
+                wallTime - frame.wallTime - frame.excludedWallTime, cpuTime - frame.cpuTime - frame.excludedCpuTime,
+                allocatedBytes - frame.allocatedBytes - frame.excludedAllocatedBytes, frame.inputDocuments,
+                frame.inputNodes, frame.outputDocuments, frame.outputNodes);
+
+        final Frame parent = stack.peek();
+        if (parent != null)
+        {
+            parent.excludedWallTime += frame.excludedWallTime + System.nanoTime() - wallTime;
+            parent.excludedCpuTime += frame.excludedCpuTime + cpuTime() - cpuTime;
+            parent.excludedAllocatedBytes += frame.excludedAllocatedBytes + allocatedBytes() - allocatedBytes;
+        }
+    }
+
+    /**
+     * Discards all the measures recorded so far.
+     */
+    public void reset()
+    {
+        statistics.clear();
+    }
+
+    private ListMultimap<List<String>, List<String>> getChildren(final Iterable<List<String>> paths)
+    {
+        final ListMultimap<List<String>, List<String>> children = ArrayListMultimap.create();
+        for (final List<String> path : PATH_ORDERING.sortedCopy(paths))
+        {
+            final List<String> parent = path.subList(0, path.size() - 1);
+            children.put(statistics.containsKey(parent) ? parent : ImmutableList.<String> of(), path);
+        }
+
+        return children;
+    }
+
+    private long getSelfWallTime(final List<String> path, final ListMultimap<List<String>, List<String>> children)
+    {
+        long selfWallTime = statistics.get(path).getWallTime();
+        for (final List<String> child : children.get(path))
+        {
+            selfWallTime -= statistics.get(child).getWallTime();
+        }
+
+        return Math.max(0, selfWallTime);
+    }
+
+    /**
+     * Returns the measures recorded so far as a {@code tubular:profile}
+     * document where {@code tubular:step} elements are nested the same way as
+     * the steps of the pipeline.
+     */
+    public XdmNode getReport(final Processor processor)
+    {
+        final Map<List<String>, Statistics> snapshot = ImmutableMap.copyOf(statistics);
+        final ListMultimap<List<String>, List<String>> children = getChildren(snapshot.keySet());
+        final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
+        builder.startDocument();
+        builder.startElement(ELEMENT_PROFILE);
+        builder.namespace(Tubular.namespace().prefix(), Tubular.namespace().uri());
+        for (final List<String> path : children.get(ImmutableList.<String> of()))
+        {
+            writeStep(path, snapshot, children, builder);
+        }
+        builder.endElement();
+        builder.endDocument();
+
+        return builder.getNode();
+    }
+
+    private void writeStep(final List<String> path, final Map<List<String>, Statistics> snapshot,
+            final ListMultimap<List<String>, List<String>> children, final SaxonBuilder builder)
+    {
+        final Statistics step = snapshot.get(path);
+        builder.startElement(ELEMENT_STEP);
+        synchronized (step)
+        {
+            builder.attribute(ATTRIBUTE_NAME, path.get(path.size() - 1));
+            builder.attribute(ATTRIBUTE_TYPE, step.type);
+            builder.attribute(ATTRIBUTE_PATH, Joiner.on('/').join(path));
+            builder.attribute(ATTRIBUTE_COUNT, Long.toString(step.count));
+            builder.attribute(ATTRIBUTE_WALL_TIME, Long.toString(step.wallTime));
+            builder.attribute(ATTRIBUTE_SELF_WALL_TIME, Long.toString(getSelfWallTime(path, children)));
+            builder.attribute(ATTRIBUTE_CPU_TIME, Long.toString(step.cpuTime));
+            builder.attribute(ATTRIBUTE_ALLOCATED_BYTES, Long.toString(step.allocatedBytes));
+            builder.attribute(ATTRIBUTE_INPUT_DOCUMENTS, Long.toString(step.inputDocuments));
+            builder.attribute(ATTRIBUTE_INPUT_NODES, Long.toString(step.inputNodes));
+            builder.attribute(ATTRIBUTE_OUTPUT_DOCUMENTS, Long.toString(step.outputDocuments));
+            builder.attribute(ATTRIBUTE_OUTPUT_NODES, Long.toString(step.outputNodes));
+        }
+        for (final List<String> child : children.get(path))
+        {
+            writeStep(child, snapshot, children, builder);
+        }
+        builder.endElement();
+    }
+
+    /**
+     * Writes the measures recorded so far in the "collapsed stack" format used
+     * by flame graph tools: one line per step path with the self wall time of
+     * the step in microseconds.
+     */
+    public void writeCollapsedStacks(final Appendable destination) throws IOException
+    {
+        final ListMultimap<List<String>, List<String>> children = getChildren(statistics.keySet());
+        for (final List<String> path : children.values())
+        {
+            final long selfWallTime = TimeUnit.NANOSECONDS.toMicros(getSelfWallTime(path, children));
+            if (selfWallTime > 0)
+            {
+                destination.append(Joiner.on(';').join(path)).append(' ').append(Long.toString(selfWallTime))
+                        .append('\n');
+            }
+        }
+    }
+}
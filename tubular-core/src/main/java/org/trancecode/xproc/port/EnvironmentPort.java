@@ -20,6 +20,8 @@
 package org.trancecode.xproc.port;
 
 import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 
@@ -30,11 +32,12 @@ import net.sf.saxon.s9api.XPathCompiler;
 import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XPathSelector;
 import net.sf.saxon.s9api.XdmNode;
-import org.trancecode.collection.TcLists;
+import org.trancecode.collection.PersistentSequence;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.Location;
 import org.trancecode.xml.saxon.Saxon;
 import org.trancecode.xml.saxon.SaxonLocation;
+import org.trancecode.xproc.DocumentStore;
 import org.trancecode.xproc.Environment;
 import org.trancecode.xproc.api.XProcException;
 import org.trancecode.xproc.XProcExceptions;
@@ -50,7 +53,7 @@ public final class EnvironmentPort implements HasPortReference
     private static final Logger LOG = Logger.getLogger(EnvironmentPort.class);
 
     private final Port declaredPort;
-    private final List<EnvironmentPortBinding> portBindings;
+    private final PersistentSequence<EnvironmentPortBinding> portBindings;
     private final XPathExecutable select;
 
     public static EnvironmentPort newEnvironmentPort(final Port declaredPort, final Environment environment)
@@ -60,7 +63,7 @@ public final class EnvironmentPort implements HasPortReference
         LOG.trace("declaredPort = {}", declaredPort);
         LOG.trace("portBindings = {}", declaredPort.getPortBindings());
 
-        final List<EnvironmentPortBinding> portBindings = ImmutableList.copyOf(Iterables.transform(
+        final Iterable<EnvironmentPortBinding> portBindings = ImmutableList.copyOf(Iterables.transform(
                 declaredPort.getPortBindings(), portBinding -> portBinding.newEnvironmentPortBinding(environment)));
 
         final String declaredPortSelect = declaredPort.getSelect();
@@ -98,7 +101,7 @@ public final class EnvironmentPort implements HasPortReference
             final XPathExecutable select)
     {
         this.declaredPort = declaredPort;
-        this.portBindings = ImmutableList.copyOf(portBindings);
+        this.portBindings = PersistentSequence.copyOf(portBindings);
         this.select = select;
     }
 
@@ -148,7 +151,25 @@ public final class EnvironmentPort implements HasPortReference
     {
         LOG.trace("{@method} declaredPort = {}", declaredPort);
 
-        return ImmutableList.copyOf(select(readRawNodes()));
+        if (select == null && portBindings.size() == 1)
+        {
+            // Nodes written to this port are already an immutable sequence
+            return PersistentSequence.copyOf(portBindings.get(0).readNodes());
+        }
+
+        return PersistentSequence.copyOf(select(readRawNodes()));
+    }
+
+    /**
+     * Returns the nodes from this port without copying them, reading the port
+     * bindings and evaluating the 'select' attribute only as far as the
+     * returned sequence is iterated.
+     */
+    public Iterable<XdmNode> iterateNodes()
+    {
+        LOG.trace("{@method} declaredPort = {}", declaredPort);
+
+        return select(readRawNodes());
     }
 
     public EnvironmentPort writeNodes(final XdmNode... nodes)
@@ -165,7 +186,16 @@ public final class EnvironmentPort implements HasPortReference
     {
         assert append || portBindings.isEmpty();
 
-        final List<XdmNode> nodeList = ImmutableList.copyOf(nodes);
+        final List<XdmNode> nodeList;
+        if (DocumentStore.isStored(nodes))
+        {
+            // Copying would pull the stored documents back into the heap
+            nodeList = (List<XdmNode>) nodes;
+        }
+        else
+        {
+            nodeList = PersistentSequence.copyOf(nodes);
+        }
         for (final XdmNode aNode : nodeList)
         {
             if (!Saxon.isDocument(aNode))
@@ -174,25 +204,12 @@ public final class EnvironmentPort implements HasPortReference
             }
         }
         LOG.trace("{} nodes -> {}", nodeList.size(), declaredPort.getPortReference());
-        final EnvironmentPortBinding portBinding = new EnvironmentPortBinding()
-        {
-            public Iterable<XdmNode> readNodes()
-            {
-                LOG.trace("{@method} port = {} ; {size} nodes", getDeclaredPort(), nodeList);
-                return nodeList;
-            }
-
-            @Override
-            public Location getLocation()
-            {
-                return declaredPort.getLocation();
-            }
-        };
+        final EnvironmentPortBinding portBinding = new NodesPortBinding(declaredPort, nodeList);
 
         final Iterable<EnvironmentPortBinding> newPortBindings;
         if (append)
         {
-            newPortBindings = TcLists.immutableList(portBindings, portBinding);
+            newPortBindings = portBindings.append(portBinding);
         }
         else
         {
@@ -226,6 +243,38 @@ public final class EnvironmentPort implements HasPortReference
         return new EnvironmentPort(declaredPort, ImmutableList.of(portBinding), select);
     }
 
+    /**
+     * Returns a port holding the nodes currently readable from this port,
+     * which no longer reads them lazily from the ports it is piped from. The
+     * nodes themselves are not copied.
+     */
+    public EnvironmentPort detach()
+    {
+        if (select == null && Iterables.all(portBindings, Predicates.instanceOf(NodesPortBinding.class)))
+        {
+            return this;
+        }
+
+        LOG.trace("{@method} port = {}", declaredPort);
+        final EnvironmentPortBinding portBinding = new NodesPortBinding(declaredPort,
+                PersistentSequence.copyOf(readNodes()));
+        return new EnvironmentPort(declaredPort, ImmutableList.of(portBinding), null);
+    }
+
+    /**
+     * Drops the nodes written to this port so that they can be garbage
+     * collected once no step is left to read them. Reading the port afterwards
+     * fails.
+     */
+    public void release()
+    {
+        LOG.trace("{@method} port = {}", declaredPort);
+        for (final NodesPortBinding portBinding : Iterables.filter(portBindings, NodesPortBinding.class))
+        {
+            portBinding.release();
+        }
+    }
+
     @Override
     public PortReference getPortReference()
     {
@@ -237,4 +286,36 @@ public final class EnvironmentPort implements HasPortReference
     {
         return declaredPort.toString();
     }
+
+    private static final class NodesPortBinding implements EnvironmentPortBinding
+    {
+        private final Port declaredPort;
+        private volatile List<XdmNode> nodes;
+
+        public NodesPortBinding(final Port declaredPort, final List<XdmNode> nodes)
+        {
+            this.declaredPort = declaredPort;
+            this.nodes = nodes;
+        }
+
+        @Override
+        public Iterable<XdmNode> readNodes()
+        {
+            final List<XdmNode> nodes = this.nodes;
+            Preconditions.checkState(nodes != null, "port %s was released after its last reader", declaredPort);
+            LOG.trace("{@method} port = {} ; {size} nodes", declaredPort, nodes);
+            return nodes;
+        }
+
+        public void release()
+        {
+            nodes = null;
+        }
+
+        @Override
+        public Location getLocation()
+        {
+            return declaredPort.getLocation();
+        }
+    }
 }
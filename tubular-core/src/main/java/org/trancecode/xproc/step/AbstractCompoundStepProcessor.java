@@ -21,28 +21,53 @@ package org.trancecode.xproc.step;
 
 import com.google.common.base.Predicates;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multimap;
 
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
+import net.sf.saxon.s9api.XdmNode;
+import org.trancecode.concurrent.TaskExecutor;
 import org.trancecode.concurrent.TcFutures;
 import org.trancecode.logging.Logger;
 import org.trancecode.xproc.Environment;
+import org.trancecode.xproc.event.FlightRecorderEvents;
 import org.trancecode.xproc.port.EnvironmentPort;
+import org.trancecode.xproc.port.Port;
+import org.trancecode.xproc.port.PortReference;
+import org.trancecode.xproc.xpath.IterationPositionXPathExtensionFunction;
+import org.trancecode.xproc.xpath.IterationSizeXPathExtensionFunction;
 
 /**
  * @author Herve Quiroz
  */
 public abstract class AbstractCompoundStepProcessor implements StepProcessor
 {
+    /**
+     * When set, the data written to an output port within a subpipeline is
+     * released as soon as all the steps reading it have completed, see
+     * {@link Step#getSubpipelinePortReaders()}.
+     */
+    public static final String PROPERTY_EARLY_PORT_RELEASE = "http://www.trancecode.org/tubular/1/property/"
+            + "earlyPortRelease";
+
     private static final Logger LOG = Logger.getLogger(AbstractCompoundStepProcessor.class);
+    private static final Map<PortReference, Iterable<Step>> NO_PORT_READERS = ImmutableMap.of();
+    private static final int DEFAULT_CONCURRENCY = Runtime.getRuntime().availableProcessors();
 
     @Override
     public Environment run(final Step step, final Environment environment)
@@ -53,13 +78,156 @@ public abstract class AbstractCompoundStepProcessor implements StepProcessor
         environment.setCurrentEnvironment();
 
         final Environment stepEnvironment = environment.newFollowingStepEnvironment(step);
-        Environment resultEnvironment = runSteps(step.getSubpipeline(), stepEnvironment);
+        Environment resultEnvironment = runSubpipeline(step, stepEnvironment);
         resultEnvironment = stepEnvironment.setupOutputPorts(step, resultEnvironment);
         Steps.writeLogs(step, resultEnvironment);
         return resultEnvironment;
     }
 
+    /**
+     * Runs the subpipeline of a compound step, reusing the dependencies between
+     * its steps computed once per step.
+     */
+    protected Environment runSubpipeline(final Step step, final Environment environment)
+    {
+        final Map<PortReference, Iterable<Step>> portReaders;
+        if (Boolean.TRUE.equals(environment.getPipelineContext().<Object> getProperty(PROPERTY_EARLY_PORT_RELEASE)))
+        {
+            portReaders = step.getSubpipelinePortReaders();
+        }
+        else
+        {
+            portReaders = NO_PORT_READERS;
+        }
+
+        return runSteps(step.getSubpipeline(), step.getSubpipelineStepDependencies(), portReaders, environment);
+    }
+
+    /**
+     * Returns the maximum number of iterations submitted to the pipeline
+     * executor at a time, as set by the given property, or the number of
+     * available processors by default. Any value is safe with a bounded thread
+     * pool as waiting threads run the tasks still queued, see
+     * {@link #await(Future)}.
+     */
+    protected static int getConcurrency(final Environment environment, final String property)
+    {
+        final Integer concurrency = environment.getPipelineContext().getProperty(property);
+        if (concurrency == null)
+        {
+            return DEFAULT_CONCURRENCY;
+        }
+
+        return concurrency;
+    }
+
+    /**
+     * Submits a task to the pipeline executor so that the thread waiting for
+     * its result may also run it, see {@link #await(Future)}.
+     */
+    protected static <T> Future<T> submit(final TaskExecutor executor, final Callable<T> task)
+    {
+        final FutureTask<T> future = new FutureTask<>(task);
+        executor.submit(() -> {
+            runTask(future);
+            return null;
+        });
+        return future;
+    }
+
+    /**
+     * Waits for the result of a task returned by
+     * {@link #submit(TaskExecutor, Callable)}, running it on the current thread
+     * if no executor thread has started it yet. A thread waiting for a
+     * subpipeline thus never depends on a task queued behind it, which would
+     * otherwise deadlock once all the threads of a bounded pool are waiting.
+     */
+    protected static <T> T await(final Future<T> future) throws ExecutionException, InterruptedException
+    {
+        if (future instanceof FutureTask && !future.isDone())
+        {
+            // No-op if the task has already been started by another thread
+            runTask((FutureTask<T>) future);
+        }
+
+        return future.get();
+    }
+
+    /**
+     * Runs a task, restoring the context of the current thread afterwards as
+     * the task may set it for the steps it runs.
+     */
+    private static void runTask(final FutureTask<?> task)
+    {
+        final Environment environment = Environment.getCurrentEnvironment();
+        final XdmNode namespaceContext = Environment.getCurrentNamespaceContext();
+        final XdmNode xpathContext = Environment.getCurrentXPathContext();
+        final int iterationPosition = IterationPositionXPathExtensionFunction.getIterationPosition();
+        final int iterationSize = IterationSizeXPathExtensionFunction.getIterationSize();
+        try
+        {
+            task.run();
+        }
+        finally
+        {
+            Environment.setCurrentEnvironment(environment);
+            Environment.setCurrentNamespaceContext(namespaceContext);
+            Environment.setCurrentXPathContext(xpathContext);
+            IterationPositionXPathExtensionFunction.setIterationPosition(iterationPosition);
+            IterationSizeXPathExtensionFunction.setIterationSize(iterationSize);
+        }
+    }
+
+    /**
+     * Runs the iterations of a compound step with at most {@code concurrency}
+     * of them submitted and not yet collected at any time, and passes their
+     * results to {@code collector} in order. The iterations not collected yet
+     * are cancelled as soon as one of them fails.
+     */
+    protected static <T> void runIterations(final List<Callable<T>> tasks, final int concurrency,
+            final TaskExecutor executor, final Consumer<T> collector)
+    {
+        final List<Future<T>> futures = Lists.newArrayListWithCapacity(tasks.size());
+        for (int i = 0; i < tasks.size() && i < concurrency; i++)
+        {
+            futures.add(submit(executor, tasks.get(i)));
+        }
+
+        for (int i = 0; i < tasks.size(); i++)
+        {
+            final T result;
+            try
+            {
+                result = await(futures.get(i));
+            }
+            catch (final ExecutionException e)
+            {
+                TcFutures.cancel(futures.subList(i, futures.size()));
+                throw Throwables.propagate(e.getCause());
+            }
+            catch (final InterruptedException e)
+            {
+                TcFutures.cancel(futures.subList(i, futures.size()));
+                throw new IllegalStateException(e);
+            }
+            // The future would keep the result reachable
+            futures.set(i, null);
+
+            if (futures.size() < tasks.size())
+            {
+                futures.add(submit(executor, tasks.get(futures.size())));
+            }
+            collector.accept(result);
+        }
+    }
+
     protected Environment runSteps(final Iterable<Step> steps, final Environment environment)
+    {
+        return runSteps(steps, Step.getSubpipelineStepDependencies(steps), NO_PORT_READERS, environment);
+    }
+
+    private Environment runSteps(final Iterable<Step> steps, final Map<Step, Iterable<Step>> stepDependencies,
+            final Map<PortReference, Iterable<Step>> portReaders, final Environment environment)
     {
         LOG.trace("steps = {}", steps);
 
@@ -67,14 +235,28 @@ public abstract class AbstractCompoundStepProcessor implements StepProcessor
         final EnvironmentPort parametersPort = environment.getDefaultParametersPort();
         LOG.trace("  parametersPort = {}", parametersPort);
 
-        final Map<Step, Iterable<Step>> stepDependencies = Step.getSubpipelineStepDependencies(steps);
+        final Multimap<Step, PortReference> readPorts = ArrayListMultimap.create();
+        final Map<PortReference, AtomicInteger> pendingReaders = Maps.newHashMap();
+        for (final Entry<PortReference, Iterable<Step>> readers : portReaders.entrySet())
+        {
+            for (final Step reader : readers.getValue())
+            {
+                readPorts.put(reader, readers.getKey());
+            }
+            pendingReaders.put(readers.getKey(), new AtomicInteger(Iterables.size(readers.getValue())));
+        }
+
+        final Map<String, Future<Environment>> stepResultsByName = new ConcurrentHashMap<>();
         final Map<Step, Future<Environment>> stepResults = new ConcurrentHashMap<>();
         final List<Future<Environment>> results = Lists.newArrayList();
         final AtomicReference<Throwable> error = new AtomicReference<>();
+        // The steps may run on other threads than the enclosing iteration
+        final int iterationPosition = IterationPositionXPathExtensionFunction.getIterationPosition();
+        final int iterationSize = IterationSizeXPathExtensionFunction.getIterationSize();
         for (final Step step : steps)
         {
-            final Future<Environment> result = environment.getPipelineContext().getExecutor()
-                    .submit(() -> {
+            final Future<Environment> result = submit(environment.getPipelineContext().getExecutor(),
+                    () -> {
                         // shortcut in case an error was reported by another
                         // task
                         if (error.get() != null)
@@ -87,7 +269,7 @@ public abstract class AbstractCompoundStepProcessor implements StepProcessor
                         {
                             try
                             {
-                                final Environment dependencyResult = stepResults.get(dependency).get();
+                                final Environment dependencyResult = await(stepResults.get(dependency));
                                 inputEnvironment = inputEnvironment.addPorts(dependencyResult.getOutputPorts());
                                 inputEnvironment = inputEnvironment.setDefaultReadablePort(dependencyResult
                                         .getDefaultReadablePort());
@@ -103,16 +285,39 @@ public abstract class AbstractCompoundStepProcessor implements StepProcessor
 
                         Environment.setCurrentNamespaceContext(step.getNode());
                         inputEnvironment.setCurrentEnvironment();
-                        return step.run(inputEnvironment);
+                        final int previousIterationPosition = IterationPositionXPathExtensionFunction
+                                .setIterationPosition(iterationPosition);
+                        final int previousIterationSize = IterationSizeXPathExtensionFunction
+                                .setIterationSize(iterationSize);
+                        try
+                        {
+                            Environment stepResult = step.run(inputEnvironment);
+                            if (!pendingReaders.isEmpty())
+                            {
+                                stepResult = detachOutputPorts(step, stepResult);
+                                releasePorts(readPorts.get(step), pendingReaders, stepResultsByName);
+                            }
+                            return stepResult;
+                        }
+                        finally
+                        {
+                            IterationPositionXPathExtensionFunction.setIterationPosition(previousIterationPosition);
+                            IterationSizeXPathExtensionFunction.setIterationSize(previousIterationSize);
+                        }
                     });
             stepResults.put(step, result);
+            stepResultsByName.put(step.getName(), result);
             results.add(result);
         }
 
-        final Iterable<Environment> resultEnvironments;
+        final Object flightEvent = FlightRecorderEvents.beginSubpipeline();
+        final List<Environment> resultEnvironments = Lists.newArrayListWithCapacity(results.size());
         try
         {
-            resultEnvironments = TcFutures.get(results);
+            for (final Future<Environment> result : results)
+            {
+                resultEnvironments.add(await(result));
+            }
         }
         catch (final ExecutionException e)
         {
@@ -123,6 +328,10 @@ public abstract class AbstractCompoundStepProcessor implements StepProcessor
         {
             throw new IllegalStateException(e);
         }
+        finally
+        {
+            FlightRecorderEvents.endSubpipeline(flightEvent, steps, environment.getPipelineContext());
+        }
 
         Environment resultEnvironment = Iterables.getLast(resultEnvironments, initialEnvironment);
         for (final Environment intermediateResultEnvironment : Iterables.filter(resultEnvironments,
@@ -139,4 +348,55 @@ public abstract class AbstractCompoundStepProcessor implements StepProcessor
 
         return resultEnvironment;
     }
+
+    /**
+     * Replaces the output ports of a completed step that read their nodes
+     * lazily from other ports, such as the outputs of a compound step piped
+     * from a sibling step, with ports holding these nodes, so that they remain
+     * readable once the ports they are piped from are released.
+     */
+    private static Environment detachOutputPorts(final Step step, final Environment stepResult)
+    {
+        Environment result = stepResult;
+        for (final Port port : step.getOutputPorts())
+        {
+            final EnvironmentPort environmentPort = stepResult.getPorts().get(port.getPortReference());
+            if (environmentPort == null)
+            {
+                continue;
+            }
+
+            final EnvironmentPort detachedPort = environmentPort.detach();
+            if (detachedPort != environmentPort)
+            {
+                result = result.addPorts(detachedPort);
+                if (stepResult.getDefaultReadablePort() == environmentPort)
+                {
+                    result = result.setDefaultReadablePort(detachedPort);
+                }
+                if (stepResult.getXPathContextPort() == environmentPort)
+                {
+                    result = result.setXPathContextPort(detachedPort);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static void releasePorts(final Iterable<PortReference> readPorts,
+            final Map<PortReference, AtomicInteger> pendingReaders,
+            final Map<String, Future<Environment>> stepResultsByName) throws Exception
+    {
+        for (final PortReference portReference : readPorts)
+        {
+            if (pendingReaders.get(portReference).decrementAndGet() == 0)
+            {
+                LOG.trace("{@method} port = {}", portReference);
+                // The step writing the port has completed as it was read
+                final Environment writeStepResult = stepResultsByName.get(portReference.getStepName()).get();
+                writeStepResult.getEnvironmentPort(portReference).release();
+            }
+        }
+    }
 }
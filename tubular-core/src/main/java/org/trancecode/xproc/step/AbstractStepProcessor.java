@@ -22,25 +22,35 @@ package org.trancecode.xproc.step;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 
 import java.net.URI;
 import java.util.Collection;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 
 import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmValue;
+import org.trancecode.event.EventDispatcher;
+import org.trancecode.io.InputResolver;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.HasLocation;
 import org.trancecode.xml.Location;
+import org.trancecode.xml.saxon.Saxon;
+import org.trancecode.xproc.DocumentStore;
 import org.trancecode.xproc.Environment;
 import org.trancecode.xproc.PipelineContext;
+import org.trancecode.xproc.PipelineMetrics;
+import org.trancecode.xproc.StepResultCache;
 import org.trancecode.xproc.api.PipelineException;
 import org.trancecode.xproc.api.XProcException;
-import org.trancecode.xproc.event.AfterExecuteStepEvent;
-import org.trancecode.xproc.event.BeforeExecuteStepEvent;
+import org.trancecode.xproc.event.FlightRecorderEvents;
+import org.trancecode.xproc.event.StepDocumentsEvent;
+import org.trancecode.xproc.event.XProcEvent;
 
 /**
  * Base class for {@link StepProcessor} implementations.
@@ -57,29 +67,73 @@ public abstract class AbstractStepProcessor implements StepProcessor
         LOG.trace("{@method} step = {} ; type = {}", step.getName(), step.getType());
         assert getStepType().equals(step.getType()) || getStepType().equals(XProcSteps.ANY);
 
-        environment.getPipelineContext().getEventDispatcher()
-                .notify(new BeforeExecuteStepEvent(environment.getPipeline(), step, environment));
-
+        final Object flightEvent = FlightRecorderEvents.beginStep();
+        final PipelineMetrics metrics = environment.getPipelineContext().getMetrics();
+        final long startTime = System.nanoTime();
+        boolean failed = true;
+        StepInput input = null;
+        StepOutput output = null;
+        int outputDocuments = 0;
+        long outputNodes = 0;
         try
         {
             final Environment stepEnvironment = environment.newFollowingStepEnvironment(step);
 
-            final StepInput input = new StepInput(step, stepEnvironment);
-            final StepOutput output = new StepOutput(step);
-            execute(input, output);
+            input = new StepInput(step, stepEnvironment);
+            output = new StepOutput(step);
+            final PipelineContext context = environment.getPipelineContext();
+            final StepResultCache stepResultCache = context.getStepResultCache();
+            Map<String, ? extends Collection<XdmNode>> outputPorts = null;
+            String stepResultKey = null;
+            StepResultCache.ResourceRecorder resourceRecorder = null;
+            if (stepResultCache != null && StepResultCache.isCacheable(this))
+            {
+                stepResultKey = stepResultCache.getKey(step, stepEnvironment);
+                outputPorts = stepResultCache.get(stepResultKey, context.getProcessor().getUnderlyingConfiguration(),
+                        context.getInputResolver());
+                resourceRecorder = new StepResultCache.ResourceRecorder(context.getInputResolver());
+                input.inputResolver = resourceRecorder;
+            }
+            if (outputPorts == null)
+            {
+                execute(input, output);
+                outputPorts = output.ports.asMap();
+                if (stepResultKey != null && output.cacheable)
+                {
+                    stepResultCache.put(stepResultKey, resourceRecorder.getResources(), outputPorts);
+                }
+            }
 
+            final DocumentStore documentStore = context.getDocumentStore();
             Environment resultEnvironment = stepEnvironment;
-            for (final Entry<String, Collection<XdmNode>> port : output.ports.asMap().entrySet())
+            for (final Entry<String, ? extends Collection<XdmNode>> port : outputPorts.entrySet())
             {
-                resultEnvironment = resultEnvironment.writeNodes(step.getPortReference(port.getKey()), port.getValue());
+                metrics.documentsWritten(step.getType(), port.getKey(), port.getValue().size());
+                outputDocuments += port.getValue().size();
+                for (final XdmNode node : port.getValue())
+                {
+                    outputNodes += Saxon.getNodeCount(node);
+                }
+                Iterable<XdmNode> nodes = port.getValue();
+                if (documentStore != null)
+                {
+                    nodes = documentStore.store(ImmutableList.copyOf(nodes), context.getProcessor()
+                            .getUnderlyingConfiguration());
+                }
+                resultEnvironment = resultEnvironment.writeNodes(step.getPortReference(port.getKey()), nodes);
             }
 
             resultEnvironment = resultEnvironment.setupOutputPorts(step);
             Steps.writeLogs(step, resultEnvironment);
 
-            environment.getPipelineContext().getEventDispatcher()
-                    .notify(new AfterExecuteStepEvent(environment.getPipeline(), step, environment, resultEnvironment));
+            final EventDispatcher<XProcEvent> eventDispatcher = context.getEventDispatcher();
+            if (eventDispatcher.hasObservers())
+            {
+                eventDispatcher.notify(new StepDocumentsEvent(environment.getPipeline(), step, input.documentsRead,
+                        input.nodesRead, outputDocuments, outputNodes));
+            }
 
+            failed = false;
             return resultEnvironment;
         }
         catch (final XProcException e)
@@ -90,6 +144,12 @@ public abstract class AbstractStepProcessor implements StepProcessor
         {
             throw new PipelineException(e, "Error while executing step %s", step.getName());
         }
+        finally
+        {
+            metrics.stepExecuted(step.getType(), System.nanoTime() - startTime, failed);
+            FlightRecorderEvents.endStep(flightEvent, step, environment.getPipelineContext(),
+                    input != null ? input.documentsRead : 0, outputDocuments);
+        }
     }
 
     /**
@@ -99,11 +159,15 @@ public abstract class AbstractStepProcessor implements StepProcessor
     {
         private final Environment environment;
         private final Step step;
+        private int documentsRead;
+        private long nodesRead;
+        private InputResolver inputResolver;
 
         private StepInput(final Step step, final Environment environment)
         {
             this.step = step;
             this.environment = environment;
+            inputResolver = environment.getPipelineContext().getInputResolver();
         }
 
         /**
@@ -124,6 +188,16 @@ public abstract class AbstractStepProcessor implements StepProcessor
             return environment.getPipelineContext();
         }
 
+        /**
+         * Returns the resolver of external resources. Steps marked
+         * {@link TrackedReads} must read external resources through this
+         * resolver only.
+         */
+        public InputResolver getInputResolver()
+        {
+            return inputResolver;
+        }
+
         /**
          * Returns the base URI of the pipeline being executed.
          */
@@ -158,7 +232,7 @@ public abstract class AbstractStepProcessor implements StepProcessor
          */
         public XdmNode readNode(final String portName)
         {
-            return environment.readNode(step.getPortReference(portName));
+            return countNode(environment.readNode(step.getPortReference(portName)));
         }
 
         /**
@@ -168,7 +242,42 @@ public abstract class AbstractStepProcessor implements StepProcessor
          */
         public Iterable<XdmNode> readNodes(final String portName)
         {
-            return environment.readNodes(step.getPortReference(portName));
+            final Iterable<XdmNode> nodes = environment.readNodes(step.getPortReference(portName));
+            if (nodes instanceof Collection)
+            {
+                // Ports are materialized, so the nodes need not be walked
+                documentsRead += ((Collection<XdmNode>) nodes).size();
+                for (final XdmNode node : nodes)
+                {
+                    nodesRead += Saxon.getNodeCount(node);
+                }
+                return nodes;
+            }
+
+            return countNodes(nodes);
+        }
+
+        /**
+         * Reads nodes from the specified port as they are iterated, so that
+         * steps that do not need the whole sequence can stop early.
+         * <p>
+         * The port is necessarily a declared one from the current step.
+         */
+        public Iterable<XdmNode> iterateNodes(final String portName)
+        {
+            return countNodes(environment.iterateNodes(step.getPortReference(portName)));
+        }
+
+        private Iterable<XdmNode> countNodes(final Iterable<XdmNode> nodes)
+        {
+            return Iterables.transform(nodes, this::countNode);
+        }
+
+        private XdmNode countNode(final XdmNode node)
+        {
+            documentsRead++;
+            nodesRead += Saxon.getNodeCount(node);
+            return node;
         }
 
         /**
@@ -224,6 +333,34 @@ public abstract class AbstractStepProcessor implements StepProcessor
         {
             return environment.evaluateXPath(select, xpathContextNode, additionalParameters);
         }
+
+        /**
+         * Returns the variables visible to XPath queries, along with the given
+         * parameters.
+         */
+        public Map<QName, String> getXPathVariables(final Map<QName, String> additionalParameters)
+        {
+            return environment.getXPathVariables(additionalParameters);
+        }
+
+        /**
+         * Compiles an XPath query that refers to the given variables, for
+         * repeated evaluation.
+         */
+        public XPathExecutable compileXPath(final String select, final Set<QName> variableNames)
+        {
+            return environment.compileXPath(select, variableNames);
+        }
+
+        /**
+         * Evaluates a compiled XPath query with the specified node as a context
+         * and the given variables.
+         */
+        public XdmValue evaluateXPath(final XPathExecutable xpathExecutable, final XdmNode xpathContextNode,
+                final Map<QName, String> variables)
+        {
+            return environment.evaluateXPath(xpathExecutable, xpathContextNode, variables);
+        }
     }
 
     /**
@@ -233,6 +370,7 @@ public abstract class AbstractStepProcessor implements StepProcessor
     {
         private final ListMultimap<String, XdmNode> ports = ArrayListMultimap.create();
         private final Step step;
+        private boolean cacheable = true;
 
         private StepOutput(final Step step)
         {
@@ -256,6 +394,16 @@ public abstract class AbstractStepProcessor implements StepProcessor
                     step.getType());
             ports.putAll(portName, nodes);
         }
+
+        /**
+         * Keeps the results of this execution out of the
+         * {@link StepResultCache}, for instance because the step read
+         * external resources that are not tracked.
+         */
+        public void setCacheable(final boolean cacheable)
+        {
+            this.cacheable = cacheable;
+        }
     }
 
     protected abstract void execute(final StepInput input, final StepOutput output) throws Exception;
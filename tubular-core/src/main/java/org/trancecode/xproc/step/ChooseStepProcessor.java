@@ -19,10 +19,15 @@
  */
 package org.trancecode.xproc.step;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmValue;
@@ -37,11 +42,25 @@ import org.trancecode.xproc.variable.Variable;
 import org.trancecode.xproc.variable.XProcOptions;
 
 /**
+ * {@code p:choose}.
+ * <p>
+ * When the {@link #PROPERTY_SPECULATIVE_EXECUTION} property is set, the branch
+ * most often taken so far starts running on the pipeline executor while the
+ * tests of the preceding branches are evaluated, provided that none of its
+ * steps writes external resources. The speculative result is discarded if a
+ * preceding branch is selected.
+ * 
  * @author Herve Quiroz
  */
 public final class ChooseStepProcessor extends AbstractCompoundStepProcessor implements CoreStepProcessor
 {
+    public static final String PROPERTY_SPECULATIVE_EXECUTION = "http://www.trancecode.org/tubular/1/property/"
+            + "speculativeChoose";
+
     private static final Logger LOG = Logger.getLogger(ChooseStepProcessor.class);
+    private static final Object NORMALIZED_WHEN_STEPS = new Object();
+    private static final Object SELECTED_BRANCHES = new Object();
+    private static final Object SIDE_EFFECT_FREE_BRANCHES = new Object();
 
     @Override
     public Step getStepDeclaration()
@@ -65,38 +84,185 @@ public final class ChooseStepProcessor extends AbstractCompoundStepProcessor imp
         assert chooseStep.isCompoundStep();
 
         final Environment stepEnvironment = environment.newFollowingStepEnvironment(chooseStep);
-        for (final Step whenStep : chooseStep.getSubpipeline())
+        if (Boolean.TRUE.equals(environment.getPipelineContext().<Object> getProperty(
+                PROPERTY_SPECULATIVE_EXECUTION)))
         {
-            assert XProcSteps.WHEN_STEPS.contains(whenStep.getType());
-            final Step normalizedWhenStep = PipelineStepProcessor.addImplicitPorts(whenStep);
-            Environment resultEnvironment = runSteps(ImmutableList.of(normalizedWhenStep), stepEnvironment);
+            return runSpeculatively(chooseStep, stepEnvironment);
+        }
 
+        for (final Step normalizedWhenStep : getNormalizedWhenSteps(chooseStep))
+        {
+            final Environment resultEnvironment = runSteps(ImmutableList.of(normalizedWhenStep), stepEnvironment);
             if (resultEnvironment != null)
             {
-                final List<EnvironmentPort> newPorts = Lists.newArrayList();
+                return setupOutputPorts(chooseStep, normalizedWhenStep, stepEnvironment, resultEnvironment);
+            }
+        }
+
+        throw XProcExceptions.xd0004(chooseStep.getLocation());
+    }
 
-                for (final Port port : normalizedWhenStep.getOutputPorts())
+    private Environment runSpeculatively(final Step chooseStep, final Environment stepEnvironment)
+    {
+        final List<Step> whenSteps = getNormalizedWhenSteps(chooseStep);
+        final AtomicLongArray selectedBranches = chooseStep.getCompiledData(SELECTED_BRANCHES,
+                () -> new AtomicLongArray(whenSteps.size()));
+        final int predictedBranch = predictBranch(chooseStep, whenSteps, selectedBranches);
+        LOG.trace("{@method} chooseStep = {} ; predictedBranch = {}", chooseStep.getName(), predictedBranch);
+
+        // The predicted branch is run the same way as the other branches, test
+        // included, so that it is reported to observers like any other step
+        final Future<Environment> speculativeResult;
+        if (predictedBranch >= 0)
+        {
+            final List<Step> predictedWhenStep = ImmutableList.of(whenSteps.get(predictedBranch));
+            speculativeResult = submit(stepEnvironment.getPipelineContext().getExecutor(),
+                    () -> runSteps(predictedWhenStep, stepEnvironment));
+        }
+        else
+        {
+            speculativeResult = null;
+        }
+
+        try
+        {
+            for (int branch = 0; branch < whenSteps.size(); branch++)
+            {
+                final Step whenStep = whenSteps.get(branch);
+                final Environment resultEnvironment;
+                if (branch == predictedBranch)
                 {
-                    final EnvironmentPort environmentPort = EnvironmentPort.newEnvironmentPort(
-                            port.setStepName(chooseStep.getName()), stepEnvironment);
-                    newPorts.add(environmentPort.pipe(resultEnvironment.getEnvironmentPort(port)));
+                    resultEnvironment = await(speculativeResult);
                 }
-
-                resultEnvironment = resultEnvironment.addPorts(newPorts);
-                final Port primaryOutputPort = normalizedWhenStep.getPrimaryOutputPort();
-                if (primaryOutputPort != null)
+                else
                 {
-                    resultEnvironment = resultEnvironment.setDefaultReadablePort(chooseStep
-                            .getPortReference(primaryOutputPort.getPortName()));
+                    resultEnvironment = runSteps(ImmutableList.of(whenStep), stepEnvironment);
                 }
 
-                return resultEnvironment;
+                if (resultEnvironment != null)
+                {
+                    selectedBranches.incrementAndGet(branch);
+                    return setupOutputPorts(chooseStep, whenStep, stepEnvironment, resultEnvironment);
+                }
+            }
+        }
+        catch (final ExecutionException e)
+        {
+            throw Throwables.propagate(e.getCause());
+        }
+        catch (final InterruptedException e)
+        {
+            throw new IllegalStateException(e);
+        }
+        finally
+        {
+            if (speculativeResult != null && !speculativeResult.isDone())
+            {
+                // The executor threads are shared with other steps: a branch
+                // that has not started is dropped, one that has started runs
+                // to completion (it has no side effects) and is discarded
+                LOG.trace("  misprediction: {}", whenSteps.get(predictedBranch).getName());
+                speculativeResult.cancel(false);
             }
         }
 
         throw XProcExceptions.xd0004(chooseStep.getLocation());
     }
 
+    /**
+     * Returns the index of the branch most often selected so far, or -1 if
+     * there is no history yet or if that branch may have side effects.
+     */
+    private static int predictBranch(final Step chooseStep, final List<Step> whenSteps,
+            final AtomicLongArray selectedBranches)
+    {
+        int predictedBranch = -1;
+        long predictedBranchCount = 0;
+        for (int branch = 0; branch < selectedBranches.length(); branch++)
+        {
+            final long count = selectedBranches.get(branch);
+            if (count > predictedBranchCount)
+            {
+                predictedBranch = branch;
+                predictedBranchCount = count;
+            }
+        }
+
+        if (predictedBranch < 0)
+        {
+            return -1;
+        }
+
+        final List<Boolean> sideEffectFreeBranches = chooseStep.getCompiledData(SIDE_EFFECT_FREE_BRANCHES,
+                () -> ImmutableList.copyOf(Iterables.transform(whenSteps, whenStep -> isSideEffectFree(whenStep))));
+        if (!sideEffectFreeBranches.get(predictedBranch))
+        {
+            return -1;
+        }
+
+        return predictedBranch;
+    }
+
+    private static boolean isSideEffectFree(final Step step)
+    {
+        if (!Iterables.isEmpty(step.getLogs()))
+        {
+            return false;
+        }
+
+        if (step.isCompoundStep())
+        {
+            for (final Step subpipelineStep : step.getSubpipeline())
+            {
+                if (!isSideEffectFree(subpipelineStep))
+                {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        final ExternalResources externalResources = step.getStepProcessor().getClass()
+                .getAnnotation(ExternalResources.class);
+        return externalResources != null && !externalResources.write();
+    }
+
+    private static Environment setupOutputPorts(final Step chooseStep, final Step whenStep,
+            final Environment stepEnvironment, final Environment whenResultEnvironment)
+    {
+        final List<EnvironmentPort> newPorts = Lists.newArrayList();
+        for (final Port port : whenStep.getOutputPorts())
+        {
+            final EnvironmentPort environmentPort = EnvironmentPort.newEnvironmentPort(
+                    port.setStepName(chooseStep.getName()), stepEnvironment);
+            newPorts.add(environmentPort.pipe(whenResultEnvironment.getEnvironmentPort(port)));
+        }
+
+        Environment resultEnvironment = whenResultEnvironment.addPorts(newPorts);
+        final Port primaryOutputPort = whenStep.getPrimaryOutputPort();
+        if (primaryOutputPort != null)
+        {
+            resultEnvironment = resultEnvironment.setDefaultReadablePort(chooseStep.getPortReference(primaryOutputPort
+                    .getPortName()));
+        }
+
+        return resultEnvironment;
+    }
+
+    private static List<Step> getNormalizedWhenSteps(final Step chooseStep)
+    {
+        return chooseStep.getCompiledData(NORMALIZED_WHEN_STEPS, () -> {
+            final ImmutableList.Builder<Step> whenSteps = ImmutableList.builder();
+            for (final Step whenStep : chooseStep.getSubpipeline())
+            {
+                assert XProcSteps.WHEN_STEPS.contains(whenStep.getType());
+                whenSteps.add(PipelineStepProcessor.addImplicitPorts(whenStep));
+            }
+            return whenSteps.build();
+        });
+    }
+
     public static final class WhenStepProcessor extends AbstractWhenStepProcessor
     {
         @Override
@@ -120,7 +286,7 @@ public final class ChooseStepProcessor extends AbstractCompoundStepProcessor imp
             final Environment resultEnvironment = environment.newChildStepEnvironment();
             final String test = whenStep.getVariable(XProcOptions.TEST).getValue();
             LOG.trace("test = {}", test);
-            final XdmValue result = resultEnvironment.evaluateXPath(test);
+            final XdmValue result = resultEnvironment.evaluateXPath(test, whenStep);
             LOG.trace("result = {}", result);
             return Saxon.isTrue(result);
         }
@@ -163,7 +329,7 @@ public final class ChooseStepProcessor extends AbstractCompoundStepProcessor imp
                 return null;
             }
 
-            final Environment resultEnvironment = runSteps(whenStep.getSubpipeline(), stepEnvironment);
+            final Environment resultEnvironment = runSubpipeline(whenStep, stepEnvironment);
 
             return stepEnvironment.setupOutputPorts(whenStep, resultEnvironment);
         }
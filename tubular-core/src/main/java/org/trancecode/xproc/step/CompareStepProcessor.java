@@ -19,17 +19,10 @@
  */
 package org.trancecode.xproc.step;
 
-import com.google.common.collect.Iterables;
-import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
-import net.sf.saxon.s9api.SaxonApiException;
-import net.sf.saxon.s9api.XPathCompiler;
-import net.sf.saxon.s9api.XPathSelector;
-import net.sf.saxon.s9api.XdmAtomicValue;
-import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
-import net.sf.saxon.s9api.XdmValue;
 import org.trancecode.logging.Logger;
+import org.trancecode.xml.saxon.SaxonDeepEqual;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.port.XProcPorts;
 import org.trancecode.xproc.variable.XProcOptions;
@@ -56,7 +49,8 @@ public final class CompareStepProcessor extends AbstractStepProcessor
     {
         final XdmNode sourceNode = input.readNode(XProcPorts.SOURCE);
         final XdmNode alternateNode = input.readNode(XProcPorts.ALTERNATE);
-        final boolean result = compare(input.getPipelineContext().getProcessor(), sourceNode, alternateNode);
+        final boolean result = SaxonDeepEqual.deepEqual(sourceNode, alternateNode, input.getPipelineContext()
+                .getProcessor());
         LOG.trace("  result = {}", result);
         final boolean failIfNotEqual = Boolean.parseBoolean(input.getOptionValue(XProcOptions.FAIL_IF_NOT_EQUAL));
         LOG.trace("  failIfNotEqual = {}", failIfNotEqual);
@@ -67,29 +61,4 @@ public final class CompareStepProcessor extends AbstractStepProcessor
 
         output.writeNodes(XProcPorts.RESULT, input.newResultElement(Boolean.toString(result)));
     }
-
-    private static boolean compare(final Processor processor, final XdmNode sourceNode, final XdmNode alternateNode)
-    {
-        try
-        {
-            final XPathCompiler xpathCompiler = processor.newXPathCompiler();
-            final QName node1 = new QName("node1");
-            final QName node2 = new QName("node2");
-            xpathCompiler.declareVariable(node1);
-            xpathCompiler.declareVariable(node2);
-
-            final XPathSelector selector = xpathCompiler.compile("deep-equal($node1, $node2)").load();
-            selector.setVariable(node1, sourceNode);
-            selector.setVariable(node2, alternateNode);
-
-            final XdmValue result = selector.evaluate();
-            final XdmItem resultNode = Iterables.getOnlyElement(result);
-            assert resultNode.isAtomicValue() : resultNode;
-            return ((XdmAtomicValue) resultNode).getBooleanValue();
-        }
-        catch (final SaxonApiException e)
-        {
-            throw new IllegalStateException(e);
-        }
-    }
 }
@@ -19,8 +19,9 @@
  */
 package org.trancecode.xproc.step;
 
-import com.google.common.collect.Iterables;
+import java.util.Iterator;
 import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
 import org.trancecode.logging.Logger;
 import org.trancecode.xproc.port.XProcPorts;
 import org.trancecode.xproc.variable.XProcOptions;
@@ -45,12 +46,17 @@ public final class CountStepProcessor extends AbstractStepProcessor
     @Override
     protected void execute(final StepInput input, final StepOutput output)
     {
-        // TODO improve performance with "limit" option
-        final int count = Iterables.size(input.readNodes(XProcPorts.SOURCE));
-        LOG.trace("  count = {}", count);
         final int limit = Integer.parseInt(input.getOptionValue(XProcOptions.LIMIT, "0"));
         LOG.trace("  limit = {}", limit);
-        final int result = limit > 0 ? Math.min(count, limit) : count;
+
+        // Stop reading the source port once the limit is reached
+        int result = 0;
+        final Iterator<XdmNode> nodes = input.iterateNodes(XProcPorts.SOURCE).iterator();
+        while ((limit <= 0 || result < limit) && nodes.hasNext())
+        {
+            nodes.next();
+            result++;
+        }
         LOG.trace("  result = {}", result);
 
         output.writeNodes(XProcPorts.RESULT, input.newResultElement(Integer.toString(result)));
@@ -43,7 +43,7 @@ import org.trancecode.xproc.variable.XProcOptions;
  * @see <a
  *      href="http://www.w3.org/TR/xproc/#c.directory-list">p:directory-list</a>
  */
-@ExternalResources(read = false, write = false)
+@ExternalResources(read = true, write = false)
 public final class DirectoryListStepProcessor extends AbstractStepProcessor
 {
     private static final Logger LOG = Logger.getLogger(DirectoryListStepProcessor.class);
@@ -23,7 +23,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMap.Builder;
 import com.google.common.io.Closeables;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Writer;
 import java.util.Map;
 
 import net.sf.saxon.s9api.QName;
@@ -71,14 +71,20 @@ public final class EscapeMarkupStepProcessor extends AbstractStepProcessor
         LOG.trace("  options = {}", serializationOptions);
 
         final XdmNode root = SaxonAxis.childElement(node);
-        final ByteArrayOutputStream targetOutputStream = new ByteArrayOutputStream();
-        final Serializer serializer = Steps.getSerializer(targetOutputStream, serializationOptions,
-          input.getPipelineContext().getProcessor());
+        final SaxonBuilder builder = new SaxonBuilder(input.getPipelineContext().getProcessor()
+                .getUnderlyingConfiguration());
+        builder.startDocument();
+        builder.startElement(root.getNodeName());
+        builder.startContent();
 
+        // The serialized markup is added as text while it is being serialized
+        final Writer textWriter = builder.newTextWriter();
+        final Serializer serializer = Steps.getSerializer(textWriter, serializationOptions,
+          input.getPipelineContext().getProcessor());
         try
         {
             input.getPipelineContext().getProcessor().writeXdmValue(SaxonAxis.childElement(root), serializer);
-            targetOutputStream.close();
+            textWriter.close();
         }
         catch (final Exception e)
         {
@@ -86,15 +92,9 @@ public final class EscapeMarkupStepProcessor extends AbstractStepProcessor
         }
         finally
         {
-            Closeables.closeQuietly(targetOutputStream);
+            Closeables.closeQuietly(textWriter);
         }
 
-        final SaxonBuilder builder = new SaxonBuilder(input.getPipelineContext().getProcessor()
-                .getUnderlyingConfiguration());
-        builder.startDocument();
-        builder.startElement(root.getNodeName());
-        builder.startContent();
-        builder.text(new String(targetOutputStream.toByteArray()));
         builder.endElement();
         builder.endDocument();
         output.writeNodes(XProcPorts.RESULT, builder.getNode());
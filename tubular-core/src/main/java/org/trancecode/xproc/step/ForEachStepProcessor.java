@@ -20,22 +20,23 @@
 package org.trancecode.xproc.step;
 
 import com.google.common.base.Function;
-import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
-import org.trancecode.concurrent.TcFutures;
+import org.trancecode.collection.PersistentSequence;
+import org.trancecode.event.EventDispatcher;
 import org.trancecode.logging.Logger;
 import org.trancecode.xproc.Environment;
 import org.trancecode.xproc.binding.InlinePortBinding;
+import org.trancecode.xproc.event.AfterIterationStepEvent;
+import org.trancecode.xproc.event.BeforeIterationStepEvent;
+import org.trancecode.xproc.event.FlightRecorderEvents;
+import org.trancecode.xproc.event.XProcEvent;
 import org.trancecode.xproc.port.EnvironmentPort;
 import org.trancecode.xproc.port.Port;
 import org.trancecode.xproc.port.XProcPorts;
@@ -43,10 +44,21 @@ import org.trancecode.xproc.xpath.IterationPositionXPathExtensionFunction;
 import org.trancecode.xproc.xpath.IterationSizeXPathExtensionFunction;
 
 /**
+ * {@code p:for-each}.
+ * 
  * @author Herve Quiroz
  */
 public final class ForEachStepProcessor extends AbstractCompoundStepProcessor implements CoreStepProcessor
 {
+    /**
+     * The maximum number of iterations submitted to the pipeline executor at
+     * a time, the number of available processors by default. As with
+     * {@link ViewportStepProcessor#PROPERTY_CONCURRENCY}, it may exceed the
+     * size of a bounded thread pool.
+     */
+    public static final String PROPERTY_CONCURRENCY = "http://www.trancecode.org/tubular/1/property/"
+            + "forEachConcurrency";
+
     private static final Logger LOG = Logger.getLogger(ForEachStepProcessor.class);
 
     @Override
@@ -91,6 +103,7 @@ public final class ForEachStepProcessor extends AbstractCompoundStepProcessor im
                 final int oldIterationPosition = IterationPositionXPathExtensionFunction
                         .setIterationPosition(iterationPosition);
                 final int oldIterationSize = IterationSizeXPathExtensionFunction.setIterationSize(iterationSize);
+                final Environment oldEnvironment = Environment.getCurrentEnvironment();
                 try
                 {
                     final EnvironmentPort iterationPort = EnvironmentPort.newEnvironmentPort(
@@ -101,50 +114,71 @@ public final class ForEachStepProcessor extends AbstractCompoundStepProcessor im
                     iterationEnvironment = iterationEnvironment.setXPathContextPort(iterationPort);
                     iterationEnvironment = iterationEnvironment.setupVariables(step);
                     iterationEnvironment.setCurrentEnvironment();
-                    Environment resultEnvironment = runSteps(step.getSubpipeline(), iterationEnvironment);
+                    final EventDispatcher<XProcEvent> eventDispatcher = environment.getPipelineContext()
+                            .getEventDispatcher();
+                    if (eventDispatcher.hasObservers())
+                    {
+                        eventDispatcher.notify(new BeforeIterationStepEvent(environment.getPipeline(), step,
+                                iterationEnvironment, iterationPosition, iterationSize));
+                    }
+                    final Object flightEvent = FlightRecorderEvents.beginIteration();
+                    Environment resultEnvironment;
+                    try
+                    {
+                        resultEnvironment = runSubpipeline(step, iterationEnvironment);
+                    }
+                    finally
+                    {
+                        FlightRecorderEvents.endIteration(flightEvent, step, environment.getPipelineContext(),
+                                iterationPosition, iterationSize);
+                    }
                     resultEnvironment = stepEnvironment.setupOutputPorts(step, resultEnvironment);
                     Steps.writeLogs(step, resultEnvironment);
+                    if (eventDispatcher.hasObservers())
+                    {
+                        eventDispatcher.notify(new AfterIterationStepEvent(environment.getPipeline(), step,
+                                iterationEnvironment, resultEnvironment, iterationPosition, iterationSize));
+                    }
                     return resultEnvironment;
                 }
                 finally
                 {
                     IterationPositionXPathExtensionFunction.setIterationPosition(oldIterationPosition);
                     IterationSizeXPathExtensionFunction.setIterationSize(oldIterationSize);
+                    Environment.setCurrentEnvironment(oldEnvironment);
                 }
             });
         }
 
-        LOG.trace("  {}: submitting {size} iteration tasks...", step, tasks);
-        final Iterable<Future<Environment>> futureResultEnvironments = TcFutures.submit(environment
-                .getPipelineContext().getExecutor(), tasks);
-        final Iterable<Environment> iterationResultEnvironments;
-        try
-        {
-            iterationResultEnvironments = ImmutableList.copyOf(TcFutures.get(futureResultEnvironments, true));
-        }
-        catch (final ExecutionException e)
+        LOG.trace("  {}: running {size} iteration tasks...", step, tasks);
+        // The outputs of each iteration are merged, in order, as soon as the
+        // iteration is done, so that the environment of the iteration can be
+        // reclaimed while the following iterations are running
+        final List<Port> outputPorts = ImmutableList.copyOf(step.getOutputPorts());
+        final List<PersistentSequence<XdmNode>> resultNodes = Lists.newArrayListWithCapacity(outputPorts.size());
+        for (int i = 0; i < outputPorts.size(); i++)
         {
-            throw Throwables.propagate(e.getCause());
-        }
-        catch (final InterruptedException e)
-        {
-            throw new IllegalStateException(e);
+            resultNodes.add(PersistentSequence.<XdmNode> empty());
         }
+        runIterations(tasks, getConcurrency(environment, PROPERTY_CONCURRENCY), environment.getPipelineContext()
+                .getExecutor(), iterationResultEnvironment -> {
+            for (int i = 0; i < outputPorts.size(); i++)
+            {
+                resultNodes.set(i, resultNodes.get(i).appendAll(
+                        iterationResultEnvironment.readNodes(outputPorts.get(i).getPortReference())));
+            }
+        });
         LOG.trace("  {}: done executing iteration tasks", step);
 
-        LOG.trace("  {}: merging output ports from iteration tasks...", step);
         Environment resultEnvironment = stepEnvironment;
-        for (final Port outputPort : step.getOutputPorts())
+        for (int i = 0; i < outputPorts.size(); i++)
         {
-            LOG.trace("    port = {}", outputPort);
+            final Port outputPort = outputPorts.get(i);
+            LOG.trace("    port = {} ; resultNodes = {size}", outputPort, resultNodes.get(i));
             resultEnvironment = resultEnvironment.addPorts(EnvironmentPort.newEnvironmentPort(
                     Port.newOutputPort(step.getName(), outputPort.getPortName(), outputPort.getLocation()),
                     stepEnvironment));
-
-            final Iterable<XdmNode> resultNodes = ImmutableList.copyOf(Iterables.concat(Iterables.transform(
-                    iterationResultEnvironments, environment1 -> environment1.readNodes(outputPort.getPortReference()))));
-            LOG.trace("     resultNodes = {size}", resultNodes);
-            resultEnvironment = resultEnvironment.writeNodes(outputPort.getPortReference(), resultNodes);
+            resultEnvironment = resultEnvironment.writeNodes(outputPort.getPortReference(), resultNodes.get(i));
         }
 
         resultEnvironment = resultEnvironment.setPrimaryOutputPortAsDefaultReadablePort(step, stepEnvironment);
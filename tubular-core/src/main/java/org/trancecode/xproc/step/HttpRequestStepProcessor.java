@@ -114,8 +114,16 @@ public final class HttpRequestStepProcessor extends AbstractStepProcessor
         {
             final ResponseHandler<XProcHttpResponse> responseHandler = new HttpResponseHandler(processor,
                     xProcRequest.isDetailled(), xProcRequest.isStatusOnly(), xProcRequest.getOverrideContentType());
-            final XProcHttpResponse response = httpClient.execute(xProcRequest.getHttpRequest(), responseHandler,
-                    localContext);
+            final long startTime = System.nanoTime();
+            final XProcHttpResponse response;
+            try
+            {
+                response = httpClient.execute(xProcRequest.getHttpRequest(), responseHandler, localContext);
+            }
+            finally
+            {
+                input.getPipelineContext().getMetrics().httpRequest(System.nanoTime() - startTime);
+            }
             final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
             builder.startDocument();
             if (response.getNodes() != null)
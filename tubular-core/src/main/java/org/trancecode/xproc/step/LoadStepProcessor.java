@@ -19,8 +19,11 @@
  */
 package org.trancecode.xproc.step;
 
+import com.google.common.io.CountingInputStream;
+import java.io.File;
 import java.net.URI;
 import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
@@ -66,11 +69,13 @@ public final class LoadStepProcessor extends AbstractStepProcessor
         {
             final Source source = input.getPipelineContext().getUriResolver()
                     .resolve(href, input.getBaseUri().toString());
+            final CountingInputStream countingInputStream = countBytes(source);
             try
             {
                 final DocumentBuilder documentBuilder = input.getPipelineContext().getProcessor().newDocumentBuilder();
                 documentBuilder.setDTDValidation(validate);
                 document = documentBuilder.build(source);
+                input.getPipelineContext().getMetrics().bytesLoaded(loadedBytes(source, countingInputStream));
             }
             finally
             {
@@ -91,4 +96,41 @@ public final class LoadStepProcessor extends AbstractStepProcessor
         }
         output.writeNodes(XProcPorts.RESULT, document);
     }
+
+    private static CountingInputStream countBytes(final Source source)
+    {
+        if (source instanceof StreamSource && ((StreamSource) source).getInputStream() != null)
+        {
+            final CountingInputStream countingInputStream = new CountingInputStream(
+                    ((StreamSource) source).getInputStream());
+            ((StreamSource) source).setInputStream(countingInputStream);
+            return countingInputStream;
+        }
+
+        return null;
+    }
+
+    private static long loadedBytes(final Source source, final CountingInputStream countingInputStream)
+    {
+        if (countingInputStream != null)
+        {
+            return countingInputStream.getCount();
+        }
+
+        // The parser opened the resource itself, only local files can be sized
+        final String systemId = source.getSystemId();
+        if (systemId != null && systemId.startsWith("file:"))
+        {
+            try
+            {
+                return new File(URI.create(systemId)).length();
+            }
+            catch (final IllegalArgumentException e)
+            {
+                LOG.trace("{@method} systemId = {} ; {message}", systemId, e);
+            }
+        }
+
+        return 0;
+    }
 }
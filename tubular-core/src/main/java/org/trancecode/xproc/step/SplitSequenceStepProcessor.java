@@ -22,9 +22,11 @@ package org.trancecode.xproc.step;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
+import net.sf.saxon.expr.StaticProperty;
 import net.sf.saxon.om.FocusTrackingIterator;
 import net.sf.saxon.om.Item;
 import net.sf.saxon.om.NodeInfo;
+import net.sf.saxon.om.SequenceIterator;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
@@ -43,12 +45,17 @@ import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.port.XProcPorts;
 import org.trancecode.xproc.variable.XProcOptions;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * {@code p:split-sequence}.
+ * <p>
+ * Documents are routed as they are read from the source port, unless the test
+ * expression depends on {@code last()} in which case the whole sequence has to
+ * be read first.
  * 
  * @author Emmanuel Tourdot
  * @see <a
@@ -58,6 +65,7 @@ import java.util.concurrent.atomic.AtomicBoolean;
 public final class SplitSequenceStepProcessor extends AbstractStepProcessor
 {
     private static final Logger LOG = Logger.getLogger(SplitSequenceStepProcessor.class);
+    private static final Object COMPILED_TEST = new Object();
 
     @Override
     public QName getStepType()
@@ -68,55 +76,60 @@ public final class SplitSequenceStepProcessor extends AbstractStepProcessor
     @Override
     protected void execute(final StepInput input, final StepOutput output)
     {
-        final Iterable<XdmNode> nodes = input.readNodes(XProcPorts.SOURCE);
-        LOG.trace("nodes = {}", nodes);
         final String test = input.getOptionValue(XProcOptions.TEST);
         assert test != null;
         final Processor processor = input.getPipelineContext().getProcessor();
         final boolean initialOnly = Boolean.parseBoolean(input.getOptionValue(XProcOptions.INITIAL_ONLY, "false"));
 
-        // Transform element's node to document's node needed by xpath test
-        final Function<XdmNode, NodeInfo> eltToDoc = node -> Saxon.asDocumentNode(node, processor).getUnderlyingNode();
-        final List<NodeInfo> docs = ImmutableList.copyOf(Iterables.transform(nodes, eltToDoc));
-
         try
         {
-            final XPathCompiler xpathCompiler = processor.newXPathCompiler();
-            xpathCompiler.setSchemaAware(true);
-            for (Map.Entry<String, String> namespace : SaxonNamespaces.namespaceSequence(input.getStep().getNode()))
+            final XPathExpression xpathExpression = getCompiledTest(input.getStep(), test, processor)
+                    .getUnderlyingExpression();
+            final boolean dependsOnLast = (xpathExpression.getInternalExpression().getDependencies()
+                    & StaticProperty.DEPENDS_ON_LAST) != 0;
+            LOG.trace("dependsOnLast = {}", dependsOnLast);
+
+            // Transform element's node to document's node needed by xpath test
+            final Function<XdmNode, NodeInfo> eltToDoc = node -> Saxon.asDocumentNode(node, processor)
+                    .getUnderlyingNode();
+            final Iterable<NodeInfo> docs = Iterables.transform(input.iterateNodes(XProcPorts.SOURCE), eltToDoc);
+            final SequenceIterator docIterator;
+            if (dependsOnLast)
             {
-                xpathCompiler.declareNamespace(namespace.getKey(), namespace.getValue());
+                docIterator = new ListIterator(ImmutableList.copyOf(docs));
             }
-            final XPathExecutable xpathExecutable = xpathCompiler.compile(test);
-            final ListIterator nodeIterator = new ListIterator(docs);
-            final AtomicBoolean reached = new AtomicBoolean(false);
-            while (nodeIterator.hasNext())
+            else
             {
-                final NodeInfo doc = (NodeInfo) nodeIterator.next();
+                docIterator = new NodeSequenceIterator(docs.iterator());
+            }
 
-                final AtomicBoolean pass = new AtomicBoolean(false);
-                final XPathExpression xpathExpression = xpathExecutable.getUnderlyingExpression();
+            final FocusTrackingIterator focusIterator = new FocusTrackingIterator(docIterator);
+            boolean reached = false;
+            for (NodeInfo doc = (NodeInfo) focusIterator.next(); doc != null; doc = (NodeInfo) focusIterator.next())
+            {
                 final XPathDynamicContext xpathDynamicContext = xpathExpression.createDynamicContext(doc);
-                xpathDynamicContext.getXPathContextObject().setCurrentIterator(new FocusTrackingIterator(nodeIterator));
+                xpathDynamicContext.getXPathContextObject().setCurrentIterator(focusIterator);
                 final List<Item> results = xpathExpression.evaluate(xpathDynamicContext);
+                final boolean pass;
                 if (results.isEmpty())
                 {
-                    pass.set(false);
-                    reached.set(initialOnly);
+                    pass = false;
                 }
                 else
                 {
                     final Item item = results.get(0);
                     if (item instanceof BooleanValue)
                     {
-                        pass.set(((BooleanValue) item).getBooleanValue());
+                        pass = ((BooleanValue) item).getBooleanValue();
                     }
                     else
                     {
-                        pass.set(item != null);
+                        pass = item != null;
                     }
                 }
-                if (pass.get() && !reached.get())
+                reached |= !pass && initialOnly;
+
+                if (pass && !reached)
                 {
                     output.writeNodes(XProcPorts.MATCHED, new XdmNode(doc));
                 }
@@ -131,4 +144,80 @@ public final class SplitSequenceStepProcessor extends AbstractStepProcessor
             throw XProcExceptions.xd0023(input.getLocation(), test, xpe.getMessage());
         }
     }
+
+    /**
+     * Returns the compiled test expression, reusing the one compiled by the
+     * previous run of the step as long as the test does not change. Only one
+     * expression is kept per step, as the test may be computed at runtime.
+     */
+    private static XPathExecutable getCompiledTest(final Step step, final String test, final Processor processor)
+            throws SaxonApiException
+    {
+        final AtomicReference<CompiledTest> compiledTest = step.getCompiledData(COMPILED_TEST,
+                () -> new AtomicReference<CompiledTest>());
+        final CompiledTest previousTest = compiledTest.get();
+        if (previousTest != null && previousTest.test.equals(test))
+        {
+            return previousTest.xpathExecutable;
+        }
+
+        final XPathCompiler xpathCompiler = processor.newXPathCompiler();
+        xpathCompiler.setSchemaAware(true);
+        for (final Map.Entry<String, String> namespace : SaxonNamespaces.namespaceSequence(step.getNode()))
+        {
+            xpathCompiler.declareNamespace(namespace.getKey(), namespace.getValue());
+        }
+        final XPathExecutable xpathExecutable = xpathCompiler.compile(test);
+        compiledTest.set(new CompiledTest(test, xpathExecutable));
+        return xpathExecutable;
+    }
+
+    private static final class CompiledTest
+    {
+        private final String test;
+        private final XPathExecutable xpathExecutable;
+
+        public CompiledTest(final String test, final XPathExecutable xpathExecutable)
+        {
+            this.test = test;
+            this.xpathExecutable = xpathExecutable;
+        }
+    }
+
+    /**
+     * Iterates over documents as they are read, without knowing the length of
+     * the sequence.
+     */
+    private static final class NodeSequenceIterator implements SequenceIterator
+    {
+        private final Iterator<NodeInfo> nodes;
+
+        public NodeSequenceIterator(final Iterator<NodeInfo> nodes)
+        {
+            this.nodes = nodes;
+        }
+
+        @Override
+        public Item next()
+        {
+            if (nodes.hasNext())
+            {
+                return nodes.next();
+            }
+
+            return null;
+        }
+
+        @Override
+        public void close()
+        {
+            // Nothing to release
+        }
+
+        @Override
+        public int getProperties()
+        {
+            return 0;
+        }
+    }
 }
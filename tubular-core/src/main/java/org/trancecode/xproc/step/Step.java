@@ -37,6 +37,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
@@ -46,6 +48,7 @@ import org.trancecode.collection.TcIterables;
 import org.trancecode.collection.TcLists;
 import org.trancecode.collection.TcMaps;
 import org.trancecode.collection.TcSets;
+import org.trancecode.event.EventDispatcher;
 import org.trancecode.lang.TcObjects;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.AbstractHasLocation;
@@ -58,6 +61,9 @@ import org.trancecode.xproc.binding.DocumentPortBinding;
 import org.trancecode.xproc.binding.PipePortBinding;
 import org.trancecode.xproc.binding.PortBinding;
 import org.trancecode.xproc.binding.PortBindingPredicates;
+import org.trancecode.xproc.event.AfterExecuteStepEvent;
+import org.trancecode.xproc.event.BeforeExecuteStepEvent;
+import org.trancecode.xproc.event.XProcEvent;
 import org.trancecode.xproc.port.Port;
 import org.trancecode.xproc.port.PortFunctions;
 import org.trancecode.xproc.port.PortPredicates;
@@ -76,6 +82,8 @@ public final class Step extends AbstractHasLocation implements StepContainer
     private static final Map<String, Port> EMPTY_PORT_MAP = ImmutableMap.of();
     private static final List<Step> EMPTY_STEP_LIST = ImmutableList.of();
     private static final Iterable<Log> EMPTY_LOG_LIST = ImmutableList.of();
+    private static final Object SUBPIPELINE_PORT_READERS = new Object();
+    private static final Object SUBPIPELINE_STEP_DEPENDENCIES = new Object();
 
     private final Predicate<Port> PREDICATE_IS_XPATH_CONTEXT_PORT = port -> isXPathContextPort(port);
 
@@ -94,7 +102,7 @@ public final class Step extends AbstractHasLocation implements StepContainer
     private final Iterable<Log> logs;
 
     private final Supplier<Integer> hashCode;
-    private Map<Step, Iterable<Step>> dependencies;
+    private volatile ConcurrentMap<Object, Object> compiledData = new ConcurrentHashMap<>();
 
     public static final class Log
     {
@@ -309,7 +317,21 @@ public final class Step extends AbstractHasLocation implements StepContainer
     public Environment run(final Environment environment)
     {
         LOG.trace("{@method} step = {} ; type = {}", name, type);
-        return stepProcessor.run(this, environment);
+        final EventDispatcher<XProcEvent> eventDispatcher = environment.getPipelineContext().getEventDispatcher();
+        if (eventDispatcher.hasObservers())
+        {
+            eventDispatcher.notify(new BeforeExecuteStepEvent(environment.getPipeline(), this, environment));
+        }
+
+        final Environment resultEnvironment = stepProcessor.run(this, environment);
+
+        if (eventDispatcher.hasObservers())
+        {
+            eventDispatcher.notify(new AfterExecuteStepEvent(environment.getPipeline(), this, environment,
+                    resultEnvironment));
+        }
+
+        return resultEnvironment;
     }
 
     @ReturnsNullable
@@ -484,10 +506,10 @@ public final class Step extends AbstractHasLocation implements StepContainer
             final XdmNode node, final PortBinding portBinding)
     {
         Preconditions.checkArgument(!parameters.containsKey(name), "parameter already set: %s", name);
-        return new Step(node, type, this.name, internalName, location, stepProcessor, compoundStep, variables,
+        return new Step(this.node, type, this.name, internalName, location, stepProcessor, compoundStep, variables,
                 TcMaps.copyAndPut(parameters, name,
                         Variable.newParameter(name, location).setSelect(select).setValue(value).setNode(node)
-                                .setPortBinding(portBinding)), ports, steps, logs);
+                                .setPortBinding(portBinding)), ports, steps, logs).shareCompiledData(this);
     }
 
     public Step withOptionValue(final QName name, final String value)
@@ -501,8 +523,9 @@ public final class Step extends AbstractHasLocation implements StepContainer
         Preconditions.checkArgument(option != null, "no such option: %s", name);
         Preconditions.checkArgument(option.isOption(), "not an options: %s", name);
 
-        return new Step(node, type, this.name, internalName, location, stepProcessor, compoundStep, TcMaps.copyAndPut(
-                variables, name, option.setValue(value).setNode(node)), parameters, ports, steps, logs);
+        return new Step(this.node, type, this.name, internalName, location, stepProcessor, compoundStep,
+                TcMaps.copyAndPut(variables, name, option.setValue(value).setNode(node)), parameters, ports, steps,
+                logs).shareCompiledData(this);
     }
 
     public boolean hasOptionDeclared(final QName name)
@@ -541,8 +564,14 @@ public final class Step extends AbstractHasLocation implements StepContainer
     {
         assert ports.containsKey(port.getPortName());
 
-        return new Step(node, type, name, internalName, location, stepProcessor, compoundStep, variables, parameters,
-                TcMaps.copyAndPut(ports, port.getPortName(), port), steps, logs);
+        final Step step = new Step(node, type, name, internalName, location, stepProcessor, compoundStep, variables,
+                parameters, TcMaps.copyAndPut(ports, port.getPortName(), port), steps, logs);
+        if (port.isInput())
+        {
+            return step.shareCompiledData(this);
+        }
+
+        return step;
     }
 
     @ReturnsNullable
@@ -685,15 +714,163 @@ public final class Step extends AbstractHasLocation implements StepContainer
         return true;
     }
 
+    /**
+     * Returns data derived from this step (such as compiled expressions),
+     * computing it on first use. Steps are immutable so the data remains valid
+     * for the lifetime of this object.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T getCompiledData(final Object key, final Supplier<T> supplier)
+    {
+        Object data = compiledData.get(key);
+        if (data == null)
+        {
+            data = supplier.get();
+            final Object previousData = compiledData.putIfAbsent(key, data);
+            if (previousData != null)
+            {
+                data = previousData;
+            }
+        }
+
+        return (T) data;
+    }
+
+    /**
+     * Makes this new step share the compiled data of the given step, for a copy
+     * that only differs by the values of its options and parameters or by the
+     * bindings of its input ports, none of which the compiled data depends on.
+     * Data computed for either step is then available to the other one, such
+     * as a pipeline and its copy bound to the inputs of a run.
+     */
+    private Step shareCompiledData(final Step step)
+    {
+        assert compiledData.isEmpty();
+        compiledData = step.compiledData;
+        return this;
+    }
+
     protected Map<Step, Iterable<Step>> getSubpipelineStepDependencies()
     {
         Preconditions.checkState(isCompoundStep(), "not a compound step: %s", getName());
-        if (dependencies == null)
+        return getCompiledData(SUBPIPELINE_STEP_DEPENDENCIES,
+                () -> ImmutableMap.copyOf(getSubpipelineStepDependencies(getSubpipeline())));
+    }
+
+    /**
+     * Returns the output ports of the subpipeline steps that can be released
+     * once all the steps reading them have completed, along with those steps.
+     * <p>
+     * A step reads the ports of the steps it depends on, of the steps they
+     * depend on when they have no primary output port (and thus forward their
+     * default readable port), and of the steps that it or any of its
+     * descendants pipe from. Ports that are piped to the output ports of this
+     * step, and the ports of the last step with a primary output port, are
+     * read after the subpipeline has completed and are never released.
+     */
+    protected Map<PortReference, Iterable<Step>> getSubpipelinePortReaders()
+    {
+        Preconditions.checkState(isCompoundStep(), "not a compound step: %s", getName());
+        return getCompiledData(SUBPIPELINE_PORT_READERS, () -> {
+            final Map<String, Step> subpipelineStepByName = Maps.newHashMap();
+            for (final Step step : getSubpipeline())
+            {
+                subpipelineStepByName.put(step.getName(), step);
+            }
+
+            final Set<PortReference> pipedToOutputPorts = Sets.newHashSet();
+            for (final PipePortBinding portBinding : Iterables.filter(getOutputPortBindings(), PipePortBinding.class))
+            {
+                pipedToOutputPorts.add(portBinding.getPortReference());
+            }
+
+            final Map<Step, Iterable<Step>> dependencies = getSubpipelineStepDependencies();
+            final Map<Step, Set<Step>> readSteps = Maps.newHashMap();
+            final Map<Step, Set<Step>> readers = Maps.newLinkedHashMap();
+            Step defaultReadablePortStep = null;
+            for (final Step step : getSubpipeline())
+            {
+                final Set<Step> stepReadSteps = Sets.newHashSet();
+                for (final Step dependency : dependencies.get(step))
+                {
+                    stepReadSteps.add(dependency);
+                    if (dependency.getPrimaryOutputPort() == null)
+                    {
+                        stepReadSteps.addAll(readSteps.get(dependency));
+                    }
+                }
+                for (final PortReference portReference : step.getPipedPortReferences())
+                {
+                    final Step pipedStep = subpipelineStepByName.get(portReference.getStepName());
+                    if (pipedStep != null && pipedStep != step)
+                    {
+                        stepReadSteps.add(pipedStep);
+                    }
+                }
+                readSteps.put(step, stepReadSteps);
+
+                for (final Step readStep : stepReadSteps)
+                {
+                    if (!readers.containsKey(readStep))
+                    {
+                        readers.put(readStep, Sets.<Step> newHashSet());
+                    }
+                    readers.get(readStep).add(step);
+                }
+                if (step.getPrimaryOutputPort() != null)
+                {
+                    defaultReadablePortStep = step;
+                }
+            }
+
+            final Map<PortReference, Iterable<Step>> portReaders = Maps.newLinkedHashMap();
+            for (final Entry<Step, Set<Step>> writeStepReaders : readers.entrySet())
+            {
+                if (writeStepReaders.getKey() == defaultReadablePortStep)
+                {
+                    continue;
+                }
+
+                for (final Port port : writeStepReaders.getKey().getOutputPorts())
+                {
+                    if (!pipedToOutputPorts.contains(port.getPortReference()))
+                    {
+                        portReaders.put(port.getPortReference(), ImmutableSet.copyOf(writeStepReaders.getValue()));
+                    }
+                }
+            }
+
+            LOG.trace("{@method} step = {} ; portReaders = {}", getName(), portReaders);
+            return ImmutableMap.copyOf(portReaders);
+        });
+    }
+
+    /**
+     * Returns the ports that this step or any of its descendants read through
+     * a pipe binding.
+     */
+    private Set<PortReference> getPipedPortReferences()
+    {
+        final Set<PortReference> portReferences = Sets.newHashSet();
+        final Iterable<PortBinding> portBindings = Iterables.concat(Iterables.transform(ports.values(),
+                PortFunctions.getPortBindings()));
+        for (final PipePortBinding portBinding : Iterables.filter(portBindings, PipePortBinding.class))
+        {
+            portReferences.add(portBinding.getPortReference());
+        }
+        for (final Variable variable : Iterables.concat(variables.values(), parameters.values()))
+        {
+            if (variable.getPortBinding() instanceof PipePortBinding)
+            {
+                portReferences.add(((PipePortBinding) variable.getPortBinding()).getPortReference());
+            }
+        }
+        for (final Step step : steps)
         {
-            dependencies = getSubpipelineStepDependencies(getSubpipeline());
+            portReferences.addAll(step.getPipedPortReferences());
         }
 
-        return dependencies;
+        return portReferences;
     }
 
     protected static Map<Step, Iterable<Step>> getSubpipelineStepDependencies(final Iterable<Step> steps)
@@ -27,6 +27,7 @@ import com.google.common.collect.ImmutableSet;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.charset.Charset;
@@ -155,6 +156,21 @@ public final class Steps
     {
         final Serializer serializer = processor.newSerializer();
         serializer.setOutputStream(stream);
+        setOutputProperties(serializer, options);
+        return serializer;
+    }
+
+    public static Serializer getSerializer(final Writer writer, final Map<QName, Object> options,
+            final Processor processor)
+    {
+        final Serializer serializer = processor.newSerializer();
+        serializer.setOutputWriter(writer);
+        setOutputProperties(serializer, options);
+        return serializer;
+    }
+
+    private static void setOutputProperties(final Serializer serializer, final Map<QName, Object> options)
+    {
         if (options.containsKey(XProcOptions.DOCTYPE_PUBLIC))
         {
             serializer.setOutputProperty(Serializer.Property.DOCTYPE_PUBLIC, options.get(XProcOptions.DOCTYPE_PUBLIC)
@@ -176,7 +192,6 @@ public final class Steps
                 TcBooleans.getValue((Boolean) options.get(XProcOptions.INDENT)) ? "yes" : "no");
         serializer.setOutputProperty(Serializer.Property.INCLUDE_CONTENT_TYPE,
                 TcBooleans.getValue((Boolean) options.get(XProcOptions.INCLUDE_CONTENT_TYPE)) ? "yes" : "no");
-        return serializer;
     }
 
     private static void putInBuilder(final Builder<QName, Object> builder, final AbstractStepProcessor.StepInput input,
@@ -20,6 +20,7 @@
 package org.trancecode.xproc.step;
 
 import com.google.common.io.Closeables;
+import com.google.common.io.CountingOutputStream;
 import com.google.common.io.Files;
 
 import java.io.File;
@@ -90,7 +91,7 @@ public final class StoreStepProcessor extends AbstractStepProcessor
         LOG.debug("Storing document to: {} ; mime-type: {} ; encoding: {} ; doctype-public = {} ; doctype-system = {}",
                 href, mimeType, encoding, doctypePublicId, doctypeSystemId);
 
-        final OutputStream targetOutputStream;
+        final CountingOutputStream targetOutputStream;
         try
         {
             if ("file".equals(outputUri.getScheme()))
@@ -100,12 +101,13 @@ public final class StoreStepProcessor extends AbstractStepProcessor
                 {
                     Files.createParentDirs(oFile);
                 }
-                targetOutputStream = new FileOutputStream(oFile);
+                targetOutputStream = new CountingOutputStream(new FileOutputStream(oFile));
             }
             else
             {
-                targetOutputStream = input.getPipelineContext().getOutputResolver()
+                final OutputStream outputStream = input.getPipelineContext().getOutputResolver()
                         .resolveOutputStream(href, input.getBaseUri().toString());
+                targetOutputStream = new CountingOutputStream(outputStream);
             }
         }
         catch (final Exception e)
@@ -139,6 +141,7 @@ public final class StoreStepProcessor extends AbstractStepProcessor
         {
             input.getPipelineContext().getProcessor().writeXdmValue(node, serializer);
             targetOutputStream.close();
+            input.getPipelineContext().getMetrics().bytesStored(targetOutputStream.getCount());
         }
         catch (final Exception e)
         {
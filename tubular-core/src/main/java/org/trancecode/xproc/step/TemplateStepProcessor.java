@@ -20,12 +20,18 @@
 package org.trancecode.xproc.step;
 
 import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
 
-import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XPathExecutable;
 import net.sf.saxon.s9api.XdmItem;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
@@ -40,6 +46,12 @@ import org.trancecode.xproc.port.XProcPorts;
 
 /**
  * {@code p:template}.
+ * <p>
+ * The template document is compiled once into a sequence of instructions:
+ * elements without any expression are prebuilt and copied as is, and each
+ * expression is compiled into an {@link XPathExecutable}. The compiled
+ * template is cached on the step and reused as long as the same template
+ * document is read with the same variables in scope.
  * 
  * @author Lucas Soltic
  * @see <a href="http://www.w3.org/TR/xproc-template/#c.template">p:template</a>
@@ -48,6 +60,7 @@ import org.trancecode.xproc.port.XProcPorts;
 public final class TemplateStepProcessor extends AbstractStepProcessor
 {
     private static final Logger LOG = Logger.getLogger(TemplateStepProcessor.class);
+    private static final Object COMPILED_TEMPLATE = new Object();
 
     enum Mode {
         REGULAR, XPATH, SINGLE_QUOTE, DOUBLE_QUOTE
@@ -88,11 +101,17 @@ public final class TemplateStepProcessor extends AbstractStepProcessor
         }
 
         final Map<QName, String> parameters = input.getParameters(XProcPorts.PARAMETERS);
-        final Processor processor = input.getPipelineContext().getProcessor();
-        final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
+        final Map<QName, String> variables = input.getXPathVariables(parameters);
+        final CompiledTemplate template = getCompiledTemplate(templateNode, variables.keySet(), input);
+        final SaxonBuilder builder = new SaxonBuilder(input.getPipelineContext().getProcessor()
+                .getUnderlyingConfiguration());
 
         builder.startDocument();
-        processNode(templateNode, sourceNode, input, builder, processor, parameters);
+        final TemplateContext context = new TemplateContext(builder, sourceNode, variables, input);
+        for (final TemplateInstruction instruction : template.instructions)
+        {
+            instruction.emit(context);
+        }
         builder.endDocument();
 
         final XdmNode resultNode = builder.getNode();
@@ -101,105 +120,140 @@ public final class TemplateStepProcessor extends AbstractStepProcessor
         LOG.trace("end of step");
     }
 
-    private void processNode(final XdmNode templateNode, final XdmNode sourceNode, final StepInput input,
-            final SaxonBuilder builder, final Processor processor, final Map<QName, String> parameters)
+    private static CompiledTemplate getCompiledTemplate(final XdmNode templateNode, final Set<QName> variableNames,
+            final StepInput input)
     {
-        assert templateNode != null;
-        assert input != null;
-        assert builder != null;
-        assert processor != null;
+        final AtomicReference<CompiledTemplate> compiledTemplate = input.getStep().getCompiledData(
+                COMPILED_TEMPLATE, () -> new AtomicReference<CompiledTemplate>());
+        final CompiledTemplate previousTemplate = compiledTemplate.get();
+        if (previousTemplate != null && previousTemplate.templateNode.equals(templateNode)
+                && previousTemplate.variableNames.equals(variableNames))
+        {
+            return previousTemplate;
+        }
+
+        LOG.trace("{@method} template = {}", templateNode.getDocumentURI());
+        final CompiledTemplate template = new CompiledTemplate(templateNode, ImmutableSet.copyOf(variableNames),
+                compileChildNodes(templateNode, variableNames, input));
+        compiledTemplate.set(template);
+        return template;
+    }
 
-        final Iterable<XdmNode> fullNodesList = Iterables.filter(SaxonAxis.childNodes(templateNode), XdmNode.class);
-        final Iterable<XdmNode> filteredNodesList = Iterables.filter(fullNodesList,
+    private static List<TemplateInstruction> compileChildNodes(final XdmNode templateNode,
+            final Set<QName> variableNames, final StepInput input)
+    {
+        final ImmutableList.Builder<TemplateInstruction> instructions = ImmutableList.builder();
+        final Iterable<XdmNode> filteredNodesList = Iterables.filter(SaxonAxis.childNodes(templateNode),
                 Predicates.not(SaxonPredicates.isIgnorableWhitespace()));
 
-        for (final XdmItem currentItem : filteredNodesList)
+        for (final XdmNode node : filteredNodesList)
         {
-            assert !currentItem.isAtomicValue();
-
-            final XdmNode itemAsNode = (XdmNode) currentItem;
-            final XdmNodeKind nodeKind = itemAsNode.getNodeKind();
+            final XdmNodeKind nodeKind = node.getNodeKind();
 
             if (nodeKind == XdmNodeKind.ATTRIBUTE || nodeKind == XdmNodeKind.COMMENT
                     || nodeKind == XdmNodeKind.PROCESSING_INSTRUCTION || nodeKind == XdmNodeKind.TEXT)
             {
-                final String nodeValue = itemAsNode.getStringValue();
-                final QName nodeName = itemAsNode.getNodeName();
-                final String evaluatedString = evaluateString(nodeValue, sourceNode, input, nodeKind, parameters);
-
-                switch (nodeKind)
-                {
-                    case ATTRIBUTE:
-                        builder.attribute(nodeName, evaluatedString);
-                        break;
-                    case TEXT:
-                        builder.raw(evaluatedString, processor);
-                        break;
-                    case COMMENT:
-                        builder.comment(evaluatedString);
-                        break;
-                    case PROCESSING_INSTRUCTION:
-                        builder.processingInstruction(nodeName.toString(), evaluatedString);
-                        break;
-                    default:
-                        throw new PipelineException("unhandled node kind");
-                }
+                instructions.add(new ValueTemplateInstruction(nodeKind, node.getNodeName(), parseValueTemplate(
+                        node.getStringValue(), variableNames, input)));
             }
-            else
+            else if (nodeKind == XdmNodeKind.ELEMENT)
             {
-                if (nodeKind == XdmNodeKind.ELEMENT)
+                final ElementInstruction element = new ElementInstruction(node.getNodeName(), compileChildNodes(
+                        node, variableNames, input));
+                if (isStatic(node))
                 {
-                    builder.startElement(itemAsNode.getNodeName());
-                    processNode(itemAsNode, sourceNode, input, builder, processor, parameters);
-                    builder.endElement();
+                    instructions.add(prebuild(element, input));
                 }
                 else
                 {
-                    throw new PipelineException("unhandled node kind");
+                    instructions.add(element);
                 }
             }
+            else
+            {
+                throw new PipelineException("unhandled node kind");
+            }
+        }
+
+        return instructions.build();
+    }
+
+    private static boolean isStatic(final XdmNode templateNode)
+    {
+        for (final XdmNode node : SaxonAxis.childNodes(templateNode))
+        {
+            if (node.getNodeKind() == XdmNodeKind.ELEMENT)
+            {
+                if (!isStatic(node))
+                {
+                    return false;
+                }
+            }
+            else if (node.getStringValue().indexOf('{') >= 0 || node.getStringValue().indexOf('}') >= 0)
+            {
+                return false;
+            }
         }
+
+        return true;
     }
 
-    private String evaluateString(final String stringToEvaluate, final XdmNode source, final StepInput input,
-            final XdmNodeKind nodeKind, final Map<QName, String> parameters)
+    /**
+     * Builds the nodes of an instruction that does not evaluate any expression
+     * once, so that they are only copied when the template is applied.
+     */
+    private static TemplateInstruction prebuild(final TemplateInstruction instruction, final StepInput input)
     {
-        assert stringToEvaluate != null;
+        final SaxonBuilder builder = new SaxonBuilder(input.getPipelineContext().getProcessor()
+                .getUnderlyingConfiguration());
+        builder.startDocument();
+        instruction.emit(new TemplateContext(builder, null, ImmutableMap.<QName, String> of(), input));
+        builder.endDocument();
+
+        final List<XdmNode> nodes = ImmutableList.copyOf(SaxonAxis.childNodes(builder.getNode()));
+        return context -> context.builder.nodes(nodes);
+    }
+
+    /**
+     * Splits a value template into literal strings and compiled expressions.
+     */
+    private static List<Object> parseValueTemplate(final String valueTemplate, final Set<QName> variableNames,
+            final StepInput input)
+    {
+        assert valueTemplate != null;
         assert input != null;
-        assert nodeKind != null;
 
+        final ImmutableList.Builder<Object> parts = ImmutableList.builder();
+        final StringBuilder text = new StringBuilder();
+        final StringBuilder expression = new StringBuilder();
         Mode mode = Mode.REGULAR;
-        String remainingCharacters = stringToEvaluate;
-        String expression = "";
-        String result = "";
 
-        while (remainingCharacters.length() > 0)
+        for (int i = 0; i < valueTemplate.length(); i++)
         {
-            final char firstCharacter = remainingCharacters.charAt(0);
-            final String firstCharacterString = remainingCharacters.substring(0, 1);
+            final char character = valueTemplate.charAt(i);
 
             if (mode == Mode.REGULAR)
             {
-                switch (firstCharacter)
+                switch (character)
                 {
                     case '{':
-                        if (remainingCharacters.length() > 1 && remainingCharacters.charAt(1) == '{')
+                        if (i + 1 < valueTemplate.length() && valueTemplate.charAt(i + 1) == '{')
                         {
-                            result = result.concat("{");
-                            remainingCharacters = remainingCharacters.substring(1);
+                            text.append('{');
+                            i++;
                         }
                         else
                         {
-                            expression = "";
+                            expression.setLength(0);
                             mode = Mode.XPATH;
                         }
                         break;
 
                     case '}':
-                        if (remainingCharacters.length() > 1 && remainingCharacters.charAt(1) == '}')
+                        if (i + 1 < valueTemplate.length() && valueTemplate.charAt(i + 1) == '}')
                         {
-                            result = result.concat("}");
-                            remainingCharacters = remainingCharacters.substring(1);
+                            text.append('}');
+                            i++;
                         }
                         else
                         {
@@ -208,101 +262,65 @@ public final class TemplateStepProcessor extends AbstractStepProcessor
                         break;
 
                     default:
-                        result = result.concat(firstCharacterString);
+                        text.append(character);
                         break;
                 }
             }
             else if (mode == Mode.XPATH)
             {
-                switch (firstCharacter)
+                switch (character)
                 {
                     case '{':
                         throw XProcExceptions.xc0067(input.getLocation());
 
                     case '}':
-                        final XdmValue value;
-
+                        if (text.length() > 0)
+                        {
+                            parts.add(text.toString());
+                            text.setLength(0);
+                        }
                         try
                         {
-                            value = input.evaluateXPath(expression, source, parameters);
-                            assert value.size() == 1;
-
-                            // In an attribute value, processing instruction, or
-                            // comment, the string value of the XPath expression
-                            // is used. In text content, an expression that
-                            // selects nodes will cause those nodes to be copied
-                            // into the template document.
-                            if (nodeKind == XdmNodeKind.TEXT)
-                            {
-                                result = result.concat(value.toString());
-                            }
-                            else
-                            {
-                                result = result.concat(value.itemAt(0).getStringValue());
-                            }
-
-                            mode = Mode.REGULAR;
+                            parts.add(input.compileXPath(expression.toString(), variableNames));
                         }
                         catch (final Exception e)
                         {
-                            final String exceptionMessage = e.getMessage();
-
-                            if (exceptionMessage.contains("context item is undefined"))
-                            {
-                                throw XProcExceptions.xc0026(input.getLocation());
-                            }
-                            else
-                            {
-                                throw new PipelineException(e);
-                            }
+                            throw new PipelineException(e);
                         }
+                        mode = Mode.REGULAR;
                         break;
 
                     case '\'':
-                        expression = expression.concat("'");
+                        expression.append(character);
                         mode = Mode.SINGLE_QUOTE;
                         break;
 
                     case '"':
-                        expression = expression.concat("\"");
+                        expression.append(character);
                         mode = Mode.DOUBLE_QUOTE;
                         break;
 
                     default:
-                        expression = expression.concat(firstCharacterString);
+                        expression.append(character);
                         break;
                 }
             }
             else if (mode == Mode.SINGLE_QUOTE)
             {
-                switch (firstCharacter)
+                expression.append(character);
+                if (character == '\'')
                 {
-                    case '\'':
-                        expression = expression.concat("'");
-                        mode = Mode.XPATH;
-                        break;
-
-                    default:
-                        expression = expression.concat(firstCharacterString);
-                        break;
+                    mode = Mode.XPATH;
                 }
             }
             else if (mode == Mode.DOUBLE_QUOTE)
             {
-                switch (firstCharacter)
+                expression.append(character);
+                if (character == '"')
                 {
-                    case '\"':
-                        expression = expression.concat("\"");
-                        mode = Mode.XPATH;
-                        break;
-
-                    default:
-                        expression = expression.concat(firstCharacterString);
-                        break;
+                    mode = Mode.XPATH;
                 }
             }
-
-            remainingCharacters = remainingCharacters.substring(1);
         }
 
         if (mode != Mode.REGULAR)
@@ -310,6 +328,202 @@ public final class TemplateStepProcessor extends AbstractStepProcessor
             throw XProcExceptions.xc0067(input.getLocation());
         }
 
-        return result;
+        if (text.length() > 0)
+        {
+            parts.add(text.toString());
+        }
+
+        return parts.build();
+    }
+
+    private static final class CompiledTemplate
+    {
+        private final XdmNode templateNode;
+        private final Set<QName> variableNames;
+        private final List<TemplateInstruction> instructions;
+
+        public CompiledTemplate(final XdmNode templateNode, final Set<QName> variableNames,
+                final List<TemplateInstruction> instructions)
+        {
+            this.templateNode = templateNode;
+            this.variableNames = variableNames;
+            this.instructions = instructions;
+        }
+    }
+
+    /**
+     * State of a single application of a compiled template.
+     */
+    private static final class TemplateContext
+    {
+        private final SaxonBuilder builder;
+        private final XdmNode sourceNode;
+        private final Map<QName, String> variables;
+        private final StepInput input;
+
+        public TemplateContext(final SaxonBuilder builder, final XdmNode sourceNode,
+                final Map<QName, String> variables, final StepInput input)
+        {
+            this.builder = builder;
+            this.sourceNode = sourceNode;
+            this.variables = variables;
+            this.input = input;
+        }
+
+        public XdmValue evaluate(final XPathExecutable expression)
+        {
+            try
+            {
+                return input.evaluateXPath(expression, sourceNode, variables);
+            }
+            catch (final Exception e)
+            {
+                final String exceptionMessage = e.getMessage();
+
+                if (exceptionMessage != null && exceptionMessage.contains("context item is undefined"))
+                {
+                    throw XProcExceptions.xc0026(input.getLocation());
+                }
+                else
+                {
+                    throw new PipelineException(e);
+                }
+            }
+        }
+    }
+
+    private interface TemplateInstruction
+    {
+        void emit(TemplateContext context);
+    }
+
+    private static final class ElementInstruction implements TemplateInstruction
+    {
+        private final QName name;
+        private final List<TemplateInstruction> children;
+
+        public ElementInstruction(final QName name, final List<TemplateInstruction> children)
+        {
+            this.name = name;
+            this.children = children;
+        }
+
+        @Override
+        public void emit(final TemplateContext context)
+        {
+            context.builder.startElement(name);
+            for (final TemplateInstruction child : children)
+            {
+                child.emit(context);
+            }
+            context.builder.endElement();
+        }
+    }
+
+    private static final class ValueTemplateInstruction implements TemplateInstruction
+    {
+        private final XdmNodeKind nodeKind;
+        private final QName nodeName;
+        private final List<Object> parts;
+
+        public ValueTemplateInstruction(final XdmNodeKind nodeKind, final QName nodeName, final List<Object> parts)
+        {
+            this.nodeKind = nodeKind;
+            this.nodeName = nodeName;
+            this.parts = parts;
+        }
+
+        @Override
+        public void emit(final TemplateContext context)
+        {
+            if (nodeKind == XdmNodeKind.TEXT)
+            {
+                emitText(context);
+                return;
+            }
+
+            // In an attribute value, processing instruction, or comment, the
+            // string value of the XPath expression is used
+            final StringBuilder value = new StringBuilder();
+            for (final Object part : parts)
+            {
+                if (part instanceof XPathExecutable)
+                {
+                    final XdmValue result = context.evaluate((XPathExecutable) part);
+                    if (result.size() > 0)
+                    {
+                        value.append(result.itemAt(0).getStringValue());
+                    }
+                }
+                else
+                {
+                    value.append(part);
+                }
+            }
+
+            switch (nodeKind)
+            {
+                case ATTRIBUTE:
+                    context.builder.attribute(nodeName, value.toString());
+                    break;
+                case COMMENT:
+                    context.builder.comment(value.toString());
+                    break;
+                case PROCESSING_INSTRUCTION:
+                    context.builder.processingInstruction(nodeName.toString(), value.toString());
+                    break;
+                default:
+                    throw new PipelineException("unhandled node kind");
+            }
+        }
+
+        private void emitText(final TemplateContext context)
+        {
+            // In text content, an expression that selects nodes will cause
+            // those nodes to be copied into the template document; literal
+            // text and string values in between are written as characters,
+            // never parsed as markup, and merged into a single text node
+            final StringBuilder text = new StringBuilder();
+            for (final Object part : parts)
+            {
+                if (part instanceof XPathExecutable)
+                {
+                    for (final XdmItem item : context.evaluate((XPathExecutable) part))
+                    {
+                        if (item.isAtomicValue() || ((XdmNode) item).getNodeKind() == XdmNodeKind.ATTRIBUTE
+                                || ((XdmNode) item).getNodeKind() == XdmNodeKind.TEXT)
+                        {
+                            text.append(item.getStringValue());
+                        }
+                        else
+                        {
+                            flushText(context, text);
+                            if (((XdmNode) item).getNodeKind() == XdmNodeKind.DOCUMENT)
+                            {
+                                context.builder.nodes(SaxonAxis.childNodes((XdmNode) item));
+                            }
+                            else
+                            {
+                                context.builder.nodes((XdmNode) item);
+                            }
+                        }
+                    }
+                }
+                else
+                {
+                    text.append((String) part);
+                }
+            }
+            flushText(context, text);
+        }
+
+        private static void flushText(final TemplateContext context, final StringBuilder text)
+        {
+            if (text.length() > 0)
+            {
+                context.builder.text(text.toString());
+                text.setLength(0);
+            }
+        }
     }
 }
@@ -19,35 +19,45 @@
  */
 package org.trancecode.xproc.step;
 
+import com.google.common.base.Strings;
+import com.google.common.io.CharStreams;
+import com.google.common.io.InputSupplier;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.EnumSet;
 import javax.mail.internet.ContentType;
 import javax.mail.internet.ParseException;
-import javax.xml.transform.sax.SAXSource;
-import net.sf.saxon.s9api.DocumentBuilder;
-import net.sf.saxon.s9api.Processor;
+import net.iharder.Base64;
 import net.sf.saxon.s9api.QName;
-import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
 import org.apache.commons.lang.StringEscapeUtils;
-import org.ccil.cowan.tagsoup.Parser;
 import org.trancecode.io.MediaTypes;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.saxon.CopyingSaxonProcessorDelegate;
-import org.trancecode.xml.saxon.Saxon;
 import org.trancecode.xml.saxon.SaxonAxis;
 import org.trancecode.xml.saxon.SaxonBuilder;
+import org.trancecode.xml.saxon.SaxonBuilderContentHandler;
+import org.trancecode.xml.saxon.SaxonHtml;
 import org.trancecode.xml.saxon.SaxonLocation;
 import org.trancecode.xml.saxon.SaxonProcessor;
 import org.trancecode.xml.saxon.SaxonProcessorDelegate;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.port.XProcPorts;
 import org.trancecode.xproc.variable.XProcOptions;
+import org.xml.sax.Attributes;
 import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.XMLReaderFactory;
 
 /**
+ * The unescaped markup is parsed straight into the result document, and
+ * base64-encoded content is decoded while it is being parsed.
+ * 
  * @author Emmanuel Tourdot
  */
 @ExternalResources(read = false, write = false)
@@ -95,29 +105,13 @@ public final class UnEscapeMarkupStepProcessor extends AbstractStepProcessor
                 {
                     if (XdmNodeKind.ELEMENT.equals(aNode.getNodeKind()))
                     {
-                        final String unEscapeContent;
-                        try {
-                            unEscapeContent = getUnEscapeContent(aNode.getStringValue(), encodingOption,
-                                    contentType, charset);
-                        } catch (IOException e) {
-                            throw XProcExceptions.xc0010(aNode);
-                        }
                         builder.startElement(aNode.getNodeName(), aNode);
                         for (final XdmNode attribute : SaxonAxis.attributes(aNode))
                         {
                             LOG.trace("copy existing attribute: {}", attribute);
                             builder.attribute(attribute.getNodeName(), attribute.getStringValue());
                         }
-                        if (MediaTypes.MEDIA_TYPE_HTML.equals(contentType.getBaseType()))
-                        {
-                            writeHtmlNodes(unEscapeContent, namespaceOption, input.getPipelineContext().getProcessor(),
-                                    builder);
-                        }
-                        else
-                        {
-                            writeXmlNodes(unEscapeContent, namespaceOption, input.getPipelineContext().getProcessor(),
-                                    builder);
-                        }
+                        writeNodes(aNode, encodingOption, contentType, charset, namespaceOption, builder);
                         builder.endElement();
                     }
                     else
@@ -144,23 +138,7 @@ public final class UnEscapeMarkupStepProcessor extends AbstractStepProcessor
                 @Override
                 public void text(final XdmNode node, final SaxonBuilder builder)
                 {
-                    final String unEscapeContent;
-                    try {
-                        unEscapeContent = getUnEscapeContent(node.getStringValue(), encodingOption,
-                                contentType, charset);
-                    } catch (IOException e) {
-                        throw XProcExceptions.xc0010(node);
-                    }
-                    if (MediaTypes.MEDIA_TYPE_HTML.equals(contentType.getBaseType()))
-                    {
-                        writeHtmlNodes(unEscapeContent, namespaceOption, input.getPipelineContext().getProcessor(),
-                                builder);
-                    }
-                    else
-                    {
-                        writeXmlNodes(unEscapeContent, namespaceOption, input.getPipelineContext().getProcessor(),
-                                builder);
-                    }
+                    writeNodes(node, encodingOption, contentType, charset, namespaceOption, builder);
                 }
             };
             final SaxonProcessor escapeProcessor = new SaxonProcessor(input.getPipelineContext().getProcessor(),
@@ -171,47 +149,108 @@ public final class UnEscapeMarkupStepProcessor extends AbstractStepProcessor
         }
     }
 
-    private static void writeXmlNodes(final String unEscapeContent, final String namespaceOption,
-            final Processor processor, final SaxonBuilder builder)
+    private static void writeNodes(final XdmNode node, final String encoding, final ContentType contentType,
+            final String charset, final String namespaceOption, final SaxonBuilder builder)
     {
-        final XdmNode parsedNode = Saxon.parse("<z>" + unEscapeContent + "</z>", processor);
-        final Iterable<XdmNode> childNodes = SaxonAxis.childNodes(SaxonAxis.childElement(parsedNode));
-        for (final XdmNode aNode : childNodes)
+        try
         {
-            if (XdmNodeKind.ELEMENT.equals(aNode.getNodeKind()))
+            final Reader unEscapeContent = getUnEscapeContent(node.getStringValue(), encoding, contentType, charset);
+            if (MediaTypes.MEDIA_TYPE_HTML.equals(contentType.getBaseType()))
             {
-                final QName nameNode = new QName("", namespaceOption, aNode.getNodeName().getLocalName());
-                builder.startElement(nameNode, aNode);
-                builder.nodes(SaxonAxis.childNodes(aNode));
-                builder.endElement();
+                writeHtmlNodes(unEscapeContent, namespaceOption, builder);
             }
             else
             {
-                builder.nodes(aNode);
+                writeXmlNodes(unEscapeContent, namespaceOption, builder);
+            }
+        }
+        catch (final IOException e)
+        {
+            throw XProcExceptions.xc0010(node);
+        }
+    }
+
+    private static void writeXmlNodes(final Reader unEscapeContent, final String namespaceOption,
+            final SaxonBuilder builder) throws IOException
+    {
+        // The content is wrapped so that it may hold several top-level nodes
+        final Reader wrappedContent = CharStreams.join(CharStreams.newReaderSupplier("<z>"),
+                new InputSupplier<Reader>()
+                {
+                    @Override
+                    public Reader getInput()
+                    {
+                        return unEscapeContent;
+                    }
+                }, CharStreams.newReaderSupplier("</z>")).getInput();
+        final String namespace = Strings.nullToEmpty(namespaceOption);
+        final SaxonBuilderContentHandler handler = new SaxonBuilderContentHandler(builder)
+        {
+            private int level;
+
+            @Override
+            public void startElement(final String uri, final String localName, final String qName,
+                    final Attributes atts)
+            {
+                if (level++ > 0)
+                {
+                    super.startElement(uri, localName, qName, atts);
+                }
+            }
+
+            @Override
+            public void endElement(final String uri, final String localName, final String qName)
+            {
+                if (--level > 0)
+                {
+                    super.endElement(uri, localName, qName);
+                }
+            }
+
+            @Override
+            protected QName getElementName(final QName name, final int depth)
+            {
+                if (depth == 1)
+                {
+                    return new QName("", namespace, name.getLocalName());
+                }
+
+                return name;
             }
+        };
+
+        try
+        {
+            parse(XMLReaderFactory.createXMLReader(), new InputSource(wrappedContent), handler);
+        }
+        catch (final SAXException e)
+        {
+            throw new IllegalStateException(e);
         }
     }
 
-    private static void writeHtmlNodes(final String unEscapeContent, final String namespaceOption,
-            final Processor processor, final SaxonBuilder builder)
+    private static void writeHtmlNodes(final Reader unEscapeContent, final String namespaceOption,
+            final SaxonBuilder builder) throws IOException
     {
         try
         {
-            final StringReader inputStream = new StringReader(unEscapeContent);
-            final InputSource source = new InputSource(inputStream);
-            final Parser parser = new Parser();
-            final SAXSource saxSource = new SAXSource(parser, source);
-            final DocumentBuilder docBuilder = processor.newDocumentBuilder();
-            final XdmNode aNode = docBuilder.build(saxSource);
             builder.namespace("", namespaceOption);
-            builder.nodes(aNode);
+            SaxonHtml.parse(new InputSource(unEscapeContent), builder);
         }
-        catch (final SaxonApiException e)
+        catch (final SAXException e)
         {
             throw XProcExceptions.xc0051(null);
         }
     }
 
+    private static void parse(final XMLReader reader, final InputSource source,
+            final SaxonBuilderContentHandler handler) throws IOException, SAXException
+    {
+        reader.setContentHandler(handler);
+        reader.setProperty(SaxonBuilderContentHandler.LEXICAL_HANDLER_PROPERTY, handler);
+        reader.parse(source);
+    }
+
     private static ContentType getContentType(final String content_type, final Step inputStep)
     {
         try
@@ -229,20 +268,74 @@ public final class UnEscapeMarkupStepProcessor extends AbstractStepProcessor
         }
     }
 
-    private static String getUnEscapeContent(final String content, final String encoding,
-            final ContentType contentType, final String charset) throws IOException {
+    private static Reader getUnEscapeContent(final String content, final String encoding,
+            final ContentType contentType, final String charset) throws IOException
+    {
         if (Steps.ENCODING_BASE64.equals(encoding))
         {
-            return Steps.getBase64Content(content, charset);
+            // Decoded as it is read by the parser
+            return new InputStreamReader(new Base64.InputStream(new CharSequenceInputStream(content)), charset);
         }
         else if (MediaTypes.MEDIA_XML.equals(contentType.getBaseType()))
         {
-            return StringEscapeUtils.unescapeHtml(content);
+            return new StringReader(StringEscapeUtils.unescapeHtml(content));
         }
         else if (MediaTypes.MEDIA_TYPE_HTML.equals(contentType.getBaseType()))
         {
-            return StringEscapeUtils.unescapeXml(content);
+            return new StringReader(StringEscapeUtils.unescapeXml(content));
+        }
+        return new StringReader("");
+    }
+
+    /**
+     * Reads the characters of base64-encoded content as ASCII bytes.
+     */
+    private static final class CharSequenceInputStream extends InputStream
+    {
+        private final CharSequence content;
+        private int position;
+
+        public CharSequenceInputStream(final CharSequence content)
+        {
+            this.content = content;
+        }
+
+        @Override
+        public int read()
+        {
+            if (position >= content.length())
+            {
+                return -1;
+            }
+
+            return content.charAt(position++) & 0xFF;
+        }
+
+        @Override
+        public int read(final byte[] buffer, final int offset, final int length)
+        {
+            if (length == 0)
+            {
+                return 0;
+            }
+            if (position >= content.length())
+            {
+                return -1;
+            }
+
+            final int count = Math.min(length, content.length() - position);
+            for (int i = 0; i < count; i++)
+            {
+                buffer[offset + i] = (byte) content.charAt(position++);
+            }
+
+            return count;
+        }
+
+        @Override
+        public int available()
+        {
+            return content.length() - position;
         }
-        return "";
     }
 }
@@ -21,12 +21,10 @@ package org.trancecode.xproc.step;
 
 import com.fasterxml.uuid.Generators;
 import com.fasterxml.uuid.impl.NameBasedGenerator;
-import com.fasterxml.uuid.impl.RandomBasedGenerator;
 import com.fasterxml.uuid.impl.TimeBasedGenerator;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.util.EnumSet;
 import java.util.UUID;
@@ -48,9 +46,11 @@ import org.trancecode.xproc.variable.XProcOptions;
  * @author Emmanuel Tourdot
  */
 @ExternalResources(read = false, write = false)
+@Nondeterministic
 public final class UuidStepProcessor extends AbstractStepProcessor
 {
     private static final Logger LOG = Logger.getLogger(UuidStepProcessor.class);
+    private static final ThreadLocal<RandomUuids> RANDOM_UUIDS = ThreadLocal.withInitial(RandomUuids::new);
 
     @Override
     public QName getStepType()
@@ -137,23 +137,103 @@ public final class UuidStepProcessor extends AbstractStepProcessor
             switch (Integer.parseInt(version))
             {
                 case 1:
-                    final TimeBasedGenerator tUuidGen = Generators.timeBasedGenerator();
-                    return tUuidGen.generate();
+                    return TimeBasedUuids.GENERATOR.generate();
                 case 3:
-                    final NameBasedGenerator nUuidGen = Generators.nameBasedGenerator(NameBasedGenerator.NAMESPACE_URL,
-                            MessageDigest.getInstance("MD5"));
-                    return nUuidGen.generate("tubular_uuid");
+                    return NameBasedUuids.VALUE;
                 case 4:
-                    final SecureRandom sr = SecureRandom.getInstance("SHA1PRNG", "SUN");
-                    final RandomBasedGenerator rUuidGen = Generators.randomBasedGenerator(sr);
-                    return rUuidGen.generate();
+                    return RANDOM_UUIDS.get().next();
                 default:
                     throw XProcExceptions.xc0060(inputStep.getLocation());
             }
         }
-        catch (final NumberFormatException | NoSuchProviderException | NoSuchAlgorithmException e)
+        catch (final NumberFormatException e)
         {
             throw XProcExceptions.xc0060(inputStep.getLocation());
         }
     }
+
+    /**
+     * A single time-based generator is shared by the whole JVM, as separate
+     * generators could produce the same UUID for the same timestamp.
+     */
+    private static final class TimeBasedUuids
+    {
+        private static final TimeBasedGenerator GENERATOR = Generators.timeBasedGenerator();
+    }
+
+    /**
+     * The name-based UUID is always generated from the same name.
+     */
+    private static final class NameBasedUuids
+    {
+        private static final UUID VALUE;
+
+        static
+        {
+            try
+            {
+                VALUE = Generators.nameBasedGenerator(NameBasedGenerator.NAMESPACE_URL,
+                        MessageDigest.getInstance("MD5")).generate("tubular_uuid");
+            }
+            catch (final NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * Generates random-based UUIDs from a per-thread {@code SHA1PRNG}
+     * instance, drawing the random bits for several UUIDs at once.
+     */
+    private static final class RandomUuids
+    {
+        private static final int BATCH_SIZE = 64;
+        private static final SecureRandom SEEDS = new SecureRandom();
+
+        private final SecureRandom random;
+        private final byte[] bytes = new byte[BATCH_SIZE * 16];
+        private int position = bytes.length;
+
+        public RandomUuids()
+        {
+            try
+            {
+                random = SecureRandom.getInstance("SHA1PRNG");
+            }
+            catch (final NoSuchAlgorithmException e)
+            {
+                throw new IllegalStateException(e);
+            }
+
+            // Seeding explicitly prevents SHA1PRNG from seeding itself from the
+            // system entropy source, which can block
+            final byte[] seed = new byte[32];
+            SEEDS.nextBytes(seed);
+            random.setSeed(seed);
+        }
+
+        public UUID next()
+        {
+            if (position == bytes.length)
+            {
+                random.nextBytes(bytes);
+                position = 0;
+            }
+
+            long mostSignificantBits = 0;
+            long leastSignificantBits = 0;
+            for (int i = 0; i < 8; i++)
+            {
+                mostSignificantBits = (mostSignificantBits << 8) | (bytes[position + i] & 0xff);
+                leastSignificantBits = (leastSignificantBits << 8) | (bytes[position + 8 + i] & 0xff);
+            }
+            position += 16;
+
+            // Version 4, IETF variant
+            mostSignificantBits = (mostSignificantBits & 0xffffffffffff0fffL) | 0x0000000000004000L;
+            leastSignificantBits = (leastSignificantBits & 0x3fffffffffffffffL) | 0x8000000000000000L;
+            return new UUID(mostSignificantBits, leastSignificantBits);
+        }
+    }
 }
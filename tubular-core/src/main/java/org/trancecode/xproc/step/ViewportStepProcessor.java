@@ -22,14 +22,16 @@ package org.trancecode.xproc.step;
 import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 
 import java.util.EnumSet;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Callable;
 
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.XdmNode;
 import net.sf.saxon.s9api.XdmNodeKind;
+import org.trancecode.event.EventDispatcher;
 import org.trancecode.logging.Logger;
 import org.trancecode.xml.saxon.AbstractSaxonProcessorDelegate;
 import org.trancecode.xml.saxon.CopyingSaxonProcessorDelegate;
@@ -41,6 +43,10 @@ import org.trancecode.xproc.Environment;
 import org.trancecode.xproc.api.XProcException;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.binding.InlinePortBinding;
+import org.trancecode.xproc.event.AfterIterationStepEvent;
+import org.trancecode.xproc.event.BeforeIterationStepEvent;
+import org.trancecode.xproc.event.FlightRecorderEvents;
+import org.trancecode.xproc.event.XProcEvent;
 import org.trancecode.xproc.port.EnvironmentPort;
 import org.trancecode.xproc.port.Port;
 import org.trancecode.xproc.port.XProcPorts;
@@ -57,6 +63,18 @@ import org.trancecode.xproc.xpath.IterationSizeXPathExtensionFunction;
  */
 public final class ViewportStepProcessor extends AbstractCompoundStepProcessor implements CoreStepProcessor
 {
+    /**
+     * The maximum number of iterations submitted to the pipeline executor at
+     * a time, the number of available processors by default.
+     * <p>
+     * An iteration waits on the same executor for the steps of its
+     * subpipeline, as does every enclosing compound step. A waiting thread runs
+     * the tasks it waits for itself when no other thread has started them, so
+     * that the concurrency may exceed the size of a bounded thread pool.
+     */
+    public static final String PROPERTY_CONCURRENCY = "http://www.trancecode.org/tubular/1/property/"
+            + "viewportConcurrency";
+
     private static final Logger LOG = Logger.getLogger(ViewportStepProcessor.class);
 
     @Override
@@ -91,47 +109,40 @@ public final class ViewportStepProcessor extends AbstractCompoundStepProcessor i
         final String match = viewportEnvironment.getVariable(XProcOptions.MATCH);
         LOG.trace("match = {}", match);
 
-        final int iterationSize = evaluateIterationSize(step, match, sourceDocument, viewportEnvironment);
+        // First pass: collect the matched nodes
+        final List<XdmNode> matchedNodes = collectMatchedNodes(step, match, sourceDocument, viewportEnvironment);
+        final int iterationSize = matchedNodes.size();
         LOG.trace("iterationSize = {}", iterationSize);
 
-        final SaxonProcessorDelegate runSubpipeline = new AbstractSaxonProcessorDelegate()
+        // Run the subpipelines, with at most "concurrency" iterations submitted
+        // at a time, and collect their results in document order
+        final List<Callable<Iterable<XdmNode>>> tasks = Lists.newArrayListWithCapacity(iterationSize);
+        for (int i = 0; i < iterationSize; i++)
+        {
+            final int iterationPosition = i + 1;
+            final XdmNode node = matchedNodes.get(i);
+            tasks.add(() -> runIteration(step, node, iterationPosition, iterationSize, environment,
+                    viewportEnvironment));
+        }
+        final List<Iterable<XdmNode>> results = Lists.newArrayListWithCapacity(iterationSize);
+        runIterations(tasks, getConcurrency(environment, PROPERTY_CONCURRENCY), environment.getPipelineContext()
+                .getExecutor(), results::add);
+
+        // Second pass: replace the matched nodes with the results
+        final SaxonProcessorDelegate writeResults = new AbstractSaxonProcessorDelegate()
         {
-            private int iterationPosition = 1;
+            private int iteration;
 
-            private void runSubpipeline(final XdmNode node, final SaxonBuilder builder)
+            private void writeResult(final XdmNode node, final SaxonBuilder builder)
             {
-                LOG.trace("run subpipeline on:\n{}", node);
-                Environment subpipelineEnvironment = viewportEnvironment.newChildStepEnvironment();
-                final Port currentPort = Port.newInputPort(step.getName(), "current", step.getLocation())
-                        .setPortBindings(new InlinePortBinding(node, step.getLocation()));
-                final EnvironmentPort currentEnvironmentPort = EnvironmentPort.newEnvironmentPort(currentPort,
-                        viewportEnvironment);
-                subpipelineEnvironment = subpipelineEnvironment.addPorts(currentEnvironmentPort);
-                subpipelineEnvironment = subpipelineEnvironment.setDefaultReadablePort(currentEnvironmentPort);
-                subpipelineEnvironment = subpipelineEnvironment.setXPathContextPort(currentEnvironmentPort);
-                final int previousIterationPosition = IterationPositionXPathExtensionFunction
-                        .setIterationPosition(iterationPosition++);
-                subpipelineEnvironment = subpipelineEnvironment.setupVariables(step);
-                subpipelineEnvironment.setCurrentEnvironment();
-                Environment resultEnvironment;
-                try
-                {
-                    resultEnvironment = runSteps(step.getSubpipeline(), subpipelineEnvironment);
-                }
-                finally
-                {
-                    IterationPositionXPathExtensionFunction.setIterationPosition(previousIterationPosition);
-                }
-                resultEnvironment = resultEnvironment.setupOutputPorts(step, resultEnvironment);
-                final Iterable<XdmNode> resultNodes = resultEnvironment.getDefaultReadablePort().readNodes();
-                LOG.trace("resultNodes = {}", resultNodes);
-                builder.nodes(resultNodes);
+                assert node.equals(matchedNodes.get(iteration)) : node;
+                builder.nodes(results.get(iteration++));
             }
 
             @Override
             public boolean startDocument(final XdmNode node, final SaxonBuilder builder)
             {
-                runSubpipeline(node, builder);
+                writeResult(node, builder);
                 return false;
             }
 
@@ -144,7 +155,7 @@ public final class ViewportStepProcessor extends AbstractCompoundStepProcessor i
             @Override
             public EnumSet<NextSteps> startElement(final XdmNode node, final SaxonBuilder builder)
             {
-                runSubpipeline(node, builder);
+                writeResult(node, builder);
                 return EnumSet.noneOf(NextSteps.class);
             }
 
@@ -154,24 +165,10 @@ public final class ViewportStepProcessor extends AbstractCompoundStepProcessor i
                 // element has been started and ended
             }
         };
-        final SaxonProcessorDelegate runSubpipelineForElements = SaxonProcessorDelegates.forNodeKinds(
-                ImmutableSet.of(XdmNodeKind.DOCUMENT, XdmNodeKind.ELEMENT), runSubpipeline,
-                SaxonProcessorDelegates.error(node -> XProcExceptions.xd0010(node)));
-
         final SaxonProcessor matchProcessor = new SaxonProcessor(environment.getPipelineContext().getProcessor(),
                 SaxonProcessorDelegates.forXsltMatchPattern(environment.getPipelineContext().getProcessor(), match,
-                        step.getNode(), runSubpipelineForElements, new CopyingSaxonProcessorDelegate()));
-
-        final int previousIterationSize = IterationSizeXPathExtensionFunction.setIterationSize(iterationSize);
-        final XdmNode resultDocument;
-        try
-        {
-            resultDocument = matchProcessor.apply(sourceDocument);
-        }
-        finally
-        {
-            IterationSizeXPathExtensionFunction.setIterationSize(previousIterationSize);
-        }
+                        step.getNode(), writeResults, new CopyingSaxonProcessorDelegate()));
+        final XdmNode resultDocument = matchProcessor.apply(sourceDocument);
 
         LOG.trace("resultDocument = {}", resultDocument);
         Environment resultEnvironment = viewportEnvironment;
@@ -183,15 +180,101 @@ public final class ViewportStepProcessor extends AbstractCompoundStepProcessor i
         return resultEnvironment;
     }
 
-    private static int evaluateIterationSize(final Step step, final String match, final XdmNode sourceDocument,
-            final Environment environment)
+    private Iterable<XdmNode> runIteration(final Step step, final XdmNode node, final int iterationPosition,
+            final int iterationSize, final Environment environment, final Environment viewportEnvironment)
+    {
+        LOG.trace("run subpipeline {}/{} on:\n{}", iterationPosition, iterationSize, node);
+        final int previousIterationPosition = IterationPositionXPathExtensionFunction
+                .setIterationPosition(iterationPosition);
+        final int previousIterationSize = IterationSizeXPathExtensionFunction.setIterationSize(iterationSize);
+        final Environment previousEnvironment = Environment.getCurrentEnvironment();
+        try
+        {
+            Environment subpipelineEnvironment = viewportEnvironment.newChildStepEnvironment();
+            final Port currentPort = Port.newInputPort(step.getName(), "current", step.getLocation())
+                    .setPortBindings(new InlinePortBinding(node, step.getLocation()));
+            final EnvironmentPort currentEnvironmentPort = EnvironmentPort.newEnvironmentPort(currentPort,
+                    viewportEnvironment);
+            subpipelineEnvironment = subpipelineEnvironment.addPorts(currentEnvironmentPort);
+            subpipelineEnvironment = subpipelineEnvironment.setDefaultReadablePort(currentEnvironmentPort);
+            subpipelineEnvironment = subpipelineEnvironment.setXPathContextPort(currentEnvironmentPort);
+            subpipelineEnvironment = subpipelineEnvironment.setupVariables(step);
+            subpipelineEnvironment.setCurrentEnvironment();
+            final EventDispatcher<XProcEvent> eventDispatcher = environment.getPipelineContext()
+                    .getEventDispatcher();
+            if (eventDispatcher.hasObservers())
+            {
+                eventDispatcher.notify(new BeforeIterationStepEvent(environment.getPipeline(), step,
+                        subpipelineEnvironment, iterationPosition, iterationSize));
+            }
+            final Object flightEvent = FlightRecorderEvents.beginIteration();
+            Environment resultEnvironment;
+            try
+            {
+                resultEnvironment = runSubpipeline(step, subpipelineEnvironment);
+            }
+            finally
+            {
+                FlightRecorderEvents.endIteration(flightEvent, step, environment.getPipelineContext(),
+                        iterationPosition, iterationSize);
+            }
+            resultEnvironment = resultEnvironment.setupOutputPorts(step, resultEnvironment);
+            if (eventDispatcher.hasObservers())
+            {
+                eventDispatcher.notify(new AfterIterationStepEvent(environment.getPipeline(), step,
+                        subpipelineEnvironment, resultEnvironment, iterationPosition, iterationSize));
+            }
+            final Iterable<XdmNode> resultNodes = resultEnvironment.getDefaultReadablePort().readNodes();
+            LOG.trace("resultNodes = {}", resultNodes);
+            return resultNodes;
+        }
+        finally
+        {
+            IterationPositionXPathExtensionFunction.setIterationPosition(previousIterationPosition);
+            IterationSizeXPathExtensionFunction.setIterationSize(previousIterationSize);
+            Environment.setCurrentEnvironment(previousEnvironment);
+        }
+    }
+
+    private static List<XdmNode> collectMatchedNodes(final Step step, final String match,
+            final XdmNode sourceDocument, final Environment environment)
     {
-        final AtomicInteger count = new AtomicInteger(0);
+        final List<XdmNode> matchedNodes = Lists.newArrayList();
+        final SaxonProcessorDelegate collectMatchedNodes = new AbstractSaxonProcessorDelegate()
+        {
+            @Override
+            public boolean startDocument(final XdmNode node, final SaxonBuilder builder)
+            {
+                matchedNodes.add(node);
+                return false;
+            }
+
+            @Override
+            public void endDocument(final XdmNode node, final SaxonBuilder builder)
+            {
+                // Ignore
+            }
+
+            @Override
+            public EnumSet<NextSteps> startElement(final XdmNode node, final SaxonBuilder builder)
+            {
+                matchedNodes.add(node);
+                return EnumSet.noneOf(NextSteps.class);
+            }
+
+            @Override
+            public void endElement(final XdmNode node, final SaxonBuilder builder)
+            {
+                // Ignore
+            }
+        };
+        final SaxonProcessorDelegate collectMatchedElements = SaxonProcessorDelegates.forNodeKinds(
+                ImmutableSet.of(XdmNodeKind.DOCUMENT, XdmNodeKind.ELEMENT), collectMatchedNodes,
+                SaxonProcessorDelegates.error(node -> XProcExceptions.xd0010(node)));
         final SaxonProcessor matchProcessor = new SaxonProcessor(environment.getPipelineContext().getProcessor(),
                 SaxonProcessorDelegates.forXsltMatchPattern(environment.getPipelineContext().getProcessor(), match,
-                        step.getNode(), SaxonProcessorDelegates.countMatchingNodes(count),
-                        new CopyingSaxonProcessorDelegate()));
+                        step.getNode(), collectMatchedElements, new CopyingSaxonProcessorDelegate()));
         matchProcessor.apply(sourceDocument);
-        return count.get();
+        return matchedNodes;
     }
 }
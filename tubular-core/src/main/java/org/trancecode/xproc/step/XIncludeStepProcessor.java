@@ -19,32 +19,75 @@
  */
 package org.trancecode.xproc.step;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.CharStreams;
+import com.google.common.io.Closeables;
+
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import javax.xml.transform.stream.StreamSource;
 import net.sf.saxon.s9api.Processor;
 import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.Serializer;
 import net.sf.saxon.s9api.XdmNode;
+import net.sf.saxon.s9api.XdmNodeKind;
 import org.etourdot.xincproc.xinclude.XIncProcConfiguration;
 import org.etourdot.xincproc.xinclude.XIncProcEngine;
+import org.trancecode.io.InputResolver;
 import org.trancecode.logging.Logger;
+import org.trancecode.xml.saxon.SaxonAxis;
+import org.trancecode.xml.saxon.SaxonBuilder;
 import org.trancecode.xml.saxon.SaxonLocation;
+import org.trancecode.xproc.Episode;
+import org.trancecode.xproc.StepResultCache.ResourceRecorder;
 import org.trancecode.xproc.XProcExceptions;
 import org.trancecode.xproc.port.XProcPorts;
 import org.trancecode.xproc.variable.XProcOptions;
 
 /**
  * {@code p:xinclude}.
+ * <p>
+ * Documents are processed by walking the source tree and writing straight
+ * into a new tree, loading the included resources through the pipeline input
+ * resolver. Features that are not supported by this path, such as XPointer
+ * or the fixup options, are delegated to XIncProc. The included resources are
+ * loaded once per episode.
  * 
  * @author Emmanuel Tourdot
  * @see <a href="http://www.w3.org/TR/xproc/#c.xinclude">p:xinclude</a>
  */
-@ExternalResources(read = false, write = false)
+@ExternalResources(read = true, write = false)
+@TrackedReads
 public final class XIncludeStepProcessor extends AbstractStepProcessor
 {
     private static final Logger LOG = Logger.getLogger(XIncludeStepProcessor.class);
 
+    private static final String XINCLUDE_NAMESPACE = "http://www.w3.org/2001/XInclude";
+    private static final QName ELEMENT_INCLUDE = new QName(XINCLUDE_NAMESPACE, "include");
+    private static final QName ELEMENT_FALLBACK = new QName(XINCLUDE_NAMESPACE, "fallback");
+    private static final QName ATTRIBUTE_HREF = new QName("href");
+    private static final QName ATTRIBUTE_PARSE = new QName("parse");
+    private static final QName ATTRIBUTE_ENCODING = new QName("encoding");
+    private static final List<QName> UNSUPPORTED_ATTRIBUTES = ImmutableList.of(new QName("xpointer"), new QName(
+            "accept"), new QName("accept-language"));
+    private static final String PARSE_XML = "xml";
+    private static final String PARSE_TEXT = "text";
+    private static final Object INCLUDED_DOCUMENTS = new Object();
+    private static final Object INCLUDED_TEXTS = new Object();
+
     @Override
     public QName getStepType()
     {
@@ -62,6 +105,23 @@ public final class XIncludeStepProcessor extends AbstractStepProcessor
         LOG.trace("xmlLang = {}", xmlLang);
 
         final Processor processor = input.getPipelineContext().getProcessor();
+        if (!xmlBase && !xmlLang)
+        {
+            try
+            {
+                final XIncluder includer = new XIncluder(processor, input.getInputResolver(), input
+                        .getPipelineContext().getEpisode());
+                output.writeNodes(XProcPorts.RESULT, includer.process(node));
+                return;
+            }
+            catch (final UnsupportedInclusionException e)
+            {
+                LOG.trace("{@method} delegating to XIncProc: {message}", e);
+            }
+        }
+
+        // XIncProc loads the included resources by itself
+        output.setCacheable(false);
         final XIncProcEngine engine = XIncProcEngine.getUnderlyingConfiguration().newXIncProcEngine();
         engine.getConfiguration().setConfigurationProperty(XIncProcConfiguration.ALLOW_FIXUP_BASE_URIS, xmlBase);
         engine.getConfiguration().setConfigurationProperty(XIncProcConfiguration.ALLOW_FIXUP_LANGUAGE, xmlLang);
@@ -81,4 +141,297 @@ public final class XIncludeStepProcessor extends AbstractStepProcessor
             throw XProcExceptions.xc0029(SaxonLocation.of(node));
         }
     }
+
+    /**
+     * Raised when the document uses an XInclude feature that is only
+     * supported by XIncProc.
+     */
+    private static final class UnsupportedInclusionException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public UnsupportedInclusionException(final String message)
+        {
+            super(message);
+        }
+    }
+
+    /**
+     * A resource loaded by an inclusion, along with the digest of its content
+     * so that it can be recorded by every step that includes it.
+     */
+    private static final class IncludedResource<T>
+    {
+        private final T content;
+        private final byte[] digest;
+
+        public IncludedResource(final T content, final byte[] digest)
+        {
+            this.content = content;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Copies a document into a new tree, replacing {@code xi:include} elements
+     * with the resources they refer to. Each resource is loaded at most once
+     * per episode, by resolved URI.
+     */
+    private static final class XIncluder
+    {
+        private final Processor processor;
+        private final InputResolver inputResolver;
+        private final ConcurrentMap<URI, IncludedResource<XdmNode>> documents;
+        private final ConcurrentMap<List<Object>, IncludedResource<String>> texts;
+        private final Deque<URI> inclusions = Lists.newLinkedList();
+
+        public XIncluder(final Processor processor, final InputResolver inputResolver, final Episode episode)
+        {
+            this.processor = processor;
+            this.inputResolver = inputResolver;
+            documents = episode.getData(INCLUDED_DOCUMENTS,
+                    () -> new ConcurrentHashMap<URI, IncludedResource<XdmNode>>());
+            texts = episode.getData(INCLUDED_TEXTS,
+                    () -> new ConcurrentHashMap<List<Object>, IncludedResource<String>>());
+        }
+
+        public XdmNode process(final XdmNode document)
+        {
+            if (!containsXInclude(document))
+            {
+                return document;
+            }
+
+            final SaxonBuilder builder = new SaxonBuilder(processor.getUnderlyingConfiguration());
+            if (document.getBaseURI() != null)
+            {
+                builder.setSystemId(document.getBaseURI().toString());
+                inclusions.push(document.getBaseURI());
+            }
+            builder.startDocument();
+            processChildNodes(document, builder);
+            builder.endDocument();
+
+            return builder.getNode();
+        }
+
+        private static boolean containsXInclude(final XdmNode node)
+        {
+            for (final XdmNode element : SaxonAxis.childElements(node))
+            {
+                if (XINCLUDE_NAMESPACE.equals(element.getNodeName().getNamespaceURI()) || containsXInclude(element))
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void processChildNodes(final XdmNode node, final SaxonBuilder builder)
+        {
+            for (final XdmNode childNode : SaxonAxis.childNodesNoAttributes(node))
+            {
+                processNode(childNode, builder);
+            }
+        }
+
+        private void processNode(final XdmNode node, final SaxonBuilder builder)
+        {
+            if (node.getNodeKind() != XdmNodeKind.ELEMENT)
+            {
+                builder.nodes(node);
+                return;
+            }
+
+            if (node.getNodeName().equals(ELEMENT_INCLUDE))
+            {
+                include(node, builder);
+                return;
+            }
+
+            if (XINCLUDE_NAMESPACE.equals(node.getNodeName().getNamespaceURI()))
+            {
+                throw new UnsupportedInclusionException("unexpected element " + node.getNodeName());
+            }
+
+            builder.startElement(node.getNodeName(), node);
+            for (final XdmNode attribute : SaxonAxis.attributes(node))
+            {
+                builder.attribute(attribute.getNodeName(), attribute.getStringValue());
+            }
+            processChildNodes(node, builder);
+            builder.endElement();
+        }
+
+        private void include(final XdmNode includeElement, final SaxonBuilder builder)
+        {
+            for (final QName attributeName : UNSUPPORTED_ATTRIBUTES)
+            {
+                if (includeElement.getAttributeValue(attributeName) != null)
+                {
+                    throw new UnsupportedInclusionException("unsupported attribute " + attributeName);
+                }
+            }
+
+            final String href = includeElement.getAttributeValue(ATTRIBUTE_HREF);
+            final String parse = includeElement.getAttributeValue(ATTRIBUTE_PARSE);
+            if (href == null || href.isEmpty() || (parse != null && !PARSE_XML.equals(parse) && !PARSE_TEXT.equals(
+                    parse)))
+            {
+                throw new UnsupportedInclusionException("unsupported inclusion " + includeElement);
+            }
+
+            final List<XdmNode> fallbacks = Lists.newArrayList();
+            for (final XdmNode child : SaxonAxis.childElements(includeElement))
+            {
+                if (child.getNodeName().equals(ELEMENT_FALLBACK) && fallbacks.isEmpty())
+                {
+                    fallbacks.add(child);
+                }
+                else if (XINCLUDE_NAMESPACE.equals(child.getNodeName().getNamespaceURI()))
+                {
+                    throw new UnsupportedInclusionException("unexpected element " + child.getNodeName());
+                }
+            }
+
+            final URI uri = includeElement.getBaseURI().resolve(href);
+            LOG.trace("{@method} uri = {} ; parse = {}", uri, parse);
+            if (PARSE_TEXT.equals(parse))
+            {
+                final String text;
+                try
+                {
+                    text = loadText(uri, includeElement.getAttributeValue(ATTRIBUTE_ENCODING));
+                }
+                catch (final RuntimeException e)
+                {
+                    fallback(includeElement, Iterables.getFirst(fallbacks, null), builder, e);
+                    return;
+                }
+                builder.text(text);
+                return;
+            }
+
+            if (inclusions.contains(uri))
+            {
+                throw XProcExceptions.xc0029(SaxonLocation.of(includeElement));
+            }
+
+            final XdmNode document;
+            try
+            {
+                document = loadDocument(uri);
+            }
+            catch (final RuntimeException e)
+            {
+                fallback(includeElement, Iterables.getFirst(fallbacks, null), builder, e);
+                return;
+            }
+
+            inclusions.push(uri);
+            processChildNodes(document, builder);
+            inclusions.pop();
+        }
+
+        private void fallback(final XdmNode includeElement, final XdmNode fallbackElement,
+                final SaxonBuilder builder, final RuntimeException error)
+        {
+            if (error instanceof UnsupportedInclusionException)
+            {
+                throw error;
+            }
+
+            LOG.trace("{@method} resource error: {message}", error);
+            if (fallbackElement == null)
+            {
+                throw XProcExceptions.xc0029(SaxonLocation.of(includeElement));
+            }
+
+            processChildNodes(fallbackElement, builder);
+        }
+
+        private XdmNode loadDocument(final URI uri)
+        {
+            IncludedResource<XdmNode> document = documents.get(uri);
+            if (document == null)
+            {
+                final MessageDigest digest = ResourceRecorder.newResourceDigest();
+                final InputStream inputStream = new DigestInputStream(inputResolver.resolveInputStream(uri), digest);
+                try
+                {
+                    document = new IncludedResource<>(processor.newDocumentBuilder().build(
+                            new StreamSource(inputStream, uri.toString())), digest.digest());
+                }
+                catch (final Exception e)
+                {
+                    throw new IllegalStateException(e);
+                }
+                finally
+                {
+                    Closeables.closeQuietly(inputStream);
+                }
+                documents.putIfAbsent(uri, document);
+            }
+            else
+            {
+                addResource(uri, document);
+            }
+
+            return document.content;
+        }
+
+        private String loadText(final URI uri, final String encoding)
+        {
+            final List<Object> key = Lists.<Object> newArrayList(uri, encoding);
+            IncludedResource<String> text = texts.get(key);
+            if (text == null)
+            {
+                final Charset charset;
+                if (encoding == null)
+                {
+                    charset = Charset.forName("UTF-8");
+                }
+                else
+                {
+                    charset = Charset.forName(encoding);
+                }
+
+                final MessageDigest digest = ResourceRecorder.newResourceDigest();
+                final InputStream inputStream = new DigestInputStream(inputResolver.resolveInputStream(uri), digest);
+                try
+                {
+                    text = new IncludedResource<>(CharStreams.toString(new InputStreamReader(inputStream, charset)),
+                            digest.digest());
+                }
+                catch (final Exception e)
+                {
+                    throw new IllegalStateException(e);
+                }
+                finally
+                {
+                    Closeables.closeQuietly(inputStream);
+                }
+                texts.putIfAbsent(key, text);
+            }
+            else
+            {
+                addResource(uri, text);
+            }
+
+            return text.content;
+        }
+
+        /**
+         * Records a resource loaded earlier in the episode, as the step result
+         * cache only sees the resources read through its input resolver.
+         */
+        private void addResource(final URI uri, final IncludedResource<?> resource)
+        {
+            if (inputResolver instanceof ResourceRecorder)
+            {
+                ((ResourceRecorder) inputResolver).addResource(uri, resource.digest);
+            }
+        }
+    }
 }
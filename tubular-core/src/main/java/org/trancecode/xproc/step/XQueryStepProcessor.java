@@ -55,7 +55,7 @@ import java.util.Map;
  * @author Emmanuel Tourdot
  * @see <a href="http://www.w3.org/TR/xproc/#c.xquery">p:xquery</a>
  */
-@ExternalResources(read = false, write = false)
+@ExternalResources(read = true, write = false)
 public final class XQueryStepProcessor extends AbstractStepProcessor
 {
     private static final Logger LOG = Logger.getLogger(XQueryStepProcessor.class);
@@ -41,9 +41,23 @@ public final class IterationPositionXPathExtensionFunction extends AbstractXPath
         ITERATION_POSITION.set(1);
     }
 
+    /**
+     * Returns the value for the current thread, 1 outside of any iteration.
+     */
+    public static int getIterationPosition()
+    {
+        final Integer value = ITERATION_POSITION.get();
+        if (value == null)
+        {
+            return 1;
+        }
+
+        return value;
+    }
+
     public static int setIterationPosition(final int value)
     {
-        final int previousValue = TcThreads.set(ITERATION_POSITION, value);
+        final int previousValue = TcThreads.set(ITERATION_POSITION, value, 1);
         LOG.trace("{@method} {} -> {}", previousValue, value);
         return previousValue;
     }
@@ -88,7 +102,7 @@ public final class IterationPositionXPathExtensionFunction extends AbstractXPath
 
                     @Override
                     public Sequence call(XPathContext xPathContext, Sequence[] sequences) throws XPathException {
-                        return Int64Value.makeIntegerValue(ITERATION_POSITION.get());
+                        return Int64Value.makeIntegerValue(getIterationPosition());
                     }
                 };
             }
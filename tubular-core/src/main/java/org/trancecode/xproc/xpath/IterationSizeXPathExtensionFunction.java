@@ -41,9 +41,23 @@ public final class IterationSizeXPathExtensionFunction extends AbstractXPathExte
         ITERATION_SIZE.set(1);
     }
 
+    /**
+     * Returns the value for the current thread, 1 outside of any iteration.
+     */
+    public static int getIterationSize()
+    {
+        final Integer value = ITERATION_SIZE.get();
+        if (value == null)
+        {
+            return 1;
+        }
+
+        return value;
+    }
+
     public static int setIterationSize(final int value)
     {
-        final int previousValue = TcThreads.set(ITERATION_SIZE, value);
+        final int previousValue = TcThreads.set(ITERATION_SIZE, value, 1);
         LOG.trace("{@method} {} -> {}", previousValue, value);
         return previousValue;
     }
@@ -88,7 +102,7 @@ public final class IterationSizeXPathExtensionFunction extends AbstractXPathExte
 
                     @Override
                     public Sequence call(XPathContext xPathContext, Sequence[] sequences) throws XPathException {
-                        return Int64Value.makeIntegerValue(ITERATION_SIZE.get());
+                        return Int64Value.makeIntegerValue(getIterationSize());
                     }
                 };
             }
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.StringReader;
+import java.util.List;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link DocumentStore}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class DocumentStoreTest extends AbstractTest
+{
+    private final Processor processor = new Processor(false);
+
+    private XdmNode parse(final String xml, final String systemId) throws SaxonApiException
+    {
+        return processor.newDocumentBuilder().build(new StreamSource(new StringReader(xml), systemId));
+    }
+
+    @Test
+    public void directStore() throws Exception
+    {
+        final DocumentStore store = DocumentStore.newDirectStore(5);
+        final XdmNode small = parse("<small/>", "http://example.org/small.xml");
+        final XdmNode large = parse("<large><a/><b/><c/><d/></large>", "http://example.org/large.xml");
+
+        final List<XdmNode> smallDocuments = ImmutableList.of(small);
+        Assert.assertSame(store.store(smallDocuments, processor.getUnderlyingConfiguration()), smallDocuments);
+        Assert.assertEquals(store.getStoredBytes(), 0);
+
+        final List<XdmNode> documents = store.store(ImmutableList.of(small, large),
+                processor.getUnderlyingConfiguration());
+        Assert.assertTrue(DocumentStore.isStored(documents));
+        Assert.assertEquals(documents.size(), 2);
+        Assert.assertSame(documents.get(0), small);
+        Assert.assertEquals(documents.get(1).toString(), large.toString());
+        Assert.assertEquals(documents.get(1).getBaseURI(), large.getBaseURI());
+        // Only the reader holds the decoded tree
+        Assert.assertNotSame(documents.get(1), documents.get(1));
+        Assert.assertTrue(store.getStoredBytes() > 0);
+        store.close();
+    }
+
+    @Test
+    public void mappedStore() throws Exception
+    {
+        final File directory = Files.createTempDir();
+        final DocumentStore store = DocumentStore.newMappedStore(directory, 0);
+        final XdmNode document1 = parse("<doc>1</doc>", "http://example.org/doc1.xml");
+        final XdmNode document2 = parse("<doc>2</doc>", "http://example.org/doc2.xml");
+
+        final List<XdmNode> documents1 = store.store(ImmutableList.of(document1),
+                processor.getUnderlyingConfiguration());
+        final long storedBytes = store.getStoredBytes();
+        Assert.assertTrue(storedBytes > 0);
+        final List<XdmNode> documents2 = store.store(ImmutableList.of(document2),
+                processor.getUnderlyingConfiguration());
+        Assert.assertTrue(store.getStoredBytes() > storedBytes);
+        Assert.assertEquals(documents1.get(0).getStringValue(), "1");
+        Assert.assertEquals(documents2.get(0).getStringValue(), "2");
+        Assert.assertEquals(documents2.get(0).getBaseURI(), document2.getBaseURI());
+        Assert.assertEquals(directory.list().length, 1);
+
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setDocumentStore(store);
+        configuration.close();
+        Assert.assertEquals(directory.list().length, 0);
+    }
+}
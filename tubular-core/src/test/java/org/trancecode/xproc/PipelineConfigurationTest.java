@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.trancecode.event.EventDispatcher;
+import org.trancecode.event.EventDispatchers;
+import org.trancecode.metrics.MetricsRegistries;
+import org.trancecode.metrics.PrometheusTextFormat;
+import org.trancecode.xml.catalog.CachingCatalog;
+import org.trancecode.xml.catalog.CatalogQuery;
+import org.trancecode.xml.catalog.Catalogs;
+import org.trancecode.xproc.event.XProcEvent;
+
+/**
+ * Tests for {@link PipelineConfiguration}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineConfigurationTest extends AbstractTest
+{
+    @Test
+    public void setEventDispatcherAfterLookup()
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        final EventDispatcher<XProcEvent> initialDispatcher = configuration.getEventDispatcher();
+        final EventDispatcher<XProcEvent> dispatcher = EventDispatchers.newEventDispatcher();
+        configuration.setEventDispatcher(dispatcher);
+        Assert.assertSame(configuration.getEventDispatcher(), dispatcher);
+        Assert.assertNotSame(configuration.getEventDispatcher(), initialDispatcher);
+    }
+
+    @Test
+    public void setCatalog()
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        final CachingCatalog catalog = Catalogs.addCache(Catalogs.rewriteSystem("http://example.org/", "file:/tmp/"));
+        configuration.setCatalog(catalog);
+        catalog.apply(CatalogQuery.newInstance(null, "http://example.org/a.dtd", null));
+        catalog.apply(CatalogQuery.newInstance(null, "http://example.org/a.dtd", null));
+
+        final String metrics = PrometheusTextFormat.toString(configuration.getMetrics().getRegistry());
+        Assert.assertTrue(metrics.contains("tubular_cache_hits{cache=\"catalog\"} 1\n"), metrics);
+        Assert.assertTrue(metrics.contains("tubular_cache_misses{cache=\"catalog\"} 1\n"), metrics);
+
+        // gauges are registered again with another registry
+        configuration.setMetricsRegistry(MetricsRegistries.newMetricsRegistry());
+        Assert.assertTrue(PrometheusTextFormat.toString(configuration.getMetrics().getRegistry()).contains(
+                "tubular_cache_hits{cache=\"catalog\"} 1\n"));
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.QName;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link PipelineLibraryCache}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineLibraryCacheTest extends AbstractTest
+{
+    private static final String NAMESPACE = "http://example.org/test";
+
+    private static String library(final String stepName)
+    {
+        return "<p:library version='1.0' xmlns:p='http://www.w3.org/ns/xproc' xmlns:test='" + NAMESPACE + "'>"
+                + "<p:declare-step type='test:" + stepName + "'><p:input port='source'/><p:output port='result'/>"
+                + "<p:identity/></p:declare-step></p:library>";
+    }
+
+    @Test
+    public void hitAndMiss() throws Exception
+    {
+        final File file = new File(Files.createTempDir(), "library.xpl");
+        Files.write(library("step"), file, Charsets.UTF_8);
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        final PipelineLibraryCache cache = configuration.getPipelineLibraryCache();
+
+        final PipelineLibrary library1 = PipelineParser.parseLibrary(configuration, new StreamSource(file));
+        Assert.assertEquals(cache.missCount(), 1);
+        Assert.assertEquals(cache.hitCount(), 0);
+        Assert.assertEquals(cache.size(), 1);
+
+        final AtomicBoolean closed = new AtomicBoolean();
+        final FileInputStream input = new FileInputStream(file)
+        {
+            @Override
+            public void close() throws IOException
+            {
+                closed.set(true);
+                super.close();
+            }
+        };
+        final PipelineLibrary library2 = PipelineParser.parseLibrary(configuration,
+                new StreamSource(input, file.toURI().toString()));
+        Assert.assertSame(library2, library1);
+        Assert.assertEquals(cache.missCount(), 1);
+        Assert.assertEquals(cache.hitCount(), 1);
+        Assert.assertTrue(closed.get(), "source of a cached library not closed");
+    }
+
+    @Test
+    public void modifiedFile() throws Exception
+    {
+        final File file = new File(Files.createTempDir(), "library.xpl");
+        Files.write(library("step1"), file, Charsets.UTF_8);
+        final long lastModified = file.lastModified();
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        final PipelineLibraryCache cache = configuration.getPipelineLibraryCache();
+
+        final PipelineLibrary library1 = PipelineParser.parseLibrary(configuration, new StreamSource(file));
+        Assert.assertTrue(library1.getStepTypes().contains(new QName(NAMESPACE, "step1")));
+
+        // Same length and modification time, as when a file is rewritten
+        // within the resolution of the file system clock
+        Files.write(library("step2"), file, Charsets.UTF_8);
+        Assert.assertTrue(file.setLastModified(lastModified));
+
+        final PipelineLibrary library2 = PipelineParser.parseLibrary(configuration, new StreamSource(file));
+        Assert.assertFalse(library2 == library1);
+        Assert.assertEquals(cache.missCount(), 2);
+        Assert.assertEquals(cache.hitCount(), 0);
+        Assert.assertTrue(library2.getStepTypes().contains(new QName(NAMESPACE, "step2")));
+    }
+
+    @Test
+    public void unchangedModificationTime() throws Exception
+    {
+        final File file = new File(Files.createTempDir(), "library.xpl");
+        Files.write(library("step1"), file, Charsets.UTF_8);
+        // Old enough for the modification time to be trusted
+        final long lastModified = System.currentTimeMillis() - 60000;
+        Assert.assertTrue(file.setLastModified(lastModified));
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        final PipelineLibraryCache cache = configuration.getPipelineLibraryCache();
+
+        final PipelineLibrary library1 = PipelineParser.parseLibrary(configuration, new StreamSource(file));
+
+        // The content is not read again as long as the size and modification
+        // time are the same
+        Files.write(library("step2"), file, Charsets.UTF_8);
+        Assert.assertTrue(file.setLastModified(lastModified));
+        Assert.assertSame(PipelineParser.parseLibrary(configuration, new StreamSource(file)), library1);
+        Assert.assertEquals(cache.hitCount(), 1);
+
+        Assert.assertTrue(file.setLastModified(lastModified + 1000));
+        final PipelineLibrary library2 = PipelineParser.parseLibrary(configuration, new StreamSource(file));
+        Assert.assertTrue(library2.getStepTypes().contains(new QName(NAMESPACE, "step2")));
+        Assert.assertEquals(cache.missCount(), 2);
+    }
+
+    @Test
+    public void sharedJarLibrary() throws Exception
+    {
+        final File jar = new File(Files.createTempDir(), "library.jar");
+        final JarOutputStream output = new JarOutputStream(new FileOutputStream(jar));
+        output.putNextEntry(new ZipEntry("library.xpl"));
+        output.write(library("step").getBytes(Charsets.UTF_8));
+        output.close();
+        final URL url = new URL("jar:" + jar.toURI() + "!/library.xpl");
+
+        final PipelineConfiguration configuration1 = new PipelineConfiguration();
+        final PipelineLibrary library1 = PipelineParser.parseLibrary(configuration1,
+                new StreamSource(url.openStream(), url.toString()));
+        Assert.assertEquals(configuration1.getPipelineLibraryCache().missCount(), 1);
+
+        // Parsed once for all the configurations
+        final PipelineConfiguration configuration2 = new PipelineConfiguration();
+        final PipelineLibrary library2 = PipelineParser.parseLibrary(configuration2,
+                new StreamSource(url.openStream(), url.toString()));
+        Assert.assertSame(library2, library1);
+        Assert.assertEquals(configuration2.getPipelineLibraryCache().hitCount(), 1);
+        Assert.assertEquals(configuration2.getPipelineLibraryCache().missCount(), 0);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xproc;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the throughput of {@link Pipeline#run(PipelineRequest)} when the
+ * same compiled pipeline is run from one thread and from as many threads as
+ * there are cores. With no shared mutable state between runs, the throughput
+ * should grow linearly with the number of threads.
+ * <p>
+ * Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=org.trancecode.xproc.PipelineRunBenchmark
+ * -Dexec.classpathScope=test}.
+ * 
+ * @author Herve Quiroz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineRunBenchmark
+{
+    private static final String PIPELINE = "<p:pipeline xmlns:p='http://www.w3.org/ns/xproc' version='1.0'>"
+            + "<p:option name='name' required='true'/>"
+            + "<p:add-attribute match='/*' attribute-name='name'><p:with-option name='attribute-value' select='$name'/>"
+            + "</p:add-attribute><p:wrap-sequence wrapper='result'/></p:pipeline>";
+
+    private Pipeline pipeline;
+    private PipelineRequest request;
+
+    @Setup
+    public void setup() throws SaxonApiException
+    {
+        final PipelineProcessor processor = new PipelineProcessor(new PipelineConfiguration());
+        pipeline = processor.buildPipeline(new StreamSource(new StringReader(PIPELINE),
+                "http://example.org/benchmark.xpl"));
+        final XdmNode source = pipeline.getPipelineContext().getProcessor().newDocumentBuilder()
+                .build(new StreamSource(new StringReader("<doc><item/><item/></doc>")));
+        request = PipelineRequest.newRequest().withInput("source", source)
+                .withOption(new QName("name"), "value");
+    }
+
+    @Benchmark
+    @Threads(1)
+    public PipelineResult singleThread()
+    {
+        return pipeline.run(request);
+    }
+
+    @Benchmark
+    @Threads(Threads.MAX)
+    public PipelineResult allCores()
+    {
+        return pipeline.run(request);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(PipelineRunBenchmark.class.getSimpleName()).build()).run();
+    }
+}
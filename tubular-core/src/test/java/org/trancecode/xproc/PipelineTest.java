@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc;
+
+import com.google.common.collect.Lists;
+
+import java.io.StringReader;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.trancecode.xml.saxon.SaxonAxis;
+import org.trancecode.xproc.port.XProcPorts;
+
+/**
+ * Tests for {@link Pipeline}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class PipelineTest extends AbstractTest
+{
+    private static final QName ID = new QName("id");
+    private static final QName LABEL = new QName("label");
+
+    @Test
+    public void concurrentRuns() throws Exception
+    {
+        final String path = "/PipelineTest/concurrentRuns.xpl";
+        final Source pipelineSource = new StreamSource(getClass().getResourceAsStream(path), path);
+        final Pipeline pipeline = new PipelineProcessor().buildPipeline(pipelineSource);
+
+        final int threads = 8;
+        final int runsPerThread = 50;
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            final List<Future<Void>> results = Lists.newArrayList();
+            for (int thread = 0; thread < threads; thread++)
+            {
+                final int threadIndex = thread;
+                results.add(executor.submit(() -> {
+                    for (int run = 0; run < runsPerThread; run++)
+                    {
+                        final String id = threadIndex + "-" + run;
+                        final XdmNode source = pipeline.getPipelineContext().getProcessor()
+                                .newDocumentBuilder()
+                                .build(new StreamSource(new StringReader("<doc id='" + id + "'/>")));
+                        final PipelineResult result = pipeline.run(PipelineRequest.newRequest()
+                                .withInput(XProcPorts.SOURCE, source).withOption(LABEL, id));
+                        final XdmNode document = SaxonAxis.childElement(result.readNode(XProcPorts.RESULT));
+                        Assert.assertEquals(document.getAttributeValue(ID), id);
+                        Assert.assertEquals(document.getAttributeValue(LABEL), id);
+                    }
+                    return null;
+                }));
+            }
+
+            for (final Future<Void> result : results)
+            {
+                result.get();
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+}
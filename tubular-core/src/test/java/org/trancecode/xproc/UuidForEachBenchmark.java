@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xproc;
+
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the latency of each {@code p:uuid} call within a {@code p:for-each}
+ * over 1000 items, for each UUID version.
+ * <p>
+ * Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=org.trancecode.xproc.UuidForEachBenchmark
+ * -Dexec.classpathScope=test}.
+ * 
+ * @author Herve Quiroz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UuidForEachBenchmark
+{
+    private static final int ITEMS = 1000;
+    private static final String PIPELINE = "<p:pipeline xmlns:p='http://www.w3.org/ns/xproc' version='1.0'>"
+            + "<p:option name='version' required='true'/>"
+            + "<p:for-each><p:iteration-source select='/doc/item'/>"
+            + "<p:uuid match='@id'><p:with-option name='version' select='$version'/></p:uuid>"
+            + "</p:for-each><p:wrap-sequence wrapper='result'/></p:pipeline>";
+
+    @Param({ "1", "3", "4" })
+    private String version;
+
+    private Pipeline pipeline;
+    private PipelineRequest request;
+
+    @Setup
+    public void setup() throws SaxonApiException
+    {
+        final PipelineProcessor processor = new PipelineProcessor(new PipelineConfiguration());
+        pipeline = processor.buildPipeline(new StreamSource(new StringReader(PIPELINE),
+                "http://example.org/benchmark.xpl"));
+
+        final StringBuilder document = new StringBuilder("<doc>");
+        for (int i = 0; i < ITEMS; i++)
+        {
+            document.append("<item id=''/>");
+        }
+        document.append("</doc>");
+        final XdmNode source = pipeline.getPipelineContext().getProcessor().newDocumentBuilder()
+                .build(new StreamSource(new StringReader(document.toString())));
+        request = PipelineRequest.newRequest().withInput("source", source).withOption(new QName("version"), version);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ITEMS)
+    public PipelineResult forEach()
+    {
+        return pipeline.run(request);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(UuidForEachBenchmark.class.getSimpleName()).build()).run();
+    }
+}
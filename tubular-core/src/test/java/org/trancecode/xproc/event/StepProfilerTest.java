@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2011 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ */
+package org.trancecode.xproc.event;
+
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+
+import java.io.StringReader;
+import java.util.Map;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Axis;
+import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.XdmNode;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+import org.trancecode.xml.saxon.SaxonAxis;
+import org.trancecode.xproc.Pipeline;
+import org.trancecode.xproc.PipelineConfiguration;
+import org.trancecode.xproc.PipelineProcessor;
+import org.trancecode.xproc.PipelineRequest;
+import org.trancecode.xproc.port.XProcPorts;
+
+/**
+ * Tests for {@link StepProfiler}.
+ * 
+ * @author Herve Quiroz
+ */
+public final class StepProfilerTest extends AbstractTest
+{
+    private static final QName PATH = new QName("path");
+
+    @Test
+    public void documents() throws Exception
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        final StepProfiler profiler = StepProfiler.newProfiler();
+        configuration.getEventDispatcher().addObserver(profiler);
+        final String path = "/StepProfilerTest/profile.xpl";
+        final Source pipelineSource = new StreamSource(getClass().getResourceAsStream(path), path);
+        final Pipeline pipeline = new PipelineProcessor(configuration).buildPipeline(pipelineSource);
+
+        for (int i = 0; i < 2; i++)
+        {
+            final XdmNode source = configuration.getProcessor().newDocumentBuilder()
+                    .build(new StreamSource(new StringReader("<doc><item/><item/><item/></doc>")));
+            pipeline.run(PipelineRequest.newRequest().withInput(XProcPorts.SOURCE, source));
+        }
+
+        final Map<String, XdmNode> steps = Maps.newHashMap();
+        for (final XdmNode node : Iterables.filter(SaxonAxis.axis(profiler.getReport(configuration.getProcessor()),
+                Axis.DESCENDANT), XdmNode.class))
+        {
+            if (node.getAttributeValue(PATH) != null)
+            {
+                steps.put(node.getAttributeValue(PATH), node);
+            }
+        }
+
+        assertStep(steps.get("pipeline/for-each/#iteration/identity"), 6, 6, 6);
+        assertStep(steps.get("pipeline/wrap"), 2, 6, 2);
+        // documents are only counted for atomic steps
+        assertStep(steps.get("pipeline/for-each"), 2, 0, 0);
+        assertStep(steps.get("pipeline/for-each/#iteration"), 6, 0, 0);
+        assertNodes(steps.get("pipeline/for-each/#iteration/identity"), true);
+        assertNodes(steps.get("pipeline/wrap"), true);
+        assertNodes(steps.get("pipeline/for-each"), false);
+
+        profiler.reset();
+        Assert.assertFalse(SaxonAxis.childElements(SaxonAxis.childElement(
+                profiler.getReport(configuration.getProcessor()))).iterator().hasNext());
+    }
+
+    private static void assertStep(final XdmNode step, final int count, final int inputDocuments,
+            final int outputDocuments)
+    {
+        Assert.assertNotNull(step);
+        Assert.assertEquals(step.getAttributeValue(new QName("count")), Integer.toString(count));
+        Assert.assertEquals(step.getAttributeValue(new QName("input-documents")), Integer.toString(inputDocuments));
+        Assert.assertEquals(step.getAttributeValue(new QName("output-documents")), Integer.toString(outputDocuments));
+    }
+
+    private static void assertNodes(final XdmNode step, final boolean counted)
+    {
+        final long inputNodes = Long.parseLong(step.getAttributeValue(new QName("input-nodes")));
+        final long outputNodes = Long.parseLong(step.getAttributeValue(new QName("output-nodes")));
+        Assert.assertEquals(inputNodes > 0, counted, "" + inputNodes);
+        Assert.assertEquals(outputNodes > 0, counted, "" + outputNodes);
+    }
+}
@@ -17,20 +17,50 @@
  */
 package org.trancecode.xproc.step;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
 
+import java.io.File;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import javax.xml.transform.Source;
 import javax.xml.transform.stream.StreamSource;
 
 import net.sf.saxon.s9api.QName;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 import org.trancecode.AbstractTest;
 import org.trancecode.TcAssert;
+import org.trancecode.xml.XmlAttributes;
+import org.trancecode.xml.saxon.SaxonAxis;
+import org.trancecode.xproc.Pipeline;
+import org.trancecode.xproc.PipelineConfiguration;
 import org.trancecode.xproc.PipelineProcessor;
+import org.trancecode.xproc.PipelineRequest;
+import org.trancecode.xproc.PipelineResult;
+import org.trancecode.xproc.StepResultCache;
+import org.trancecode.xproc.api.XProcException;
+import org.trancecode.xproc.event.AfterExecuteStepEvent;
+import org.trancecode.xproc.event.AfterIterationStepEvent;
+import org.trancecode.xproc.event.BeforeIterationStepEvent;
+import org.trancecode.xproc.event.XProcEvent;
+import org.trancecode.xproc.event.XProcEventObserver;
 import org.trancecode.xproc.port.Port;
+import org.trancecode.xproc.port.XProcPorts;
+import org.trancecode.xproc.variable.XProcOptions;
 
 /**
  * Tests for {@link Step}.
@@ -141,4 +171,607 @@ public final class StepTest extends AbstractTest
         step = step.declarePort(input2);
         Assert.assertSame(step.getPrimaryInputPort(), input2);
     }
+
+    /**
+     * The copy of a pipeline bound to the inputs, options and parameters of a
+     * run reuses what has already been computed for the pipeline.
+     */
+    @Test
+    public void boundCopySharesCompiledData()
+    {
+        final Step pipeline = buildPipeline(new PipelineConfiguration(), "stepResultCacheTemplate.xpl")
+                .getUnderlyingPipeline();
+        final Map<Step, Iterable<Step>> dependencies = pipeline.getSubpipelineStepDependencies();
+        final Step copy = pipeline.setPortBindings(XProcPorts.SOURCE).withOptionValue(new QName("label"), "a")
+                .withParam(new QName("param"), null, "value", pipeline.getLocation());
+        Assert.assertSame(copy.getSubpipelineStepDependencies(), dependencies);
+        Assert.assertSame(copy.getSubpipelinePortReaders(), pipeline.getSubpipelinePortReaders());
+    }
+
+    private static Pipeline buildPipeline(final PipelineConfiguration configuration, final String name)
+    {
+        final String path = "/StepTest/" + name;
+        final Source pipelineSource = new StreamSource(StepTest.class.getResourceAsStream(path), path);
+        return new PipelineProcessor(configuration).buildPipeline(pipelineSource);
+    }
+
+    private static XdmNode parse(final Pipeline pipeline, final String xml) throws SaxonApiException
+    {
+        return pipeline.getPipelineContext().getProcessor().newDocumentBuilder()
+                .build(new StreamSource(new StringReader(xml), "http://example.org/source.xml"));
+    }
+
+    private static PipelineResult run(final Pipeline pipeline, final String xml) throws SaxonApiException
+    {
+        return pipeline.run(PipelineRequest.newRequest().withInput(XProcPorts.SOURCE, parse(pipeline, xml)));
+    }
+
+    @Test
+    public void stepResultCacheHitAndMiss() throws Exception
+    {
+        final StepResultCache cache = StepResultCache.newStepResultCache(Files.createTempDir());
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setStepResultCache(cache);
+        final Pipeline pipeline = buildPipeline(configuration, "stepResultCache.xpl");
+
+        final XdmNode result1 = run(pipeline, "<doc/>").readNode(XProcPorts.RESULT);
+        Assert.assertEquals(cache.hitCount(), 0);
+        Assert.assertEquals(cache.missCount(), 1);
+
+        final XdmNode result2 = run(pipeline, "<doc/>").readNode(XProcPorts.RESULT);
+        Assert.assertEquals(cache.hitCount(), 1);
+        Assert.assertEquals(cache.missCount(), 1);
+        Assert.assertTrue(cache.bytesSaved() > 0);
+        Assert.assertEquals(result2.toString(), result1.toString());
+        Assert.assertEquals(result2.getBaseURI(), result1.getBaseURI());
+
+        final XdmNode result3 = run(pipeline, "<other/>").readNode(XProcPorts.RESULT);
+        Assert.assertEquals(cache.hitCount(), 1);
+        Assert.assertEquals(cache.missCount(), 2);
+        Assert.assertEquals(SaxonAxis.childElement(result3).getNodeName(), new QName("other"));
+    }
+
+    @Test
+    public void stepResultCacheInvalidation() throws Exception
+    {
+        final File directory = Files.createTempDir();
+        final File included = new File(directory, "included.xml");
+        Files.write("<included>1</included>", included, Charsets.UTF_8);
+        final StepResultCache cache = StepResultCache.newStepResultCache(new File(directory, "cache"));
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setStepResultCache(cache);
+        final Pipeline pipeline = buildPipeline(configuration, "stepResultCacheXInclude.xpl");
+        final String source = "<doc xmlns:xi='http://www.w3.org/2001/XInclude'><xi:include href='"
+                + included.toURI() + "'/></doc>";
+
+        Assert.assertEquals(run(pipeline, source).readNode(XProcPorts.RESULT).getStringValue(), "1");
+        Assert.assertEquals(run(pipeline, source).readNode(XProcPorts.RESULT).getStringValue(), "1");
+        Assert.assertEquals(cache.hitCount(), 1);
+        Assert.assertEquals(cache.missCount(), 1);
+
+        Files.write("<included>2</included>", included, Charsets.UTF_8);
+        Assert.assertEquals(run(pipeline, source).readNode(XProcPorts.RESULT).getStringValue(), "2");
+        Assert.assertEquals(cache.hitCount(), 1);
+        Assert.assertEquals(cache.missCount(), 2);
+    }
+
+    /**
+     * The second iteration includes the resource loaded by the first one
+     * within the same episode, and still records it for the cache.
+     */
+    @Test
+    public void stepResultCacheXIncludeEpisode() throws Exception
+    {
+        final File directory = Files.createTempDir();
+        final File included = new File(directory, "included.xml");
+        Files.write("<included>1</included>", included, Charsets.UTF_8);
+        final StepResultCache cache = StepResultCache.newStepResultCache(new File(directory, "cache"));
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setStepResultCache(cache);
+        final Pipeline pipeline = buildPipeline(configuration, "stepResultCacheXIncludeEpisode.xpl");
+        final String source = "<doc><item id='1'>" + xinclude(included, "", "") + "</item><item id='2'>"
+                + xinclude(included, "", "") + "</item></doc>";
+
+        Assert.assertEquals(run(pipeline, source).readNode(XProcPorts.RESULT).getStringValue(), "11");
+        Assert.assertEquals(run(pipeline, source).readNode(XProcPorts.RESULT).getStringValue(), "11");
+        Assert.assertEquals(cache.hitCount(), 3);
+
+        Files.write("<included>2</included>", included, Charsets.UTF_8);
+        Assert.assertEquals(run(pipeline, source).readNode(XProcPorts.RESULT).getStringValue(), "22");
+    }
+
+    @Test
+    public void stepResultCacheOuterVariables() throws Exception
+    {
+        final StepResultCache cache = StepResultCache.newStepResultCache(Files.createTempDir());
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setStepResultCache(cache);
+        final Pipeline pipeline = buildPipeline(configuration, "stepResultCacheTemplate.xpl");
+        final QName label = new QName("label");
+
+        for (final String value : ImmutableList.of("a", "b", "a"))
+        {
+            final XdmNode result = pipeline.run(
+                    PipelineRequest.newRequest().withInput(XProcPorts.SOURCE, parse(pipeline, "<doc/>"))
+                            .withOption(label, value)).readNode(XProcPorts.RESULT);
+            Assert.assertEquals(result.getStringValue(), value);
+        }
+        Assert.assertEquals(cache.hitCount(), 1);
+        Assert.assertEquals(cache.missCount(), 2);
+    }
+
+    @Test
+    public void stepResultCacheNotCacheable() throws Exception
+    {
+        final StepResultCache cache = StepResultCache.newStepResultCache(Files.createTempDir());
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setStepResultCache(cache);
+        final Pipeline pipeline = buildPipeline(configuration, "stepResultCacheUuid.xpl");
+
+        final XdmNode result1 = run(pipeline, "<doc id=''/>").readNode(XProcPorts.RESULT);
+        final XdmNode result2 = run(pipeline, "<doc id=''/>").readNode(XProcPorts.RESULT);
+        Assert.assertFalse(result2.toString().equals(result1.toString()));
+        Assert.assertEquals(cache.hitCount(), 0);
+        Assert.assertEquals(cache.missCount(), 0);
+
+        Assert.assertTrue(StepResultCache.isCacheable(new IdentityStepProcessor()));
+        Assert.assertTrue(StepResultCache.isCacheable(new XIncludeStepProcessor()));
+        Assert.assertFalse(StepResultCache.isCacheable(new UuidStepProcessor()));
+        Assert.assertFalse(StepResultCache.isCacheable(new XsltStepProcessor()));
+        Assert.assertFalse(StepResultCache.isCacheable(new XQueryStepProcessor()));
+        Assert.assertFalse(StepResultCache.isCacheable(new DirectoryListStepProcessor()));
+        Assert.assertFalse(StepResultCache.isCacheable(new StoreStepProcessor()));
+    }
+
+    private static String xinclude(final File file, final String attributes, final String content)
+    {
+        return "<xi:include xmlns:xi='http://www.w3.org/2001/XInclude' href='" + file.toURI() + "'" + attributes
+                + ">" + content + "</xi:include>";
+    }
+
+    @Test
+    public void xincludeNested() throws Exception
+    {
+        final File directory = Files.createTempDir();
+        Files.write("<a><xi:include xmlns:xi='http://www.w3.org/2001/XInclude' href='b.xml'/></a>", new File(
+                directory, "a.xml"), Charsets.UTF_8);
+        Files.write("<b><xi:include xmlns:xi='http://www.w3.org/2001/XInclude' href='c.txt' parse='text'/></b>",
+                new File(directory, "b.xml"), Charsets.UTF_8);
+        Files.write("<not xml>", new File(directory, "c.txt"), Charsets.UTF_8);
+        final Pipeline pipeline = buildPipeline(new PipelineConfiguration(), "xinclude.xpl");
+
+        final XdmNode result = run(pipeline, "<doc>" + xinclude(new File(directory, "a.xml"), "", "") + "</doc>")
+                .readNode(XProcPorts.RESULT);
+        final XdmNode doc = SaxonAxis.childElement(result);
+        final XdmNode a = SaxonAxis.childElement(doc);
+        Assert.assertEquals(a.getNodeName().getLocalName(), "a");
+        final XdmNode b = SaxonAxis.childElement(a);
+        Assert.assertEquals(b.getNodeName().getLocalName(), "b");
+        Assert.assertEquals(b.getStringValue(), "<not xml>");
+    }
+
+    @Test
+    public void xincludeLoop() throws Exception
+    {
+        final File directory = Files.createTempDir();
+        Files.write("<a><xi:include xmlns:xi='http://www.w3.org/2001/XInclude' href='b.xml'/></a>", new File(
+                directory, "a.xml"), Charsets.UTF_8);
+        Files.write("<b><xi:include xmlns:xi='http://www.w3.org/2001/XInclude' href='a.xml'/></b>", new File(
+                directory, "b.xml"), Charsets.UTF_8);
+        final Pipeline pipeline = buildPipeline(new PipelineConfiguration(), "xinclude.xpl");
+
+        try
+        {
+            run(pipeline, "<doc>" + xinclude(new File(directory, "a.xml"), "", "") + "</doc>");
+            Assert.fail();
+        }
+        catch (final XProcException e)
+        {
+            Assert.assertEquals(e.getName().getLocalPart(), "XC0029");
+        }
+    }
+
+    @Test
+    public void xincludeFallback() throws Exception
+    {
+        final File missing = new File(Files.createTempDir(), "missing.xml");
+        final Pipeline pipeline = buildPipeline(new PipelineConfiguration(), "xinclude.xpl");
+
+        final XdmNode result = run(pipeline,
+                "<doc>" + xinclude(missing, "", "<xi:fallback><fallback/>text</xi:fallback>") + "</doc>").readNode(
+                XProcPorts.RESULT);
+        final XdmNode doc = SaxonAxis.childElement(result);
+        Assert.assertEquals(SaxonAxis.childElement(doc).getNodeName().getLocalName(), "fallback");
+        Assert.assertEquals(doc.getStringValue(), "text");
+
+        try
+        {
+            run(pipeline, "<doc>" + xinclude(missing, "", "") + "</doc>");
+            Assert.fail();
+        }
+        catch (final XProcException e)
+        {
+            Assert.assertEquals(e.getName().getLocalPart(), "XC0029");
+        }
+    }
+
+    @Test
+    public void xincludeText() throws Exception
+    {
+        final File text = new File(Files.createTempDir(), "text.txt");
+        Files.write("caf\u00e9 & <tea>", text, Charsets.ISO_8859_1);
+        final Pipeline pipeline = buildPipeline(new PipelineConfiguration(), "xinclude.xpl");
+
+        final XdmNode result = run(pipeline,
+                "<doc>" + xinclude(text, " parse='text' encoding='ISO-8859-1'", "") + "</doc>").readNode(
+                XProcPorts.RESULT);
+        final XdmNode doc = SaxonAxis.childElement(result);
+        Assert.assertNull(SaxonAxis.childElement(doc));
+        Assert.assertEquals(doc.getStringValue(), "caf\u00e9 & <tea>");
+    }
+
+    @Test
+    public void xincludeDelegatedToXIncProc() throws Exception
+    {
+        final File directory = Files.createTempDir();
+        final File included = new File(directory, "included.xml");
+        Files.write("<included><first/><second/></included>", included, Charsets.UTF_8);
+
+        // xpointer is not supported by the streaming includer
+        final Pipeline pipeline = buildPipeline(new PipelineConfiguration(), "xinclude.xpl");
+        final XdmNode pointed = run(pipeline, "<doc>" + xinclude(included, " xpointer='element(/1/2)'", "") + "</doc>")
+                .readNode(XProcPorts.RESULT);
+        final XdmNode doc = SaxonAxis.childElement(pointed);
+        Assert.assertEquals(SaxonAxis.childElement(doc).getNodeName().getLocalName(), "second");
+
+        // neither is xml:base fixup
+        final Pipeline fixup = buildPipeline(new PipelineConfiguration(), "xincludeFixup.xpl");
+        final XdmNode fixedUp = run(fixup, "<doc>" + xinclude(included, "", "") + "</doc>").readNode(
+                XProcPorts.RESULT);
+        final XdmNode includedElement = SaxonAxis.childElement(SaxonAxis.childElement(fixedUp));
+        Assert.assertEquals(includedElement.getNodeName().getLocalName(), "included");
+        Assert.assertNotNull(includedElement.getAttributeValue(XmlAttributes.BASE));
+    }
+
+    @Test
+    public void template() throws Exception
+    {
+        final Pipeline pipeline = buildPipeline(new PipelineConfiguration(), "template.xpl");
+
+        final XdmNode result1 = SaxonAxis.childElement(run(pipeline,
+                "<doc id='d1'><item>a</item><item>b</item></doc>").readNode(XProcPorts.RESULT));
+        Assert.assertEquals(result1.getAttributeValue(new QName("id")), "d1");
+        Assert.assertEquals(result1.getAttributeValue(new QName("escaped")), "a {b} c");
+
+        final XdmNode staticText = SaxonAxis.childElement(result1, new QName("static"));
+        Assert.assertEquals(Iterables.size(SaxonAxis.childNodes(staticText)), 1);
+        Assert.assertEquals(staticText.getStringValue(), "1 < 2 & <b/>");
+        Assert.assertEquals(SaxonAxis.childElement(result1, new QName("escaped")).getStringValue(), "{1 < 2}");
+
+        final XdmNode copy = SaxonAxis.childElement(result1, new QName("copy"));
+        Assert.assertEquals(Iterables.size(SaxonAxis.childElements(copy, new QName("item"))), 2);
+        Assert.assertEquals(copy.getStringValue(), "before ab after");
+
+        final XdmNode value1 = SaxonAxis.childElement(result1, new QName("value"));
+        Assert.assertEquals(Iterables.size(SaxonAxis.childNodes(value1)), 1);
+        Assert.assertEquals(value1.getStringValue(), "2 items in d1");
+
+        // the compiled template is reused with another source document
+        final XdmNode result2 = SaxonAxis.childElement(run(pipeline, "<doc id='d2'><item>c</item></doc>").readNode(
+                XProcPorts.RESULT));
+        Assert.assertEquals(result2.getAttributeValue(new QName("id")), "d2");
+        Assert.assertEquals(SaxonAxis.childElement(result2, new QName("value")).getStringValue(), "1 items in d2");
+    }
+
+    @Test
+    public void earlyPortReleaseSiblingPipe() throws Exception
+    {
+        assertEarlyPortRelease("earlyPortReleaseSiblingPipe.xpl", "group");
+    }
+
+    @Test
+    public void earlyPortReleaseNestedOutput() throws Exception
+    {
+        assertEarlyPortRelease("earlyPortReleaseNestedOutput.xpl", "outer");
+    }
+
+    /**
+     * Checks that the output of step "first" is released once the given step
+     * has completed, and yet remains readable from the output of that step.
+     */
+    private static void assertEarlyPortRelease(final String pipelineName, final String readerName)
+            throws Exception
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setEarlyPortRelease(true);
+        final Pipeline pipeline = buildPipeline(configuration, pipelineName);
+        final Step pipelineStep = pipeline.getUnderlyingPipeline();
+        final Step first = pipelineStep.getStepByName("first");
+        TcAssert.assertSetEquals(
+                pipelineStep.getSubpipelinePortReaders().get(first.getPortReference(XProcPorts.RESULT)),
+                pipelineStep.getStepByName(readerName));
+
+        final XdmNode wrapper = SaxonAxis.childElement(run(pipeline, "<doc/>").readNode(XProcPorts.RESULT));
+        Assert.assertEquals(wrapper.getNodeName(), new QName("wrapper"));
+        Assert.assertEquals(SaxonAxis.childElement(wrapper).getNodeName(), new QName("doc"));
+    }
+
+    @Test
+    public void chooseCompiledTests() throws Exception
+    {
+        final Pipeline pipeline = buildPipeline(new PipelineConfiguration(), "chooseVariables.xpl");
+        final String source = "<doc><item value='a'/><item value='b'/>"
+                + "<c:item xmlns:c='http://www.w3.org/ns/xproc-step' value='c'/>"
+                + "<c:item xmlns:c='http://example.org/other' value='c'/></doc>";
+
+        // the variable values and the namespaces of the context node differ
+        // between evaluations of the same compiled tests
+        Assert.assertEquals(getSelectedBranches(pipeline, source, PipelineRequest.newRequest()), ImmutableList.of(
+                "expected", "otherwise", "step", "otherwise"));
+        Assert.assertEquals(getSelectedBranches(pipeline, source,
+                PipelineRequest.newRequest().withOption(new QName("expected"), "b")), ImmutableList.of("otherwise",
+                "expected", "step", "otherwise"));
+
+        // the in-scope variable names differ
+        Assert.assertEquals(getSelectedBranches(pipeline, source,
+                PipelineRequest.newRequest().withOption(new QName("unused"), "c")), ImmutableList.of("expected",
+                "otherwise", "step", "otherwise"));
+        Assert.assertEquals(getSelectedBranches(pipeline, source,
+                PipelineRequest.newRequest().withOption(new QName("expected"), "c")), ImmutableList.of("otherwise",
+                "otherwise", "expected", "expected"));
+    }
+
+    private static List<String> getSelectedBranches(final Pipeline pipeline, final String source,
+            final PipelineRequest request) throws SaxonApiException
+    {
+        final XdmNode result = pipeline.run(request.withInput(XProcPorts.SOURCE, parse(pipeline, source))).readNode(
+                XProcPorts.RESULT);
+        final List<String> branches = Lists.newArrayList();
+        for (final XdmNode item : SaxonAxis.childElements(SaxonAxis.childElement(result)))
+        {
+            branches.add(item.getAttributeValue(new QName("selected")));
+        }
+        return branches;
+    }
+
+    @Test
+    public void speculativeChoose() throws Exception
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setSpeculativeChoose(true);
+        final List<String> executedSteps = Collections.synchronizedList(Lists.<String> newArrayList());
+        configuration.getEventDispatcher().addObserver(event -> {
+            if (event instanceof AfterExecuteStepEvent)
+            {
+                executedSteps.add(((AfterExecuteStepEvent) event).getStep().getName());
+            }
+        });
+        final Pipeline pipeline = buildPipeline(configuration, "chooseSpeculative.xpl");
+
+        // no history yet
+        assertSelectedBranch(pipeline, "second", "second");
+        Assert.assertTrue(executedSteps.contains("second"));
+
+        // correct prediction: the branch is still run as a step
+        executedSteps.clear();
+        assertSelectedBranch(pipeline, "second", "second");
+        Assert.assertTrue(executedSteps.contains("second"));
+        Assert.assertFalse(executedSteps.contains("first"));
+
+        // misprediction: the predicted branch test is false
+        assertSelectedBranch(pipeline, "other", "otherwise");
+
+        // misprediction: a preceding branch is selected
+        assertSelectedBranch(pipeline, "first", "first");
+        assertSelectedBranch(pipeline, "second", "second");
+    }
+
+    private static void assertSelectedBranch(final Pipeline pipeline, final String branch, final String selected)
+            throws SaxonApiException
+    {
+        final XdmNode result = run(pipeline, "<doc branch='" + branch + "'/>").readNode(XProcPorts.RESULT);
+        Assert.assertEquals(SaxonAxis.childElement(result).getAttributeValue(new QName("selected")), selected);
+    }
+
+    @Test
+    public void speculativeChooseSideEffects() throws Exception
+    {
+        final PipelineConfiguration configuration = new PipelineConfiguration();
+        configuration.setSpeculativeChoose(true);
+        final Pipeline pipeline = buildPipeline(configuration, "chooseSpeculativeStore.xpl");
+        final File stored = new File(Files.createTempDir(), "stored.xml");
+        final QName href = new QName("href");
+
+        pipeline.run(PipelineRequest.newRequest().withInput(XProcPorts.SOURCE, parse(pipeline, "<doc/>"))
+                .withOption(href, stored.toURI().toString()));
+        Assert.assertTrue(stored.delete());
+
+        // The store branch is the most selected one but must not be predicted
+        for (int i = 0; i < 3; i++)
+        {
+            final XdmNode result = pipeline.run(
+                    PipelineRequest.newRequest().withInput(XProcPorts.SOURCE, parse(pipeline, "<doc branch='keep'/>"))
+                            .withOption(href, stored.toURI().toString())).readNode(XProcPorts.RESULT);
+            Assert.assertEquals(SaxonAxis.childElement(result).getAttributeValue(new QName("branch")), "keep");
+        }
+        Assert.assertFalse(stored.exists());
+    }
+
+    @Test
+    public void splitSequenceInitialOnly() throws Exception
+    {
+        final Pipeline pipeline = buildPipeline(new PipelineConfiguration(), "splitSequenceInitialOnly.xpl");
+        final XdmNode[] documents = {parse(pipeline, "<doc id='1' match='true'/>"),
+                parse(pipeline, "<doc id='2' match='false'/>"), parse(pipeline, "<doc id='3' match='true'/>")};
+
+        final PipelineResult all = pipeline.run(PipelineRequest.newRequest().withInput(XProcPorts.SOURCE,
+                documents));
+        Assert.assertEquals(getIds(all.readNodes(XProcPorts.MATCHED)), ImmutableList.of("1", "3"));
+        Assert.assertEquals(getIds(all.readNodes(XProcPorts.NOT_MATCHED)), ImmutableList.of("2"));
+
+        // Every document after the first one that does not match is rejected
+        final PipelineResult initial = pipeline.run(PipelineRequest.newRequest()
+                .withInput(XProcPorts.SOURCE, documents).withOption(XProcOptions.INITIAL_ONLY, "true"));
+        Assert.assertEquals(getIds(initial.readNodes(XProcPorts.MATCHED)), ImmutableList.of("1"));
+        Assert.assertEquals(getIds(initial.readNodes(XProcPorts.NOT_MATCHED)), ImmutableList.of("2", "3"));
+    }
+
+    private static List<String> getIds(final Iterable<XdmNode> documents)
+    {
+        final List<String> ids = Lists.newArrayList();
+        for (final XdmNode document : documents)
+        {
+            ids.add(SaxonAxis.childElement(document).getAttributeValue(new QName("id")));
+        }
+
+        return ids;
+    }
+
+    /**
+     * Counts the iterations started and the maximum number of iterations
+     * running at the same time.
+     */
+    private static final class IterationObserver implements XProcEventObserver
+    {
+        private final AtomicInteger startedIterations = new AtomicInteger();
+        private final AtomicInteger runningIterations = new AtomicInteger();
+        private final AtomicInteger maximumRunningIterations = new AtomicInteger();
+
+        @Override
+        public void notify(final XProcEvent event)
+        {
+            if (event instanceof BeforeIterationStepEvent)
+            {
+                startedIterations.incrementAndGet();
+                maximumRunningIterations.accumulateAndGet(runningIterations.incrementAndGet(), Math::max);
+            }
+            else if (event instanceof AfterIterationStepEvent)
+            {
+                runningIterations.decrementAndGet();
+            }
+        }
+    }
+
+    private static String items(final int count)
+    {
+        final StringBuilder source = new StringBuilder("<doc>");
+        for (int i = 1; i <= count; i++)
+        {
+            source.append("<item id='").append(i).append("'/><other/>");
+        }
+        return source.append("</doc>").toString();
+    }
+
+    /**
+     * Runs a pipeline on a thread pool with at most two iterations at a time
+     * and checks that the items of its result are in document order, with
+     * their iteration position and size.
+     */
+    private static void assertConcurrentIterations(final String pipelineName, final int threads,
+            final Consumer<PipelineConfiguration> setConcurrency) throws Exception
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            final PipelineConfiguration configuration = new PipelineConfiguration();
+            configuration.setExecutor(executor);
+            setConcurrency.accept(configuration);
+            final IterationObserver observer = new IterationObserver();
+            configuration.getEventDispatcher().addObserver(observer);
+            final Pipeline pipeline = buildPipeline(configuration, pipelineName);
+
+            final XdmNode result = SaxonAxis.childElement(run(pipeline, items(20)).readNode(XProcPorts.RESULT));
+            int position = 0;
+            for (final XdmNode item : SaxonAxis.childElements(result, new QName("item")))
+            {
+                position++;
+                Assert.assertEquals(item.getAttributeValue(new QName("id")), Integer.toString(position));
+                Assert.assertEquals(item.getAttributeValue(new QName("position")), Integer.toString(position));
+                Assert.assertEquals(item.getAttributeValue(new QName("size")), "20");
+            }
+            Assert.assertEquals(position, 20);
+            Assert.assertEquals(observer.startedIterations.get(), 20);
+            Assert.assertTrue(observer.maximumRunningIterations.get() <= 2, "" + observer.maximumRunningIterations);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs a pipeline whose third iteration fails on a thread pool with at most
+     * two iterations at a time, and checks that the following iterations are
+     * not started.
+     */
+    private static void assertConcurrentIterationsError(final String pipelineName,
+            final Consumer<PipelineConfiguration> setConcurrency) throws Exception
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(16);
+        try
+        {
+            final PipelineConfiguration configuration = new PipelineConfiguration();
+            configuration.setExecutor(executor);
+            setConcurrency.accept(configuration);
+            final IterationObserver observer = new IterationObserver();
+            configuration.getEventDispatcher().addObserver(observer);
+            final Pipeline pipeline = buildPipeline(configuration, pipelineName);
+
+            try
+            {
+                run(pipeline, items(20));
+                Assert.fail();
+            }
+            catch (final XProcException e)
+            {
+                Assert.assertEquals(e.getName().getLocalPart(), "failure");
+            }
+            Assert.assertTrue(observer.startedIterations.get() <= 4, "" + observer.startedIterations);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void viewportConcurrent() throws Exception
+    {
+        assertConcurrentIterations("viewport.xpl", 16, configuration -> configuration.setViewportConcurrency(2));
+    }
+
+    /**
+     * Each iteration waits for its subpipeline while holding a thread of the
+     * pool, so that a pool no larger than the concurrency used to deadlock.
+     */
+    @Test(timeOut = 60000)
+    public void viewportConcurrentBoundedPool() throws Exception
+    {
+        assertConcurrentIterations("viewport.xpl", 2, configuration -> configuration.setViewportConcurrency(2));
+    }
+
+    @Test
+    public void viewportConcurrentError() throws Exception
+    {
+        assertConcurrentIterationsError("viewportError.xpl",
+                configuration -> configuration.setViewportConcurrency(2));
+    }
+
+    @Test
+    public void forEachConcurrent() throws Exception
+    {
+        assertConcurrentIterations("forEach.xpl", 16, configuration -> configuration.setForEachConcurrency(2));
+    }
+
+    @Test(timeOut = 60000)
+    public void forEachConcurrentBoundedPool() throws Exception
+    {
+        assertConcurrentIterations("forEach.xpl", 2, configuration -> configuration.setForEachConcurrency(2));
+    }
+
+    @Test
+    public void forEachConcurrentError() throws Exception
+    {
+        assertConcurrentIterationsError("forEachError.xpl", configuration -> configuration.setForEachConcurrency(2));
+    }
 }
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2008 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xml.catalog;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.trancecode.logging.Logger;
+
+/**
+ * A catalog that keeps the most recently resolved queries in a bounded LRU
+ * cache.
+ * <p>
+ * The cache is split in segments that are locked independently so that
+ * concurrent lookups of different queries seldom contend. Queries for which
+ * the underlying catalog returns {@code null} can optionally be cached as well
+ * so that repeated misses do not walk the whole catalog again.
+ *
+ * @author Herve Quiroz
+ */
+public final class CachingCatalog implements Function<CatalogQuery, URI>
+{
+    public static final int DEFAULT_MAXIMUM_SIZE = 10000;
+
+    private static final Logger LOG = Logger.getLogger(CachingCatalog.class);
+    private static final int SEGMENTS = 16;
+    private static final Object NULL_RESULT = new Object();
+
+    private final Function<CatalogQuery, URI> catalog;
+    private final int maximumSize;
+    private final boolean cacheNegativeResults;
+    private final Segment[] segments;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong negativeHitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    CachingCatalog(final Function<CatalogQuery, URI> catalog, final int maximumSize,
+            final boolean cacheNegativeResults)
+    {
+        Preconditions.checkArgument(maximumSize > 0, "maximumSize = %s", maximumSize);
+        this.catalog = Preconditions.checkNotNull(catalog);
+        this.maximumSize = maximumSize;
+        this.cacheNegativeResults = cacheNegativeResults;
+
+        final int segmentCount = Math.min(SEGMENTS, maximumSize);
+        final int segmentSize = (maximumSize + segmentCount - 1) / segmentCount;
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++)
+        {
+            segments[i] = new Segment(segmentSize);
+        }
+    }
+
+    private Segment segment(final CatalogQuery query)
+    {
+        int hash = query.hashCode();
+        hash ^= hash >>> 16;
+        return segments[(hash & Integer.MAX_VALUE) % segments.length];
+    }
+
+    @Override
+    public URI apply(final CatalogQuery query)
+    {
+        final Segment segment = segment(query);
+        final Object cached = segment.get(query);
+        if (cached != null)
+        {
+            if (cached == NULL_RESULT)
+            {
+                negativeHitCount.incrementAndGet();
+                return null;
+            }
+
+            hitCount.incrementAndGet();
+            return (URI) cached;
+        }
+
+        missCount.incrementAndGet();
+        // The underlying catalog is queried without holding the segment lock
+        final URI uri = catalog.apply(query);
+        if (uri != null)
+        {
+            segment.put(query, uri);
+        }
+        else if (cacheNegativeResults)
+        {
+            segment.put(query, NULL_RESULT);
+        }
+
+        return uri;
+    }
+
+    public void invalidateAll()
+    {
+        LOG.trace("{@method} catalog = {}", catalog);
+        for (final Segment segment : segments)
+        {
+            segment.clear();
+        }
+    }
+
+    public int maximumSize()
+    {
+        return maximumSize;
+    }
+
+    public int size()
+    {
+        int size = 0;
+        for (final Segment segment : segments)
+        {
+            size += segment.size();
+        }
+
+        return size;
+    }
+
+    public long hitCount()
+    {
+        return hitCount.get();
+    }
+
+    public long negativeHitCount()
+    {
+        return negativeHitCount.get();
+    }
+
+    public long missCount()
+    {
+        return missCount.get();
+    }
+
+    public long evictionCount()
+    {
+        return evictionCount.get();
+    }
+
+    public double hitRate()
+    {
+        final long hits = hitCount.get() + negativeHitCount.get();
+        final long requests = hits + missCount.get();
+        if (requests == 0)
+        {
+            return 1.0;
+        }
+
+        return (double) hits / requests;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[size = %s/%s ; hits = %s ; negativeHits = %s ; misses = %s ; evictions = %s]",
+                getClass().getSimpleName(), size(), maximumSize, hitCount, negativeHitCount, missCount,
+                evictionCount);
+    }
+
+    private final class Segment
+    {
+        private final Map<CatalogQuery, Object> entries;
+
+        public Segment(final int segmentSize)
+        {
+            entries = new LinkedHashMap<CatalogQuery, Object>(16, 0.75f, true)
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<CatalogQuery, Object> eldest)
+                {
+                    if (size() > segmentSize)
+                    {
+                        evictionCount.incrementAndGet();
+                        return true;
+                    }
+
+                    return false;
+                }
+            };
+        }
+
+        public synchronized Object get(final CatalogQuery query)
+        {
+            return entries.get(query);
+        }
+
+        public synchronized void put(final CatalogQuery query, final Object result)
+        {
+            entries.put(query, result);
+        }
+
+        public synchronized void clear()
+        {
+            entries.clear();
+        }
+
+        public synchronized int size()
+        {
+            return entries.size();
+        }
+    }
+}
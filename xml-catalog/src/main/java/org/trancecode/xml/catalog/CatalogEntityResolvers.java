@@ -44,6 +44,17 @@ public final class CatalogEntityResolvers
         return new InputResolverEntityResolver(inputResolver, catalog);
     }
 
+    /**
+     * Returns an entity resolver that resolves entities through the given
+     * cache, so that hit and miss counters can be read from
+     * {@code cachingCatalog}.
+     */
+    public static EntityResolver newEntityResolver(final InputResolver inputResolver,
+            final CachingCatalog cachingCatalog)
+    {
+        return newEntityResolver(inputResolver, Catalog.newCatalog(cachingCatalog));
+    }
+
     private static class InputResolverEntityResolver implements EntityResolver
     {
         private final InputResolver inputResolver;
@@ -59,6 +70,12 @@ public final class CatalogEntityResolvers
         public InputSource resolveEntity(final String publicId, final String systemId) throws SAXException, IOException
         {
             final URI uri = catalog.resolveEntity(publicId, systemId);
+            if (uri == null)
+            {
+                // Let the parser fall back to the default behavior
+                return null;
+            }
+
             final InputSource inputSource = new InputSource(inputResolver.resolveInputStream(uri));
             inputSource.setSystemId(uri.toString());
 
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2008 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xml.catalog;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.trancecode.api.Nullable;
+import org.trancecode.io.Uris;
+
+/**
+ * A catalog compiled into lookup structures.
+ * <p>
+ * {@code system}, {@code public} and {@code uri} entries are stored in hash
+ * maps and {@code rewriteSystem} and {@code rewriteURI} entries in prefix
+ * tries, so that resolving a query does not depend on the number of entries in
+ * the catalog.
+ * <p>
+ * Queries are resolved with the precedence specified by OASIS XML Catalogs
+ * (section 7) rather than in document order:
+ * <ol>
+ * <li>the system identifier is resolved first, then the URI, then the public
+ * identifier;</li>
+ * <li>a {@code system} or {@code uri} entry matching the whole identifier takes
+ * precedence over any {@code rewriteSystem} or {@code rewriteURI} entry;</li>
+ * <li>among rewrite entries, the one with the longest matching start string is
+ * used;</li>
+ * <li>among entries with the same identifier or start string, the one declared
+ * first is used.</li>
+ * </ol>
+ * The chain returned by {@link CatalogParser#parse(javax.xml.transform.Source)}
+ * instead tries its entries in document order and returns the first match. The
+ * two forms therefore resolve a query differently when a rewrite entry matching
+ * it is declared before an exact entry, or when a shorter matching start string
+ * is declared before a longer one.
+ * 
+ * @author Herve Quiroz
+ * @see CatalogParser#compile(javax.xml.transform.Source)
+ */
+public final class CatalogIndex implements Function<CatalogQuery, URI>
+{
+    private final Map<String, URI> systemEntries;
+    private final Map<String, URI> publicEntries;
+    private final Map<String, URI> uriEntries;
+    private final PrefixTrie<RewriteEntry> rewriteSystemEntries;
+    private final PrefixTrie<RewriteEntry> rewriteUriEntries;
+
+    static Builder newBuilder()
+    {
+        return new Builder();
+    }
+
+    private CatalogIndex(final Builder builder)
+    {
+        systemEntries = ImmutableMap.copyOf(builder.systemEntries);
+        publicEntries = ImmutableMap.copyOf(builder.publicEntries);
+        uriEntries = ImmutableMap.copyOf(builder.uriEntries);
+        rewriteSystemEntries = builder.rewriteSystemEntries;
+        rewriteUriEntries = builder.rewriteUriEntries;
+    }
+
+    @Override
+    public URI apply(final CatalogQuery query)
+    {
+        final String systemId = query.systemId();
+        if (systemId != null)
+        {
+            final URI uri = resolve(systemId, systemEntries, rewriteSystemEntries);
+            if (uri != null)
+            {
+                return uri;
+            }
+        }
+
+        final String uriString = query.uriAsString();
+        if (uriString != null)
+        {
+            final URI uri = resolve(uriString, uriEntries, rewriteUriEntries);
+            if (uri != null)
+            {
+                return uri;
+            }
+        }
+
+        if (query.publicId() != null)
+        {
+            return publicEntries.get(query.publicId());
+        }
+
+        return null;
+    }
+
+    private static URI resolve(final String key, final Map<String, URI> entries,
+            final PrefixTrie<RewriteEntry> rewriteEntries)
+    {
+        final URI uri = entries.get(key);
+        if (uri != null)
+        {
+            return uri;
+        }
+
+        final RewriteEntry rewriteEntry = rewriteEntries.longestPrefix(key);
+        if (rewriteEntry != null)
+        {
+            return rewriteEntry.rewrite(key);
+        }
+
+        return null;
+    }
+
+    public int size()
+    {
+        return systemEntries.size() + publicEntries.size() + uriEntries.size() + rewriteSystemEntries.size()
+                + rewriteUriEntries.size();
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[system = %s ; public = %s ; uri = %s ; rewriteSystem = %s ; rewriteURI = %s]",
+                getClass().getSimpleName(), systemEntries.size(), publicEntries.size(), uriEntries.size(),
+                rewriteSystemEntries.size(), rewriteUriEntries.size());
+    }
+
+    private static final class RewriteEntry
+    {
+        private final int startStringLength;
+        private final String rewritePrefix;
+        private final URI baseUri;
+
+        public RewriteEntry(final String startString, final String rewritePrefix, @Nullable final URI baseUri)
+        {
+            startStringLength = startString.length();
+            this.rewritePrefix = Preconditions.checkNotNull(rewritePrefix);
+            this.baseUri = baseUri;
+        }
+
+        public URI rewrite(final String key)
+        {
+            return Uris.resolve(Uris.createUri(rewritePrefix + key.substring(startStringLength)), baseUri);
+        }
+    }
+
+    /**
+     * Collects catalog entries in document order. Entries declared first win
+     * over later entries with the same key.
+     */
+    static final class Builder
+    {
+        private final Map<String, URI> systemEntries = new HashMap<>();
+        private final Map<String, URI> publicEntries = new HashMap<>();
+        private final Map<String, URI> uriEntries = new HashMap<>();
+        private final PrefixTrie<RewriteEntry> rewriteSystemEntries = new PrefixTrie<>();
+        private final PrefixTrie<RewriteEntry> rewriteUriEntries = new PrefixTrie<>();
+
+        private Builder()
+        {
+            // Use CatalogIndex.newBuilder()
+        }
+
+        private static void putIfAbsent(final Map<String, URI> entries, final String key, final String uri,
+                @Nullable final URI baseUri)
+        {
+            if (!entries.containsKey(key))
+            {
+                entries.put(key, Uris.resolve(Uris.createUri(uri), baseUri));
+            }
+        }
+
+        public Builder system(final String systemId, final String uri, @Nullable final URI baseUri)
+        {
+            putIfAbsent(systemEntries, systemId, uri, baseUri);
+            return this;
+        }
+
+        public Builder publicId(final String publicId, final String uri, @Nullable final URI baseUri)
+        {
+            putIfAbsent(publicEntries, publicId, uri, baseUri);
+            return this;
+        }
+
+        public Builder uri(final String name, final String uri, @Nullable final URI baseUri)
+        {
+            putIfAbsent(uriEntries, name, uri, baseUri);
+            return this;
+        }
+
+        public Builder rewriteSystem(final String systemIdStartString, final String rewritePrefix,
+                @Nullable final URI baseUri)
+        {
+            rewriteSystemEntries.putIfAbsent(systemIdStartString, new RewriteEntry(systemIdStartString,
+                    rewritePrefix, baseUri));
+            return this;
+        }
+
+        public Builder rewriteUri(final String uriStartString, final String rewritePrefix,
+                @Nullable final URI baseUri)
+        {
+            rewriteUriEntries.putIfAbsent(uriStartString, new RewriteEntry(uriStartString, rewritePrefix, baseUri));
+            return this;
+        }
+
+        public CatalogIndex build()
+        {
+            return new CatalogIndex(this);
+        }
+    }
+}
@@ -30,6 +30,7 @@ import javax.xml.transform.Source;
 
 import net.sf.saxon.s9api.DocumentBuilder;
 import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.QName;
 import net.sf.saxon.s9api.SaxonApiException;
 import net.sf.saxon.s9api.XdmNode;
 import org.trancecode.io.Uris;
@@ -66,16 +67,85 @@ public class CatalogParser
         }
     }
 
-    private Function<CatalogQuery, URI> doParse(final Source source) throws SaxonApiException
+    /**
+     * Parses the catalog from the given source and compiles it into a
+     * {@link CatalogIndex}.
+     */
+    public CatalogIndex compile(final Source source)
+    {
+        try
+        {
+            final CatalogIndex.Builder builder = CatalogIndex.newBuilder();
+            compile(parseCatalogNode(source), null, builder);
+            final CatalogIndex catalog = builder.build();
+            LOG.trace("new catalog = {}", catalog);
+            return catalog;
+        }
+        catch (final SaxonApiException e)
+        {
+            throw new CatalogException(e, "error while parsing catalog from source: %s", source);
+        }
+    }
+
+    private XdmNode parseCatalogNode(final Source source) throws SaxonApiException
     {
         assert source != null;
 
         final DocumentBuilder documentBuilder = processor.newDocumentBuilder();
         documentBuilder.setLineNumbering(true);
         final XdmNode document = documentBuilder.build(source);
-        final XdmNode catalogNode = SaxonAxis.childElement(document, XmlCatalogElements.CATALOG);
+        return SaxonAxis.childElement(document, XmlCatalogElements.CATALOG);
+    }
 
-        return parse(catalogNode);
+    private Function<CatalogQuery, URI> doParse(final Source source) throws SaxonApiException
+    {
+        return parse(parseCatalogNode(source));
+    }
+
+    private void compile(final XdmNode catalogNode, final URI parentBaseUri, final CatalogIndex.Builder builder)
+    {
+        assert catalogNode != null;
+
+        final URI baseUri = Uris.resolve(Uris.createUri(catalogNode.getAttributeValue(XmlAttributes.BASE)),
+                parentBaseUri);
+        final QName name = catalogNode.getNodeName();
+
+        if (XmlCatalogElements.ELEMENTS_GROUP.contains(name))
+        {
+            for (final XdmNode node : SaxonAxis.childElements(catalogNode, XmlCatalogElements.ELEMENTS_CATALOG))
+            {
+                compile(node, baseUri, builder);
+            }
+        }
+        else if (name.equals(XmlCatalogElements.SYSTEM))
+        {
+            builder.system(catalogNode.getAttributeValue(XmlCatalogAttributes.SYSTEM_ID),
+                    catalogNode.getAttributeValue(XmlCatalogAttributes.URI), baseUri);
+        }
+        else if (name.equals(XmlCatalogElements.PUBLIC))
+        {
+            builder.publicId(catalogNode.getAttributeValue(XmlCatalogAttributes.PUBLIC_ID),
+                    catalogNode.getAttributeValue(XmlCatalogAttributes.URI), baseUri);
+        }
+        else if (name.equals(XmlCatalogElements.URI))
+        {
+            builder.uri(catalogNode.getAttributeValue(XmlCatalogAttributes.NAME),
+                    catalogNode.getAttributeValue(XmlCatalogAttributes.URI), baseUri);
+        }
+        else if (name.equals(XmlCatalogElements.REWRITE_SYSTEM))
+        {
+            builder.rewriteSystem(catalogNode.getAttributeValue(XmlCatalogAttributes.SYSTEM_ID_START_STRING),
+                    catalogNode.getAttributeValue(XmlCatalogAttributes.REWRITE_PREFIX), baseUri);
+        }
+        else if (name.equals(XmlCatalogElements.REWRITE_URI))
+        {
+            builder.rewriteUri(catalogNode.getAttributeValue(XmlCatalogAttributes.URI_START_STRING),
+                    catalogNode.getAttributeValue(XmlCatalogAttributes.REWRITE_PREFIX), baseUri);
+        }
+        else
+        {
+            throw new CatalogException("unsupported catalog element: %s", name);
+        }
     }
 
     private Function<CatalogQuery, URI> parse(final XdmNode catalogNode)
@@ -96,6 +166,26 @@ public class CatalogParser
             return parseGroup(catalogNode, baseUri);
         }
 
+        if (catalogNode.getNodeName().equals(XmlCatalogElements.SYSTEM))
+        {
+            return Catalogs.setBaseUri(baseUri, Catalogs.system(
+                    catalogNode.getAttributeValue(XmlCatalogAttributes.SYSTEM_ID),
+                    catalogNode.getAttributeValue(XmlCatalogAttributes.URI)));
+        }
+
+        if (catalogNode.getNodeName().equals(XmlCatalogElements.PUBLIC))
+        {
+            return Catalogs.setBaseUri(baseUri, Catalogs.publicId(
+                    catalogNode.getAttributeValue(XmlCatalogAttributes.PUBLIC_ID),
+                    catalogNode.getAttributeValue(XmlCatalogAttributes.URI)));
+        }
+
+        if (catalogNode.getNodeName().equals(XmlCatalogElements.URI))
+        {
+            return Catalogs.setBaseUri(baseUri, Catalogs.uri(catalogNode.getAttributeValue(XmlCatalogAttributes.NAME),
+                    catalogNode.getAttributeValue(XmlCatalogAttributes.URI)));
+        }
+
         if (catalogNode.getNodeName().equals(XmlCatalogElements.REWRITE_SYSTEM))
         {
             return parseRewriteSystem(catalogNode, baseUri);
@@ -23,6 +23,8 @@ import com.google.common.base.Preconditions;
 
 import java.net.URI;
 
+import org.trancecode.lang.TcObjects;
+
 /**
  * @author Herve Quiroz
  */
@@ -32,6 +34,7 @@ public final class CatalogQuery
     private final String systemId;
     private final URI uri;
     private String uriAsString;
+    private int hashCode;
 
     public static CatalogQuery newInstance(final String publicId, final String systemId, final URI uri)
     {
@@ -70,4 +73,34 @@ public final class CatalogQuery
 
         return uriAsString;
     }
+
+    @Override
+    public int hashCode()
+    {
+        if (hashCode == 0)
+        {
+            hashCode = TcObjects.hashCode(publicId, systemId, uri);
+        }
+
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(final Object o)
+    {
+        if (o != null && o instanceof CatalogQuery)
+        {
+            final CatalogQuery query = (CatalogQuery) o;
+            return TcObjects.pairEquals(publicId, query.publicId, systemId, query.systemId, uri, query.uri);
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s[publicId = %s ; systemId = %s ; uri = %s]", getClass().getSimpleName(), publicId,
+                systemId, uri);
+    }
 }
@@ -51,6 +51,15 @@ public final class CatalogUriResolvers
         return new EntityResolverURIResolver(inputResolver, catalog);
     }
 
+    /**
+     * Returns a URI resolver that resolves URIs and the entities of the
+     * resolved documents through the given cache.
+     */
+    public static URIResolver newUriResolver(final InputResolver inputResolver, final CachingCatalog cachingCatalog)
+    {
+        return newUriResolver(inputResolver, Catalog.newCatalog(cachingCatalog));
+    }
+
     private static class EntityResolverURIResolver implements URIResolver
     {
         private final InputResolver inputResolver;
@@ -68,6 +77,12 @@ public final class CatalogUriResolvers
         public Source resolve(final String href, final String base) throws TransformerException
         {
             final URI uri = catalog.resolveUri(href, base);
+            if (uri == null)
+            {
+                // Let the processor fall back to the default behavior
+                return null;
+            }
+
             final InputSource inputSource = new InputSource(inputResolver.resolveInputStream(uri));
             inputSource.setSystemId(uri.toString());
 
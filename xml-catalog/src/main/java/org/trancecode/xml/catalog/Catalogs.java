@@ -20,7 +20,6 @@
 package org.trancecode.xml.catalog;
 
 import com.google.common.base.Function;
-import com.google.common.base.Functions;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
@@ -30,7 +29,6 @@ import java.net.URI;
 
 import org.trancecode.api.Nullable;
 import org.trancecode.collection.TcIterables;
-import org.trancecode.function.TcFunctions;
 import org.trancecode.io.UriFunctions;
 import org.trancecode.io.Uris;
 
@@ -90,7 +88,7 @@ public final class Catalogs
         @Override
         public URI apply(final CatalogQuery query)
         {
-            return Iterables.find(TcIterables.applyFunctions(catalogEntries, query), Predicates.notNull());
+            return Iterables.find(TcIterables.applyFunctions(catalogEntries, query), Predicates.notNull(), null);
         }
     }
 
@@ -102,12 +100,51 @@ public final class Catalogs
             return catalog;
         }
 
-        return Functions.compose(UriFunctions.resolveUri(baseUri), catalog);
+        final Function<URI, URI> resolveUri = UriFunctions.resolveUri(baseUri);
+        return query -> {
+            final URI uri = catalog.apply(query);
+            if (uri == null)
+            {
+                return null;
+            }
+
+            return resolveUri.apply(uri);
+        };
+    }
+
+    public static CachingCatalog addCache(final Function<CatalogQuery, URI> catalog)
+    {
+        return addCache(catalog, CachingCatalog.DEFAULT_MAXIMUM_SIZE, true);
+    }
+
+    /**
+     * Returns a catalog that caches up to {@code maximumSize} resolved queries,
+     * evicting the least recently used ones first. Queries for which the
+     * catalog returns {@code null} are cached as well if
+     * {@code cacheNegativeResults} is set.
+     */
+    public static CachingCatalog addCache(final Function<CatalogQuery, URI> catalog, final int maximumSize,
+            final boolean cacheNegativeResults)
+    {
+        return new CachingCatalog(catalog, maximumSize, cacheNegativeResults);
+    }
+
+    public static Function<CatalogQuery, URI> system(final String systemId, final String uri)
+    {
+        final URI targetUri = Uris.createUri(uri);
+        return query -> systemId.equals(query.systemId()) ? targetUri : null;
+    }
+
+    public static Function<CatalogQuery, URI> publicId(final String publicId, final String uri)
+    {
+        final URI targetUri = Uris.createUri(uri);
+        return query -> publicId.equals(query.publicId()) ? targetUri : null;
     }
 
-    public static Function<CatalogQuery, URI> addCache(final Function<CatalogQuery, URI> catalog)
+    public static Function<CatalogQuery, URI> uri(final String name, final String uri)
     {
-        return TcFunctions.memoize(catalog);
+        final URI targetUri = Uris.createUri(uri);
+        return query -> name.equals(query.uriAsString()) ? targetUri : null;
     }
 
     public static Function<CatalogQuery, URI> rewriteSystem(final String systemIdStartString, final String rewritePrefix)
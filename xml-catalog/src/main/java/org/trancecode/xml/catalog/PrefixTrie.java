@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2008 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xml.catalog;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * A character trie used to find the value associated with the longest key that
+ * is a prefix of some string.
+ * <p>
+ * The trie is populated once and then only read, so it may be shared between
+ * threads once it has been safely published.
+ * 
+ * @author Herve Quiroz
+ */
+final class PrefixTrie<T>
+{
+    private final Node<T> root = new Node<>();
+    private int size;
+
+    /**
+     * Associates {@code value} to {@code key} unless {@code key} was already
+     * added, in which case the first value is kept.
+     */
+    public void putIfAbsent(final String key, final T value)
+    {
+        Preconditions.checkNotNull(key);
+        Preconditions.checkNotNull(value);
+
+        Node<T> node = root;
+        for (int i = 0; i < key.length(); i++)
+        {
+            node = node.getOrAddChild(key.charAt(i));
+        }
+
+        if (node.value == null)
+        {
+            node.value = value;
+            size++;
+        }
+    }
+
+    /**
+     * Returns the value associated with the longest key that is a prefix of
+     * {@code string}, or {@code null} if there is no such key.
+     */
+    public T longestPrefix(final String string)
+    {
+        Node<T> node = root;
+        T match = node.value;
+        for (int i = 0; i < string.length(); i++)
+        {
+            node = node.child(string.charAt(i));
+            if (node == null)
+            {
+                break;
+            }
+
+            if (node.value != null)
+            {
+                match = node.value;
+            }
+        }
+
+        return match;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    private static final class Node<T>
+    {
+        private static final char[] NO_KEYS = new char[0];
+
+        private char[] keys = NO_KEYS;
+        private Node<T>[] children = newNodeArray(0);
+        private T value;
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newNodeArray(final int size)
+        {
+            return new Node[size];
+        }
+
+        public Node<T> child(final char key)
+        {
+            final int index = Arrays.binarySearch(keys, key);
+            if (index < 0)
+            {
+                return null;
+            }
+
+            return children[index];
+        }
+
+        public Node<T> getOrAddChild(final char key)
+        {
+            final int index = Arrays.binarySearch(keys, key);
+            if (index >= 0)
+            {
+                return children[index];
+            }
+
+            final int insertionPoint = -index - 1;
+            final char[] newKeys = new char[keys.length + 1];
+            final Node<T>[] newChildren = newNodeArray(keys.length + 1);
+            System.arraycopy(keys, 0, newKeys, 0, insertionPoint);
+            System.arraycopy(children, 0, newChildren, 0, insertionPoint);
+            System.arraycopy(keys, insertionPoint, newKeys, insertionPoint + 1, keys.length - insertionPoint);
+            System.arraycopy(children, insertionPoint, newChildren, insertionPoint + 1, keys.length
+                    - insertionPoint);
+
+            final Node<T> child = new Node<>();
+            newKeys[insertionPoint] = key;
+            newChildren[insertionPoint] = child;
+            keys = newKeys;
+            children = newChildren;
+
+            return child;
+        }
+    }
+}
@@ -34,10 +34,14 @@ public final class XmlCatalogModel
     {
         public static final QName CATALOG = XmlCatalogNamespace.INSTANCE.newSaxonQName("catalog");
         public static final QName GROUP = XmlCatalogNamespace.INSTANCE.newSaxonQName("group");
+        public static final QName PUBLIC = XmlCatalogNamespace.INSTANCE.newSaxonQName("public");
+        public static final QName SYSTEM = XmlCatalogNamespace.INSTANCE.newSaxonQName("system");
+        public static final QName URI = XmlCatalogNamespace.INSTANCE.newSaxonQName("uri");
         public static final QName REWRITE_SYSTEM = XmlCatalogNamespace.INSTANCE.newSaxonQName("rewriteSystem");
         public static final QName REWRITE_URI = XmlCatalogNamespace.INSTANCE.newSaxonQName("rewriteURI");
 
-        public static final Set<QName> ELEMENTS_CATALOG = ImmutableSet.of(REWRITE_SYSTEM, REWRITE_URI, GROUP);
+        public static final Set<QName> ELEMENTS_CATALOG = ImmutableSet.of(PUBLIC, SYSTEM, URI, REWRITE_SYSTEM,
+                REWRITE_URI, GROUP);
         public static final Set<QName> ELEMENTS_GROUP = ImmutableSet.of(CATALOG, GROUP);
 
         private XmlCatalogElements()
@@ -48,6 +52,10 @@ public final class XmlCatalogModel
 
     public static final class XmlCatalogAttributes
     {
+        public static final QName NAME = new QName("name");
+        public static final QName PUBLIC_ID = new QName("publicId");
+        public static final QName SYSTEM_ID = new QName("systemId");
+        public static final QName URI = new QName("uri");
         public static final QName SYSTEM_ID_START_STRING = new QName("systemIdStartString");
         public static final QName REWRITE_PREFIX = new QName("rewritePrefix");
         public static final QName URI_START_STRING = new QName("uriStartString");
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2008 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xml.catalog;
+
+import com.google.common.base.Function;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link CachingCatalog}.
+ * 
+ * @author Herve Quiroz
+ */
+@Test
+public class CachingCatalogTest extends AbstractTest
+{
+    private static final class CountingCatalog implements Function<CatalogQuery, URI>
+    {
+        private final AtomicInteger calls = new AtomicInteger();
+        private final Function<CatalogQuery, URI> catalog = Catalogs.rewriteSystem("http://example.org/",
+                "file:/tmp/");
+
+        @Override
+        public URI apply(final CatalogQuery query)
+        {
+            calls.incrementAndGet();
+            return catalog.apply(query);
+        }
+    }
+
+    private static CatalogQuery systemId(final String systemId)
+    {
+        return CatalogQuery.newInstance(null, systemId, null);
+    }
+
+    @Test
+    public void cacheHit()
+    {
+        final CountingCatalog catalog = new CountingCatalog();
+        final CachingCatalog cache = Catalogs.addCache(catalog);
+
+        AssertJUnit.assertEquals(URI.create("file:/tmp/a.dtd"), cache.apply(systemId("http://example.org/a.dtd")));
+        AssertJUnit.assertEquals(URI.create("file:/tmp/a.dtd"), cache.apply(systemId("http://example.org/a.dtd")));
+        AssertJUnit.assertEquals(1, catalog.calls.get());
+        AssertJUnit.assertEquals(1, cache.hitCount());
+        AssertJUnit.assertEquals(1, cache.missCount());
+    }
+
+    @Test
+    public void negativeResults()
+    {
+        final CountingCatalog catalog = new CountingCatalog();
+        final CachingCatalog cache = Catalogs.addCache(catalog, 10, true);
+
+        AssertJUnit.assertNull(cache.apply(systemId("http://example.com/a.dtd")));
+        AssertJUnit.assertNull(cache.apply(systemId("http://example.com/a.dtd")));
+        AssertJUnit.assertEquals(1, catalog.calls.get());
+        AssertJUnit.assertEquals(1, cache.negativeHitCount());
+
+        final CountingCatalog uncachedCatalog = new CountingCatalog();
+        final CachingCatalog positiveCache = Catalogs.addCache(uncachedCatalog, 10, false);
+        AssertJUnit.assertNull(positiveCache.apply(systemId("http://example.com/a.dtd")));
+        AssertJUnit.assertNull(positiveCache.apply(systemId("http://example.com/a.dtd")));
+        AssertJUnit.assertEquals(2, uncachedCatalog.calls.get());
+    }
+
+    @Test
+    public void maximumSize()
+    {
+        final CountingCatalog catalog = new CountingCatalog();
+        final CachingCatalog cache = Catalogs.addCache(catalog, 32, true);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            cache.apply(systemId("http://example.org/" + i + ".dtd"));
+        }
+
+        AssertJUnit.assertTrue(cache.size() <= 32);
+        AssertJUnit.assertEquals(1000 - cache.size(), cache.evictionCount());
+    }
+}
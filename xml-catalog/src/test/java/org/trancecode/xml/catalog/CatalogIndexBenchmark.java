@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2008 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xml.catalog;
+
+import com.google.common.base.Function;
+
+import java.io.StringReader;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares lookups in a parsed catalog (a chain of entries) with lookups in the
+ * same catalog compiled into a {@link CatalogIndex}.
+ * <p>
+ * Run with {@code mvn test-compile exec:java
+ * -Dexec.mainClass=org.trancecode.xml.catalog.CatalogIndexBenchmark
+ * -Dexec.classpathScope=test}.
+ * 
+ * @author Herve Quiroz
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CatalogIndexBenchmark
+{
+    private static final int QUERIES = 1024;
+
+    @Param({ "100", "30000" })
+    private int entries;
+
+    private Function<CatalogQuery, URI> chain;
+    private Function<CatalogQuery, URI> index;
+    private CatalogQuery[] systemQueries;
+    private CatalogQuery[] uriQueries;
+    private int next;
+
+    static String newCatalog(final int entries)
+    {
+        final StringBuilder catalog = new StringBuilder();
+        catalog.append("<catalog xmlns='urn:oasis:names:tc:entity:xmlns:xml:catalog'>");
+        for (int i = 0; i < entries; i++)
+        {
+            catalog.append(String.format("<system systemId='http://example.org/dtd/%d.dtd' uri='file:/dtd/%d.dtd'/>",
+                    i, i));
+            catalog.append(String.format("<rewriteSystem systemIdStartString='http://example.org/%d/' "
+                    + "rewritePrefix='file:/system/%d/'/>", i, i));
+            catalog.append(String.format("<rewriteURI uriStartString='http://example.org/%d/' "
+                    + "rewritePrefix='file:/uri/%d/'/>", i, i));
+        }
+        catalog.append("</catalog>");
+        return catalog.toString();
+    }
+
+    private static int entry(final int query, final int entries)
+    {
+        return (int) ((long) query * 7919 % entries);
+    }
+
+    static CatalogQuery[] newSystemQueries(final int entries)
+    {
+        final CatalogQuery[] queries = new CatalogQuery[QUERIES];
+        for (int i = 0; i < QUERIES; i++)
+        {
+            final int entry = entry(i, entries);
+            final String systemId = i % 2 == 0 ? "http://example.org/dtd/" + entry + ".dtd" : "http://example.org/"
+                    + entry + "/some/path.dtd";
+            queries[i] = CatalogQuery.newInstance(null, systemId, null);
+        }
+        return queries;
+    }
+
+    static CatalogQuery[] newUriQueries(final int entries)
+    {
+        final CatalogQuery[] queries = new CatalogQuery[QUERIES];
+        for (int i = 0; i < QUERIES; i++)
+        {
+            queries[i] = CatalogQuery.newInstance(null, null, URI.create("http://example.org/" + entry(i, entries)
+                    + "/some/path.xsl"));
+        }
+        return queries;
+    }
+
+    @Setup
+    public void setup()
+    {
+        final String catalog = newCatalog(entries);
+        final CatalogParser parser = new CatalogParser(new Processor(false));
+        final Source chainSource = new StreamSource(new StringReader(catalog));
+        chain = parser.parse(chainSource);
+        final Source indexSource = new StreamSource(new StringReader(catalog));
+        index = parser.compile(indexSource);
+        systemQueries = newSystemQueries(entries);
+        uriQueries = newUriQueries(entries);
+    }
+
+    private int next()
+    {
+        next = (next + 1) & (QUERIES - 1);
+        return next;
+    }
+
+    @Benchmark
+    public URI chainSystem()
+    {
+        return chain.apply(systemQueries[next()]);
+    }
+
+    @Benchmark
+    public URI indexSystem()
+    {
+        return index.apply(systemQueries[next()]);
+    }
+
+    @Benchmark
+    public URI chainUri()
+    {
+        return chain.apply(uriQueries[next()]);
+    }
+
+    @Benchmark
+    public URI indexUri()
+    {
+        return index.apply(uriQueries[next()]);
+    }
+
+    public static void main(final String[] args) throws RunnerException
+    {
+        new Runner(new OptionsBuilder().include(CatalogIndexBenchmark.class.getSimpleName()).build()).run();
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2008 Herve Quiroz
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ * 
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ * 
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this library; if not, write to the Free Software Foundation, Inc.,
+ * 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA 
+ *
+ * $Id$
+ */
+package org.trancecode.xml.catalog;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+
+import java.io.StringReader;
+import java.net.URI;
+
+import javax.xml.transform.stream.StreamSource;
+
+import net.sf.saxon.s9api.Processor;
+import org.testng.AssertJUnit;
+import org.testng.annotations.Test;
+import org.trancecode.AbstractTest;
+
+/**
+ * Tests for {@link CatalogIndex}.
+ * 
+ * @author Herve Quiroz
+ */
+@Test
+public class CatalogIndexTest extends AbstractTest
+{
+    private static final String CATALOG_START = "<catalog xmlns='urn:oasis:names:tc:entity:xmlns:xml:catalog'>";
+    private static final String CATALOG_END = "</catalog>";
+
+    private final CatalogParser parser = new CatalogParser(new Processor(false));
+
+    private Function<CatalogQuery, URI> parse(final String catalog)
+    {
+        return parser.parse(new StreamSource(new StringReader(catalog)));
+    }
+
+    private Function<CatalogQuery, URI> compile(final String catalog)
+    {
+        return parser.compile(new StreamSource(new StringReader(catalog)));
+    }
+
+    private static void assertSameResolution(final Function<CatalogQuery, URI> chain,
+            final Function<CatalogQuery, URI> index, final CatalogQuery[] queries)
+    {
+        for (final CatalogQuery query : queries)
+        {
+            final URI expected = chain.apply(query);
+            AssertJUnit.assertNotNull(query.toString(), expected);
+            AssertJUnit.assertEquals(query.toString(), expected, index.apply(query));
+        }
+    }
+
+    @Test
+    public void benchmarkCatalog()
+    {
+        final int entries = 100;
+        final String catalog = CatalogIndexBenchmark.newCatalog(entries);
+        final Function<CatalogQuery, URI> chain = parse(catalog);
+        final Function<CatalogQuery, URI> index = compile(catalog);
+
+        assertSameResolution(chain, index, CatalogIndexBenchmark.newSystemQueries(entries));
+        assertSameResolution(chain, index, CatalogIndexBenchmark.newUriQueries(entries));
+    }
+
+    @Test
+    public void exactEntryAfterRewrite()
+    {
+        final String catalog = CATALOG_START
+                + "<rewriteSystem systemIdStartString='http://example.org/dtd/' rewritePrefix='file:/rewrite/'/>"
+                + "<system systemId='http://example.org/dtd/doc.dtd' uri='file:/exact/doc.dtd'/>"
+                + "<rewriteURI uriStartString='http://example.org/xsl/' rewritePrefix='file:/rewrite/'/>"
+                + "<uri name='http://example.org/xsl/doc.xsl' uri='file:/exact/doc.xsl'/>" + CATALOG_END;
+        final CatalogQuery systemQuery = CatalogQuery.newInstance(null, "http://example.org/dtd/doc.dtd", null);
+        final CatalogQuery uriQuery = CatalogQuery.newInstance(null, null,
+                URI.create("http://example.org/xsl/doc.xsl"));
+
+        final Function<CatalogQuery, URI> chain = parse(catalog);
+        AssertJUnit.assertEquals(URI.create("file:/rewrite/doc.dtd"), chain.apply(systemQuery));
+        AssertJUnit.assertEquals(URI.create("file:/rewrite/doc.xsl"), chain.apply(uriQuery));
+
+        final Function<CatalogQuery, URI> index = compile(catalog);
+        AssertJUnit.assertEquals(URI.create("file:/exact/doc.dtd"), index.apply(systemQuery));
+        AssertJUnit.assertEquals(URI.create("file:/exact/doc.xsl"), index.apply(uriQuery));
+    }
+
+    @Test
+    public void longerRewriteAfterShorter()
+    {
+        final String catalog = CATALOG_START
+                + "<rewriteSystem systemIdStartString='http://example.org/' rewritePrefix='file:/short/'/>"
+                + "<rewriteSystem systemIdStartString='http://example.org/dtd/' rewritePrefix='file:/long/'/>"
+                + "<rewriteURI uriStartString='http://example.org/' rewritePrefix='file:/short/'/>"
+                + "<rewriteURI uriStartString='http://example.org/xsl/' rewritePrefix='file:/long/'/>" + CATALOG_END;
+        final CatalogQuery systemQuery = CatalogQuery.newInstance(null, "http://example.org/dtd/doc.dtd", null);
+        final CatalogQuery uriQuery = CatalogQuery.newInstance(null, null,
+                URI.create("http://example.org/xsl/doc.xsl"));
+
+        final Function<CatalogQuery, URI> chain = parse(catalog);
+        AssertJUnit.assertEquals(URI.create("file:/short/dtd/doc.dtd"), chain.apply(systemQuery));
+        AssertJUnit.assertEquals(URI.create("file:/short/xsl/doc.xsl"), chain.apply(uriQuery));
+
+        final Function<CatalogQuery, URI> index = compile(catalog);
+        AssertJUnit.assertEquals(URI.create("file:/long/doc.dtd"), index.apply(systemQuery));
+        AssertJUnit.assertEquals(URI.create("file:/long/doc.xsl"), index.apply(uriQuery));
+    }
+
+    @Test
+    public void firstDeclaredEntry()
+    {
+        final String catalog = CATALOG_START
+                + "<system systemId='http://example.org/dtd/doc.dtd' uri='file:/first/doc.dtd'/>"
+                + "<system systemId='http://example.org/dtd/doc.dtd' uri='file:/second/doc.dtd'/>"
+                + "<rewriteURI uriStartString='http://example.org/xsl/' rewritePrefix='file:/first/'/>"
+                + "<rewriteURI uriStartString='http://example.org/xsl/' rewritePrefix='file:/second/'/>" + CATALOG_END;
+        final CatalogQuery systemQuery = CatalogQuery.newInstance(null, "http://example.org/dtd/doc.dtd", null);
+        final CatalogQuery uriQuery = CatalogQuery.newInstance(null, null,
+                URI.create("http://example.org/xsl/doc.xsl"));
+
+        for (final Function<CatalogQuery, URI> catalogFunction : ImmutableList.of(parse(catalog), compile(catalog)))
+        {
+            AssertJUnit.assertEquals(URI.create("file:/first/doc.dtd"), catalogFunction.apply(systemQuery));
+            AssertJUnit.assertEquals(URI.create("file:/first/doc.xsl"), catalogFunction.apply(uriQuery));
+        }
+    }
+}
@@ -64,4 +64,19 @@ public class CatalogParserTest extends AbstractTest
         AssertJUnit.assertEquals(URI.create("some/rewriten/path/whatever"), catalog.resolveUri("some/path/whatever",
                 null));
     }
+
+    @Test
+    public void compile()
+    {
+        final Source catalogSource = getSourceFromTestResources("catalog.xml");
+        final Catalog catalog = Catalog.newCatalog(new CatalogParser(getProcessor()).compile(catalogSource));
+
+        AssertJUnit.assertEquals(URI.create("some/rewriten/path/whatever"), catalog.resolveUri("some/path/whatever",
+                null));
+        AssertJUnit.assertEquals(URI.create("some/rewriten/path/deeper/whatever"), catalog.resolveUri(
+                "some/path/deep/whatever", null));
+        AssertJUnit.assertEquals(URI.create("http://example.org/dtd/doc.dtd"), catalog.resolveEntity(null,
+                "doc.dtd"));
+        AssertJUnit.assertNull(catalog.resolveUri("other/path/whatever", null));
+    }
 }